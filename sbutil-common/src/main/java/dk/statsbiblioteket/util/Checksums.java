@@ -25,11 +25,30 @@ package dk.statsbiblioteket.util;
 import dk.statsbiblioteket.util.qa.QAInfo;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 
 /**
- *
+ * Calculation of checksums for streams, Strings and files.
+ * </p><p>
+ * {@link #digests(File, String...)} calculates several digests of a file in a
+ * single pass, which is relevant for large files where the I/O dominates.
+ * {@link #manifest(File, int, String...)} calculates digests for all files
+ * in a folder in parallel.
  */
 @QAInfo(state = QAInfo.State.QA_NEEDED,
         level = QAInfo.Level.NORMAL)
@@ -37,6 +56,17 @@ public class Checksums {
 
     private static final int bufferSize = 2048;
 
+    /**
+     * The name for CRC-32 in {@link #digests(File, String...)}. The digest is
+     * the 4 byte big-endian value of {@link CRC32}.
+     */
+    public static final String CRC32 = "CRC32";
+    /**
+     * The number of bytes read from the file at a time by
+     * {@link #digests(File, String...)}.
+     */
+    public static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
     /**
      * Calculate the checksum of a given {@link InputStream}.
      * The stream is guaranteed to be closed after ended operation.
@@ -190,4 +220,217 @@ public class Checksums {
             throw new DigestException("Unknown algorithm: MD5");
         }
     }
+
+    /**
+     * Calculates several digests of a file in a single pass. The file is read
+     * in chunks of {@link #CHUNK_SIZE} bytes with a file channel. For files
+     * larger than a chunk, each digest is updated by its own thread while the
+     * next chunk is read, so the time is close to the slowest of the digests
+     * or the read, whichever is longer.
+     *
+     * @param in         the file to digest.
+     * @param algorithms the algorithms for the digests, such as "MD5", "SHA-1"
+     *                   and {@link #CRC32}.
+     * @return the digests as algorithm to digest, in the order of algorithms.
+     * @throws IOException              if the file could not be read.
+     * @throws NoSuchAlgorithmException if an algorithm isn't known to the jvm.
+     */
+    public static Map<String, byte[]> digests(File in, String... algorithms)
+            throws IOException, NoSuchAlgorithmException {
+        return digests(in, true, algorithms);
+    }
+
+    private static Map<String, byte[]> digests(File in, boolean parallel, String... algorithms)
+            throws IOException, NoSuchAlgorithmException {
+        final List<Digester> digesters = new ArrayList<Digester>(algorithms.length);
+        for (String algorithm : algorithms) {
+            digesters.add(algorithm.equals(CRC32) ? new CRCDigester() : new MessageDigester(algorithm));
+        }
+        FileInputStream stream = new FileInputStream(in);
+        ExecutorService executor = null;
+        try {
+            FileChannel channel = stream.getChannel();
+            long size = channel.size();
+            parallel = parallel && digesters.size() > 1 && size > CHUNK_SIZE;
+            if (parallel) {
+                executor = Executors.newFixedThreadPool(digesters.size());
+            }
+            // Double buffering: The next chunk is read while the previous is digested
+            byte[][] chunks = new byte[parallel ? 2 : 1][(int) Math.min(CHUNK_SIZE, Math.max(1, size))];
+            List<Future<Object>> pending = new ArrayList<Future<Object>>();
+            int current = 0;
+            while (true) {
+                final byte[] chunk = chunks[current];
+                final int length = readChunk(channel, chunk);
+                for (Future<Object> future : pending) {
+                    get(future);
+                }
+                pending.clear();
+                if (length <= 0) {
+                    break;
+                }
+                if (!parallel) {
+                    for (Digester digester : digesters) {
+                        digester.update(chunk, length);
+                    }
+                    continue;
+                }
+                for (final Digester digester : digesters) {
+                    pending.add(executor.submit(new Callable<Object>() {
+                        @Override
+                        public Object call() {
+                            digester.update(chunk, length);
+                            return null;
+                        }
+                    }));
+                }
+                current = (current + 1) % chunks.length;
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            stream.close();
+        }
+        Map<String, byte[]> result = new LinkedHashMap<String, byte[]>(algorithms.length * 2);
+        for (int i = 0; i < algorithms.length; i++) {
+            result.put(algorithms[i], digesters.get(i).digest());
+        }
+        return result;
+    }
+
+    /**
+     * Reads until the chunk is full or the end of the file is reached.
+     *
+     * @return the number of bytes read.
+     */
+    private static int readChunk(FileChannel channel, byte[] chunk) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                break;
+            }
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Calculates digests for all files in the folder and its sub folders,
+     * using a bounded number of threads. Each file is read once for all
+     * algorithms.
+     *
+     * @param folder     the folder with the files to digest.
+     * @param threads    the number of files to digest at the same time.
+     * @param algorithms the algorithms for the digests, such as "MD5", "SHA-1"
+     *                   and {@link #CRC32}.
+     * @return the digests for each file with the path relative to folder,
+     *         separated by '/', as key. The paths are sorted.
+     * @throws IOException              if a file could not be read.
+     * @throws NoSuchAlgorithmException if an algorithm isn't known to the jvm.
+     */
+    public static Map<String, Map<String, byte[]>> manifest(File folder, int threads, final String... algorithms)
+            throws IOException, NoSuchAlgorithmException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of threads must be at least 1, was " + threads);
+        }
+        for (String algorithm : algorithms) {
+            if (!algorithm.equals(CRC32)) {
+                MessageDigest.getInstance(algorithm); // Fail early
+            }
+        }
+        Map<String, File> files = new TreeMap<String, File>();
+        collect("", folder, files);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Map<String, Future<Map<String, byte[]>>> futures =
+                    new LinkedHashMap<String, Future<Map<String, byte[]>>>(files.size() * 2);
+            for (final Map.Entry<String, File> entry : files.entrySet()) {
+                futures.put(entry.getKey(), executor.submit(new Callable<Map<String, byte[]>>() {
+                    @Override
+                    public Map<String, byte[]> call() throws IOException, NoSuchAlgorithmException {
+                        // The parallelism is across files, so each file is digested serially
+                        return digests(entry.getValue(), false, algorithms);
+                    }
+                }));
+            }
+            Map<String, Map<String, byte[]>> manifest = new TreeMap<String, Map<String, byte[]>>();
+            for (Map.Entry<String, Future<Map<String, byte[]>>> entry : futures.entrySet()) {
+                manifest.put(entry.getKey(), get(entry.getValue()));
+            }
+            return manifest;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void collect(String prefix, File folder, Map<String, File> files) throws IOException {
+        String[] children = folder.list();
+        if (children == null) {
+            throw new IOException("Unable to list the content of '" + folder + "'");
+        }
+        Arrays.sort(children);
+        for (String child : children) {
+            File file = new File(folder, child);
+            if (file.isDirectory()) {
+                collect(prefix + child + "/", file, files);
+            } else {
+                files.put(prefix + child, file);
+            }
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for a digest");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new DigestException("Unexpected exception while calculating a digest", e.getCause());
+        }
+    }
+
+    private interface Digester {
+        void update(byte[] bytes, int length);
+
+        byte[] digest();
+    }
+
+    private static final class MessageDigester implements Digester {
+        private final MessageDigest md;
+
+        private MessageDigester(String algorithm) throws NoSuchAlgorithmException {
+            md = MessageDigest.getInstance(algorithm);
+        }
+
+        @Override
+        public void update(byte[] bytes, int length) {
+            md.update(bytes, 0, length);
+        }
+
+        @Override
+        public byte[] digest() {
+            return md.digest();
+        }
+    }
+
+    private static final class CRCDigester implements Digester {
+        private final CRC32 crc = new CRC32();
+
+        @Override
+        public void update(byte[] bytes, int length) {
+            crc.update(bytes, 0, length);
+        }
+
+        @Override
+        public byte[] digest() {
+            long value = crc.getValue();
+            return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        }
+    }
 }
@@ -0,0 +1,127 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Helpers for direct (off-heap) {@link ByteBuffer}s.
+ * </p><p>
+ * The memory behind a direct buffer is normally freed when the buffer is
+ * garbage collected. As the buffer object itself is tiny, this can take a long
+ * time for large buffers. {@link #release(ByteBuffer)} frees the memory
+ * explicitly using the cleaner of the JVM, which is not part of the public
+ * API. If the cleaner is not available, release falls back to waiting for
+ * garbage collection.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class DirectBuffers {
+    private static Log log = LogFactory.getLog(DirectBuffers.class);
+
+    /* Java 9+: Unsafe.invokeCleaner(ByteBuffer) */
+    private static Object unsafe;
+    private static Method invokeCleaner;
+    /* Java 6-8: ((DirectBuffer) buffer).cleaner().clean() */
+    private static boolean cleanerFailed = false;
+
+    static {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod(
+                    "invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        } catch (Exception e) {
+            invokeCleaner = null;
+            unsafe = null;
+        }
+    }
+
+    /**
+     * Allocates a direct buffer in native byte order.
+     *
+     * @param bytes the size of the buffer.
+     * @return a direct buffer with the given capacity.
+     */
+    public static ByteBuffer allocate(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Frees the memory behind the given buffer. The buffer and all views of
+     * it must not be used afterwards, as that can crash the JVM.
+     * </p><p>
+     * Only buffers returned by {@link ByteBuffer#allocateDirect(int)} (or
+     * {@link #allocate(int)}) can be released. Slices, duplicates and
+     * heap buffers are ignored.
+     *
+     * @param buffer the buffer to release. null is accepted.
+     * @return true if the memory was freed, false if it will be freed by
+     *         garbage collection.
+     */
+    public static boolean release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return false;
+        }
+        if (invokeCleaner != null) {
+            try {
+                invokeCleaner.invoke(unsafe, buffer);
+                return true;
+            } catch (Exception e) {
+                // Typically a slice or duplicate
+                log.trace("Unable to release direct buffer", e);
+                return false;
+            }
+        }
+        if (cleanerFailed) {
+            return false;
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner == null) {
+                return false;
+            }
+            Method clean = cleaner.getClass().getMethod("clean");
+            clean.setAccessible(true);
+            clean.invoke(cleaner);
+            return true;
+        } catch (Exception e) {
+            log.debug("Unable to access the cleaner for direct buffers. "
+                      + "Memory will be released by garbage collection", e);
+            cleanerFailed = true;
+            return false;
+        }
+    }
+}
@@ -0,0 +1,633 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads a resource to a file, resuming partial downloads and verifying
+ * the result against an expected digest.
+ * </p><p>
+ * The data are written to a part file next to the target and the progress is
+ * stored in a state file. If a download fails, a later download of the same
+ * resource to the same target continues where the previous one stopped,
+ * provided that the server supports HTTP range requests and the resource has
+ * not changed, as indicated by ETag, Last-Modified and the length. Failed
+ * requests are retried from the current position up to
+ * {@link #setRetries(int)} times before the download is given up.
+ * </p><p>
+ * Large resources can be fetched in several concurrent ranges with
+ * {@link #setConnections(int)}. With a single connection the digest is
+ * calculated while streaming. With concurrent ranges the digest is calculated
+ * from the part file when all ranges are complete.
+ * </p><p>
+ * Resources that are not HTTP, do not support ranges or are served by a
+ * server that rejects HEAD requests are downloaded from the start in one go.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class Downloader {
+    private static Log log = LogFactory.getLog(Downloader.class);
+
+    public static final String PART_SUFFIX = ".part";
+    public static final String STATE_SUFFIX = ".part.state";
+    public static final int DEFAULT_RETRIES = 3;
+    /**
+     * Resources are not split into ranges smaller than this.
+     */
+    public static final long MIN_RANGE_SIZE = 1024 * 1024;
+    /**
+     * The state file is updated each time this many bytes have been received.
+     */
+    public static final long STATE_INTERVAL = 8 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final URL url;
+    private final File target;
+    private boolean overwrite = false;
+    private int connections = 1;
+    private int retries = DEFAULT_RETRIES;
+    private int timeout = 60000;
+    private String algorithm = null;
+    private byte[] expectedDigest = null;
+
+    /* The state of the current download */
+    private State state;
+    private File stateFile;
+    private long sinceSave = 0;
+
+    /**
+     * @param url    the resource to download.
+     * @param target the file to store the resource in. If this is a folder,
+     *               the file is stored in the folder with the base name of
+     *               the url, as for {@link Files#download(URL, File, boolean)}.
+     */
+    public Downloader(URL url, File target) {
+        if (url == null) {
+            throw new NullPointerException("url is null");
+        }
+        if (target == null) {
+            throw new NullPointerException("target is null");
+        }
+        this.url = url;
+        this.target = target.isDirectory() ? new File(target, new File(url.getFile()).getName()) : target;
+    }
+
+    /**
+     * @param overwrite whether to overwrite an existing target file. Default
+     *                  is false.
+     * @return this downloader.
+     */
+    public Downloader setOverwrite(boolean overwrite) {
+        this.overwrite = overwrite;
+        return this;
+    }
+
+    /**
+     * @param connections the maximum number of concurrent range requests.
+     *                    Default is 1.
+     * @return this downloader.
+     */
+    public Downloader setConnections(int connections) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("The number of connections must be at least 1, was " + connections);
+        }
+        this.connections = connections;
+        return this;
+    }
+
+    /**
+     * @param retries the number of times a failed request for a range is
+     *                retried from the point of failure. Default is
+     *                {@link #DEFAULT_RETRIES}.
+     * @return this downloader.
+     */
+    public Downloader setRetries(int retries) {
+        this.retries = retries;
+        return this;
+    }
+
+    /**
+     * @param timeout connect and read timeout in milliseconds.
+     * @return this downloader.
+     */
+    public Downloader setTimeout(int timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * Verify the downloaded data against a digest, as produced by
+     * {@link Checksums#digest(String, File)}.
+     *
+     * @param algorithm the algorithm for the digest, such as "MD5".
+     * @param digest    the expected digest.
+     * @return this downloader.
+     * @throws NoSuchAlgorithmException if the algorithm isn't known to the jvm.
+     */
+    public Downloader setDigest(String algorithm, byte[] digest) throws NoSuchAlgorithmException {
+        MessageDigest.getInstance(algorithm); // Fail early
+        this.algorithm = algorithm;
+        this.expectedDigest = digest.clone();
+        return this;
+    }
+
+    public File getTarget() {
+        return target;
+    }
+
+    /**
+     * Downloads the resource, resuming a previous partial download if
+     * possible. If the digest does not match, the partial data are deleted.
+     *
+     * @return the target file.
+     * @throws FileAlreadyExistsException if the target exists and overwrite
+     *                                    is false.
+     * @throws IOException                if the resource could not be
+     *                                    downloaded or the digest did not
+     *                                    match.
+     */
+    public File download() throws IOException {
+        log.trace("download() called for " + url + " to " + target);
+        if (target.exists() && !overwrite) {
+            throw new FileAlreadyExistsException(target);
+        }
+        File part = new File(target.getPath() + PART_SUFFIX);
+        stateFile = new File(target.getPath() + STATE_SUFFIX);
+
+        State remote = probe();
+        state = State.load(stateFile);
+        if (state == null || !state.sameResource(remote) || !part.exists()) {
+            if (state != null) {
+                log.info("The resource " + url + " has changed or the part file is missing. Starting over");
+            }
+            state = remote;
+            state.split(remote.length == -1 || !remote.ranges ? 1 : connections);
+            if (part.exists() && !part.delete()) {
+                throw new IOException("Unable to delete the old part file '" + part + "'");
+            }
+        } else {
+            log.debug("Resuming " + url + " with " + state.getDone() + "/" + state.length + " bytes");
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(part, "rw");
+        MessageDigest streaming = null;
+        try {
+            FileChannel channel = raf.getChannel();
+            if (algorithm != null && state.parts.size() == 1) {
+                streaming = createDigest();
+                // The digest must cover the data from an earlier attempt
+                updateDigest(streaming, channel, state.parts.get(0).done);
+            }
+            if (state.parts.size() == 1) {
+                fetch(state.parts.get(0), channel, streaming);
+            } else {
+                fetchConcurrently(channel);
+            }
+            channel.truncate(state.getDone());
+            channel.force(false);
+        } finally {
+            raf.close();
+            saveState();
+        }
+
+        if (algorithm != null) {
+            byte[] digest = streaming != null ? streaming.digest() : digest(part);
+            if (!Arrays.equals(expectedDigest, digest)) {
+                discard(part);
+                throw new IOException("The " + algorithm + " digest " + Bytes.toHex(digest) + " for " + url
+                                      + " did not match the expected " + Bytes.toHex(expectedDigest));
+            }
+        }
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Unable to delete the old target '" + target + "'");
+        }
+        if (!part.renameTo(target)) {
+            throw new IOException("Unable to rename '" + part + "' to '" + target + "'");
+        }
+        if (stateFile.exists() && !stateFile.delete()) {
+            log.warn("Unable to delete the state file '" + stateFile + "'");
+        }
+        log.debug("Downloaded " + url + " to " + target);
+        return target;
+    }
+
+    /**
+     * Requests the headers for the resource. If the server rejects HEAD, the
+     * resource is treated as having unknown length and no range support, so
+     * that it is downloaded with a single plain GET.
+     */
+    private State probe() throws IOException {
+        State remote = new State();
+        URLConnection connection = open();
+        try {
+            if (connection instanceof HttpURLConnection) {
+                HttpURLConnection http = (HttpURLConnection) connection;
+                http.setRequestMethod("HEAD");
+                int code = http.getResponseCode();
+                if (code != HttpURLConnection.HTTP_OK) {
+                    log.info("Got response " + code + " for HEAD of " + url + ". Downloading without resume");
+                    return remote;
+                }
+                remote.ranges = "bytes".equals(http.getHeaderField("Accept-Ranges"));
+                remote.etag = http.getHeaderField("ETag");
+                remote.lastModified = http.getHeaderField("Last-Modified");
+            }
+            String length = connection.getHeaderField("Content-Length");
+            remote.length = length == null ? -1 : Long.parseLong(length);
+        } finally {
+            if (connection instanceof HttpURLConnection) {
+                ((HttpURLConnection) connection).disconnect();
+            } else {
+                connection.getInputStream().close();
+            }
+        }
+        return remote;
+    }
+
+    private URLConnection open() throws IOException {
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        return connection;
+    }
+
+    private void fetchConcurrently(final FileChannel channel) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(connections, state.parts.size()));
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (final Part p : state.parts) {
+                futures.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws IOException {
+                        fetch(p, channel, null);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for the ranges of " + url);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new IOException("Unexpected exception while downloading " + url, e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Fetches the remainder of the part, retrying from the point of failure.
+     */
+    private void fetch(Part p, FileChannel channel, MessageDigest digest) throws IOException {
+        int attempt = 0;
+        while (!p.isComplete()) {
+            try {
+                fetchOnce(p, channel, digest);
+            } catch (IOException e) {
+                if (attempt++ >= retries) {
+                    throw e;
+                }
+                log.info("Retrying " + url + " from " + (p.start + p.getDone()) + " after attempt " + attempt
+                         + " failed with " + e.getMessage());
+            }
+        }
+    }
+
+    private void fetchOnce(Part p, FileChannel channel, MessageDigest digest) throws IOException {
+        URLConnection connection = open();
+        long from = p.start + p.getDone();
+        // A range needs a known end. Without it, a retry starts over
+        boolean ranged = state.ranges && p.end != -1 && (from > 0 || p.end != state.length);
+        if (ranged) {
+            connection.setRequestProperty("Range", "bytes=" + from + "-" + (p.end - 1));
+            String validator = state.getIfRange();
+            if (validator != null) {
+                // Ask for the full resource if it has changed
+                connection.setRequestProperty("If-Range", validator);
+            }
+        } else if (from > 0) {
+            // Without ranges the download starts over
+            p.setDone(0);
+            from = 0;
+            if (digest != null) {
+                digest.reset();
+            }
+        }
+        if (connection instanceof HttpURLConnection) {
+            int code = ((HttpURLConnection) connection).getResponseCode();
+            if (ranged && code != HttpURLConnection.HTTP_PARTIAL) {
+                ((HttpURLConnection) connection).disconnect();
+                throw new IOException("Expected a partial response for range " + from + "-" + (p.end - 1)
+                                      + " of " + url + ", but got " + code + ". The resource might have changed");
+            }
+            if (!ranged && code != HttpURLConnection.HTTP_OK) {
+                ((HttpURLConnection) connection).disconnect();
+                throw new IOException("Got response " + code + " for " + url);
+            }
+            if (!ranged && p.end == -1) {
+                // The length was not known from HEAD, so take it from the response if possible
+                String length = connection.getHeaderField("Content-Length");
+                if (length != null) {
+                    p.end = Long.parseLong(length);
+                    state.length = p.end;
+                }
+            }
+            String range = connection.getHeaderField("Content-Range");
+            if (ranged && (range == null || !range.startsWith("bytes " + from + "-"))) {
+                ((HttpURLConnection) connection).disconnect();
+                throw new IOException("Expected the range " + from + "-" + (p.end - 1) + " of " + url
+                                      + ", but got '" + range + "'");
+            }
+        }
+        InputStream in = connection.getInputStream();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!p.isComplete()) {
+                int max = p.end == -1 ? buffer.length : (int) Math.min(buffer.length, p.end - from);
+                int read = in.read(buffer, 0, max);
+                if (read == -1) {
+                    if (p.end == -1) {
+                        p.end = from; // Unknown length: EOF is the end
+                        state.length = from;
+                        break;
+                    }
+                    throw new EOFException("The connection for " + url + " ended at " + from + " before "
+                                           + p.end);
+                }
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+                long position = from;
+                while (bytes.hasRemaining()) {
+                    position += channel.write(bytes, position);
+                }
+                if (digest != null) {
+                    digest.update(buffer, 0, read);
+                }
+                from += read;
+                p.setDone(from - p.start);
+                received(read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private synchronized void received(int bytes) throws IOException {
+        sinceSave += bytes;
+        if (sinceSave >= STATE_INTERVAL) {
+            saveState();
+        }
+    }
+
+    private synchronized void saveState() throws IOException {
+        sinceSave = 0;
+        if (state.length == -1 || !state.ranges) {
+            return; // Cannot be resumed
+        }
+        state.store(stateFile);
+    }
+
+    private MessageDigest createDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new DigestException("Unknown algorithm: " + algorithm, e);
+        }
+    }
+
+    private void updateDigest(MessageDigest digest, FileChannel channel, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long position = 0;
+        while (position < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - position));
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new EOFException("The part file ended at " + position + " before " + length);
+            }
+            digest.update(buffer.array(), 0, read);
+            position += read;
+        }
+    }
+
+    private byte[] digest(File file) throws IOException {
+        try {
+            return Checksums.digests(file, algorithm).get(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new DigestException("Unknown algorithm: " + algorithm, e);
+        }
+    }
+
+    private void discard(File part) {
+        if (part.exists() && !part.delete()) {
+            log.warn("Unable to delete '" + part + "'");
+        }
+        if (stateFile.exists() && !stateFile.delete()) {
+            log.warn("Unable to delete '" + stateFile + "'");
+        }
+    }
+
+    /**
+     * A range of the resource.
+     */
+    private static final class Part {
+        private final long start;
+        /* Exclusive. -1 if the length of the resource is unknown */
+        private long end;
+        private long done = 0;
+
+        private Part(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        private synchronized long getDone() {
+            return done;
+        }
+
+        private synchronized void setDone(long done) {
+            this.done = done;
+        }
+
+        private synchronized boolean isComplete() {
+            return end != -1 && start + done >= end;
+        }
+    }
+
+    /**
+     * The identity of the resource and the progress for its parts.
+     */
+    private static final class State {
+        private long length = -1;
+        private boolean ranges = false;
+        private String etag = null;
+        private String lastModified = null;
+        private List<Part> parts = new ArrayList<Part>();
+
+        private void split(int count) {
+            parts.clear();
+            if (length == -1) {
+                parts.add(new Part(0, -1));
+                return;
+            }
+            count = (int) Math.max(1, Math.min(count, length / MIN_RANGE_SIZE));
+            long size = length / count;
+            for (int i = 0; i < count; i++) {
+                parts.add(new Part(i * size, i == count - 1 ? length : (i + 1) * size));
+            }
+        }
+
+        private long getDone() {
+            long done = 0;
+            for (Part p : parts) {
+                done += p.getDone();
+            }
+            return done;
+        }
+
+        private boolean sameResource(State other) {
+            return length != -1 && length == other.length && ranges && other.ranges
+                   && equals(etag, other.etag) && equals(lastModified, other.lastModified);
+        }
+
+        /**
+         * @return the validator for If-Range or null if there is none. Weak
+         *         ETags are not allowed in If-Range (RFC 7233), so
+         *         Last-Modified is used instead.
+         */
+        private String getIfRange() {
+            if (etag != null && !etag.startsWith("W/")) {
+                return etag;
+            }
+            return lastModified;
+        }
+
+        private static boolean equals(String s1, String s2) {
+            return s1 == null ? s2 == null : s1.equals(s2);
+        }
+
+        private void store(File file) throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty("length", Long.toString(length));
+            if (etag != null) {
+                properties.setProperty("etag", etag);
+            }
+            if (lastModified != null) {
+                properties.setProperty("lastModified", lastModified);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (Part p : parts) {
+                if (sb.length() > 0) {
+                    sb.append(",");
+                }
+                sb.append(p.start).append(":").append(p.end).append(":").append(p.getDone());
+            }
+            properties.setProperty("parts", sb.toString());
+            // Write and rename so that a crash does not leave a broken state
+            File temp = new File(file.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                properties.store(out, "Download state");
+            } finally {
+                out.close();
+            }
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Unable to delete the old state '" + file + "'");
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to rename '" + temp + "' to '" + file + "'");
+            }
+        }
+
+        /**
+         * @return the stored state or null if there is no usable state.
+         */
+        private static State load(File file) {
+            if (!file.exists()) {
+                return null;
+            }
+            try {
+                Properties properties = new Properties();
+                InputStream in = new FileInputStream(file);
+                try {
+                    properties.load(in);
+                } finally {
+                    in.close();
+                }
+                State state = new State();
+                state.length = Long.parseLong(properties.getProperty("length"));
+                state.ranges = true;
+                state.etag = properties.getProperty("etag");
+                state.lastModified = properties.getProperty("lastModified");
+                for (String p : properties.getProperty("parts").split(",")) {
+                    String[] tokens = p.split(":");
+                    Part part = new Part(Long.parseLong(tokens[0]), Long.parseLong(tokens[1]));
+                    part.setDone(Long.parseLong(tokens[2]));
+                    state.parts.add(part);
+                }
+                return state;
+            } catch (Exception e) {
+                log.warn("Unable to load the download state from '" + file + "'. Starting over", e);
+                return null;
+            }
+        }
+    }
+}
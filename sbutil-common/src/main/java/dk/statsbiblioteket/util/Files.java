@@ -30,6 +30,14 @@ import org.apache.commons.logging.LogFactory;
 import java.io.*;
 import java.net.ConnectException;
 import java.net.URL;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * General purpose methods to handle files
@@ -143,6 +151,89 @@ public class Files {
         }
     }
 
+    /**
+     * Copy a file or directory (recursively) to a destination path with the
+     * same semantics as {@link #copy(File, File, boolean)}. The folders are
+     * created first, after which the files are copied in parallel by the
+     * given number of threads.
+     *
+     * @param path      the file or directory to copy from.
+     * @param toPath    the destination file or directory.
+     * @param overwrite if false this method will throw a
+     *                  {@link FileAlreadyExistsException} if the operation will
+     *                  overwrite an existing file.
+     * @param threads   the maximum number of files to copy at the same time.
+     * @throws IOException                if there was an error copying the file(s)
+     * @throws FileAlreadyExistsException if {@code overwrite=false} and the
+     *                                    method is about to overwrite an existing file.
+     */
+    public static void copy(File path, File toPath, final boolean overwrite, int threads) throws IOException {
+        log.trace("copy(" + path + ", " + toPath + ", " + overwrite + ", " + threads + ")");
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of threads must be at least 1, was " + threads);
+        }
+        if (!path.isDirectory() || threads == 1) {
+            copy(path, toPath, overwrite);
+            return;
+        }
+        List<File[]> files = new ArrayList<File[]>();
+        createDirectories(path, toPath.exists() ? new File(toPath, path.getName()) : toPath, files);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>(files.size());
+            for (final File[] pair : files) {
+                futures.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws IOException {
+                        copyFile(pair[0], pair[1], overwrite);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for files to be copied");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new IOException("Unexpected exception while copying", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates the destination folders like {@link #copyDirectory} and
+     * collects the files to copy as source/destination pairs.
+     */
+    private static void createDirectories(File path, File toPath, List<File[]> files) throws IOException {
+        if (!toPath.exists() && !toPath.mkdirs()) {
+            throw new IOException("Unable to create or verify the existence" + " of the destination folder '"
+                                  + toPath.getAbsoluteFile() + "'");
+        }
+        if (!toPath.canWrite()) {
+            throw new IOException("The destination folder '" + toPath.getAbsoluteFile() + "' is not writable");
+        }
+        for (String filename : path.list()) {
+            File in = new File(path, filename);
+            File out = new File(toPath, filename);
+            if (in.isDirectory()) {
+                createDirectories(in, out, files);
+            } else if (in.isFile()) {
+                files.add(new File[]{in, out});
+            }
+        }
+    }
+
     /**
      * Move a file with the same semantics as the standard Unix {@code move}
      * command.
@@ -337,20 +428,16 @@ public class Files {
             throw new FileAlreadyExistsException(destination.toString());
         }
 
-        // BufferedInputStream is not used, as it chokes > 2GB
-        InputStream in = new FileInputStream(source);
-        OutputStream out = new FileOutputStream(destination);
-
+        // The bytes are transferred by the operating system
+        FileInputStream in = new FileInputStream(source);
+        FileOutputStream out;
         try {
-            byte[] buf = new byte[2028];
-            int count = 0;
-            while ((count = in.read(buf)) != -1) {
-                out.write(buf, 0, count);
-            }
-        } finally {
+            out = new FileOutputStream(destination);
+        } catch (IOException e) {
             in.close();
-            out.close();
+            throw e;
         }
+        Streams.pipe(in.getChannel(), out.getChannel());
         destination.setExecutable(source.canExecute());
     }
 
@@ -551,4 +638,29 @@ public class Files {
         return download(url, target, false);
     }
 
+    /**
+     * Downloads the data from the url to the target with a
+     * {@link Downloader}, resuming an earlier partial download if the server
+     * supports range requests and verifying the result against the digest.
+     *
+     * @param url       where the data should be downloaded from.
+     * @param target    the place to store the downloaded data. This can be
+     *                  either a file or a directory.
+     * @param overwrite whether or not to overwrite the target file if it
+     *                  already exist.
+     * @param algorithm the digest algorithm, such as "MD5".
+     * @param digest    the expected digest of the data.
+     * @return the resulting file.
+     * @throws IOException              if there was an error downloading the
+     *                                  file, writing it to disk or if the
+     *                                  digest did not match.
+     * @throws NoSuchAlgorithmException if the algorithm is unknown.
+     */
+    public static File download(URL url, File target, boolean overwrite,
+                                String algorithm, byte[] digest)
+            throws IOException, NoSuchAlgorithmException {
+        return new Downloader(url, target).setOverwrite(overwrite).
+                setDigest(algorithm, digest).download();
+    }
+
 }
@@ -0,0 +1,303 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A sparse index of line offsets for a text file, used by
+ * {@link LineReader#seekToLine(long)}. The byte offset of every
+ * {@code interval}'th line is recorded, so locating a line requires a lookup
+ * in the index and a scan of less than interval lines.
+ * </p><p>
+ * The index is stored next to the file, with the suffix {@link #SUFFIX}. The
+ * file is assumed to be append-only: When the file has grown, only the new
+ * content is scanned. If the file has shrunk, the index is rebuilt. Changes
+ * that do not affect the length of the file are not detected.
+ * </p><p>
+ * Lines are separated by 0x0A, as in {@link LineReader#readLine()}.
+ * </p><p>
+ * This class is not thread-safe.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class LineIndex {
+    private static Log log = LogFactory.getLog(LineIndex.class);
+
+    /**
+     * The suffix added to the file name for the persistent index.
+     */
+    public static final String SUFFIX = ".lineindex";
+    /**
+     * The default number of lines between recorded offsets.
+     */
+    public static final int DEFAULT_INTERVAL = 1000;
+
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final File indexFile;
+    private final int interval;
+
+    /* offsets[i] is the offset of line i * interval */
+    private long[] offsets = new long[16];
+    /* The number of complete lines, which are terminated by 0x0A */
+    private long lines = 0;
+    /* The offset after the last complete line */
+    private long indexedLength = 0;
+
+    /**
+     * Creates an index with {@link #DEFAULT_INTERVAL}. An existing index is
+     * loaded if present. Call {@link #update()} to bring it up to date.
+     *
+     * @param file the file to index.
+     */
+    public LineIndex(File file) {
+        this(file, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Creates an index. An existing index is loaded if present and created
+     * with the same interval. Call {@link #update()} to bring it up to date.
+     *
+     * @param file     the file to index.
+     * @param interval the number of lines between recorded offsets.
+     */
+    public LineIndex(File file, int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException(
+                    "The interval must be at least 1, was " + interval);
+        }
+        this.file = file;
+        this.indexFile = getIndexFile(file);
+        this.interval = interval;
+        if (indexFile.exists()) {
+            try {
+                load();
+            } catch (IOException e) {
+                log.warn("Unable to load line index '" + indexFile
+                         + "'. The index will be rebuilt", e);
+                clear();
+            }
+        }
+    }
+
+    /**
+     * @param file a text file.
+     * @return the location of the persistent index for the file.
+     */
+    public static File getIndexFile(File file) {
+        return new File(file.getPath() + SUFFIX);
+    }
+
+    /**
+     * Scans content added to the file since the last update and stores the
+     * index if it was changed. If the index could not be stored, a warning is
+     * logged and the index is kept in memory only.
+     *
+     * @return true if the index was changed.
+     * @throws IOException if the file could not be read.
+     */
+    public boolean update() throws IOException {
+        long length = file.length();
+        if (length == indexedLength) {
+            return false;
+        }
+        if (length < indexedLength) {
+            log.debug("The file '" + file + "' has shrunk. Rebuilding index");
+            clear();
+        }
+        LineReader reader = new LineReader(file, "r");
+        reader.setBufferSize(64 * 1024);
+        try {
+            reader.seek(indexedLength);
+            while (true) {
+                long lineStart = reader.getPosition();
+                if (reader.readLineBytes() == null) {
+                    break;
+                }
+                if (reader.eof() && !endsWithLineBreak(reader)) {
+                    break; // The last line is not complete yet
+                }
+                if (lines % interval == 0) {
+                    addOffset(lineStart);
+                }
+                lines++;
+                indexedLength = reader.getPosition();
+            }
+        } finally {
+            reader.close();
+        }
+        try {
+            store();
+        } catch (IOException e) {
+            log.warn("Unable to store line index '" + indexFile + "'", e);
+        }
+        return true;
+    }
+
+    private boolean endsWithLineBreak(LineReader reader) throws IOException {
+        reader.seek(reader.length() - 1);
+        return reader.readByte() == 0x0A;
+    }
+
+    private void addOffset(long offset) {
+        int index = (int) (lines / interval);
+        if (index == offsets.length) {
+            long[] grown = new long[offsets.length * 2];
+            System.arraycopy(offsets, 0, grown, 0, offsets.length);
+            offsets = grown;
+        }
+        offsets[index] = offset;
+    }
+
+    private void clear() {
+        offsets = new long[16];
+        lines = 0;
+        indexedLength = 0;
+    }
+
+    /**
+     * @return the number of lines in the file at the last update. A last line
+     *         without a terminating line break is counted.
+     */
+    public long getLineCount() {
+        return lines + (file.length() > indexedLength ? 1 : 0);
+    }
+
+    /**
+     * @return the number of lines between recorded offsets.
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Returns the recorded line at or before the given line.
+     *
+     * @param line a 0-based line number.
+     * @return the number of the nearest recorded line at or before line.
+     * @throws EOFException if line is larger than the number of lines.
+     */
+    public long getCheckpointLine(long line) throws EOFException {
+        if (line < 0) {
+            throw new IllegalArgumentException(
+                    "The line number must not be negative, was " + line);
+        }
+        if (line > lines) {
+            throw new EOFException("Requested line " + line + " but the file '"
+                                   + file + "' only has " + lines
+                                   + " complete lines");
+        }
+        if (line == lines && lines % interval == 0) {
+            // The line after the last complete line is not recorded
+            return Math.max(0, line - interval);
+        }
+        return line / interval * interval;
+    }
+
+    /**
+     * @param line a 0-based line number.
+     * @return the offset of the nearest recorded line at or before line.
+     * @throws EOFException if line is larger than the number of lines.
+     * @see #getCheckpointLine(long)
+     */
+    public long getCheckpointOffset(long line) throws EOFException {
+        long checkpoint = getCheckpointLine(line);
+        return checkpoint == 0 && lines == 0 ? 0 :
+               offsets[(int) (checkpoint / interval)];
+    }
+
+    private void load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(indexFile)));
+        try {
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported line index version "
+                                      + version);
+            }
+            if (in.readInt() != interval) {
+                log.debug("The line index '" + indexFile + "' has another "
+                          + "interval. Rebuilding index");
+                clear();
+                return;
+            }
+            lines = in.readLong();
+            indexedLength = in.readLong();
+            int count = in.readInt();
+            offsets = new long[Math.max(16, count)];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = in.readLong();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void store() throws IOException {
+        File temp = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp)));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(interval);
+            out.writeLong(lines);
+            out.writeLong(indexedLength);
+            int count = (int) ((lines + interval - 1) / interval);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeLong(offsets[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if (indexFile.exists() && !indexFile.delete()) {
+            throw new IOException("Unable to delete old index '"
+                                  + indexFile + "'");
+        }
+        if (!temp.renameTo(indexFile)) {
+            throw new IOException("Unable to rename '" + temp + "' to '"
+                                  + indexFile + "'");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LineIndex(file=" + file + ", interval=" + interval
+               + ", lines=" + lines + ", indexedLength=" + indexedLength + ")";
+    }
+}
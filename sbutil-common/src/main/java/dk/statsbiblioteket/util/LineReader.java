@@ -32,8 +32,20 @@ import org.apache.commons.logging.LogFactory;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A Java NIO based high-performance, large file-size enabled, random seek
@@ -43,6 +55,20 @@ import java.util.Comparator;
  * It is substantially faster than {@link RandomAccessFile} (about a factor 5
  * for most operations). It can be used as a replacement for RandomAccessFile.
  * </p><p>
+ * For read-only random access to large files, the mode "rm" maps the file into
+ * memory in segments of {@link #DEFAULT_SEGMENT_SIZE} bytes. Seeks and reads
+ * are then served directly from the mapped segments without system calls.
+ * As with {@link ZipReader}, the mapped memory is released by the garbage
+ * collector and not by {@link #close()}. Until then the file stays locked
+ * on some platforms, such as Windows.
+ * </p><p>
+ * In mode "rw", buffers with changes are handed to a write-behind cache of up
+ * to {@link #PENDING_BUFFERS} buffers and written on a background thread, with
+ * adjacent changes written together in a single gathering write. Reads see
+ * the pending changes. {@link #flush()} and {@link #close()} wait for all
+ * changes to reach the file. In the modes "rws" and "rwd", each write is
+ * written synchronously before the write method returns.
+ * </p><p>
  * Important: writeUTF is not supported. This is because the relevant converter
  * method {@link DataOutputStream#writeUTF(String, DataOutput)} is
  * package private.
@@ -56,6 +82,22 @@ public class LineReader implements DataInput, DataOutput {
 
     protected static final int BUFFER_SIZE = 8192; // TODO: Performance-tweak this
 
+    /**
+     * The default size of the segments in mode "rm". A single mapping is
+     * limited to 2GB, so larger files are mapped as multiple segments.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+    /**
+     * Each segment maps this many bytes beyond its end, so that reads of
+     * primitives that start in the segment can be served by it.
+     */
+    private static final int SEGMENT_OVERLAP = 8;
+    /**
+     * In mode "rw", writes block when the changes waiting to be written to the
+     * file exceed this number of buffers.
+     */
+    public static final int PENDING_BUFFERS = 16;
+
     private RandomAccessFile input;
     //    private FileInputStream input;
     /**
@@ -127,15 +169,41 @@ public class LineReader implements DataInput, DataOutput {
 
     /**
      * States whether all write operations should be automatically followed by
-     * a flush.<br />
-     * Note: The current implementation always flushes. This is expected to
-     * change.
+     * a flush (modes "rws" and "rwd").
      */
-    // TODO: Make synchronize make a difference
-    @SuppressWarnings({"UnusedDeclaration", "FieldCanBeLocal"})
     private boolean synchronize = false;
+    /**
+     * The mode for the output file.
+     */
+    private String outputMode = "rw";
+    /**
+     * Writes changed buffers in the background in mode "rw". Created together
+     * with {@link #channelOut}.
+     */
+    private WriteBehind writeBehind = null;
+    /**
+     * The number of write calls to the output channel in synchronous mode.
+     */
+    private long writeCalls = 0;
     private int bufferSize;
 
+    /**
+     * States whether the file is accessed through memory mapping (mode "rm").
+     */
+    private boolean mapped = false;
+    /**
+     * The mapped segments in mode "rm". The segment for a position is
+     * {@code position >>> segmentShift}. Segments are mapped on first use.
+     */
+    private MappedByteBuffer[] segments = null;
+    private int segmentShift = 30;
+    private long segmentMask = DEFAULT_SEGMENT_SIZE - 1;
+
+    /**
+     * Used by {@link #seekToLine(long)}. Created on first use.
+     */
+    private LineIndex lineIndex = null;
+
     /**
      * Connects to the given file with the given mode. This corresponds to
      * {@link RandomAccessFile(File, String)}.
@@ -146,6 +214,7 @@ public class LineReader implements DataInput, DataOutput {
      *             "rw": read and write.<br />
      *             "rws": read and write and synchronize after each write.
      *             "rwd": read and write and synchronize after each write.
+     *             "rm": read-only, memory mapped.
      * @throws IOException if the file coult not be accessed.
      */
     public LineReader(File file, String mode) throws IOException {
@@ -161,18 +230,23 @@ public class LineReader implements DataInput, DataOutput {
             log.debug("Mode == null, defaulting to read-only");
         } else if (mode.equals("r")) {
             writable = false; // Just to make sure
+        } else if (mode.equals("rm")) {
+            writable = false;
+            mapped = true;
         } else if (mode.equals("rw")) {
             writable = true;
             // TODO: Check what the difference is between rws and rwd
         } else if (mode.equals("rws")) {
             writable = true;
             synchronize = true;
+            outputMode = mode;
         } else if (mode.equals("rwd")) {
             writable = true;
             synchronize = true;
+            outputMode = mode;
         } else {
             throw new IllegalArgumentException(
-                    "The mode '" + mode + "' is " + "illegal. Legal values are " + "'r', 'rw', 'rws' and 'rwd");
+                    "The mode '" + mode + "' is " + "illegal. Legal values are " + "'r', 'rm', 'rw', 'rws' and 'rwd");
         }
         if (writable && !file.canWrite()) {
             throw new IOException("The file '" + file + "' is read-only");
@@ -199,6 +273,27 @@ public class LineReader implements DataInput, DataOutput {
         buffer = ByteBuffer.allocate(bufferSize);
     }
 
+    /**
+     * Sets the size of the segments used for memory mapping in mode "rm".
+     * Larger segments means fewer mappings. The size cannot exceed
+     * {@link #DEFAULT_SEGMENT_SIZE}, as a single mapping is limited to 2GB.
+     *
+     * @param segmentSize the size of the segments. Must be a power of two.
+     * @throws IOException declared for compatibility. The existing segments
+     *                     are dropped and left to the garbage collector.
+     */
+    public void setSegmentSize(int segmentSize) throws IOException {
+        if (segmentSize <= 0 || Integer.bitCount(segmentSize) != 1
+            || segmentSize > DEFAULT_SEGMENT_SIZE) {
+            throw new IllegalArgumentException(
+                    "The segment size must be a power of two <= "
+                    + DEFAULT_SEGMENT_SIZE + ", was " + segmentSize);
+        }
+        releaseSegments();
+        segmentShift = Integer.numberOfTrailingZeros(segmentSize);
+        segmentMask = segmentSize - 1;
+    }
+
     /**
      * @return the absolute position within the file.
      */
@@ -250,6 +345,38 @@ public class LineReader implements DataInput, DataOutput {
         this.position = position;
     }
 
+    /**
+     * Sets the position to the start of the given line. The lookup uses a
+     * {@link LineIndex} that is stored next to the file and updated when the
+     * file has grown, followed by a scan of less than
+     * {@link LineIndex#getInterval()} lines.
+     *
+     * @param line the 0-based number of the line.
+     * @throws EOFException if the file has fewer lines.
+     * @throws IOException  if the file or the index could not be read.
+     */
+    public void seekToLine(long line) throws IOException {
+        flush();
+        if (lineIndex == null) {
+            lineIndex = new LineIndex(file);
+        }
+        lineIndex.update();
+        seek(lineIndex.getCheckpointOffset(line));
+        for (long i = lineIndex.getCheckpointLine(line); i < line; i++) {
+            readLineBytes();
+        }
+    }
+
+    /**
+     * Sets the index used by {@link #seekToLine(long)}, e.g. to use another
+     * interval than {@link LineIndex#DEFAULT_INTERVAL}.
+     *
+     * @param lineIndex an index for the file of this reader.
+     */
+    public void setLineIndex(LineIndex lineIndex) {
+        this.lineIndex = lineIndex;
+    }
+
     /**
      * The length of this file in bytes.
      *
@@ -259,7 +386,8 @@ public class LineReader implements DataInput, DataOutput {
         if (fileSize == -1) {
             fileSize = file.length();
         }
-        return Math.max(fileSize, dirty ? bufferStart + maxBufferPos : fileSize);
+        long length = Math.max(fileSize, dirty ? bufferStart + maxBufferPos : fileSize);
+        return writeBehind == null ? length : Math.max(length, writeBehind.getEnd());
     }
 
     /**
@@ -297,19 +425,29 @@ public class LineReader implements DataInput, DataOutput {
      * @throws IllegalStateException if the file opened in read-only mode..
      */
     private void checkOutputFile() throws IOException {
-        if (!writable) {
-            throw new IllegalStateException(String.format("The file '%s' has been opened in read-only mode", file));
-        }
+        checkWritable();
         if (outOpen) {
             return;
         }
         log.trace("Opening output channel for '" + file + "'");
-        output = new RandomAccessFile(file, "rw");
+        output = new RandomAccessFile(file, outputMode);
 //        output = new FileOutputStream(file, true);
         channelOut = output.getChannel();
+        if (!synchronize) {
+            writeBehind = new WriteBehind(channelOut, PENDING_BUFFERS * bufferSize);
+        }
         outOpen = true;
     }
 
+    /**
+     * @throws IllegalStateException if the file opened in read-only mode.
+     */
+    private void checkWritable() {
+        if (!writable) {
+            throw new IllegalStateException(String.format("The file '%s' has been opened in read-only mode", file));
+        }
+    }
+
     /**
      * Reset the position in the file to 0 and free any open file handles.
      * Later access to the file is allowed, as it is automatically opened.
@@ -329,6 +467,18 @@ public class LineReader implements DataInput, DataOutput {
      */
     private void closeNoReset() throws IOException {
         invalidateBuffer();
+        IOException failure = null;
+        if (writeBehind != null) {
+            try {
+                writeBehind.await();
+            } catch (IOException e) {
+                // Close the file handles before reporting the lost changes
+                failure = e;
+            } finally {
+                writeBehind = null;
+            }
+        }
+        releaseSegments();
         if (channelIn != null) {
             channelIn.close();
         }
@@ -343,6 +493,49 @@ public class LineReader implements DataInput, DataOutput {
             output.close();
         }
         outOpen = false;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Drops the mapped segments. The mapped memory is not released explicitly,
+     * as buffers from {@link #readLineBytes()} can still point into it and
+     * touching unmapped memory crashes the JVM. It is released when the
+     * segments and all views of them have been garbage collected.
+     */
+    private void releaseSegments() {
+        segments = null;
+    }
+
+    /**
+     * Returns the segment containing the given position, mapping it if
+     * needed. The position must be less than {@link #length()}.
+     *
+     * @param position an absolute position in the file.
+     * @return the segment containing the position.
+     * @throws IOException if the segment could not be mapped.
+     */
+    private MappedByteBuffer getSegment(long position) throws IOException {
+        int index = (int) (position >>> segmentShift);
+        if (segments == null) {
+            checkInputFile();
+            segments = new MappedByteBuffer[
+                    (int) ((length() + segmentMask) >>> segmentShift)];
+        }
+        MappedByteBuffer segment = segments[index];
+        if (segment == null) {
+            long start = (long) index << segmentShift;
+            long size = Math.min(segmentMask + 1 + SEGMENT_OVERLAP,
+                                 length() - start);
+            if (log.isTraceEnabled()) {
+                log.trace("Mapping segment " + index + " of " + size
+                          + " bytes from position " + start);
+            }
+            segment = channelIn.map(FileChannel.MapMode.READ_ONLY, start, size);
+            segments[index] = segment;
+        }
+        return segment;
     }
 
     /**
@@ -363,7 +556,9 @@ public class LineReader implements DataInput, DataOutput {
             buffer.limit(buffer.capacity()); // Fill the buffer, please
             channelIn.position(position);
             buffer.clear();
-            int readBytes = channelIn.read(buffer, position);
+            int readBytes = writeBehind == null ?
+                            channelIn.read(buffer, position) :
+                            writeBehind.load(channelIn, buffer, position);
             log.trace("checkBuffer: mapped " + readBytes + " bytes to buffer");
 //            buffer.flip();
 //            buffer.limit(buffer.capacity());
@@ -379,21 +574,43 @@ public class LineReader implements DataInput, DataOutput {
      * @throws IOException if the flushing failed.
      */
     private void invalidateBuffer() throws IOException {
-        flush();
+        writeBuffer();
         bufferStart = -1;
     }
 
+    /**
+     * Called after each write. In modes "rws" and "rwd" the change is flushed.
+     * In mode "rw" the buffer is only handed to the write-behind when it is
+     * full, so that small writes are collected in the buffer.
+     */
     private void flushIfNeeded() throws IOException {
-        // TODO: Only flush if synchronize is true
-        flush();
+        if (synchronize) {
+            flush();
+        } else if (buffer.position() == bufferSize) {
+            invalidateBuffer();
+        }
     }
 
     /**
-     * Flush any pending updates to disk.
+     * Flush any pending updates to disk. In mode "rw" this waits for the
+     * background writes of earlier changes.
      *
      * @throws IOException if the buffer could not be flushed.
      */
     public void flush() throws IOException {
+        writeBuffer();
+        if (writeBehind != null) {
+            writeBehind.await();
+        }
+    }
+
+    /**
+     * Writes the changed part of the buffer to the file or, in mode "rw",
+     * hands it to the write-behind without waiting. The buffer is invalidated.
+     *
+     * @throws IOException if the buffer could not be written.
+     */
+    private void writeBuffer() throws IOException {
         if (dirty) {
             assert bufferStart != -1 : "When the buffer is dirty, bufferStart should be >= 0";
             log.trace("Storing the buffer to disk");
@@ -404,10 +621,17 @@ public class LineReader implements DataInput, DataOutput {
                 log.trace("flush: bufferStart=" + bufferStart + ", maxBufferPos=" + maxBufferPos
                           + ", buffer.limit=" + buffer.limit() + ", position=" + position);
             }
-            buffer.position(maxBufferPos); // Limit instead?
-            buffer.flip();
-            channelOut.position(bufferStart);
-            channelOut.write(buffer);
+            if (writeBehind != null) {
+                writeBehind.add(bufferStart, buffer.array(), maxBufferPos);
+            } else {
+                buffer.position(maxBufferPos); // Limit instead?
+                buffer.flip();
+                channelOut.position(bufferStart);
+                while (buffer.hasRemaining()) {
+                    channelOut.write(buffer);
+                    writeCalls++;
+                }
+            }
             dirty = false;
             buffer.clear();   // Do we need to do this?
             bufferStart = -1; // Do we need to do this?
@@ -475,15 +699,27 @@ public class LineReader implements DataInput, DataOutput {
 
     @Override
     public int readInt() throws IOException {
+        if (mapped && position + 4 <= length()) {
+            int value = getSegment(position).getInt(
+                    (int) (position & segmentMask));
+            position += 4;
+            return value;
+        }
         readFully(readBuf, 0, 4);
         return (readBuf[0] & 0xFF) << 24
                | (readBuf[1] & 0xFF) << 16
                | (readBuf[2] & 0xFF) << 8
-               | readBuf[3];
+               | readBuf[3] & 0xFF;
     }
 
     @Override
     public long readLong() throws IOException {
+        if (mapped && position + 8 <= length()) {
+            long value = getSegment(position).getLong(
+                    (int) (position & segmentMask));
+            position += 8;
+            return value;
+        }
         readFully(readBuf, 0, 8);
         return (long) (readBuf[0] & 0xFF) << 56
                | (long) (readBuf[1] & 0xFF) << 48
@@ -492,7 +728,7 @@ public class LineReader implements DataInput, DataOutput {
                | (long) (readBuf[4] & 0xFF) << 24
                | (long) (readBuf[5] & 0xFF) << 16
                | (long) (readBuf[6] & 0xFF) << 8
-               | readBuf[7];
+               | readBuf[7] & 0xFF;
     }
 
     @Override
@@ -502,12 +738,20 @@ public class LineReader implements DataInput, DataOutput {
 
     @Override
     public double readDouble() throws IOException {
-        return Double.longBitsToDouble(readInt());
+        return Double.longBitsToDouble(readLong());
     }
 
     @Override
     public byte readByte() throws IOException {
         //log.trace("readByte entered");
+        if (mapped) {
+            if (position >= length()) {
+                throw new EOFException("Attempted to read past EOF");
+            }
+            byte b = getSegment(position).get((int) (position & segmentMask));
+            position++;
+            return b;
+        }
         checkInputFile();
         checkBuffer();
         if (eof()) {
@@ -521,41 +765,226 @@ public class LineReader implements DataInput, DataOutput {
         return b;
     }
 
-    private ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream(400);
+    /* The bytes of the last line scanned by scanLine. This is a view of the
+       buffer, a mapped segment or lineCopy */
+    private ByteBuffer lineView = null;
+    private ByteBuffer lineViewSource = null;
+    /* Used for lines spanning buffers or segments */
+    private ByteBuffer lineCopy = ByteBuffer.allocate(400);
+    private byte[] lineBytes = new byte[400];
+    private CharBuffer lineChars = CharBuffer.allocate(400);
+    private final CharsetDecoder utf8 = Charset.forName("utf-8").newDecoder().
+            onMalformedInput(CodingErrorAction.REPLACE).
+            onUnmappableCharacter(CodingErrorAction.REPLACE);
 
     /**
      * Reads a line from the file, assuming UTF-8 and 0x0A as line break.
+     * A 0x0D directly before the line break is removed, so CRLF line breaks
+     * are supported.
      * Note that this differs from {@link RandomAccessFile#readLine} with
      * regards to encoding and line breaks.
      *
      * @return the text at the current position, until the next line break.
      *         If the line is the last in the file, all characters up to the
-     *         end of the file will be returned.
-     * @throws EOFException if no characters could be read.
+     *         end of the file will be returned. If the position is at the
+     *         end of the file, the empty String is returned.
      * @throws IOException  if a line could not be read.
      */
-    // TODO: Extend this to handle different line breaks
     @Override
     public String readLine() throws IOException {
-//        log.trace("readLine entered");
-        lineBuffer.reset();
-        byte next;
-        while (true) {
-            try {
-                next = readByte();
-            } catch (EOFException e) {
-                log.trace("Reached EOF in readLine()");
-                break;
-            }
-            if (next == 0x0A) {
-                if (log.isTraceEnabled()) {
-                    log.trace("Read " + lineBuffer.size() + " bytes in readLine");
+        if (!scanLine()) {
+            log.trace("Reached EOF in readLine()");
+            return "";
+        }
+        ByteBuffer line = lineView;
+        if (line.hasArray()) {
+            return new String(line.array(), line.arrayOffset()
+                                            + line.position(),
+                              line.remaining(), "utf-8");
+        }
+        if (lineBytes.length < line.remaining()) {
+            lineBytes = new byte[line.remaining() * 2];
+        }
+        int length = line.remaining();
+        line.get(lineBytes, 0, length);
+        return new String(lineBytes, 0, length, "utf-8");
+    }
+
+    /**
+     * Reads a line like {@link #readLine()} without creating a String.
+     * The bytes of the line, without the line break, are the remaining
+     * bytes of the returned buffer.
+     * </p><p>
+     * The returned buffer is a view of internal structures and is only valid
+     * until the next call to a method on this LineReader. Its content must
+     * not be changed. No objects are allocated per line, except when a line
+     * is longer than any previous line spanning more than one buffer.
+     *
+     * @return the bytes of the next line or null if the position is at the
+     *         end of the file.
+     * @throws IOException if a line could not be read.
+     */
+    public ByteBuffer readLineBytes() throws IOException {
+        return scanLine() ? lineView : null;
+    }
+
+    /**
+     * Reads a line like {@link #readLine()} and decodes it as UTF-8 into a
+     * reused buffer. This is intended for iteration over the lines in large
+     * files:
+     * <pre>
+     * CharSequence line;
+     * while ((line = reader.readLineChars()) != null) {
+     *     ...
+     * }
+     * </pre>
+     * The returned CharSequence is only valid until the next call to a method
+     * on this LineReader. Use toString() to keep it.
+     *
+     * @return the chars of the next line or null if the position is at the
+     *         end of the file.
+     * @throws IOException if a line could not be read.
+     */
+    public CharSequence readLineChars() throws IOException {
+        if (!scanLine()) {
+            return null;
+        }
+        // UTF-8 never produces more chars than bytes
+        if (lineChars.capacity() < lineView.remaining()) {
+            lineChars = CharBuffer.allocate(lineView.remaining() * 2);
+        }
+        lineChars.clear();
+        utf8.reset();
+        utf8.decode(lineView, lineChars, true);
+        utf8.flush(lineChars);
+        lineChars.flip();
+        return lineChars;
+    }
+
+    /**
+     * Locates the next line from the current position and advances the
+     * position past the line break. The bytes in the buffer or mapped
+     * segment are searched for 0x0A directly and the line is exposed as
+     * {@link #lineView} without copying, unless it spans more than one buffer
+     * or segment.
+     *
+     * @return false if the position was at EOF, else true.
+     * @throws IOException if the line could not be read.
+     */
+    private boolean scanLine() throws IOException {
+        if (eof()) {
+            return false;
+        }
+        boolean copied = false;
+        lineCopy.clear();
+        while (!eof()) {
+            ByteBuffer source;
+            int start;
+            int end;
+            if (mapped) {
+                source = getSegment(position);
+                start = (int) (position & segmentMask);
+                end = (int) Math.min(segmentMask + 1,
+                                     length() - (position - start));
+            } else {
+                checkInputFile();
+                checkBuffer();
+                source = buffer;
+                start = buffer.position();
+                end = (int) Math.min(bufferSize, length() - bufferStart);
+            }
+            int lineEnd = indexOf(source, start, end, (byte) 0x0A);
+            boolean found = lineEnd < end;
+            boolean last = found || position + (lineEnd - start) == length();
+            if (last && !copied) {
+                setLineView(source, start, lineEnd);
+            } else {
+                appendToLineCopy(source, start, lineEnd);
+                copied = true;
+            }
+            advance(lineEnd - start + (found ? 1 : 0));
+            if (last) {
+                if (copied) {
+                    lineCopy.flip();
+                    lineView = lineCopy;
+                }
+                if (found && lineView.remaining() > 0
+                    && lineView.get(lineView.limit() - 1) == 0x0D) {
+                    lineView.limit(lineView.limit() - 1);
                 }
-                break;
+                return true;
+            }
+        }
+        lineCopy.flip();
+        lineView = lineCopy;
+        return true;
+    }
+
+    private static int indexOf(ByteBuffer source, int start, int end,
+                               byte b) {
+        if (source.hasArray()) {
+            byte[] bytes = source.array();
+            int offset = source.arrayOffset();
+            for (int i = start; i < end; i++) {
+                if (bytes[offset + i] == b) {
+                    return i;
+                }
+            }
+            return end;
+        }
+        for (int i = start; i < end; i++) {
+            if (source.get(i) == b) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Points lineView to the bytes from start to end in source, reusing the
+     * view if it is already a view of source.
+     */
+    private void setLineView(ByteBuffer source, int start, int end) {
+        if (lineViewSource != source) {
+            lineView = source.duplicate();
+            lineViewSource = source;
+        } else if (lineView == lineCopy) {
+            lineView = source.duplicate();
+        }
+        lineView.clear();
+        lineView.limit(end).position(start);
+    }
+
+    private void appendToLineCopy(ByteBuffer source, int start, int end) {
+        int length = end - start;
+        if (lineCopy.remaining() < length) {
+            ByteBuffer grown = ByteBuffer.allocate(
+                    (lineCopy.position() + length) * 2);
+            lineCopy.flip();
+            grown.put(lineCopy);
+            lineCopy = grown;
+        }
+        if (source.hasArray()) {
+            lineCopy.put(source.array(), source.arrayOffset() + start, length);
+            return;
+        }
+        for (int i = start; i < end; i++) {
+            lineCopy.put(source.get(i));
+        }
+    }
+
+    /**
+     * Moves the position the given number of bytes forward, keeping the
+     * buffer in sync. The bytes must be in the current buffer.
+     */
+    private void advance(int bytes) throws IOException {
+        position += bytes;
+        if (!mapped) {
+            buffer.position(buffer.position() + bytes);
+            if (position >= bufferStart + bufferSize) {
+                invalidateBuffer();
             }
-            lineBuffer.write(next);
         }
-        return lineBuffer.toString("utf-8");
     }
 
     @Override
@@ -618,6 +1047,9 @@ public class LineReader implements DataInput, DataOutput {
      * @throws IOException  if an I/O error occured.
      */
     public int read(byte[] buf, int offset, int length) throws IOException {
+        if (mapped) {
+            return readMapped(buf, offset, length);
+        }
         int read = 0;
         while (read < length) {
             if (eof()) {
@@ -629,6 +1061,25 @@ public class LineReader implements DataInput, DataOutput {
         return read;
     }
 
+    private int readMapped(byte[] buf, int offset, int length)
+            throws IOException {
+        int read = 0;
+        while (read < length) {
+            if (eof()) {
+                return read == 0 ? -1 : read;
+            }
+            MappedByteBuffer segment = getSegment(position);
+            int start = (int) (position & segmentMask);
+            int count = (int) Math.min(length - read, Math.min(
+                    segmentMask + 1 - start, length() - position));
+            segment.position(start);
+            segment.get(buf, offset + read, count);
+            read += count;
+            position += count;
+        }
+        return read;
+    }
+
     /* **************************** Writers ************************************
      * These conform to the {@link DataOutput} interface. JavaDocs are only    *
      * added where the behaviour is not as would be expected.                  *
@@ -647,6 +1098,7 @@ public class LineReader implements DataInput, DataOutput {
 
     @Override
     public void write(int value) throws IOException {
+        checkWritable();
         checkInputFile();
         checkBuffer();
         buffer.put((byte) (value & 0xFF));
@@ -670,6 +1122,7 @@ public class LineReader implements DataInput, DataOutput {
         }
         log.trace("write: Writing " + (length - offset) + " bytes at position "
                   + position);
+        checkWritable();
         checkInputFile();
         int left = length;
         while (left > 0) {
@@ -698,7 +1151,6 @@ public class LineReader implements DataInput, DataOutput {
             maxBufferPos = Math.max(maxBufferPos, buffer.position());
             dirty = true;
             position += writeLength;
-            fileSize += writeLength; // TODO: This seems wrong!
             flushIfNeeded();
         }
         if (log.isTraceEnabled()) {
@@ -861,4 +1313,220 @@ public class LineReader implements DataInput, DataOutput {
 
         return -(low + 1); // TODO: Should this be based on lineStart?
     }
+
+    /**
+     * @return the number of write calls to the file, for testing.
+     */
+    long getWriteCalls() {
+        return writeBehind == null ? writeCalls : writeCalls + writeBehind.getWriteCalls();
+    }
+
+    private static final ExecutorService WRITERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "LineReader write-behind");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * A cache of changes waiting to be written to a file. The changes are kept
+     * as non-overlapping pages ordered by file position: Changes to a region
+     * that is already pending are copied into the existing pages. Pages are
+     * written by a background thread, with each run of adjacent pages written
+     * as a single gathering write.
+     * </p><p>
+     * A failed background write is reported by every later call until the
+     * reader is closed, as the failed changes are lost.
+     */
+    static final class WriteBehind implements Runnable {
+        private final FileChannel channel;
+        private final long maxPending;
+        /* Changes that have not been picked up by the background thread */
+        private TreeMap<Long, byte[]> pending = new TreeMap<Long, byte[]>();
+        /* Changes that are being written by the background thread */
+        private TreeMap<Long, byte[]> inFlight = new TreeMap<Long, byte[]>();
+        private long pendingBytes = 0;
+        private long end = 0;
+        private boolean scheduled = false;
+        private IOException failure = null;
+        private long writeCalls = 0;
+
+        WriteBehind(FileChannel channel, long maxPending) {
+            this.channel = channel;
+            this.maxPending = maxPending;
+        }
+
+        /**
+         * Copies the bytes to the pending changes and ensures that they will
+         * be written. Blocks if too many bytes are pending.
+         *
+         * @param start  the position in the file for the bytes.
+         * @param bytes  the changed bytes.
+         * @param length the number of bytes from bytes to write.
+         * @throws IOException if an earlier background write failed.
+         */
+        public synchronized void add(long start, byte[] bytes, int length) throws IOException {
+            checkFailure();
+            long stop = start + length;
+            long pos = start;
+            while (pos < stop) {
+                Map.Entry<Long, byte[]> floor = pending.floorEntry(pos);
+                if (floor != null && floor.getKey() + floor.getValue().length > pos) {
+                    // Overwrite the part of an existing page
+                    int offset = (int) (pos - floor.getKey());
+                    int copy = (int) Math.min(stop - pos, floor.getValue().length - offset);
+                    System.arraycopy(bytes, (int) (pos - start), floor.getValue(), offset, copy);
+                    pos += copy;
+                } else {
+                    // Fill the gap up to the next page
+                    Long next = pending.higherKey(pos);
+                    long gapEnd = next == null ? stop : Math.min(stop, next);
+                    byte[] page = new byte[(int) (gapEnd - pos)];
+                    System.arraycopy(bytes, (int) (pos - start), page, 0, page.length);
+                    pending.put(pos, page);
+                    pendingBytes += page.length;
+                    pos = gapEnd;
+                }
+            }
+            end = Math.max(end, stop);
+            if (!scheduled) {
+                scheduled = true;
+                WRITERS.execute(this);
+            }
+            while (pendingBytes > maxPending && failure == null) {
+                waitInterruptibly();
+            }
+        }
+
+        /**
+         * Reads from the file into the buffer and overlays the changes that
+         * have not been written yet.
+         *
+         * @param in       the channel to read from.
+         * @param buffer   the buffer to fill from its position.
+         * @param position the position in the file.
+         * @return the number of bytes read from the file.
+         * @throws IOException if the file could not be read.
+         */
+        public synchronized int load(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+            int offset = buffer.position();
+            int length = buffer.remaining();
+            int read = in.read(buffer, position);
+            overlay(inFlight, buffer.array(), offset, position, length);
+            overlay(pending, buffer.array(), offset, position, length);
+            return read;
+        }
+
+        private void overlay(TreeMap<Long, byte[]> pages, byte[] dest, int offset, long position, int length) {
+            long stop = position + length;
+            Long first = pages.floorKey(position);
+            for (Map.Entry<Long, byte[]> entry : pages.subMap(first == null ? position : first, stop).entrySet()) {
+                long from = Math.max(position, entry.getKey());
+                long to = Math.min(stop, entry.getKey() + entry.getValue().length);
+                if (from < to) {
+                    System.arraycopy(entry.getValue(), (int) (from - entry.getKey()),
+                                     dest, offset + (int) (from - position), (int) (to - from));
+                }
+            }
+        }
+
+        /**
+         * Waits until all changes have been written.
+         *
+         * @throws IOException if a background write failed.
+         */
+        public synchronized void await() throws IOException {
+            while (scheduled && failure == null) {
+                waitInterruptibly();
+            }
+            checkFailure();
+        }
+
+        /**
+         * @return the position after the last changed byte.
+         */
+        public synchronized long getEnd() {
+            return end;
+        }
+
+        public synchronized long getWriteCalls() {
+            return writeCalls;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                synchronized (this) {
+                    if (pending.isEmpty() || failure != null) {
+                        scheduled = false;
+                        notifyAll();
+                        return;
+                    }
+                    inFlight = pending;
+                    pending = new TreeMap<Long, byte[]>();
+                    pendingBytes = 0;
+                    notifyAll();
+                }
+                try {
+                    write(inFlight);
+                } catch (IOException e) {
+                    log.warn("Unable to write changes in the background", e);
+                    synchronized (this) {
+                        failure = e;
+                    }
+                }
+                synchronized (this) {
+                    inFlight = new TreeMap<Long, byte[]>();
+                }
+            }
+        }
+
+        private void write(TreeMap<Long, byte[]> pages) throws IOException {
+            List<ByteBuffer> group = new ArrayList<ByteBuffer>();
+            long groupStart = -1;
+            long groupEnd = -1;
+            for (Map.Entry<Long, byte[]> entry : pages.entrySet()) {
+                if (!group.isEmpty() && entry.getKey() != groupEnd) {
+                    write(groupStart, groupEnd, group);
+                    group.clear();
+                }
+                if (group.isEmpty()) {
+                    groupStart = entry.getKey();
+                }
+                group.add(ByteBuffer.wrap(entry.getValue()));
+                groupEnd = entry.getKey() + entry.getValue().length;
+            }
+            if (!group.isEmpty()) {
+                write(groupStart, groupEnd, group);
+            }
+        }
+
+        private void write(long start, long stop, List<ByteBuffer> group) throws IOException {
+            ByteBuffer[] buffers = group.toArray(new ByteBuffer[group.size()]);
+            channel.position(start);
+            long left = stop - start;
+            while (left > 0) {
+                left -= channel.write(buffers);
+                synchronized (this) {
+                    writeCalls++;
+                }
+            }
+        }
+
+        private void checkFailure() throws IOException {
+            if (failure != null) {
+                throw new IOException("A background write failed", failure);
+            }
+        }
+
+        private void waitInterruptibly() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for background writes");
+            }
+        }
+    }
 }
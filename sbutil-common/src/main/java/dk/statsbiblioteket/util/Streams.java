@@ -27,9 +27,19 @@ import dk.statsbiblioteket.util.qa.QAInfo;
 import java.io.*;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
- * Utility methods for handling streams
+ * Utility methods for handling streams.
+ * </p><p>
+ * When both ends of a pipe are files, the bytes are transferred with
+ * {@link FileChannel#transferTo}, which lets the operating system copy them
+ * without passing them through the Java heap.
  */
 @QAInfo(state = QAInfo.State.QA_NEEDED,
         level = QAInfo.Level.NORMAL)
@@ -56,6 +66,13 @@ public class Streams {
      *                             either stream.
      */
     public static void pipe(InputStream in, OutputStream out, int bufSize) throws IOException {
+        // Subclasses might override read or write, so only the plain classes are transferred directly
+        if (in.getClass() == FileInputStream.class && out.getClass() == FileOutputStream.class) {
+            pipe(((FileInputStream) in).getChannel(), ((FileOutputStream) out).getChannel(), bufSize);
+            in.close();
+            out.close();
+            return;
+        }
         try {
             byte[] buf = new byte[bufSize];
             int len;
@@ -83,6 +100,111 @@ public class Streams {
         pipe(in, out, 4096);
     }
 
+    /**
+     * The default size of the direct buffer used by
+     * {@link #pipe(ReadableByteChannel, WritableByteChannel)}.
+     */
+    public static final int DEFAULT_CHANNEL_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Copies the content of a channel to another channel, then closes both.
+     * If one of the channels is a {@link FileChannel}, the bytes are copied
+     * with {@link FileChannel#transferTo} or {@link FileChannel#transferFrom}.
+     * Otherwise a direct buffer of the given size is used.
+     * </p><p>
+     * Both channels must be blocking, as a non-blocking channel would make
+     * the copy spin while it cannot read or write.
+     *
+     * @param in      The source channel. If this is a FileChannel, the
+     *                content from its current position is copied.
+     * @param out     The destination channel.
+     * @param bufSize The size of the direct buffer if one is needed.
+     * @throws java.io.IOException If any sort of read/write error occurs on
+     *                             either channel.
+     * @throws IllegalBlockingModeException if one of the channels is a
+     *                                      {@link SelectableChannel} in
+     *                                      non-blocking mode.
+     */
+    public static void pipe(ReadableByteChannel in, WritableByteChannel out, int bufSize) throws IOException {
+        try {
+            checkBlocking(in);
+            checkBlocking(out);
+            if (in instanceof FileChannel) {
+                FileChannel source = (FileChannel) in;
+                long position = source.position();
+                long end = source.size();
+                // transferTo may copy less than requested, e.g. 2GB at a time on Linux
+                while (position < end) {
+                    long transferred = source.transferTo(position, end - position, out);
+                    if (transferred == 0) {
+                        break;
+                    }
+                    position += transferred;
+                }
+                source.position(position);
+                if (position < end && position < source.size()) {
+                    // transferTo made no progress before EOF, which it may do for some destinations.
+                    // The rest is copied through a buffer, which writes until the destination accepts the bytes
+                    copy(source, out, bufSize);
+                }
+            } else if (out instanceof FileChannel) {
+                FileChannel destination = (FileChannel) out;
+                long position = destination.position();
+                while (true) {
+                    long transferred = destination.transferFrom(in, position, bufSize);
+                    if (transferred == 0) {
+                        // transferFrom cannot tell EOF from an empty read, so check with a read
+                        ByteBuffer probe = ByteBuffer.allocate(1);
+                        if (in.read(probe) == -1) {
+                            break;
+                        }
+                        probe.flip();
+                        position += destination.write(probe, position);
+                        continue;
+                    }
+                    position += transferred;
+                }
+                destination.position(position);
+            } else {
+                copy(in, out, bufSize);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    private static void checkBlocking(Channel channel) {
+        if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking()) {
+            throw new IllegalBlockingModeException();
+        }
+    }
+
+    private static void copy(ReadableByteChannel in, WritableByteChannel out, int bufSize) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bufSize);
+        while (in.read(buffer) != -1) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Shorthand for
+     * {@link #pipe(ReadableByteChannel, WritableByteChannel, int)} with
+     * {@link #DEFAULT_CHANNEL_BUFFER_SIZE}.
+     *
+     * @param in  The source channel.
+     * @param out The destination channel.
+     * @throws java.io.IOException If any sort of read/write error occurs on
+     *                             either channel.
+     */
+    public static void pipe(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        pipe(in, out, DEFAULT_CHANNEL_BUFFER_SIZE);
+    }
+
     /**
      * Uses the current thread's context class loader to fetch a resource.
      *
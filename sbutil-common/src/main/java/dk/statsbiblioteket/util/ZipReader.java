@@ -0,0 +1,645 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Random access to the entries in a zip archive. The central directory is
+ * parsed once when the reader is created, so repeated lookups do not open and
+ * index the archive again, as opposed to {@link Zips#getZipEntry(File, String)}.
+ * The data of the entries are read from memory mapped segments of the
+ * archive.
+ * </p><p>
+ * Stored entries are returned as read-only views of the mapping without
+ * copying. Deflated entries are inflated on each request, unless they are
+ * held by the optional LRU cache of inflated entries.
+ * </p><p>
+ * The reader is thread-safe and intended to be shared by many threads.
+ * Buffers returned by the reader remain valid after {@link #close()}, as the
+ * mapped memory is released by the garbage collector. Streams must be read
+ * before the reader is closed, as streams for entries larger than 2GB read
+ * from the file. The mapping is kept until garbage collection, so the reader
+ * is meant for long-lived use and the file can stay locked on some platforms,
+ * such as Windows.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class ZipReader {
+    private static Log log = LogFactory.getLog(ZipReader.class);
+
+    /**
+     * The archive is mapped in segments of this size. Entries that span two
+     * segments are read with a plain read instead of a view of the mapping.
+     */
+    public static final int SEGMENT_SIZE = 1 << 30;
+    private static final int SEGMENT_SHIFT = 30;
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_RECORD = 0x06054b50;
+    private static final int ZIP64_END_RECORD = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int END_RECORD_SIZE = 22;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final long LIMIT = 0xFFFFFFFFL;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long length;
+    private final MappedByteBuffer[] segments;
+    private final Map<String, Entry> entries;
+    private final List<String> names;
+    private final int maxCachedSize;
+    private final Map<String, byte[]> cache;
+
+    /**
+     * Creates a reader without a cache of inflated entries.
+     *
+     * @param file the zip archive to read.
+     * @throws IOException if the archive could not be opened or its central
+     *                     directory could not be parsed.
+     */
+    public ZipReader(File file) throws IOException {
+        this(file, 0, 0);
+    }
+
+    /**
+     * @param file           the zip archive to read.
+     * @param cacheEntries   the maximum number of inflated entries to cache.
+     *                       0 disables the cache.
+     * @param maxCachedSize  only inflated entries of this size or smaller are
+     *                       cached.
+     * @throws IOException if the archive could not be opened or its central
+     *                     directory could not be parsed.
+     */
+    public ZipReader(File file, final int cacheEntries, int maxCachedSize) throws IOException {
+        this.file = file;
+        this.maxCachedSize = maxCachedSize;
+        cache = cacheEntries <= 0 ? null : Collections.synchronizedMap(
+                new LinkedHashMap<String, byte[]>(cacheEntries, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                        return size() > cacheEntries;
+                    }
+                });
+        raf = new RandomAccessFile(file, "r");
+        try {
+            channel = raf.getChannel();
+            length = channel.size();
+            segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT)];
+            entries = new HashMap<String, Entry>();
+            names = new ArrayList<String>();
+            readCentralDirectory();
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Indexed " + names.size() + " entries in '" + file + "'");
+        }
+    }
+
+    /**
+     * @return the names of the entries in the order of the central directory.
+     */
+    public List<String> getNames() {
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * @return the number of entries in the archive.
+     */
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * @param name the name of an entry.
+     * @return true if the archive contains the entry.
+     */
+    public boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * @param name the name of an entry.
+     * @return the number of uncompressed bytes for the entry or -1 if the
+     *         entry does not exist.
+     */
+    public long getSize(String name) {
+        Entry entry = entries.get(name);
+        return entry == null ? -1 : entry.size;
+    }
+
+    /**
+     * Returns the uncompressed content of an entry. Stored entries are views
+     * of the mapped archive. Deflated entries are inflated or taken from the
+     * cache.
+     *
+     * @param name the name of an entry.
+     * @return a read-only buffer with the content from position 0 to limit or
+     *         null if the entry does not exist.
+     * @throws IOException if the entry could not be read.
+     */
+    public ByteBuffer getBuffer(String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.size > Integer.MAX_VALUE) {
+            throw new IOException("The entry '" + name + "' with " + entry.size
+                                  + " bytes is too large for a buffer. Use getEntry");
+        }
+        if (entry.method == ZipEntry.STORED) {
+            return getData(entry).asReadOnlyBuffer();
+        }
+        return ByteBuffer.wrap(getInflated(entry)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Opens a stream with the uncompressed content of an entry. Deflated
+     * entries are inflated while reading, unless they are cached or small
+     * enough to be cached.
+     *
+     * @param name the name of an entry.
+     * @return a stream with the content or null if the entry does not exist.
+     * @throws IOException if the entry could not be read.
+     */
+    public InputStream getEntry(String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.method == ZipEntry.STORED) {
+            return entry.compressedSize > Integer.MAX_VALUE ?
+                   new ChannelInputStream(entry.getDataOffset(), entry.compressedSize) :
+                   new BufferInputStream(getData(entry));
+        }
+        if (cache != null && entry.size <= maxCachedSize) {
+            return new ByteArrayInputStream(getInflated(entry));
+        }
+        return new InflatingInputStream(
+                entry.compressedSize > Integer.MAX_VALUE ?
+                new ChannelInputStream(entry.getDataOffset(), entry.compressedSize) :
+                new BufferInputStream(getData(entry)), entry);
+    }
+
+    /**
+     * The mapped memory is not released explicitly, as buffers from the
+     * reader can still be in use. It is released when they have been garbage
+     * collected.
+     *
+     * @throws IOException if the archive could not be closed.
+     */
+    public void close() throws IOException {
+        if (cache != null) {
+            cache.clear();
+        }
+        raf.close();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private byte[] getInflated(Entry entry) throws IOException {
+        if (cache != null && entry.size <= maxCachedSize) {
+            byte[] cached = cache.get(entry.name);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        byte[] inflated = new byte[(int) entry.size];
+        ByteBuffer data = getData(entry);
+        Inflater inflater = new Inflater(true);
+        try {
+            byte[] input;
+            int offset;
+            if (data.hasArray()) {
+                input = data.array();
+                offset = data.arrayOffset() + data.position();
+            } else {
+                input = new byte[data.remaining()];
+                data.get(input);
+                offset = 0;
+            }
+            inflater.setInput(input, offset, (int) entry.compressedSize);
+            boolean dummySent = false;
+            int pos = 0;
+            while (!inflater.finished()) {
+                int read = pos == inflated.length ?
+                           inflater.inflate(new byte[1]) : // Expected to reach the end of the data
+                           inflater.inflate(inflated, pos, inflated.length - pos);
+                if (pos == inflated.length && read > 0) {
+                    throw new ZipException("The entry '" + entry.name + "' has more than " + entry.size + " bytes");
+                }
+                pos += read;
+                if (read == 0 && inflater.needsInput()) {
+                    if (dummySent) {
+                        throw new EOFException("Unexpected end of deflated data for '" + entry.name + "'");
+                    }
+                    // The extra dummy byte is needed by inflaters with nowrap
+                    inflater.setInput(new byte[1]);
+                    dummySent = true;
+                } else if (read == 0 && inflater.needsDictionary()) {
+                    throw new ZipException("Unsupported preset dictionary for '" + entry.name + "'");
+                }
+            }
+            if (pos != entry.size) {
+                throw new ZipException("Expected " + entry.size + " bytes for '" + entry.name + "', but got " + pos);
+            }
+            CRC32 checksum = new CRC32();
+            checksum.update(inflated);
+            if (checksum.getValue() != entry.crc) {
+                throw new ZipException("CRC mismatch for '" + entry.name + "'");
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid deflate data for '" + entry.name + "': " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        if (cache != null && entry.size <= maxCachedSize) {
+            cache.put(entry.name, inflated);
+        }
+        return inflated;
+    }
+
+    /**
+     * @return the compressed data for the entry, as a view of a mapped
+     *         segment if possible.
+     */
+    private ByteBuffer getData(Entry entry) throws IOException {
+        long start = entry.getDataOffset();
+        long end = start + entry.compressedSize;
+        if (end > length) {
+            throw new EOFException("The data for '" + entry.name + "' extends beyond the end of the archive");
+        }
+        int index = (int) (start >>> SEGMENT_SHIFT);
+        if (entry.compressedSize == 0 || index != (int) ((end - 1) >>> SEGMENT_SHIFT)) {
+            return read(start, (int) entry.compressedSize);
+        }
+        ByteBuffer view = getSegment(index).duplicate();
+        int offset = (int) (start & (SEGMENT_SIZE - 1));
+        view.position(offset);
+        view.limit(offset + (int) entry.compressedSize);
+        return view.slice();
+    }
+
+    private MappedByteBuffer getSegment(int index) throws IOException {
+        synchronized (segments) {
+            if (segments[index] == null) {
+                long start = (long) index << SEGMENT_SHIFT;
+                segments[index] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                              Math.min(SEGMENT_SIZE, length - start));
+            }
+            return segments[index];
+        }
+    }
+
+    /**
+     * Reads bytes with a positional read, which is thread-safe.
+     */
+    private ByteBuffer read(long position, int bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException("Unexpected end of '" + file + "' at " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private void readCentralDirectory() throws IOException {
+        // The end record is followed by a comment of at most 65535 bytes
+        int tailLength = (int) Math.min(length, END_RECORD_SIZE + 0xFFFF);
+        ByteBuffer tail = read(length - tailLength, tailLength);
+        int end = -1;
+        for (int i = tailLength - END_RECORD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_RECORD && i + END_RECORD_SIZE + tail.getShort(i + 20) <= tailLength) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) {
+            throw new ZipException("No end of central directory record in '" + file + "'");
+        }
+        long count = tail.getShort(end + 10) & 0xFFFF;
+        long directorySize = tail.getInt(end + 12) & LIMIT;
+        long directoryStart = tail.getInt(end + 16) & LIMIT;
+        long endPosition = length - tailLength + end;
+        if (endPosition >= 20) {
+            ByteBuffer locator = read(endPosition - 20, 20);
+            if (locator.getInt(0) == ZIP64_LOCATOR) {
+                ByteBuffer zip64End = read(locator.getLong(8), 56);
+                if (zip64End.getInt(0) != ZIP64_END_RECORD) {
+                    throw new ZipException("Invalid Zip64 end of central directory record in '" + file + "'");
+                }
+                count = zip64End.getLong(32);
+                directorySize = zip64End.getLong(40);
+                directoryStart = zip64End.getLong(48);
+            }
+        }
+        if (directorySize > Integer.MAX_VALUE || directoryStart + directorySize > length) {
+            throw new ZipException("Invalid central directory with " + directorySize + " bytes at "
+                                   + directoryStart + " in '" + file + "'");
+        }
+
+        ByteBuffer directory = read(directoryStart, (int) directorySize);
+        int pos = 0;
+        for (long i = 0; i < count; i++) {
+            if (pos + 46 > directory.limit() || directory.getInt(pos) != CENTRAL_HEADER) {
+                throw new ZipException("Invalid central directory header for entry " + i + " in '" + file + "'");
+            }
+            int flags = directory.getShort(pos + 8) & 0xFFFF;
+            int method = directory.getShort(pos + 10) & 0xFFFF;
+            long crc = directory.getInt(pos + 16) & LIMIT;
+            long compressedSize = directory.getInt(pos + 20) & LIMIT;
+            long size = directory.getInt(pos + 24) & LIMIT;
+            int nameLength = directory.getShort(pos + 28) & 0xFFFF;
+            int extraLength = directory.getShort(pos + 30) & 0xFFFF;
+            int commentLength = directory.getShort(pos + 32) & 0xFFFF;
+            long offset = directory.getInt(pos + 42) & LIMIT;
+            byte[] nameBytes = new byte[nameLength];
+            directory.position(pos + 46);
+            directory.get(nameBytes);
+            String name = new String(nameBytes, "utf-8");
+
+            // Zip64 extra field with the values that did not fit
+            int extra = pos + 46 + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = directory.getShort(extra) & 0xFFFF;
+                int dataSize = directory.getShort(extra + 2) & 0xFFFF;
+                if (id == 0x0001) {
+                    int field = extra + 4;
+                    if (size == LIMIT) {
+                        size = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == LIMIT) {
+                        compressedSize = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (offset == LIMIT) {
+                        offset = directory.getLong(field);
+                    }
+                }
+                extra += 4 + dataSize;
+            }
+            pos = extraEnd + commentLength;
+
+            if (!entries.containsKey(name)) { // The first entry wins as for ZipInputStream
+                entries.put(name, new Entry(name, flags, method, crc, size, compressedSize, offset));
+                names.add(name);
+            }
+        }
+    }
+
+    private final class Entry {
+        private final String name;
+        private final int flags;
+        private final int method;
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+        private final long headerOffset;
+        private volatile long dataOffset = -1;
+
+        private Entry(String name, int flags, int method, long crc, long size, long compressedSize,
+                      long headerOffset) {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.headerOffset = headerOffset;
+        }
+
+        /**
+         * The length of the local header is only known when it has been read,
+         * so the position of the data is resolved on first request.
+         */
+        private long getDataOffset() throws IOException {
+            if (dataOffset == -1) {
+                if ((flags & 1) != 0) {
+                    throw new ZipException("The entry '" + name + "' is encrypted");
+                }
+                if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+                    throw new ZipException("Unsupported compression method " + method + " for '" + name + "'");
+                }
+                ByteBuffer header = read(headerOffset, LOCAL_HEADER_SIZE);
+                if (header.getInt(0) != LOCAL_HEADER) {
+                    throw new ZipException("Invalid local header for '" + name + "'");
+                }
+                dataOffset = headerOffset + LOCAL_HEADER_SIZE
+                             + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+            }
+            return dataOffset;
+        }
+    }
+
+    /**
+     * Reads a buffer without changing the content.
+     */
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(len, buffer.remaining());
+            buffer.get(b, off, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Reads a part of the archive with positional reads, for entries too large
+     * for a single buffer.
+     */
+    private final class ChannelInputStream extends InputStream {
+        private final ByteBuffer single = ByteBuffer.allocate(1);
+        private long position;
+        private long left;
+
+        private ChannelInputStream(long position, long length) {
+            this.position = position;
+            this.left = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            single.clear();
+            return read(single) == -1 ? -1 : single.get(0) & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return len == 0 ? 0 : read(ByteBuffer.wrap(b, off, (int) Math.min(len, left)));
+        }
+
+        private int read(ByteBuffer target) throws IOException {
+            if (left == 0) {
+                return -1;
+            }
+            int read = channel.read(target, position);
+            if (read == -1) {
+                throw new EOFException("Unexpected end of '" + file + "' at " + position);
+            }
+            position += read;
+            left -= read;
+            return read;
+        }
+    }
+
+    /**
+     * Inflates an entry while reading and verifies the size.
+     */
+    private static final class InflatingInputStream extends InputStream {
+        private final InputStream in;
+        private final Entry entry;
+        private final Inflater inflater = new Inflater(true);
+        private final byte[] input = new byte[8192];
+        private final byte[] single = new byte[1];
+        private boolean dummySent = false;
+        private boolean closed = false;
+
+        private InflatingInputStream(InputStream in, Entry entry) {
+            this.in = in;
+            this.entry = entry;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("The stream for '" + entry.name + "' is closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                while (true) {
+                    if (inflater.finished()) {
+                        if (inflater.getBytesWritten() != entry.size) {
+                            throw new ZipException("Expected " + entry.size + " bytes for '" + entry.name
+                                                   + "', but got " + inflater.getBytesWritten());
+                        }
+                        return -1;
+                    }
+                    int inflated = inflater.inflate(b, off, len);
+                    if (inflated > 0) {
+                        return inflated;
+                    }
+                    if (inflater.needsDictionary()) {
+                        throw new ZipException("Unsupported preset dictionary for '" + entry.name + "'");
+                    }
+                    if (inflater.needsInput()) {
+                        int read = in.read(input, 0, input.length);
+                        if (read == -1) {
+                            if (dummySent) {
+                                throw new EOFException("Unexpected end of deflated data for '" + entry.name + "'");
+                            }
+                            // The extra dummy byte is needed by inflaters with nowrap
+                            dummySent = true;
+                            input[0] = 0;
+                            read = 1;
+                        }
+                        inflater.setInput(input, 0, read);
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException("Invalid deflate data for '" + entry.name + "': " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                inflater.end();
+                in.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+/**
+ * Package private writer of zip archives with entries that have already been
+ * compressed. {@link java.util.zip.ZipOutputStream} compresses the data
+ * itself, so it cannot be used when entries are deflated in parallel.
+ * </p><p>
+ * The CRC and the sizes of each entry must be known before the entry is
+ * written, which means that no data descriptors are needed. Zip64 extra
+ * fields and end records are written when sizes, offsets or the number of
+ * entries exceed the limits of the original zip format.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+class ZipWriter {
+    private static final long LIMIT = 0xFFFFFFFFL;
+    private static final int ENTRY_LIMIT = 0xFFFF;
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    /* Entry names are UTF-8 */
+    private static final int FLAG_UTF8 = 0x0800;
+
+    private final OutputStream out;
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private long written = 0;
+    private final byte[] copyBuffer = new byte[32768];
+
+    /**
+     * @param out where to write the archive. This is closed by
+     *            {@link #close()}.
+     */
+    public ZipWriter(OutputStream out) {
+        this.out = new BufferedOutputStream(out, 65536);
+    }
+
+    /**
+     * Writes an entry with its data.
+     *
+     * @param name           the name of the entry, with '/' as separator.
+     * @param time           the modification time of the entry.
+     * @param method         {@link ZipEntry#DEFLATED} or
+     *                       {@link ZipEntry#STORED}.
+     * @param crc            the CRC-32 of the uncompressed data.
+     * @param size           the number of uncompressed bytes.
+     * @param compressedSize the number of bytes in data.
+     * @param data           the compressed data for the entry. This must
+     *                       deliver exactly compressedSize bytes and is not
+     *                       closed.
+     * @throws IOException if the entry could not be written.
+     */
+    public void write(String name, long time, int method, long crc, long size,
+                      long compressedSize, InputStream data) throws IOException {
+        Entry entry = new Entry(name.getBytes("utf-8"), dosTime(time), method, crc, size, compressedSize, written);
+        entries.add(entry);
+        boolean zip64 = size >= LIMIT || compressedSize >= LIMIT;
+        writeInt(0x04034b50);
+        writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+        writeShort(FLAG_UTF8);
+        writeShort(method);
+        writeInt(entry.time);
+        writeInt(crc);
+        writeInt(zip64 ? LIMIT : compressedSize);
+        writeInt(zip64 ? LIMIT : size);
+        writeShort(entry.name.length);
+        writeShort(zip64 ? 20 : 0);
+        write(entry.name);
+        if (zip64) {
+            writeShort(0x0001);
+            writeShort(16);
+            writeLong(size);
+            writeLong(compressedSize);
+        }
+        long left = compressedSize;
+        while (left > 0) {
+            int read = data.read(copyBuffer, 0, (int) Math.min(copyBuffer.length, left));
+            if (read == -1) {
+                throw new IOException("Expected " + compressedSize + " bytes of data for '" + name + "', but got only "
+                                      + (compressedSize - left));
+            }
+            out.write(copyBuffer, 0, read);
+            written += read;
+            left -= read;
+        }
+    }
+
+    /**
+     * Writes the central directory and closes the underlying stream.
+     *
+     * @throws IOException if the central directory could not be written.
+     */
+    public void close() throws IOException {
+        long directoryStart = written;
+        for (Entry entry : entries) {
+            writeCentral(entry);
+        }
+        long directorySize = written - directoryStart;
+        if (entries.size() >= ENTRY_LIMIT || directoryStart >= LIMIT || directorySize >= LIMIT) {
+            long zip64End = written;
+            writeInt(0x06064b50);
+            writeLong(44);
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0);
+            writeInt(0);
+            writeLong(entries.size());
+            writeLong(entries.size());
+            writeLong(directorySize);
+            writeLong(directoryStart);
+            // Locator
+            writeInt(0x07064b50);
+            writeInt(0);
+            writeLong(zip64End);
+            writeInt(1);
+        }
+        writeInt(0x06054b50);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(entries.size(), ENTRY_LIMIT));
+        writeShort(Math.min(entries.size(), ENTRY_LIMIT));
+        writeInt(Math.min(directorySize, LIMIT));
+        writeInt(Math.min(directoryStart, LIMIT));
+        writeShort(0);
+        out.close();
+    }
+
+    /**
+     * Closes the underlying stream without writing the central directory.
+     * This is used when writing the archive failed and the failure has
+     * already been reported, so exceptions from closing are ignored.
+     */
+    public void abort() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // The archive is discarded anyway
+        }
+    }
+
+    private void writeCentral(Entry entry) throws IOException {
+        // Only the values that do not fit are stored in the zip64 extra field
+        ByteArrayOutputStream extra = new ByteArrayOutputStream(28);
+        if (entry.size >= LIMIT) {
+            writeLong(extra, entry.size);
+        }
+        if (entry.compressedSize >= LIMIT) {
+            writeLong(extra, entry.compressedSize);
+        }
+        if (entry.offset >= LIMIT) {
+            writeLong(extra, entry.offset);
+        }
+        boolean zip64 = extra.size() > 0;
+        writeInt(0x02014b50);
+        writeShort(VERSION_ZIP64);
+        writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+        writeShort(FLAG_UTF8);
+        writeShort(entry.method);
+        writeInt(entry.time);
+        writeInt(entry.crc);
+        writeInt(Math.min(entry.compressedSize, LIMIT));
+        writeInt(Math.min(entry.size, LIMIT));
+        writeShort(entry.name.length);
+        writeShort(zip64 ? extra.size() + 4 : 0);
+        writeShort(0); // Comment
+        writeShort(0); // Disk
+        writeShort(0); // Internal attributes
+        writeInt(0);   // External attributes
+        writeInt(Math.min(entry.offset, LIMIT));
+        write(entry.name);
+        if (zip64) {
+            writeShort(0x0001);
+            writeShort(extra.size());
+            write(extra.toByteArray());
+        }
+    }
+
+    /**
+     * @param time milliseconds since epoch.
+     * @return the time in MS-DOS format as used by zip.
+     */
+    static long dosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16); // 1980-01-01
+        }
+        return (long) (year - 1980) << 25
+               | (calendar.get(Calendar.MONTH) + 1) << 21
+               | calendar.get(Calendar.DAY_OF_MONTH) << 16
+               | calendar.get(Calendar.HOUR_OF_DAY) << 11
+               | calendar.get(Calendar.MINUTE) << 5
+               | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        out.write(bytes);
+        written += bytes.length;
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+        written += 2;
+    }
+
+    private void writeInt(long value) throws IOException {
+        writeShort((int) (value & 0xFFFF));
+        writeShort((int) ((value >>> 16) & 0xFFFF));
+    }
+
+    private void writeLong(long value) throws IOException {
+        writeInt(value & LIMIT);
+        writeInt(value >>> 32);
+    }
+
+    private static void writeLong(OutputStream out, long value) throws IOException {
+        for (int i = 0; i < 8; i++) {
+            out.write((int) (value >>> (i * 8)) & 0xFF);
+        }
+    }
+
+    private static final class Entry {
+        private final byte[] name;
+        private final long time;
+        private final int method;
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+        private final long offset;
+
+        private Entry(byte[] name, long time, int method, long crc, long size, long compressedSize, long offset) {
+            this.name = name;
+            this.time = time;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.offset = offset;
+        }
+    }
+}
@@ -25,11 +25,35 @@ package dk.statsbiblioteket.util;
 import dk.statsbiblioteket.util.qa.QAInfo;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.*;
 
 /**
  * Utility class to help zipping entire folders and store the zip
  * file on disk.
+ * </p><p>
+ * The methods {@link #zip(String, String, boolean, int)} and
+ * {@link #unzip(String, String, boolean, int)} use multiple threads. When
+ * zipping, the files are deflated in parallel and the compressed entries are
+ * written to the archive in order by the calling thread. When unzipping, the
+ * archive is opened for random access and the entries are extracted in
+ * parallel. The archives are standard zip files, using Zip64 extensions for
+ * entries and archives larger than 4GB.
+ * </p><p>
+ * The methods {@link #gzip(ByteBuffer, int)} and
+ * {@link #gunzip(ByteBuffer, int)} work directly on buffers with a
+ * {@link Deflater} and an {@link Inflater} that are reused for all calls from
+ * the same thread. This avoids the native setup of zlib for each call, which
+ * dominates the cost for small payloads.
  */
 @QAInfo(state = QAInfo.State.QA_NEEDED,
         level = QAInfo.Level.NORMAL)
@@ -79,6 +103,294 @@ public class Zips {
         fileWriter.close();
     }
 
+    /**
+     * Compressed entries up to this size are kept in memory by
+     * {@link #zip(String, String, boolean, int)}. Larger entries are stored in
+     * temporary files until they are written to the archive.
+     */
+    public static final int MAX_MEMORY_ENTRY = 1024 * 1024;
+
+    /**
+     * Zips a file, or recursively zip a folder, using the given number of
+     * threads for compression. The names of the entries are the same as for
+     * {@link #zip(String, String, boolean)}.
+     * </p><p>
+     * Each file is deflated by a worker thread and the compressed entries are
+     * written to the archive in order. Note that a single file is always
+     * compressed by a single thread. If zipping fails, the partial output
+     * file is deleted.
+     *
+     * @param path           File or folder to zip.
+     * @param outputFilename Name of the output zip file.
+     * @param overwrite      Whether or not to overwrite if the
+     *                       <code>outputFilename</code> already exists.
+     * @param threads        The number of threads to use for compression.
+     * @throws IOException                if error occur while handling files.
+     * @throws FileAlreadyExistsException Thrown if <code>overwrite</code> is
+     *                                    <code>false</code> and <code>outputFilename</code> already exists.
+     */
+    public static void zip(String path, String outputFilename, boolean overwrite, int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of threads must be at least 1, was " + threads);
+        }
+        File outFile = new File(outputFilename);
+        if (!overwrite && outFile.exists()) {
+            throw new FileAlreadyExistsException(outputFilename);
+        }
+        File parent = outFile.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Error creating '" + parent + "'");
+        }
+
+        File source = new File(path);
+        List<String> names = new ArrayList<String>();
+        List<File> files = new ArrayList<File>();
+        collect(source.getName(), source, names, files);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // Limit the number of compressed entries waiting to be written
+        LinkedList<Future<Deflated>> queue = new LinkedList<Future<Deflated>>();
+        ZipWriter writer = new ZipWriter(new FileOutputStream(outFile));
+        boolean success = false;
+        try {
+            int next = 0;
+            int index = 0;
+            while (next < files.size() || !queue.isEmpty()) {
+                while (next < files.size() && queue.size() < threads * 2) {
+                    final File file = files.get(next++);
+                    queue.add(executor.submit(new Callable<Deflated>() {
+                        @Override
+                        public Deflated call() throws IOException {
+                            return new Deflated(file);
+                        }
+                    }));
+                }
+                Deflated deflated = get(queue.removeFirst());
+                try {
+                    InputStream data = deflated.getData();
+                    try {
+                        writer.write(names.get(index++), deflated.time, ZipEntry.DEFLATED,
+                                     deflated.crc, deflated.size, deflated.compressedSize, data);
+                    } finally {
+                        data.close();
+                    }
+                } finally {
+                    deflated.dispose();
+                }
+            }
+            writer.close();
+            success = true;
+        } finally {
+            if (!success) {
+                // Do not leave a truncated archive
+                writer.abort();
+                outFile.delete();
+            }
+            executor.shutdownNow();
+            for (Future<Deflated> future : queue) {
+                if (future.isDone() && !future.isCancelled()) {
+                    try {
+                        future.get().dispose();
+                    } catch (Exception e) {
+                        // The failure has already been reported
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the files to zip in the same order and with the same names as
+     * {@link #addToZip}, except that the separator is always '/'. Like
+     * {@link #addFolderToZip}, the children of a folder are visited in the
+     * order returned by {@link File#list()}.
+     */
+    private static void collect(String name, File file, List<String> names, List<File> files) throws IOException {
+        if (!file.isDirectory()) {
+            names.add(name);
+            files.add(file);
+            return;
+        }
+        String[] children = file.list();
+        if (children == null) {
+            throw new IOException("Unable to list the content of '" + file + "'");
+        }
+        for (String child : children) {
+            collect(name + "/" + child, new File(file, child), names, files);
+        }
+    }
+
+    /**
+     * A file deflated in memory or to a temporary file.
+     */
+    private static class Deflated {
+        private final long time;
+        private final long size;
+        private final byte[] memory;
+        private final File temp;
+        private final long crc;
+        private final long compressedSize;
+
+        private Deflated(File file) throws IOException {
+            time = file.lastModified();
+            size = file.length();
+            OutputStream out;
+            if (size <= MAX_MEMORY_ENTRY) {
+                temp = null;
+                out = new ByteArrayOutputStream((int) size / 2 + 64);
+            } else {
+                temp = File.createTempFile("zips_", ".deflated");
+                out = new BufferedOutputStream(new FileOutputStream(temp));
+            }
+            CRC32 checksum = new CRC32();
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                DeflaterOutputStream deflating = new DeflaterOutputStream(out, deflater, 32768);
+                InputStream in = new FileInputStream(file);
+                try {
+                    byte[] buf = new byte[32768];
+                    int len;
+                    while ((len = in.read(buf)) != -1) {
+                        checksum.update(buf, 0, len);
+                        deflating.write(buf, 0, len);
+                    }
+                } finally {
+                    in.close();
+                }
+                deflating.close();
+            } catch (IOException e) {
+                dispose();
+                throw e;
+            } finally {
+                deflater.end();
+            }
+            crc = checksum.getValue();
+            memory = temp == null ? ((ByteArrayOutputStream) out).toByteArray() : null;
+            compressedSize = temp == null ? memory.length : temp.length();
+        }
+
+        private InputStream getData() throws IOException {
+            return temp == null ? new ByteArrayInputStream(memory) : new FileInputStream(temp);
+        }
+
+        private void dispose() {
+            if (temp != null && temp.exists() && !temp.delete()) {
+                temp.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Unzip a zip file to a target directory using the given number of
+     * threads for extraction. Entries with names that would be extracted
+     * outside of the output directory are rejected.
+     *
+     * @param zipFilename Path to the zip file to extract.
+     * @param outputDir   Directory to place output in.
+     * @param overwrite   Overwrite files.
+     * @param threads     The number of threads to use for extraction.
+     * @throws IOException                If error occur when handling files.
+     * @throws FileAlreadyExistsException If <code>overwrite</code> is
+     *                                    <code>false</code> and <code>outpuDir</code> contains a file that would be
+     *                                    overwritten by the extraction of the input zip file. Nothing is
+     *                                    extracted in that case.
+     */
+    public static void unzip(String zipFilename, String outputDir, boolean overwrite, int threads)
+            throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of threads must be at least 1, was " + threads);
+        }
+        File outputFileDir = new File(outputDir);
+        if (!outputFileDir.exists() && !outputFileDir.mkdirs()) {
+            throw new IOException("Error creating output directory '" + outputDir + "'");
+        }
+        String root = outputFileDir.getCanonicalPath() + File.separator;
+
+        final ZipFile zip = new ZipFile(zipFilename);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            // Check and create all folders before extracting anything
+            List<ZipEntry> entries = new ArrayList<ZipEntry>();
+            List<File> destinations = new ArrayList<File>();
+            Enumeration<? extends ZipEntry> enumeration = zip.entries();
+            while (enumeration.hasMoreElements()) {
+                ZipEntry entry = enumeration.nextElement();
+                File destination = new File(outputFileDir, entry.getName());
+                if (!destination.getCanonicalPath().startsWith(root)) {
+                    throw new IOException("The entry '" + entry.getName() + "' is outside of '" + outputDir + "'");
+                }
+                if (entry.isDirectory()) {
+                    mkdirs(destination);
+                    continue;
+                }
+                if (!overwrite && destination.exists()) {
+                    throw new FileAlreadyExistsException(destination.toString());
+                }
+                mkdirs(destination.getParentFile());
+                entries.add(entry);
+                destinations.add(destination);
+            }
+
+            List<Future<Object>> futures = new ArrayList<Future<Object>>(entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                final ZipEntry entry = entries.get(i);
+                final File destination = destinations.get(i);
+                futures.add(executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws IOException {
+                        InputStream in = zip.getInputStream(entry);
+                        try {
+                            OutputStream out = new FileOutputStream(destination);
+                            try {
+                                byte[] buf = new byte[32768];
+                                int len;
+                                while ((len = in.read(buf)) != -1) {
+                                    out.write(buf, 0, len);
+                                }
+                            } finally {
+                                out.close();
+                            }
+                        } finally {
+                            in.close();
+                        }
+                        if (entry.getTime() != -1) {
+                            destination.setLastModified(entry.getTime());
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> future : futures) {
+                get(future);
+            }
+        } finally {
+            executor.shutdownNow();
+            zip.close();
+        }
+    }
+
+    private static void mkdirs(File folder) throws IOException {
+        if (!folder.exists() && !folder.mkdirs() && !folder.isDirectory()) {
+            throw new IOException("Unable to create folder '" + folder + "'");
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for a zip entry");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Unexpected exception while processing a zip entry", e.getCause());
+        }
+    }
+
     /**
      * Unzip a zip file to a target directory.
      *
@@ -202,6 +514,20 @@ public class Zips {
 
     }
 
+    /**
+     * Unzip a gzip compressed byte array of data.
+     *
+     * @param data The compressed data to gunzip.
+     * @return The uncompressed data.
+     */
+    public static byte[] gunzipBuffer(byte[] data) {
+        try {
+            return toArray(gunzip(ByteBuffer.wrap(data), -1));
+        } catch (IOException e) {
+            throw new RuntimeException("IOException while gunzipping buffer", e);
+        }
+    }
+
     /**
      * GZip the contents of a byte array and return a new byte array containing
      * the compressed data.
@@ -209,45 +535,317 @@ public class Zips {
      * @param data The data to compress.
      * @return the gzip compressed data.
      */
-    public static byte[] gunzipBuffer(byte[] data) {
+    public static byte[] gzipBuffer(byte[] data) {
+        return toArray(gzip(ByteBuffer.wrap(data), Deflater.DEFAULT_COMPRESSION));
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        if (buffer.arrayOffset() == 0 && buffer.position() == 0 && buffer.limit() == buffer.array().length) {
+            return buffer.array();
+        }
+        byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int GZIP_HEADER = 10;
+    private static final int GZIP_TRAILER = 8;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    /* Input from buffers without a backing array is copied in chunks */
+    private static final int CHUNK_SIZE = 65536;
+
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+    private static final ThreadLocal<CRC32> CRC = new ThreadLocal<CRC32>() {
+        @Override
+        protected CRC32 initialValue() {
+            return new CRC32();
+        }
+    };
+    private static final ThreadLocal<byte[]> CHUNK = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        }
+    };
+
+    /**
+     * Shorthand for {@link #gzip(ByteBuffer, int)} with
+     * {@link Deflater#DEFAULT_COMPRESSION}.
+     *
+     * @param data the bytes from position to limit are compressed.
+     * @return the data in gzip format.
+     */
+    public static ByteBuffer gzip(ByteBuffer data) {
+        return gzip(data, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Compresses the remaining bytes in data to gzip format, using a
+     * {@link Deflater} that is reused by the calling thread. The position of
+     * data is moved to the limit.
+     * </p><p>
+     * The result is allocated once with room for the worst case expansion of
+     * deflate, so the compressed bytes are never copied. Use
+     * {@link ByteBuffer#remaining()} and not the capacity of the result.
+     *
+     * @param data  the bytes from position to limit are compressed.
+     * @param level the compression level from 0 to 9 or
+     *              {@link Deflater#DEFAULT_COMPRESSION}.
+     * @return a heap buffer with the data in gzip format from position 0 to
+     *         limit.
+     */
+    public static ByteBuffer gzip(ByteBuffer data, int level) {
+        int length = data.remaining();
+        // The bound from zlib's deflateBound plus header and trailer
+        byte[] out = new byte[length + (length >> 12) + (length >> 14) + (length >> 25) + 13
+                              + GZIP_HEADER + GZIP_TRAILER];
+        out[0] = (byte) GZIP_MAGIC;
+        out[1] = (byte) (GZIP_MAGIC >> 8);
+        out[2] = Deflater.DEFLATED;
+        // Flags, time, extra flags and OS are 0 as for GZIPOutputStream
+        int outPos = GZIP_HEADER;
+
+        Deflater deflater = DEFLATER.get();
+        CRC32 crc = CRC.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        crc.reset();
         try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
-            byte[] buf = new byte[2048];
-            while (true) {
-                int size = in.read(buf);
-                if (size <= 0) {
-                    break;
-                }
-                out.write(buf, 0, size);
+            if (data.hasArray()) {
+                byte[] in = data.array();
+                int offset = data.arrayOffset() + data.position();
+                crc.update(in, offset, length);
+                deflater.setInput(in, offset, length);
+                data.position(data.limit());
+                deflater.finish();
+                outPos = deflate(deflater, out, outPos, true);
+            } else {
+                byte[] chunk = CHUNK.get();
+                do {
+                    int chunkLength = Math.min(chunk.length, data.remaining());
+                    data.get(chunk, 0, chunkLength);
+                    crc.update(chunk, 0, chunkLength);
+                    deflater.setInput(chunk, 0, chunkLength);
+                    boolean finish = !data.hasRemaining();
+                    if (finish) {
+                        deflater.finish();
+                    }
+                    outPos = deflate(deflater, out, outPos, finish);
+                } while (!deflater.finished());
             }
-            out.close();
-            return out.toByteArray();
-        } catch (IOException e) {
-            throw new RuntimeException("IOException while gzipping buffer. This should never happen", e);
+        } finally {
+            // Release the reference to the input
+            deflater.reset();
         }
+        writeIntLE(out, outPos, crc.getValue());
+        writeIntLE(out, outPos + 4, length);
+        return ByteBuffer.wrap(out, 0, outPos + GZIP_TRAILER);
     }
 
     /**
-     * Unzip a gzip compressed byte array of data.
+     * Deflates until the deflater needs more input or, if finish is true,
+     * until it is finished.
      *
-     * @param data The compressed data to gzip.
-     * @return The uncompressed data.
+     * @return the new output position.
      */
-    public static byte[] gzipBuffer(byte[] data) {
+    private static int deflate(Deflater deflater, byte[] out, int outPos, boolean finish) {
+        while (finish ? !deflater.finished() : !deflater.needsInput()) {
+            int deflated = deflater.deflate(out, outPos, out.length - GZIP_TRAILER - outPos);
+            if (deflated == 0 && outPos == out.length - GZIP_TRAILER) {
+                throw new IllegalStateException("The deflated data exceeded the bound of " + out.length + " bytes");
+            }
+            outPos += deflated;
+        }
+        return outPos;
+    }
+
+    /**
+     * Shorthand for {@link #gunzip(ByteBuffer, int)} without a size hint.
+     *
+     * @param data gzip compressed bytes from position to limit.
+     * @return the uncompressed data.
+     * @throws IOException if the data were not valid gzip.
+     */
+    public static ByteBuffer gunzip(ByteBuffer data) throws IOException {
+        return gunzip(data, -1);
+    }
+
+    /**
+     * Uncompresses the gzip data in data, using an {@link Inflater} that is
+     * reused by the calling thread. Concatenated gzip members are
+     * uncompressed as one stream, as {@link GZIPInputStream} does. The
+     * position of data is moved past the gzip data.
+     * </p><p>
+     * If sizeHint is negative, the size stored in the gzip trailer is used as
+     * hint. With a correct hint, the result is allocated once and never
+     * copied.
+     *
+     * @param data     gzip compressed bytes from position to limit.
+     * @param sizeHint the expected number of uncompressed bytes or -1 if
+     *                 unknown.
+     * @return a heap buffer with the uncompressed data from position 0 to
+     *         limit.
+     * @throws IOException if the data were not valid gzip.
+     */
+    public static ByteBuffer gunzip(ByteBuffer data, int sizeHint) throws IOException {
+        byte[] in;
+        int inPos;
+        int inEnd;
+        if (data.hasArray()) {
+            in = data.array();
+            inPos = data.arrayOffset() + data.position();
+            inEnd = data.arrayOffset() + data.limit();
+        } else {
+            // Compressed input is generally small, so it is copied in one go
+            in = new byte[data.remaining()];
+            data.duplicate().get(in);
+            inPos = 0;
+            inEnd = in.length;
+        }
+        int start = inPos;
+        if (sizeHint < 0) {
+            // Deflate cannot compress more than about 1032:1, which guards
+            // against allocating huge arrays for corrupt trailers
+            sizeHint = inEnd - inPos >= GZIP_HEADER + GZIP_TRAILER ?
+                       (int) Math.min(Math.min(Integer.MAX_VALUE - 8, readIntLE(in, inEnd - 4)),
+                                      (inEnd - inPos) * 1032L) : 0;
+        }
+        byte[] out = new byte[Math.max(sizeHint, 16)];
+        int outPos = 0;
+
+        Inflater inflater = INFLATER.get();
+        CRC32 crc = CRC.get();
         try {
-            ByteArrayOutputStream buf = new ByteArrayOutputStream();
-            GZIPOutputStream zip = new GZIPOutputStream(buf);
-            zip.write(data);
-            zip.close();
-            return buf.toByteArray();
-        } catch (IOException e) {
-            throw new RuntimeException("IOException while gunzipping buffer. This should never happen", e);
+            do {
+                inPos = skipHeader(in, inPos, inEnd);
+                inflater.reset();
+                crc.reset();
+                int memberStart = outPos;
+                inflater.setInput(in, inPos, inEnd - inPos);
+                while (!inflater.finished()) {
+                    if (outPos == out.length) {
+                        byte[] grown = new byte[(int) Math.min(Integer.MAX_VALUE - 8, out.length * 2L)];
+                        if (grown.length == out.length) {
+                            throw new IOException("The uncompressed data exceeds " + out.length + " bytes");
+                        }
+                        System.arraycopy(out, 0, grown, 0, outPos);
+                        out = grown;
+                    }
+                    int inflated;
+                    try {
+                        inflated = inflater.inflate(out, outPos, out.length - outPos);
+                    } catch (DataFormatException e) {
+                        throw new ZipException("Invalid deflate data: " + e.getMessage());
+                    }
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new EOFException("Unexpected end of gzip data");
+                    }
+                    outPos += inflated;
+                }
+                crc.update(out, memberStart, outPos - memberStart);
+                inPos = inEnd - inflater.getRemaining();
+                if (inEnd - inPos < GZIP_TRAILER) {
+                    throw new EOFException("Unexpected end of gzip data: Missing trailer");
+                }
+                if (readIntLE(in, inPos) != crc.getValue()) {
+                    throw new ZipException("CRC mismatch for gzip data");
+                }
+                if (readIntLE(in, inPos + 4) != ((outPos - memberStart) & 0xFFFFFFFFL)) {
+                    throw new ZipException("Size mismatch for gzip data");
+                }
+                inPos += GZIP_TRAILER;
+            } while (inEnd - inPos >= GZIP_HEADER && readShortLE(in, inPos) == GZIP_MAGIC);
+        } finally {
+            // Release the reference to the input
+            inflater.reset();
+        }
+        data.position(data.position() + inPos - start);
+        return ByteBuffer.wrap(out, 0, outPos);
+    }
+
+    /**
+     * @return the position after the gzip header starting at pos.
+     */
+    private static int skipHeader(byte[] in, int pos, int end) throws IOException {
+        if (end - pos < GZIP_HEADER) {
+            throw new EOFException("Unexpected end of gzip data: Missing header");
+        }
+        if (readShortLE(in, pos) != GZIP_MAGIC) {
+            throw new ZipException("Not in gzip format");
+        }
+        if (in[pos + 2] != Deflater.DEFLATED) {
+            throw new ZipException("Unsupported compression method " + in[pos + 2]);
+        }
+        int flags = in[pos + 3] & 0xFF;
+        pos += GZIP_HEADER;
+        if ((flags & FEXTRA) != 0) {
+            if (end - pos < 2) {
+                throw new EOFException("Unexpected end of gzip header");
+            }
+            pos += 2 + readShortLE(in, pos);
+        }
+        if ((flags & FNAME) != 0) {
+            pos = skipZeroTerminated(in, pos, end);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            pos = skipZeroTerminated(in, pos, end);
+        }
+        if ((flags & FHCRC) != 0) {
+            pos += 2;
+        }
+        if (pos > end) {
+            throw new EOFException("Unexpected end of gzip header");
+        }
+        return pos;
+    }
+
+    private static int skipZeroTerminated(byte[] in, int pos, int end) throws EOFException {
+        while (pos < end && in[pos] != 0) {
+            pos++;
+        }
+        if (pos == end) {
+            throw new EOFException("Unexpected end of gzip header");
         }
+        return pos + 1;
+    }
+
+    private static int readShortLE(byte[] in, int pos) {
+        return (in[pos] & 0xFF) | (in[pos + 1] & 0xFF) << 8;
+    }
+
+    private static long readIntLE(byte[] in, int pos) {
+        return (readShortLE(in, pos) | (long) readShortLE(in, pos + 2) << 16);
+    }
+
+    private static void writeIntLE(byte[] out, int pos, long value) {
+        out[pos] = (byte) value;
+        out[pos + 1] = (byte) (value >> 8);
+        out[pos + 2] = (byte) (value >> 16);
+        out[pos + 3] = (byte) (value >> 24);
     }
 
     /**
      * Read the (unzipped) contents of a single zip entry within a zip file.
+     * The entry is located with the central directory of the archive, using
+     * {@link ZipFile} so that nothing is left memory mapped. If the archive
+     * has no readable central directory, e.g. because it is truncated or
+     * still being written, the local entries are scanned from the start.
+     * Use a {@link ZipReader} for repeated lookups in the same archive.
      *
      * @param zipFile   Zip file to read from.
      * @param entryName Name of entry withing the zip file.
@@ -257,22 +855,46 @@ public class Zips {
      */
     public static byte[] getZipEntry(File zipFile, String entryName)
             throws IOException {
-        ZipInputStream zip = new ZipInputStream(new FileInputStream(zipFile));
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        byte[] buf = new byte[2048];
-        int count;
+        ZipFile zip;
+        try {
+            zip = new ZipFile(zipFile);
+        } catch (ZipException e) {
+            // No usable central directory
+            return scanZipEntry(zipFile, entryName);
+        }
+        try {
+            ZipEntry entry = zip.getEntry(entryName);
+            if (entry == null) {
+                return null;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    entry.getSize() > 0 && entry.getSize() < Integer.MAX_VALUE ? (int) entry.getSize() : 2048);
+            Streams.pipe(zip.getInputStream(entry), out);
+            return out.toByteArray();
+        } finally {
+            zip.close();
+        }
+    }
 
-        ZipEntry entry;
-        while ((entry = zip.getNextEntry()) != null) {
-            if (entry.getName().equals(entryName)) {
-                while ((count = zip.read(buf, 0, buf.length)) != -1) {
-                    out.write(buf, 0, count);
+    private static byte[] scanZipEntry(File zipFile, String entryName) throws IOException {
+        ZipInputStream zip = new ZipInputStream(new FileInputStream(zipFile));
+        try {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (entry.getName().equals(entryName)) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    byte[] buf = new byte[2048];
+                    int count;
+                    while ((count = zip.read(buf, 0, buf.length)) != -1) {
+                        out.write(buf, 0, count);
+                    }
+                    return out.toByteArray();
                 }
-                return out.toByteArray();
-            } else {
                 zip.closeEntry();
             }
+            return null;
+        } finally {
+            zip.close();
         }
-        return null;
     }
 }
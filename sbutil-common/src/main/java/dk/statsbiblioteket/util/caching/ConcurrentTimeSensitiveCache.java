@@ -0,0 +1,648 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util.caching;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent alternative to {@link TimeSensitiveCache} with the same time
+ * to live and size semantics, for caches that are accessed by many threads.
+ * </p><p>
+ * Lookups are lock-free. The elements are held in a
+ * {@link ConcurrentHashMap} and an expired element is treated as absent. With
+ * accessOrder, a lookup refreshes the timestamp of the element and marks it
+ * as accessed, but does not reschedule it.
+ * </p><p>
+ * For expiry and eviction, the elements are kept in striped segments, each
+ * guarded by its own lock. A segment is a timer wheel of
+ * {@link #WHEEL_BUCKETS} buckets covering the time to live, where each
+ * element is placed in the bucket for the time it expires. A cleanup only
+ * visits the buckets for the time passed since the previous cleanup, so
+ * expiring N elements costs O(N) and not O(size). An element that has been
+ * refreshed since it was placed is moved to the bucket for its new expiry
+ * time when its old bucket is visited, which costs O(1) per refreshed
+ * element.
+ * </p><p>
+ * Writes lock only the segment for the key. When fixedSize is exceeded, the
+ * element with the earliest expiry across the segments is evicted, which
+ * with accessOrder is the least recently used element within the
+ * granularity of the buckets. Expired elements are removed on lookup and in
+ * a cleanup at most every timeToLive/10 ms, as for TimeSensitiveCache. With
+ * {@link #setBackgroundExpiry(boolean)}, the cleanup is performed by a
+ * background thread instead.
+ * </p><p>
+ * Unlike TimeSensitiveCache, {@link #put} returns the previous value as
+ * specified by {@link Map#put}. {@link #keySet()}, {@link #values()} and
+ * {@link #entrySet()} are snapshots.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class ConcurrentTimeSensitiveCache<K, V> implements Map<K, V> {
+    /**
+     * The default number of segments.
+     */
+    public static final int DEFAULT_CONCURRENCY = 16;
+    /**
+     * The number of timer wheel buckets for the time to live.
+     */
+    public static final int WHEEL_BUCKETS = 64;
+
+    private static final Expirer.Cleaner<ConcurrentTimeSensitiveCache<?, ?>> CLEANER =
+            new Expirer.Cleaner<ConcurrentTimeSensitiveCache<?, ?>>() {
+                @Override
+                public void cleanup(ConcurrentTimeSensitiveCache<?, ?> cache) {
+                    cache.cleanup();
+                }
+            };
+
+    private final ConcurrentHashMap<K, Node<K, V>> elements;
+    private final Segment[] segments;
+    private final int segmentMask;
+    private final long timeToLive;
+    private final long timeBetweenGC;
+    private final long tickLength;
+    private final int buckets;
+    private final boolean accessOrder;
+    private final int capacity;
+    private final AtomicInteger count = new AtomicInteger(0);
+    private final AtomicLong lastClean = new AtomicLong(System.currentTimeMillis());
+    /* Orders placements across segments */
+    private final AtomicLong placements = new AtomicLong(0);
+    private volatile Future<?> expirer = null;
+
+    /**
+     * Construct a new ConcurrentTimeSensitiveCache.
+     *
+     * @param timeToLive  Time that the elements will live in the cache
+     * @param accessOrder if true, the elements have their timestamp refreshed
+     *                    when "gotten". Otherwise, they will be removed in insertion order
+     * @param fixedSize   the fixed size of the cache. When elements are inserted
+     *                    above this limit, the oldest element in the cache is removed, even if it
+     *                    was not to old yet
+     */
+    public ConcurrentTimeSensitiveCache(long timeToLive, boolean accessOrder, int fixedSize) {
+        this(timeToLive, accessOrder, fixedSize, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Construct a new ConcurrentTimeSensitiveCache, without a fixed size.
+     *
+     * @param timeToLive  Time that the elements will live in the cache
+     * @param accessOrder if true, the elements have their timestamp refreshed
+     *                    when "gotten". Otherwise, they will be removed in insertion order
+     */
+    public ConcurrentTimeSensitiveCache(long timeToLive, boolean accessOrder) {
+        this(timeToLive, accessOrder, Integer.MAX_VALUE, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Construct a new ConcurrentTimeSensitiveCache.
+     *
+     * @param timeToLive  Time that the elements will live in the cache
+     * @param accessOrder if true, the elements have their timestamp refreshed
+     *                    when "gotten". Otherwise, they will be removed in insertion order
+     * @param fixedSize   the fixed size of the cache. Integer.MAX_VALUE means
+     *                    no fixed size
+     * @param concurrency the expected number of concurrently writing threads.
+     *                    This is rounded up to a power of two segments
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentTimeSensitiveCache(long timeToLive, boolean accessOrder, int fixedSize, int concurrency) {
+        if (timeToLive < 1) {
+            throw new IllegalArgumentException("The time to live must be at least 1 ms, was " + timeToLive);
+        }
+        if (fixedSize < 1) {
+            throw new IllegalArgumentException("The fixed size must be at least 1, was " + fixedSize);
+        }
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("The concurrency must be at least 1, was " + concurrency);
+        }
+        this.timeToLive = timeToLive;
+        this.timeBetweenGC = timeToLive / 10;
+        this.accessOrder = accessOrder;
+        this.capacity = fixedSize;
+        tickLength = Math.max(1, timeToLive / WHEEL_BUCKETS);
+        // Expiry ticks span from the current tick to the tick for now+timeToLive
+        buckets = (int) (timeToLive / tickLength) + 2;
+        int segmentCount = Integer.highestOneBit(Math.min(concurrency, 1 << 16));
+        if (segmentCount < concurrency) {
+            segmentCount <<= 1;
+        }
+        segments = new ConcurrentTimeSensitiveCache.Segment[segmentCount];
+        long nowTick = System.currentTimeMillis() / tickLength;
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(nowTick);
+        }
+        segmentMask = segmentCount - 1;
+        elements = new ConcurrentHashMap<K, Node<K, V>>(16, 0.75f, segmentCount);
+    }
+
+    /**
+     * Enables or disables cleanup by a shared background thread. When
+     * enabled, lookups and puts do not perform cleanup, but expired elements
+     * are still never returned. The background cleanup runs every
+     * timeToLive/10 ms and stops when it is disabled or the cache is garbage
+     * collected.
+     *
+     * @param enabled true if the cleanup should be performed in the
+     *                background.
+     */
+    public synchronized void setBackgroundExpiry(boolean enabled) {
+        if (enabled && expirer == null) {
+            expirer = Expirer.schedule(this, CLEANER, Math.max(1, timeBetweenGC));
+        } else if (!enabled && expirer != null) {
+            expirer.cancel(false);
+            expirer = null;
+        }
+    }
+
+    /**
+     * @return true if cleanup is performed by a background thread.
+     */
+    public boolean isBackgroundExpiry() {
+        return expirer != null;
+    }
+
+    /**
+     * Get the element identified by the key. If the element was not inserted
+     * in the cache or is too old, null will be returned. If accessOrder is
+     * true, the element will be refreshed. This does not lock.
+     *
+     * @param key the key of the element
+     * @return the element or null
+     */
+    @Override
+    public V get(Object key) {
+        cleanupIfNeeded();
+        Node<K, V> node = elements.get(key);
+        if (node == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (isTooOld(node.cacheTime, timeToLive, now)) {
+            removeNode(node);
+            return null;
+        }
+        if (accessOrder) {
+            if (node.cacheTime != now) {
+                node.cacheTime = now;
+            }
+            if (!node.accessed) {
+                node.accessed = true;
+            }
+        }
+        return node.value;
+    }
+
+    /**
+     * Checks if the cache contain an element with the given key. If
+     * accessOrder is true, the element will be refreshed
+     *
+     * @param key the key of the element.
+     * @return true if the cache has the element
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return values().contains(value);
+    }
+
+    /**
+     * Puts a new element into the cache. If the key already exist in the cache
+     * the old value is overwritten. If fixedSize is set, and the cache would
+     * grow to large, the oldest element is removed.
+     *
+     * @param key   the key to get the element
+     * @param value the element value
+     * @return the previous value or null if there was none
+     */
+    @Override
+    public V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Neither key nor value can be null");
+        }
+        cleanupIfNeeded();
+        Node<K, V> node = new Node<K, V>(key, value, System.currentTimeMillis());
+        Segment segment = segmentFor(key);
+        Node<K, V> old;
+        segment.lock();
+        try {
+            old = elements.put(key, node);
+            if (old != null) {
+                segment.unlink(old);
+            } else {
+                count.incrementAndGet();
+            }
+            segment.schedule(node);
+        } finally {
+            segment.unlock();
+        }
+        evictIfNeeded();
+        return old == null || isTooOld(old.cacheTime, timeToLive, System.currentTimeMillis()) ? null : old.value;
+    }
+
+    /**
+     * Puts all the elements in the map into the cache.
+     *
+     * @param m the map to dump
+     * @see #put(Object, Object)
+     */
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Removes an element from the cache.
+     *
+     * @param key the key of the element
+     * @return the value of the element, or null if not in the cache.
+     */
+    @Override
+    public V remove(Object key) {
+        Node<K, V> node = elements.get(key);
+        if (node == null || !removeNode(node)) {
+            return null;
+        }
+        return isTooOld(node.cacheTime, timeToLive, System.currentTimeMillis()) ? null : node.value;
+    }
+
+    /**
+     * Clear all elements from the cache
+     */
+    @Override
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.lock();
+            try {
+                segment.clear();
+            } finally {
+                segment.unlock();
+            }
+        }
+    }
+
+    /**
+     * Performs a cleanup of the cache, and gets the number of remaining elements.
+     *
+     * @return the size
+     */
+    @Override
+    public int size() {
+        cleanup();
+        return count.get();
+    }
+
+    /**
+     * Performs a cleanup, and checks if the cache is then empty
+     *
+     * @return true if empty
+     */
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return a snapshot of the keys for the elements that are not too old.
+     */
+    @Override
+    public Set<K> keySet() {
+        Set<K> keys = new HashSet<K>();
+        for (Entry<K, V> entry : entrySet()) {
+            keys.add(entry.getKey());
+        }
+        return keys;
+    }
+
+    /**
+     * @return a snapshot of the values for the elements that are not too old.
+     */
+    @Override
+    public Collection<V> values() {
+        Collection<V> values = new ArrayList<V>();
+        for (Entry<K, V> entry : entrySet()) {
+            values.add(entry.getValue());
+        }
+        return values;
+    }
+
+    /**
+     * @return a snapshot of the elements that are not too old.
+     */
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        cleanupIfNeeded();
+        long now = System.currentTimeMillis();
+        Set<Entry<K, V>> entries = new HashSet<Entry<K, V>>();
+        for (Node<K, V> node : elements.values()) {
+            if (!isTooOld(node.cacheTime, timeToLive, now)) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<K, V>(node.key, node.value));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return the number of stored elements, including too old elements that
+     *         have not been cleaned up yet. Used for testing.
+     */
+    int getStoredSize() {
+        return count.get();
+    }
+
+    private Segment segmentFor(Object key) {
+        int h = key.hashCode();
+        // Spread the bits as the low bits select the segment
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & segmentMask];
+    }
+
+    /**
+     * @return true if the node was removed by this call.
+     */
+    private boolean removeNode(Node<K, V> node) {
+        Segment segment = segmentFor(node.key);
+        segment.lock();
+        try {
+            if (!elements.remove(node.key, node)) {
+                return false;
+            }
+            segment.unlink(node);
+            count.decrementAndGet();
+            return true;
+        } finally {
+            segment.unlock();
+        }
+    }
+
+    private void cleanupIfNeeded() {
+        if (expirer != null) {
+            return;
+        }
+        long last = lastClean.get();
+        long now = System.currentTimeMillis();
+        if (isTooOld(last, timeBetweenGC, now) && lastClean.compareAndSet(last, now)) {
+            cleanup();
+        }
+    }
+
+    /**
+     * Removes the too old elements from all segments.
+     */
+    private void cleanup() {
+        long now = System.currentTimeMillis();
+        for (Segment segment : segments) {
+            segment.lock();
+            try {
+                segment.expire(now);
+            } finally {
+                segment.unlock();
+            }
+        }
+    }
+
+    /**
+     * Evicts the elements with the earliest expiry until the cache is within
+     * its fixed size.
+     */
+    private void evictIfNeeded() {
+        while (count.get() > capacity) {
+            Segment oldest = null;
+            Node<K, V> oldestNode = null;
+            for (Segment segment : segments) {
+                segment.lock();
+                try {
+                    Node<K, V> candidate = segment.evictionCandidate();
+                    if (candidate != null && (oldestNode == null || candidate.tick < oldestNode.tick
+                                              || (candidate.tick == oldestNode.tick
+                                                  && candidate.placement < oldestNode.placement))) {
+                        oldest = segment;
+                        oldestNode = candidate;
+                    }
+                } finally {
+                    segment.unlock();
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            oldest.lock();
+            try {
+                if (oldestNode.linked && count.get() > capacity && elements.remove(oldestNode.key, oldestNode)) {
+                    oldest.unlink(oldestNode);
+                    count.decrementAndGet();
+                }
+            } finally {
+                oldest.unlock();
+            }
+        }
+    }
+
+    private static boolean isTooOld(long event, long wait, long now) {
+        return event + wait <= now;
+    }
+
+    /**
+     * An element with its timestamp and its links in the timer wheel.
+     */
+    private static final class Node<K, V> {
+        private final K key;
+        private final V value;
+        /* Refreshed without locking on access */
+        private volatile long cacheTime;
+        private volatile boolean accessed = false;
+        /* The rest is guarded by the segment lock */
+        private long tick;
+        private long placement;
+        private Node<K, V> previous;
+        private Node<K, V> next;
+        private boolean linked = false;
+
+        private Node(K key, V value, long cacheTime) {
+            this.key = key;
+            this.value = value;
+            this.cacheTime = cacheTime;
+        }
+    }
+
+    /**
+     * A timer wheel with a doubly linked list of nodes for each bucket, in
+     * the order they were placed. A bucket holds the nodes that expire in the
+     * ticks that map to it. All methods must be called while holding the
+     * lock.
+     */
+    private final class Segment extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+        private final Node<K, V>[] heads;
+        private final Node<K, V>[] tails;
+        /* No nodes are scheduled to expire before this tick */
+        private long lowestTick;
+
+        @SuppressWarnings("unchecked")
+        private Segment(long nowTick) {
+            heads = new Node[buckets];
+            tails = new Node[buckets];
+            lowestTick = nowTick;
+        }
+
+        private int index(long tick) {
+            return (int) (tick % buckets);
+        }
+
+        /**
+         * Places the node in the bucket for its expiry time.
+         */
+        private void schedule(Node<K, V> node) {
+            node.tick = Math.max(lowestTick, (node.cacheTime + timeToLive) / tickLength);
+            node.placement = placements.incrementAndGet();
+            int index = index(node.tick);
+            node.previous = tails[index];
+            node.next = null;
+            if (tails[index] == null) {
+                heads[index] = node;
+            } else {
+                tails[index].next = node;
+            }
+            tails[index] = node;
+            node.linked = true;
+        }
+
+        private void unlink(Node<K, V> node) {
+            if (!node.linked) {
+                return;
+            }
+            int index = index(node.tick);
+            if (node.previous == null) {
+                heads[index] = node.next;
+            } else {
+                node.previous.next = node.next;
+            }
+            if (node.next == null) {
+                tails[index] = node.previous;
+            } else {
+                node.next.previous = node.previous;
+            }
+            node.previous = null;
+            node.next = null;
+            node.linked = false;
+        }
+
+        private void reschedule(Node<K, V> node) {
+            unlink(node);
+            node.accessed = false;
+            schedule(node);
+        }
+
+        /**
+         * Visits the buckets for the ticks from the lowest tick up to now.
+         * Expired nodes are removed and nodes that have been refreshed since
+         * they were placed are moved to the bucket for their new expiry.
+         */
+        private void expire(long now) {
+            long nowTick = now / tickLength;
+            for (long tick = lowestTick; tick <= nowTick && tick < lowestTick + buckets; tick++) {
+                int index = index(tick);
+                Node<K, V> last = tails[index];
+                Node<K, V> node = heads[index];
+                while (node != null) {
+                    Node<K, V> next = node.next;
+                    boolean stop = node == last;
+                    if (isTooOld(node.cacheTime, timeToLive, now)) {
+                        elements.remove(node.key, node);
+                        unlink(node);
+                        count.decrementAndGet();
+                    } else if (node.tick < nowTick) {
+                        reschedule(node);
+                    }
+                    if (stop) {
+                        break;
+                    }
+                    node = next;
+                }
+            }
+            lowestTick = Math.max(lowestTick, nowTick);
+        }
+
+        /**
+         * Finds the first node in the earliest non-empty bucket. Nodes that
+         * have been accessed since they were placed are rescheduled first.
+         *
+         * @return the node to evict or null if the segment is empty.
+         */
+        private Node<K, V> evictionCandidate() {
+            for (long tick = lowestTick; tick < lowestTick + buckets; tick++) {
+                int index = index(tick);
+                Node<K, V> last = tails[index];
+                while (heads[index] != null && heads[index].accessed) {
+                    Node<K, V> accessed = heads[index];
+                    reschedule(accessed);
+                    if (accessed == last) {
+                        break;
+                    }
+                }
+                if (heads[index] != null) {
+                    return heads[index];
+                }
+            }
+            return null;
+        }
+
+        private void clear() {
+            for (int i = 0; i < buckets; i++) {
+                Node<K, V> node = heads[i];
+                while (node != null) {
+                    Node<K, V> next = node.next;
+                    elements.remove(node.key, node);
+                    node.previous = null;
+                    node.next = null;
+                    node.linked = false;
+                    count.decrementAndGet();
+                    node = next;
+                }
+                heads[i] = null;
+                tails[i] = null;
+            }
+        }
+    }
+}
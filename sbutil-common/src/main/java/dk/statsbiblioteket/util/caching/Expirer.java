@@ -0,0 +1,110 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util.caching;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Shared daemon thread that removes expired elements from time sensitive
+ * caches in the background, so that requests do not pay for cleanup.
+ * </p><p>
+ * The caches are only weakly referenced, so a cache that is no longer used
+ * is garbage collected and its task cancelled, even if background expiry was
+ * never disabled.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+final class Expirer {
+    private static Log log = LogFactory.getLog(Expirer.class);
+
+    private static final ScheduledExecutorService EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CacheExpirer-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Performs the cleanup of a cache. Implementations must not hold a
+     * reference to the cache, as that would prevent garbage collection.
+     *
+     * @param <T> the type of the cache.
+     */
+    interface Cleaner<T> {
+        void cleanup(T cache);
+    }
+
+    private Expirer() {
+    }
+
+    /**
+     * Schedules repeated cleanup of the cache.
+     *
+     * @param cache   the cache to clean.
+     * @param cleaner performs the cleanup.
+     * @param period  the number of milliseconds between cleanups.
+     * @param <T>     the type of the cache.
+     * @return the future for the task. Cancel it to stop the cleanups.
+     */
+    static <T> Future<?> schedule(T cache, final Cleaner<T> cleaner, long period) {
+        final WeakReference<T> reference = new WeakReference<T>(cache);
+        final AtomicReference<Future<?>> self = new AtomicReference<Future<?>>();
+        Future<?> future = EXECUTOR.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                T cache = reference.get();
+                if (cache == null) {
+                    Future<?> future = self.get();
+                    if (future != null) {
+                        future.cancel(false);
+                    }
+                    return;
+                }
+                try {
+                    cleaner.cleanup(cache);
+                } catch (RuntimeException e) {
+                    log.warn("Exception during background expiry of " + cache, e);
+                }
+            }
+        }, period, Math.max(1, period), TimeUnit.MILLISECONDS);
+        self.set(future);
+        return future;
+    }
+}
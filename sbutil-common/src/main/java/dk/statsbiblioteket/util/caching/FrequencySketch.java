@@ -0,0 +1,159 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util.caching;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+/**
+ * A count-min sketch for estimating the popularity of keys within a time
+ * window, as used by {@link TinyLFUCache}.
+ * </p><p>
+ * The sketch has 4 rows of 4 bit counters, packed two to a byte. The width
+ * of the rows is 4 times the maximum size of the cache, rounded up to a power
+ * of two, for a total of 8 bytes per element. The counter for a key in each row
+ * is selected by double hashing and the estimate is the minimum of the 4
+ * counters. Increments are conservative: only the counters that equal the
+ * current estimate are incremented, which reduces the over-estimation caused
+ * by collisions. Counters saturate at 15, as TinyLFU only needs to compare
+ * small frequencies. When the number of increments reaches 10 times the
+ * maximum size of the cache, all counters are halved so that the frequencies
+ * age.
+ * </p><p>
+ * The sketch is not thread-safe.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+
+    private final byte[][] rows;
+    private final int widthMask;
+    private final int sampleSize;
+    private final int[] indexes = new int[DEPTH];
+    private int increments = 0;
+
+    /**
+     * @param maximumSize the maximum number of elements in the cache.
+     */
+    FrequencySketch(int maximumSize) {
+        int maximum = Math.max(1, Math.min(maximumSize, 1 << 28));
+        int width = Integer.highestOneBit(maximum);
+        if (width < maximum) {
+            width <<= 1;
+        }
+        width = Math.max(64, width * 4);
+        rows = new byte[DEPTH][width / 2];
+        widthMask = width - 1;
+        sampleSize = maximum > Integer.MAX_VALUE / 10 ? Integer.MAX_VALUE : maximum * 10;
+    }
+
+    /**
+     * @param key the key to estimate the frequency for. This can be null.
+     * @return the estimated number of occurrences of the key, at most 15.
+     */
+    int frequency(Object key) {
+        locate(key);
+        return estimate();
+    }
+
+    /**
+     * Increments the counters for the key, unless the estimate is already at
+     * maximum.
+     *
+     * @param key the key that has been accessed. This can be null.
+     */
+    void increment(Object key) {
+        locate(key);
+        int estimate = estimate();
+        if (estimate == MAX_COUNT) {
+            return;
+        }
+        for (int row = 0; row < DEPTH; row++) {
+            if (get(row) == estimate) {
+                // The counter is below 15, so the increment stays in its nibble
+                rows[row][indexes[row] >>> 1] += 1 << shift(indexes[row]);
+            }
+        }
+        if (++increments == sampleSize) {
+            age();
+        }
+    }
+
+    /**
+     * Calculates the counter index in each row for the key.
+     */
+    private void locate(Object key) {
+        long hash = mix(key == null ? 0 : key.hashCode());
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1; // Odd, so that the rows differ
+        for (int row = 0; row < DEPTH; row++) {
+            indexes[row] = (h1 + row * h2) & widthMask;
+        }
+    }
+
+    private int estimate() {
+        int estimate = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, get(row));
+        }
+        return estimate;
+    }
+
+    private int get(int row) {
+        int index = indexes[row];
+        return (rows[row][index >>> 1] >>> shift(index)) & 0xf;
+    }
+
+    /**
+     * @return the shift for the nibble with the counter at the index.
+     */
+    private static int shift(int index) {
+        return (index & 1) << 2;
+    }
+
+    /**
+     * Halves all counters and the number of increments.
+     */
+    private void age() {
+        for (byte[] row : rows) {
+            for (int i = 0; i < row.length; i++) {
+                // Shift both nibbles and clear the bit moved from the high into the low nibble
+                row[i] = (byte) ((row[i] >>> 1) & 0x77);
+            }
+        }
+        increments >>>= 1;
+    }
+
+    /**
+     * Spreads the bits of the hash code over a long, using the finalizer
+     * from SplitMix64.
+     */
+    private static long mix(int hashCode) {
+        long z = hashCode + 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
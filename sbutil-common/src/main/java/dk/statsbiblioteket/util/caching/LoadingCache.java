@@ -0,0 +1,451 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util.caching;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A time sensitive cache that loads missing values with a {@link Loader}.
+ * Concurrent requests for a missing key are coalesced, so that the loader is
+ * called once for the key and the other requests wait for that load, instead
+ * of all requests hitting the backend at the same time.
+ * </p><p>
+ * Where {@link PendingCache} leaves it to the callers to put a
+ * {@link PendingElement} placeholder and assign its value, this cache does
+ * the miss-then-load dance itself. The placeholders are {@link FutureTask}s
+ * in a map of loads in progress. The loaded values are held in a
+ * {@link ConcurrentTimeSensitiveCache} in insertion order, so values expire
+ * timeToLive ms after they were loaded.
+ * </p><p>
+ * With {@link #setRefreshAhead(long, Executor)}, a value that is older than
+ * the refresh time is reloaded in the background on the first request after
+ * that time, while requests keep getting the old value until the new one is
+ * ready.
+ * </p><p>
+ * {@link #getAll(Collection)} batches the missing keys into one call to
+ * {@link BulkLoader#loadAll(Collection)} if the loader implements it.
+ * </p><p>
+ * Null values are returned, but not cached. Failed loads are not cached
+ * either: All requests waiting for the load get the failure and the next
+ * request tries again.
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the values.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class LoadingCache<K, V> {
+    private static Log log = LogFactory.getLog(LoadingCache.class);
+
+    /**
+     * Loads the value for a key.
+     *
+     * @param <K> the type of the keys.
+     * @param <V> the type of the values.
+     */
+    public interface Loader<K, V> {
+        /**
+         * @param key the key to load the value for.
+         * @return the value for the key or null if there is none.
+         * @throws Exception if the value could not be loaded.
+         */
+        V load(K key) throws Exception;
+    }
+
+    /**
+     * Loads the values for many keys in one call, used by
+     * {@link LoadingCache#getAll(Collection)}.
+     *
+     * @param <K> the type of the keys.
+     * @param <V> the type of the values.
+     */
+    public interface BulkLoader<K, V> extends Loader<K, V> {
+        /**
+         * @param keys the keys to load values for.
+         * @return the values for the keys. Keys without a value can be left
+         *         out.
+         * @throws Exception if the values could not be loaded.
+         */
+        Map<K, V> loadAll(Collection<K> keys) throws Exception;
+    }
+
+    private final Loader<K, V> loader;
+    private final ConcurrentTimeSensitiveCache<K, Loaded<V>> values;
+    private final ConcurrentMap<K, Load<V>> loads = new ConcurrentHashMap<K, Load<V>>();
+    private final AtomicLong loaderCalls = new AtomicLong(0);
+    private volatile long refreshAfter = Long.MAX_VALUE;
+    private volatile Executor refresher = null;
+
+    /**
+     * Construct a new LoadingCache.
+     *
+     * @param loader     loads missing values.
+     * @param timeToLive the time in ms after loading that a value expires.
+     * @param fixedSize  the maximum number of values in the cache. When this
+     *                   is exceeded, the oldest value is removed.
+     */
+    public LoadingCache(Loader<K, V> loader, long timeToLive, int fixedSize) {
+        if (loader == null) {
+            throw new NullPointerException("The loader is null");
+        }
+        this.loader = loader;
+        values = new ConcurrentTimeSensitiveCache<K, Loaded<V>>(timeToLive, false, fixedSize);
+    }
+
+    /**
+     * Construct a new LoadingCache without a fixed size.
+     *
+     * @param loader     loads missing values.
+     * @param timeToLive the time in ms after loading that a value expires.
+     */
+    public LoadingCache(Loader<K, V> loader, long timeToLive) {
+        this(loader, timeToLive, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Enables reloading of values in the background before they expire.
+     *
+     * @param refreshAfter the age in ms of a value after which a request
+     *                     triggers a reload. This should be lower than the
+     *                     time to live.
+     * @param executor     runs the reloads.
+     * @return this cache.
+     */
+    public LoadingCache<K, V> setRefreshAhead(long refreshAfter, Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("The executor is null");
+        }
+        this.refreshAfter = refreshAfter;
+        this.refresher = executor;
+        return this;
+    }
+
+    /**
+     * Gets the value for the key, loading it if it is not in the cache. If
+     * the value is being loaded by another thread, this waits for that load.
+     *
+     * @param key the key for the wanted value.
+     * @return the value for the key or null if the loader returned null.
+     * @throws ExecutionException if the loader failed. The cause is the
+     *                            exception from the loader.
+     */
+    public V get(K key) throws ExecutionException {
+        Loaded<V> loaded = values.get(key);
+        if (loaded != null) {
+            refreshIfNeeded(key, loaded);
+            return loaded.value;
+        }
+        Load<V> load = loads.get(key);
+        if (load == null) {
+            Load<V> own = new Load<V>(new KeyLoad(key));
+            load = loads.putIfAbsent(key, own);
+            if (load == null) {
+                load = own;
+                try {
+                    own.run();
+                } finally {
+                    loads.remove(key, own);
+                }
+            }
+        }
+        return waitFor(load);
+    }
+
+    /**
+     * @param key the key for the wanted value.
+     * @return the cached value for the key or null if it is not cached. This
+     *         never loads or waits.
+     */
+    public V getIfPresent(K key) {
+        Loaded<V> loaded = values.get(key);
+        return loaded == null ? null : loaded.value;
+    }
+
+    /**
+     * Gets the values for all the keys. The keys that are not cached or being
+     * loaded by other threads are loaded with a single call to
+     * {@link BulkLoader#loadAll(Collection)} if the loader is a BulkLoader,
+     * else one at a time.
+     *
+     * @param keys the keys for the wanted values.
+     * @return the values for the keys in the order of the keys. Keys without
+     *         a value are not included.
+     * @throws ExecutionException if the loader failed.
+     */
+    public Map<K, V> getAll(Collection<K> keys) throws ExecutionException {
+        Map<K, V> result = new LinkedHashMap<K, V>();
+        Map<K, Load<V>> waiting = new LinkedHashMap<K, Load<V>>();
+        Map<K, Load<V>> own = new LinkedHashMap<K, Load<V>>();
+        for (K key : keys) {
+            if (result.containsKey(key) || waiting.containsKey(key)) {
+                continue;
+            }
+            Loaded<V> loaded = values.get(key);
+            if (loaded != null) {
+                refreshIfNeeded(key, loaded);
+                result.put(key, loaded.value);
+                continue;
+            }
+            Load<V> load = loads.get(key);
+            if (load == null) {
+                Load<V> claim = new Load<V>(new KeyLoad(key));
+                load = loads.putIfAbsent(key, claim);
+                if (load == null) {
+                    load = claim;
+                    own.put(key, claim);
+                }
+            }
+            waiting.put(key, load);
+        }
+        if (!own.isEmpty()) {
+            loadOwn(own);
+        }
+        for (Map.Entry<K, Load<V>> entry : waiting.entrySet()) {
+            V value = waitFor(entry.getValue());
+            if (value != null) {
+                result.put(entry.getKey(), value);
+            }
+        }
+        // Restore the order of the keys
+        Map<K, V> ordered = new LinkedHashMap<K, V>(result.size());
+        for (K key : keys) {
+            if (result.containsKey(key)) {
+                ordered.put(key, result.get(key));
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Puts a value directly into the cache.
+     *
+     * @param key   the key for the value.
+     * @param value the value.
+     */
+    public void put(K key, V value) {
+        values.put(key, new Loaded<V>(value));
+    }
+
+    /**
+     * Removes the value for the key. A load in progress is not affected.
+     *
+     * @param key the key for the value to remove.
+     */
+    public void invalidate(K key) {
+        values.remove(key);
+    }
+
+    /**
+     * Removes all values. Loads in progress are not affected.
+     */
+    public void clear() {
+        values.clear();
+    }
+
+    /**
+     * @return the number of cached values.
+     */
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * @return the number of calls to the loader, where a bulk load counts as
+     *         one call.
+     */
+    public long getLoaderCalls() {
+        return loaderCalls.get();
+    }
+
+    /**
+     * Loads the values for the claimed keys, completes the loads and removes
+     * them from the loads in progress.
+     */
+    private void loadOwn(Map<K, Load<V>> own) {
+        try {
+            if (own.size() > 1 && loader instanceof BulkLoader) {
+                List<K> missing = new ArrayList<K>(own.size());
+                for (Map.Entry<K, Load<V>> entry : own.entrySet()) {
+                    // Another thread might have finished a load since the miss
+                    Loaded<V> loaded = values.get(entry.getKey());
+                    if (loaded != null) {
+                        entry.getValue().complete(loaded.value);
+                    } else {
+                        missing.add(entry.getKey());
+                    }
+                }
+                if (missing.isEmpty()) {
+                    return;
+                }
+                Map<K, V> loaded;
+                try {
+                    loaderCalls.incrementAndGet();
+                    loaded = ((BulkLoader<K, V>) loader).loadAll(missing);
+                } catch (Throwable t) {
+                    for (K key : missing) {
+                        own.get(key).fail(t);
+                    }
+                    return;
+                }
+                for (K key : missing) {
+                    V value = loaded == null ? null : loaded.get(key);
+                    if (value != null) {
+                        values.put(key, new Loaded<V>(value));
+                    }
+                    own.get(key).complete(value);
+                }
+            } else {
+                for (Load<V> load : own.values()) {
+                    load.run();
+                }
+            }
+        } finally {
+            for (Map.Entry<K, Load<V>> entry : own.entrySet()) {
+                // Ensure that no waiters hang if something unexpected happened
+                entry.getValue().fail(new IllegalStateException("The load was not completed"));
+                loads.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Starts a background reload of the value if it is older than the
+     * refresh time and no load for the key is in progress.
+     */
+    private void refreshIfNeeded(final K key, Loaded<V> loaded) {
+        Executor executor = refresher;
+        if (executor == null || System.currentTimeMillis() - loaded.loadTime < refreshAfter
+            || loads.containsKey(key)) {
+            return;
+        }
+        final Load<V> refresh = new Load<V>(new KeyLoad(key, true));
+        if (loads.putIfAbsent(key, refresh) != null) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh.run();
+                    } finally {
+                        loads.remove(key, refresh);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("Unable to refresh the value for '" + key + "'", e);
+            loads.remove(key, refresh);
+        }
+    }
+
+    private V waitFor(Load<V> load) throws ExecutionException {
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting", e);
+        }
+    }
+
+    /**
+     * Calls the loader for a single key and caches the result.
+     */
+    private final class KeyLoad implements Callable<V> {
+        private final K key;
+        private final boolean refresh;
+
+        private KeyLoad(K key) {
+            this(key, false);
+        }
+
+        private KeyLoad(K key, boolean refresh) {
+            this.key = key;
+            this.refresh = refresh;
+        }
+
+        @Override
+        public V call() throws Exception {
+            if (!refresh) {
+                // Another thread might have finished a load since the miss
+                Loaded<V> loaded = values.get(key);
+                if (loaded != null) {
+                    return loaded.value;
+                }
+            }
+            loaderCalls.incrementAndGet();
+            V value = loader.load(key);
+            if (value != null) {
+                values.put(key, new Loaded<V>(value));
+            }
+            return value;
+        }
+    }
+
+    /**
+     * A load in progress that can also be completed from the outside, as
+     * done for bulk loads.
+     */
+    private static final class Load<V> extends FutureTask<V> {
+        private Load(Callable<V> callable) {
+            super(callable);
+        }
+
+        private void complete(V value) {
+            set(value);
+        }
+
+        private void fail(Throwable t) {
+            setException(t);
+        }
+    }
+
+    /**
+     * A value with the time it was loaded.
+     */
+    private static final class Loaded<V> {
+        private final V value;
+        private final long loadTime = System.currentTimeMillis();
+
+        private Loaded(V value) {
+            this.value = value;
+        }
+    }
+}
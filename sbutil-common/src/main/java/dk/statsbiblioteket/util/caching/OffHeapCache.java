@@ -0,0 +1,381 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util.caching;
+
+import dk.statsbiblioteket.util.DirectBuffers;
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A size bounded cache for byte arrays that stores the bytes outside of the
+ * Java heap, so that large caches of serialized values do not burden the
+ * garbage collector.
+ * </p><p>
+ * The bytes are stored in slabs, which are direct {@link ByteBuffer}s that
+ * are divided into fixed size blocks. A value occupies as many blocks as
+ * needed, so at most one partial block is wasted per value and no
+ * compaction is needed. Slabs are allocated when needed until the maximum
+ * number of bytes is reached, after which the least recently used values are
+ * evicted until there are enough free blocks for a new value.
+ * </p><p>
+ * On the heap, the cache holds an access ordered index from keys to the
+ * block numbers of the values, a stack of free block numbers and the slab
+ * objects: About 4 bytes per block plus the overhead of the index entries.
+ * </p><p>
+ * Hits, misses, evictions and the number of stored bytes are counted. The
+ * slabs are released with {@link DirectBuffers#release} on {@link #close()}.
+ * </p><p>
+ * All methods are synchronized, which makes this class thread safe.
+ *
+ * @param <K> the type of the keys.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class OffHeapCache<K> {
+    /**
+     * The default number of bytes in a block.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+    /**
+     * The default number of bytes in a slab.
+     */
+    public static final int DEFAULT_SLAB_SIZE = 64 * 1024 * 1024;
+
+    private final long maxBytes;
+    private final int blockSize;
+    private final int blocksPerSlab;
+    private final int totalBlocks;
+    private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private final int[] freeBlocks;
+    private int freeCount = 0;
+    private final LinkedHashMap<K, Entry> index = new LinkedHashMap<K, Entry>(16, 0.75f, true);
+    private boolean closed = false;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long bytes = 0;
+
+    /**
+     * Creates a cache with {@link #DEFAULT_BLOCK_SIZE} and
+     * {@link #DEFAULT_SLAB_SIZE}.
+     *
+     * @param maxBytes the maximum number of bytes for the slabs.
+     */
+    public OffHeapCache(long maxBytes) {
+        this(maxBytes, DEFAULT_BLOCK_SIZE, DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * @param maxBytes  the maximum number of bytes for the slabs. This is
+     *                  rounded down to a multiple of blockSize.
+     * @param blockSize the number of bytes in a block. Values smaller than
+     *                  this still take up a full block.
+     * @param slabSize  the number of bytes in a slab. This is rounded down to
+     *                  a multiple of blockSize.
+     */
+    public OffHeapCache(long maxBytes, int blockSize, int slabSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("The block size must be at least 1, was " + blockSize);
+        }
+        if (slabSize < blockSize) {
+            throw new IllegalArgumentException(
+                    "The slab size " + slabSize + " must be at least the block size " + blockSize);
+        }
+        if (maxBytes / blockSize > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("The maximum of " + maxBytes + " bytes with block size "
+                                               + blockSize + " would exceed the maximum number of blocks");
+        }
+        this.blockSize = blockSize;
+        blocksPerSlab = slabSize / blockSize;
+        totalBlocks = (int) (maxBytes / blockSize);
+        if (totalBlocks < 1) {
+            throw new IllegalArgumentException(
+                    "The maximum bytes " + maxBytes + " must be at least the block size " + blockSize);
+        }
+        this.maxBytes = (long) totalBlocks * blockSize;
+        freeBlocks = new int[totalBlocks];
+    }
+
+    /**
+     * Stores a copy of the value. If the key already exists, the old value is
+     * replaced. Least recently used values are evicted if there is not room
+     * for the value.
+     *
+     * @param key   the key for the value.
+     * @param value the value.
+     * @return true if the value was stored, false if it is larger than the
+     *         cache. In that case any old value for the key is removed.
+     */
+    public synchronized boolean put(K key, byte[] value) {
+        return put(key, ByteBuffer.wrap(value));
+    }
+
+    /**
+     * Stores a copy of the remaining bytes in the value. The position of the
+     * value is not changed. If the key already exists, the old value is
+     * replaced. Least recently used values are evicted if there is not room
+     * for the value.
+     *
+     * @param key   the key for the value.
+     * @param value the value.
+     * @return true if the value was stored, false if it is larger than the
+     *         cache. In that case any old value for the key is removed.
+     */
+    public synchronized boolean put(K key, ByteBuffer value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("Neither key nor value can be null");
+        }
+        checkClosed();
+        Entry old = index.remove(key);
+        if (old != null) {
+            free(old);
+        }
+        int length = value.remaining();
+        int needed = (int) (((long) length + blockSize - 1) / blockSize);
+        if (needed > totalBlocks) {
+            return false;
+        }
+        while (freeCount < needed) {
+            if (!allocateSlab()) {
+                evictEldest();
+            }
+        }
+        int[] blocks = new int[needed];
+        ByteBuffer source = value.duplicate();
+        for (int i = 0; i < needed; i++) {
+            int block = freeBlocks[--freeCount];
+            blocks[i] = block;
+            ByteBuffer slab = slabFor(block);
+            slab.position(offsetFor(block));
+            source.limit(source.position() + Math.min(blockSize, source.remaining()));
+            slab.put(source);
+            source.limit(value.limit());
+        }
+        index.put(key, new Entry(length, blocks));
+        bytes += length;
+        return true;
+    }
+
+    /**
+     * @param key the key for the wanted value.
+     * @return a copy of the value or null if it is not in the cache.
+     */
+    public synchronized byte[] get(Object key) {
+        checkClosed();
+        Entry entry = index.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        byte[] value = new byte[entry.length];
+        int position = 0;
+        for (int block : entry.blocks) {
+            ByteBuffer slab = slabFor(block);
+            slab.position(offsetFor(block));
+            int length = Math.min(blockSize, value.length - position);
+            slab.get(value, position, length);
+            position += length;
+        }
+        return value;
+    }
+
+    /**
+     * Checks for the key without counting a hit or miss or changing the
+     * order of eviction.
+     *
+     * @param key the key to check for.
+     * @return true if the cache holds a value for the key.
+     */
+    public synchronized boolean containsKey(Object key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * @param key the key for the value to remove.
+     * @return true if a value was removed.
+     */
+    public synchronized boolean remove(Object key) {
+        Entry entry = index.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        free(entry);
+        return true;
+    }
+
+    /**
+     * Removes all values. The slabs are kept for reuse.
+     */
+    public synchronized void clear() {
+        for (Entry entry : index.values()) {
+            free(entry);
+        }
+        index.clear();
+    }
+
+    /**
+     * Removes all values and releases the slabs. The cache cannot be used
+     * afterwards.
+     */
+    public synchronized void close() {
+        index.clear();
+        for (ByteBuffer slab : slabs) {
+            DirectBuffers.release(slab);
+        }
+        slabs.clear();
+        freeCount = 0;
+        bytes = 0;
+        closed = true;
+    }
+
+    /**
+     * @return the number of values in the cache.
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return the number of gets that found a value.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of gets that did not find a value.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of values that has been evicted to make room for
+     *         new values.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the sum of the lengths of the values in the cache.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the number of bytes in the slabs that are allocated. This is
+     *         direct memory outside of the heap.
+     */
+    public synchronized long getAllocatedBytes() {
+        long allocated = 0;
+        for (ByteBuffer slab : slabs) {
+            allocated += slab.capacity();
+        }
+        return allocated;
+    }
+
+    /**
+     * @return the maximum number of bytes for the slabs.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "OffHeapCache(values=" + index.size() + ", bytes=" + bytes + ", allocated=" + getAllocatedBytes()
+               + "/" + maxBytes + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ")";
+    }
+
+    /**
+     * Allocates a new slab and adds its blocks to the free blocks.
+     *
+     * @return false if the maximum number of bytes has been allocated.
+     */
+    private boolean allocateSlab() {
+        int firstBlock = slabs.size() * blocksPerSlab;
+        if (firstBlock >= totalBlocks) {
+            return false;
+        }
+        int blocks = Math.min(blocksPerSlab, totalBlocks - firstBlock);
+        slabs.add(DirectBuffers.allocate(blocks * blockSize));
+        // Pushed in reverse so that the blocks are used in order
+        for (int block = firstBlock + blocks - 1; block >= firstBlock; block--) {
+            freeBlocks[freeCount++] = block;
+        }
+        return true;
+    }
+
+    private void evictEldest() {
+        Iterator<Map.Entry<K, Entry>> iterator = index.entrySet().iterator();
+        Entry eldest = iterator.next().getValue();
+        iterator.remove();
+        free(eldest);
+        evictions++;
+    }
+
+    private void free(Entry entry) {
+        for (int i = entry.blocks.length - 1; i >= 0; i--) {
+            freeBlocks[freeCount++] = entry.blocks[i];
+        }
+        bytes -= entry.length;
+    }
+
+    private ByteBuffer slabFor(int block) {
+        return slabs.get(block / blocksPerSlab);
+    }
+
+    private int offsetFor(int block) {
+        return (block % blocksPerSlab) * blockSize;
+    }
+
+    private void checkClosed() {
+        if (closed) {
+            throw new IllegalStateException("The cache has been closed");
+        }
+    }
+
+    /**
+     * The location of a value in the slabs.
+     */
+    private static final class Entry {
+        private final int length;
+        private final int[] blocks;
+
+        private Entry(int length, int[] blocks) {
+            this.length = length;
+            this.blocks = blocks;
+        }
+    }
+}
@@ -25,6 +25,7 @@ package dk.statsbiblioteket.util.caching;
 import dk.statsbiblioteket.util.qa.QAInfo;
 
 import java.util.*;
+import java.util.concurrent.Future;
 
 /**
  * This is a time sensitive cache. It can store elements for a specified time,
@@ -41,15 +42,32 @@ import java.util.*;
  * Both the above options are compatible, so you could have a cache with the elements
  * in access order, but having a fixed size.
  * <p/>
+ * The elements are kept in the order they expire, so a cleanup only visits
+ * the expired elements and the first element that is not expired. With
+ * {@link #setBackgroundExpiry(boolean)}, the cleanup is performed by a shared
+ * background thread instead of by the calling threads.
+ * <p/>
  * All the methods in this class are synchronized, which should make this class
- * thread safe
+ * thread safe. {@link #keySet()}, {@link #values()} and {@link #entrySet()}
+ * are snapshots, as the background cleanup may remove elements at any time.
+ * For caches with many concurrent readers, see
+ * {@link ConcurrentTimeSensitiveCache}.
  */
 @QAInfo(state = QAInfo.State.QA_OK,
         level = QAInfo.Level.NORMAL,
         author = "abr, te")
 public class TimeSensitiveCache<K, V> implements Map<K, V> {
 
+    private static final Expirer.Cleaner<TimeSensitiveCache<?, ?>> CLEANER =
+            new Expirer.Cleaner<TimeSensitiveCache<?, ?>>() {
+                @Override
+                public void cleanup(TimeSensitiveCache<?, ?> cache) {
+                    cache.expire();
+                }
+            };
+
     private BackingCache<K, Cachable<V>> elements;
+    private Future<?> expirer = null;
 
 
     /**
@@ -81,6 +99,37 @@ public class TimeSensitiveCache<K, V> implements Map<K, V> {
     }
 
 
+    /**
+     * Enables or disables cleanup by a shared background thread. When
+     * enabled, the methods for lookup and insertion do not perform cleanup,
+     * but too old elements are still never returned. The background cleanup
+     * runs every timeToLive/10 ms and stops when it is disabled or the cache
+     * is garbage collected.
+     *
+     * @param enabled true if the cleanup should be performed in the
+     *                background.
+     */
+    public synchronized void setBackgroundExpiry(boolean enabled) {
+        if (enabled && expirer == null) {
+            expirer = Expirer.schedule(this, CLEANER, Math.max(1, elements.timeBetweenGC));
+        } else if (!enabled && expirer != null) {
+            expirer.cancel(false);
+            expirer = null;
+        }
+        elements.background = enabled;
+    }
+
+    /**
+     * @return true if cleanup is performed by a background thread.
+     */
+    public synchronized boolean isBackgroundExpiry() {
+        return expirer != null;
+    }
+
+    private synchronized void expire() {
+        elements.cleanup(true);
+    }
+
     /**
      * Get the element identified by the key. This method performs a cleanup
      * before
@@ -109,13 +158,19 @@ public class TimeSensitiveCache<K, V> implements Map<K, V> {
         elements.clear();
     }
 
+    /**
+     * @return a snapshot of the keys in the cache.
+     */
     @Override
-    public Set<K> keySet() {
-        return elements.keySet();
+    public synchronized Set<K> keySet() {
+        return new LinkedHashSet<K>(elements.keySet());
     }
 
+    /**
+     * @return a snapshot of the values in the cache.
+     */
     @Override
-    public Collection<V> values() {
+    public synchronized Collection<V> values() {
         Collection<Cachable<V>> cachevalues = elements.values();
         Collection<V> values = new ArrayList<V>(cachevalues.size());
         for (Cachable<V> cachevalue : cachevalues) {
@@ -124,8 +179,11 @@ public class TimeSensitiveCache<K, V> implements Map<K, V> {
         return values;
     }
 
+    /**
+     * @return a snapshot of the elements in the cache.
+     */
     @Override
-    public Set<Entry<K, V>> entrySet() {
+    public synchronized Set<Entry<K, V>> entrySet() {
         Set<Entry<K, Cachable<V>>> cacheentries = elements.entrySet();
         Set<Entry<K, V>> entries = new HashSet<Entry<K, V>>(cacheentries.size());
         for (final Entry<K, Cachable<V>> cacheentry : cacheentries) {
@@ -189,7 +247,7 @@ public class TimeSensitiveCache<K, V> implements Map<K, V> {
     }
 
     @Override
-    public boolean containsValue(Object value) {
+    public synchronized boolean containsValue(Object value) {
         return values().contains(value);
     }
 
@@ -253,6 +311,7 @@ public class TimeSensitiveCache<K, V> implements Map<K, V> {
         private long timeBetweenGC;
         private long timeToLive;
         private long lastClean;
+        private boolean background = false;
 
         /**
          * Create a new BackingCache.
@@ -290,8 +349,14 @@ public class TimeSensitiveCache<K, V> implements Map<K, V> {
          */
         @Override
         public C get(Object key) {
-            cleanup();
+            if (!background) {
+                cleanup(false);
+            }
             C value = super.get(key);
+            if (background && value != null && isTooOld(value.getCacheTime(), timeToLive)) {
+                super.remove(key);
+                return null;
+            }
             if (accessOrder && value != null) {
                 value.refreshCacheTime();
             }
@@ -320,7 +385,7 @@ public class TimeSensitiveCache<K, V> implements Map<K, V> {
          */
         @Override
         public boolean isEmpty() {
-            cleanup();
+            cleanup(false);
             return super.isEmpty();
         }
 
@@ -331,7 +396,7 @@ public class TimeSensitiveCache<K, V> implements Map<K, V> {
          */
         @Override
         public int size() {
-            cleanup();
+            cleanup(false);
             return super.size();
         }
 
@@ -361,7 +426,9 @@ public class TimeSensitiveCache<K, V> implements Map<K, V> {
             if (isTooOld(eldest.getValue().getCacheTime(),timeToLive)){
                 return true;
             }
-            cleanup();
+            if (!background) {
+                cleanup(false);
+            }
             return false;
         }
 
@@ -370,9 +437,12 @@ public class TimeSensitiveCache<K, V> implements Map<K, V> {
          * the oldest elements, and checks which are to old. If one is found to
          * be not to old, all the others are assumed to be not to old, and the
          * cleanup is over.
+         *
+         * @param force if true, the cleanup is performed even if the cache
+         *              has been cleaned recently
          */
-        private void cleanup() {
-            if (!isTooOld(lastClean, timeBetweenGC)) {
+        private void cleanup(boolean force) {
+            if (!force && !isTooOld(lastClean, timeBetweenGC)) {
                 return;
             }
             lastClean = System.currentTimeMillis();
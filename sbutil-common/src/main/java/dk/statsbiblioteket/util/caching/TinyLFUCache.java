@@ -0,0 +1,272 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util.caching;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A size bounded cache that is resistant to scans, using the W-TinyLFU
+ * policy. It is a drop-in alternative to {@link LRUCache} for working sets
+ * that are disturbed by one-off accesses to many keys.
+ * </p><p>
+ * New elements enter a small LRU window of 1% of the capacity. Elements
+ * that leave the window are candidates for the main space, which is a
+ * segmented LRU with a probation segment and a protected segment of 80% of
+ * the main space. When the main space is full, the candidate is only
+ * admitted if its estimated frequency is higher than that of the element
+ * that would be evicted from probation, else the candidate is dropped. The
+ * frequencies are estimated with a {@link FrequencySketch} that is updated
+ * on every get and put, including misses. A hit in probation promotes the
+ * element to protected and elements leaving protected are demoted to
+ * probation.
+ * </p><p>
+ * If accessOrder is false, each segment is in insertion order instead of
+ * access order, but hits still promote from probation to protected.
+ * </p><p>
+ * As with LRUCache, null keys and values are allowed and this class is not
+ * thread-safe.
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the values.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class TinyLFUCache<K, V> extends AbstractMap<K, V> {
+    private final int capacity;
+    private final int windowCapacity;
+    private final int protectedCapacity;
+    private final int mainCapacity;
+    private final FrequencySketch sketch;
+    private final LinkedHashMap<K, V> window;
+    private final LinkedHashMap<K, V> probation;
+    private final LinkedHashMap<K, V> protectedSegment;
+    private Set<Entry<K, V>> entrySet = null;
+
+    /**
+     * @param initialCapacity the maximum number of elements in the cache. The
+     *                        name mirrors {@link LRUCache}.
+     * @param accessOrder     if true, the segments are ordered by access,
+     *                        else by insertion.
+     */
+    public TinyLFUCache(int initialCapacity, boolean accessOrder) {
+        if (initialCapacity < 1) {
+            throw new IllegalArgumentException("The capacity must be at least 1, was " + initialCapacity);
+        }
+        capacity = initialCapacity;
+        windowCapacity = Math.max(1, capacity / 100);
+        mainCapacity = capacity - windowCapacity;
+        protectedCapacity = (int) (mainCapacity * 0.8);
+        sketch = new FrequencySketch(capacity);
+        window = new LinkedHashMap<K, V>(16, 0.75f, accessOrder);
+        probation = new LinkedHashMap<K, V>(16, 0.75f, accessOrder);
+        protectedSegment = new LinkedHashMap<K, V>(16, 0.75f, accessOrder);
+    }
+
+    /**
+     * @return the maximum number of elements in the cache.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        sketch.increment(key);
+        V value = window.get(key);
+        if (value != null || window.containsKey(key)) {
+            return value;
+        }
+        value = protectedSegment.get(key);
+        if (value != null || protectedSegment.containsKey(key)) {
+            return value;
+        }
+        if (probation.containsKey(key)) {
+            value = probation.remove(key);
+            promote((K) key, value);
+            return value;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return window.containsKey(key) || probation.containsKey(key) || protectedSegment.containsKey(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        sketch.increment(key);
+        if (window.containsKey(key)) {
+            return window.put(key, value);
+        }
+        if (protectedSegment.containsKey(key)) {
+            return protectedSegment.put(key, value);
+        }
+        if (probation.containsKey(key)) {
+            V old = probation.remove(key);
+            promote(key, value);
+            return old;
+        }
+        window.put(key, value);
+        if (window.size() > windowCapacity) {
+            Entry<K, V> candidate = removeEldest(window);
+            admit(candidate.getKey(), candidate.getValue());
+        }
+        return null;
+    }
+
+    @Override
+    public V remove(Object key) {
+        if (window.containsKey(key)) {
+            return window.remove(key);
+        }
+        if (probation.containsKey(key)) {
+            return probation.remove(key);
+        }
+        return protectedSegment.remove(key);
+    }
+
+    @Override
+    public int size() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+
+    @Override
+    public void clear() {
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+    }
+
+    /**
+     * Iterates the window, probation and protected segments in that order.
+     * Iteration does not count as access.
+     */
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Entry<K, V>>() {
+                @Override
+                public Iterator<Entry<K, V>> iterator() {
+                    return new SegmentIterator();
+                }
+
+                @Override
+                public int size() {
+                    return TinyLFUCache.this.size();
+                }
+
+                @Override
+                public void clear() {
+                    TinyLFUCache.this.clear();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    /**
+     * Moves a hit element from probation to protected, demoting the eldest
+     * protected element to probation if protected is full.
+     */
+    private void promote(K key, V value) {
+        protectedSegment.put(key, value);
+        if (protectedSegment.size() > protectedCapacity) {
+            Entry<K, V> demoted = removeEldest(protectedSegment);
+            probation.put(demoted.getKey(), demoted.getValue());
+        }
+    }
+
+    /**
+     * Decides whether a candidate evicted from the window should enter the
+     * main space, at the expense of the eldest element in probation.
+     */
+    private void admit(K key, V value) {
+        if (probation.size() + protectedSegment.size() < mainCapacity) {
+            probation.put(key, value);
+            return;
+        }
+        LinkedHashMap<K, V> victims = probation.isEmpty() ? protectedSegment : probation;
+        if (victims.isEmpty()) {
+            return; // No main space
+        }
+        K victim = victims.keySet().iterator().next();
+        if (sketch.frequency(key) > sketch.frequency(victim)) {
+            victims.remove(victim);
+            probation.put(key, value);
+        }
+    }
+
+    private Entry<K, V> removeEldest(LinkedHashMap<K, V> segment) {
+        Iterator<Entry<K, V>> iterator = segment.entrySet().iterator();
+        Entry<K, V> eldest = iterator.next();
+        Entry<K, V> removed = new SimpleImmutableEntry<K, V>(eldest.getKey(), eldest.getValue());
+        iterator.remove();
+        return removed;
+    }
+
+    private class SegmentIterator implements Iterator<Entry<K, V>> {
+        @SuppressWarnings("unchecked")
+        private final Iterator<Entry<K, V>>[] iterators = new Iterator[]{
+                window.entrySet().iterator(), probation.entrySet().iterator(),
+                protectedSegment.entrySet().iterator()};
+        private int current = 0;
+        private int last = -1;
+
+        @Override
+        public boolean hasNext() {
+            while (current < iterators.length - 1 && !iterators[current].hasNext()) {
+                current++;
+            }
+            return iterators[current].hasNext();
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = current;
+            return iterators[current].next();
+        }
+
+        @Override
+        public void remove() {
+            if (last == -1) {
+                throw new IllegalStateException("next() has not been called");
+            }
+            iterators[last].remove();
+            last = -1;
+        }
+    }
+}
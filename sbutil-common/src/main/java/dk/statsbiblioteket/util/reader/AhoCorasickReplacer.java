@@ -0,0 +1,654 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util.reader;
+
+import dk.statsbiblioteket.util.Strings;
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.nio.charset.CoderResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A reader that replaces Strings on the fly using a compiled Aho-Corasick
+ * automaton. The rules are compiled into flat transition tables with failure
+ * links once and the input is processed in a single pass, regardless of the
+ * number of rules.
+ * </p><p>
+ * The semantics are the same as for {@link StringReplacer}: At any position
+ * the longest matching target is replaced and scanning continues after the
+ * replaced target. If no target matches, the char is passed through unchanged.
+ * </p><p>
+ * This replacer is well suited for rule sets with thousands of rules, where
+ * {@link StringReplacer} slows down. {@link ReplaceFactory} selects it
+ * automatically when the number of rules exceeds
+ * {@link ReplaceFactory#AHO_CORASICK_THRESHOLD}.
+ * </p><p>
+ * The reader is not thread-safe, but the transform-methods can be called
+ * safely from different threads. Clones share the compiled automaton.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class AhoCorasickReplacer extends ReplaceReader {
+    private static final int MIN_WINDOW = 1024;
+
+    private final Rules compiled;
+    private final Automaton automaton;
+
+    private CircularCharBuffer destinationBuffer =
+            new CircularCharBuffer(MIN_WINDOW, Integer.MAX_VALUE);
+    /**
+     * Input chars that has been read from the source, but not yet passed on
+     * to the destination buffer.
+     */
+    private char[] window;
+    private int windowStart = 0;
+    private int windowEnd = 0;
+    private int scanPos = 0;
+    private int state = Automaton.ROOT;
+    private int matchState = Automaton.NONE;
+    private int matchEnd = 0;
+    private boolean eof = false;
+    private long replacementsFromCurrentSource = 0;
+
+    /**
+     * Create a new replacer replacing substrings in the {@code in} stream
+     * based on the rules defined by the {@code replacements} argument.
+     *
+     * @param in           the character stream in which to replace substrings
+     * @param replacements the Strings to replace, from target to destination.
+     */
+    public AhoCorasickReplacer(Reader in, Map<String, String> replacements) {
+        this(in, new Rules(replacements));
+    }
+
+    /**
+     * Create a new replacer, with an empty input stream, replacing substrings
+     * based on the rules defined by the {@code replacements} argument.
+     * <p/>
+     * Before calling any other methods on this reader you should set its input
+     * stream by calling {@link #setSource(java.io.Reader)}.
+     *
+     * @param replacements the Strings to replace, from target to destination.
+     */
+    public AhoCorasickReplacer(Map<String, String> replacements) {
+        this(new StringReader(""), replacements);
+    }
+
+    private AhoCorasickReplacer(Reader in, Rules compiled) {
+        super(in);
+        this.compiled = compiled;
+        automaton = compiled.automaton;
+        window = new char[Math.max(MIN_WINDOW, automaton.maxTargetLength * 2)];
+    }
+
+    /**
+     * A clone of the AhoCorasickReplacer will share the compiled rules of the
+     * replacer, but will otherwise be independent. A clone will not have a
+     * source defined. Creating a clone is very cheap with regard to memory and
+     * processing time.
+     *
+     * @return a clone of this ReplaceReader.
+     */
+    @SuppressWarnings({"CloneDoesntCallSuperClone",
+                       "CloneDoesntDeclareCloneNotSupportedException"})
+    @Override
+    public Object clone() {
+        return compiled.newReplacer();
+    }
+
+    /**
+     * @return the immutable rules used by this replacer.
+     */
+    public ReplaceRules getRules() {
+        return compiled;
+    }
+
+    /* TextTransformer interface implementations */
+
+    @Override
+    public String transform(String s) {
+        char[] chars = s.toCharArray();
+        StringBuilder out = new StringBuilder(chars.length);
+        replaceAll(chars, 0, chars.length, out);
+        return out.toString();
+    }
+
+    @Override
+    public char[] transformToChars(char c) {
+        return transformToChars(new char[]{c});
+    }
+
+    @Override
+    public char[] transformToChars(char[] chars) {
+        StringBuilder out = new StringBuilder(chars.length);
+        replaceAll(chars, 0, chars.length, out);
+        char[] result = new char[out.length()];
+        out.getChars(0, result.length, result, 0);
+        return result;
+    }
+
+    @Override
+    public char[] transformToCharsAllowInplace(char[] chars) {
+        return transformToChars(chars);
+    }
+
+    /**
+     * Replaces all targets in the given chars in a single pass.
+     * Only local state is used, so this is thread-safe.
+     *
+     * @param chars  the input.
+     * @param offset the start of the input in chars.
+     * @param length the number of chars to process.
+     * @param out    where to put the output.
+     */
+    private void replaceAll(char[] chars, int offset, int length,
+                            StringBuilder out) {
+        final int end = offset + length;
+        int flushed = offset;
+        int pos = offset;
+        while (true) {
+            int current = Automaton.ROOT;
+            int match = Automaton.NONE;
+            int mEnd = 0;
+            while (pos < end) {
+                current = automaton.next(current, chars[pos++]);
+                if (current == Automaton.DEAD) {
+                    break;
+                }
+                if (automaton.matchLength[current] > 0) {
+                    match = current;
+                    mEnd = pos;
+                }
+            }
+            if (match == Automaton.NONE) {
+                if (current == Automaton.DEAD) { // Defensive, should not happen
+                    pos = flushed + 1;
+                    continue;
+                }
+                out.append(chars, flushed, end - flushed);
+                return;
+            }
+            int mStart = mEnd - automaton.matchLength[match];
+            out.append(chars, flushed, mStart - flushed);
+            out.append(automaton.replacements[match]);
+            flushed = pos = mEnd;
+        }
+    }
+
+    /**
+     * Replaces targets in the chars from {@code in}. Chars that might be part
+     * of a target continuing beyond the remaining chars are left in {@code in}
+     * when endOfInput is false.
+     * </p><p>
+     * This method does not use the state of the replacer and is thread-safe.
+     */
+    @Override
+    public CoderResult transform(CharBuffer in, CharBuffer out,
+                                 boolean endOfInput) {
+        while (in.hasRemaining()) {
+            final int start = in.position();
+            final int limit = in.limit();
+            int pos = start;
+            int current = Automaton.ROOT;
+            int match = Automaton.NONE;
+            int mEnd = 0;
+            boolean dead = false;
+            while (pos < limit) {
+                current = automaton.next(current, in.get(pos++));
+                if (current == Automaton.DEAD) {
+                    dead = true;
+                    break;
+                }
+                if (automaton.matchLength[current] > 0) {
+                    match = current;
+                    mEnd = pos;
+                }
+            }
+            if (!dead && !endOfInput) {
+                // The chars of the current candidate might be part of a match
+                return copy(in, out, limit - automaton.depth[current]) ?
+                       CoderResult.UNDERFLOW : CoderResult.OVERFLOW;
+            }
+            if (match == Automaton.NONE) {
+                if (!copy(in, out, dead ? start + 1 : limit)) {
+                    return CoderResult.OVERFLOW;
+                }
+                continue;
+            }
+            if (!copy(in, out, mEnd - automaton.matchLength[match])) {
+                return CoderResult.OVERFLOW;
+            }
+            char[] replacement = automaton.replacements[match];
+            if (out.remaining() < replacement.length) {
+                return CoderResult.OVERFLOW;
+            }
+            out.put(replacement);
+            in.position(mEnd);
+        }
+        return CoderResult.UNDERFLOW;
+    }
+
+    /* Stream based */
+
+    @Override
+    public int read() throws IOException {
+        ensureBuffers(1);
+        if (destinationBuffer.size() > 0) {
+            return destinationBuffer.take();
+        }
+        return -1;
+    }
+
+    @Override
+    public int read(char cbuf[], int off, int len) throws IOException {
+        ensureBuffers(len);
+        return destinationBuffer.read(cbuf, off, len);
+    }
+
+    @Override
+    public int read(CircularCharBuffer cbuf, int length) throws IOException {
+        ensureBuffers(length);
+        return destinationBuffer.read(cbuf, length);
+    }
+
+    /**
+     * Ensures that the destination buffer contains minSize characters or that
+     * the source has reached EOF and that all characters from source has been
+     * processed.
+     *
+     * @param minSize the minimum size wanted in destination.
+     * @throws IOException if an I/O error happened in source.
+     */
+    private void ensureBuffers(int minSize) throws IOException {
+        while (destinationBuffer.size() < minSize) {
+            if (scanPos == windowEnd && !fillWindow()) {
+                // EOF: Resolve pending match or flush the rest
+                if (matchState != Automaton.NONE) {
+                    commitMatch();
+                    continue;
+                }
+                flush(windowEnd);
+                return;
+            }
+            state = automaton.next(state, window[scanPos++]);
+            if (state == Automaton.DEAD) {
+                if (matchState == Automaton.NONE) { // Defensive
+                    flush(windowStart + 1);
+                    scanPos = windowStart;
+                    state = Automaton.ROOT;
+                    continue;
+                }
+                commitMatch();
+            } else if (automaton.matchLength[state] > 0) {
+                matchState = state;
+                matchEnd = scanPos;
+            } else if (matchState == Automaton.NONE) {
+                // Chars before the current candidate can never be replaced
+                flush(scanPos - automaton.depth[state]);
+            }
+        }
+    }
+
+    /**
+     * Moves the pending chars before the current match to the destination,
+     * adds the replacement and restarts the scan just after the match.
+     */
+    private void commitMatch() {
+        flush(matchEnd - automaton.matchLength[matchState]);
+        destinationBuffer.put(automaton.replacements[matchState]);
+        replacementsFromCurrentSource++;
+        windowStart = matchEnd;
+        scanPos = matchEnd;
+        state = Automaton.ROOT;
+        matchState = Automaton.NONE;
+    }
+
+    /**
+     * Moves the unchanged chars from windowStart up to end to the destination.
+     *
+     * @param end the end of the chars to move, exclusive.
+     */
+    private void flush(int end) {
+        for (int i = windowStart; i < end; i++) {
+            destinationBuffer.put(window[i]);
+        }
+        windowStart = Math.max(windowStart, end);
+    }
+
+    /**
+     * Reads more chars from the source into the window, compacting or
+     * expanding the window if needed.
+     *
+     * @return true if at least one char was added to the window.
+     * @throws IOException if the source could not be read.
+     */
+    private boolean fillWindow() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (windowStart > 0) {
+            System.arraycopy(window, windowStart, window, 0,
+                             windowEnd - windowStart);
+            scanPos -= windowStart;
+            matchEnd -= windowStart;
+            windowEnd -= windowStart;
+            windowStart = 0;
+        }
+        if (windowEnd == window.length) {
+            char[] newWindow = new char[window.length * 2];
+            System.arraycopy(window, 0, newWindow, 0, windowEnd);
+            window = newWindow;
+        }
+        int read;
+        if (sourceBuffer != null) {
+            read = sourceBuffer.read(window, windowEnd, window.length - windowEnd);
+        } else if (in != null) {
+            read = in.read(window, windowEnd, window.length - windowEnd);
+        } else {
+            throw new IllegalStateException(NO_SOURCE);
+        }
+        if (read <= 0) {
+            eof = sourceBuffer == null; // A CircularCharBuffer can be refilled
+            return false;
+        }
+        windowEnd += read;
+        return true;
+    }
+
+    @Override
+    public ReplaceReader setSource(Reader source) {
+        super.setSource(source);
+        resetState();
+        return this;
+    }
+
+    @Override
+    public ReplaceReader setSource(CircularCharBuffer charBuffer) {
+        super.setSource(charBuffer);
+        resetState();
+        return this;
+    }
+
+    private void resetState() {
+        destinationBuffer.clear();
+        windowStart = 0;
+        windowEnd = 0;
+        scanPos = 0;
+        state = Automaton.ROOT;
+        matchState = Automaton.NONE;
+        matchEnd = 0;
+        eof = false;
+        replacementsFromCurrentSource = 0;
+    }
+
+    /**
+     * @return the number of replacements that has been performed on the
+     *         current source.
+     */
+    public long getReplacementCount() {
+        return replacementsFromCurrentSource;
+    }
+
+    /**
+     * @return the number of states in the compiled automaton.
+     */
+    public int getStateCount() {
+        return automaton.depth.length;
+    }
+
+    @Override
+    public String toString() {
+        return "AhoCorasickReplacer(states=" + getStateCount()
+               + ", rules=" + compiled.rulesSample + ")";
+    }
+
+    /**
+     * The compiled rules: The automaton, which is immutable.
+     */
+    static final class Rules extends ReplaceRules {
+        private final Automaton automaton;
+        private final String rulesSample;
+
+        Rules(Map<String, String> replacements) {
+            super(replacements.size());
+            rulesSample = Strings.join(replacements.entrySet(), 10);
+            automaton = new Automaton(replacements);
+        }
+
+        @Override
+        public ReplaceReader newReplacer() {
+            return new AhoCorasickReplacer(null, this);
+        }
+    }
+
+    /**
+     * Immutable leftmost-longest Aho-Corasick automaton. States are ints,
+     * the root has a direct char-indexed transition table and all other
+     * states have sorted transition chars that are binary searched.
+     * </p><p>
+     * In order to get leftmost-longest semantics, failure links that would
+     * lose an already seen match leads to the {@link #DEAD} state, which
+     * signals that the current match cannot be extended or preceded.
+     */
+    static final class Automaton {
+        static final int NONE = -2;
+        static final int DEAD = -1;
+        static final int ROOT = 0;
+
+        /** Transitions from the root, indexed by char. Missing = ROOT. */
+        final int[] rootTransitions = new int[Character.MAX_VALUE + 1];
+        /** For state s, transitions are at [offsets[s], offsets[s+1]). */
+        final int[] transitionOffsets;
+        final char[] transitionChars;
+        final int[] transitionTargets;
+        final int[] fail;
+        final int[] depth;
+        /** The length of the target for the match in state s or 0. */
+        final int[] matchLength;
+        final char[][] replacements;
+        final int maxTargetLength;
+
+        Automaton(Map<String, String> rules) {
+            // Build the trie
+            BuildNode root = new BuildNode(0);
+            int max = 0;
+            for (Map.Entry<String, String> rule : rules.entrySet()) {
+                String target = rule.getKey();
+                if (target.length() == 0) {
+                    continue; // Empty targets are ignored, as in StringReplacer
+                }
+                max = Math.max(max, target.length());
+                BuildNode node = root;
+                for (int i = 0; i < target.length(); i++) {
+                    BuildNode child = node.children.get(target.charAt(i));
+                    if (child == null) {
+                        child = new BuildNode(i + 1);
+                        node.children.put(target.charAt(i), child);
+                    }
+                    node = child;
+                }
+                node.replacement = rule.getValue().toCharArray();
+            }
+            maxTargetLength = max;
+
+            // Assign ids in breadth first order
+            List<BuildNode> nodes = new ArrayList<BuildNode>();
+            nodes.add(root);
+            int transitionCount = 0;
+            for (int i = 0; i < nodes.size(); i++) {
+                BuildNode node = nodes.get(i);
+                node.id = i;
+                if (i != ROOT) {
+                    transitionCount += node.children.size();
+                }
+                nodes.addAll(node.children.values());
+            }
+
+            int states = nodes.size();
+            transitionOffsets = new int[states + 1];
+            transitionChars = new char[transitionCount];
+            transitionTargets = new int[transitionCount];
+            fail = new int[states];
+            depth = new int[states];
+            matchLength = new int[states];
+            replacements = new char[states][];
+
+            int pos = 0;
+            for (BuildNode node : nodes) {
+                int id = node.id;
+                depth[id] = node.depth;
+                if (node.replacement != null) {
+                    matchLength[id] = node.depth;
+                    replacements[id] = node.replacement;
+                }
+                transitionOffsets[id] = pos;
+                for (Map.Entry<Character, BuildNode> child :
+                        node.children.entrySet()) {
+                    if (id == ROOT) {
+                        rootTransitions[child.getKey()] = child.getValue().id;
+                    } else { // TreeMap ensures sorted order
+                        transitionChars[pos] = child.getKey();
+                        transitionTargets[pos++] = child.getValue().id;
+                    }
+                }
+            }
+            transitionOffsets[states] = pos;
+
+            resolveFailures(nodes);
+        }
+
+        /*
+         * Calculates failure links breadth first. A state that is a match or
+         * follows a match only gets a failure link if the failure state
+         * contains the start of the earliest seen match, else it fails to DEAD.
+         */
+        private void resolveFailures(List<BuildNode> nodes) {
+            // Depth of the first char of the earliest match on the path or -1
+            int[] matchAtDepth = new int[nodes.size()];
+            matchAtDepth[ROOT] = -1;
+            fail[ROOT] = ROOT;
+            for (int i = 1; i < nodes.size(); i++) { // BFS order
+                BuildNode node = nodes.get(i);
+                if (node.depth == 1) {
+                    boolean ownMatch = matchLength[node.id] > 0;
+                    matchAtDepth[node.id] = ownMatch ? 1 : -1;
+                    fail[node.id] = ownMatch ? DEAD : ROOT;
+                }
+                for (Map.Entry<Character, BuildNode> entry :
+                        node.children.entrySet()) {
+                    char c = entry.getKey();
+                    int child = entry.getValue().id;
+                    matchAtDepth[child] = matchAtDepth[node.id] != -1 ?
+                                          matchAtDepth[node.id] :
+                                          matchLength[child] > 0 ?
+                                          depth[child] - matchLength[child] + 1 :
+                                          -1;
+                    int f = fail[node.id];
+                    while (f != DEAD && f != ROOT && transition(f, c) == DEAD) {
+                        f = fail[f];
+                    }
+                    if (f != DEAD) {
+                        f = f == ROOT ? rootTransitions[c] : transition(f, c);
+                    }
+                    if (matchAtDepth[child] != -1 && depth[child]
+                            - matchAtDepth[child] + 1 > (f == DEAD ? 0 : depth[f])) {
+                        fail[child] = DEAD;
+                        continue;
+                    }
+                    fail[child] = f;
+                    if (matchLength[child] == 0 && f != DEAD && matchLength[f] > 0) {
+                        matchLength[child] = matchLength[f];
+                        replacements[child] = replacements[f];
+                    }
+                }
+                if (node.children.isEmpty() && matchLength[node.id] > 0) {
+                    fail[node.id] = DEAD;
+                }
+            }
+        }
+
+        /**
+         * @param state a non-root state.
+         * @param c     the char to look up.
+         * @return the target state for the transition or DEAD if there is no
+         *         transition.
+         */
+        private int transition(int state, char c) {
+            int low = transitionOffsets[state];
+            int high = transitionOffsets[state + 1] - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                char midChar = transitionChars[mid];
+                if (midChar < c) {
+                    low = mid + 1;
+                } else if (midChar > c) {
+                    high = mid - 1;
+                } else {
+                    return transitionTargets[mid];
+                }
+            }
+            return DEAD;
+        }
+
+        /**
+         * Follows transitions and failure links.
+         *
+         * @param state the current state.
+         * @param c     the next input char.
+         * @return the next state, possibly DEAD.
+         */
+        int next(int state, char c) {
+            while (state != DEAD) {
+                if (state == ROOT) {
+                    return rootTransitions[c];
+                }
+                int next = transition(state, c);
+                if (next != DEAD) {
+                    return next;
+                }
+                state = fail[state];
+            }
+            return DEAD;
+        }
+    }
+
+    private static final class BuildNode {
+        private final TreeMap<Character, BuildNode> children =
+                new TreeMap<Character, BuildNode>();
+        private final int depth;
+        private char[] replacement = null;
+        private int id;
+
+        private BuildNode(int depth) {
+            this.depth = depth;
+        }
+    }
+}
@@ -0,0 +1,512 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util.reader;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CoderResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A byte oriented sibling of {@link ReplaceReader} that replaces substrings
+ * directly in UTF-8 encoded input, without decoding the bytes to chars.
+ * </p><p>
+ * The rules are given as Strings and encoded as UTF-8. As UTF-8 is
+ * self-synchronizing, a match on the encoded bytes of a target in valid UTF-8
+ * input always starts and ends at character boundaries, so the result is the
+ * same as decoding the input, using a {@link StringReplacer} and encoding the
+ * output: At any position the longest matching target is replaced. Invalid
+ * UTF-8 in the input is passed through unchanged.
+ * </p><p>
+ * Rules with single byte targets, such as most ASCII cleanup rules, are
+ * resolved by a single table lookup. Longer targets are matched with a byte
+ * trie where the first byte is looked up in a table.
+ * </p><p>
+ * The rules are immutable and can be shared. The stream itself is not
+ * thread-safe, but {@link #transform(ByteBuffer, ByteBuffer, boolean)} and
+ * {@link #transform(byte[])} can be called from any thread.
+ *
+ * @see ReplaceFactory#getByteReplacer(java.io.InputStream, java.util.Map)
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class ByteReplacer extends FilterInputStream {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Rules rules;
+    private final ByteBuffer inBuf;
+    private final ByteBuffer outBuf;
+    private boolean eof = false;
+
+    /**
+     * Creates a replacer that replaces the UTF-8 encoded targets from the rules
+     * with the UTF-8 encoded replacements.
+     *
+     * @param in    the UTF-8 encoded stream in which to replace substrings.
+     * @param rules what to replace in the form of target=>replacement pairs.
+     * @throws IllegalArgumentException if the rules cannot be represented as
+     *                                  UTF-8, see {@link #isExpressible(Map)}.
+     */
+    public ByteReplacer(InputStream in, Map<String, String> rules) {
+        this(in, new Rules(rules));
+    }
+
+    /**
+     * Creates a replacer based on already compiled rules. This is cheap as the
+     * rules are shared.
+     *
+     * @param in    the UTF-8 encoded stream in which to replace substrings.
+     * @param rules compiled rules.
+     */
+    public ByteReplacer(InputStream in, Rules rules) {
+        super(in);
+        this.rules = rules;
+        int size = Math.max(BUFFER_SIZE, Math.max(
+                rules.maxTargetLength * 2, rules.maxReplacementLength));
+        inBuf = ByteBuffer.allocate(size);
+        outBuf = ByteBuffer.allocate(size);
+        outBuf.flip();
+    }
+
+    /**
+     * @param rules what to replace in the form of target=>replacement pairs.
+     * @return true if all targets and replacements can be encoded as UTF-8,
+     *         i.e. if they do not contain unpaired surrogate chars.
+     */
+    public static boolean isExpressible(Map<String, String> rules) {
+        for (Map.Entry<String, String> entry : rules.entrySet()) {
+            if (!isExpressible(entry.getKey())
+                || !isExpressible(entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isExpressible(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isHighSurrogate(c)) {
+                if (i + 1 == s.length()
+                    || !Character.isLowSurrogate(s.charAt(i + 1))) {
+                    return false;
+                }
+                i++;
+            } else if (Character.isLowSurrogate(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Assigns a new source to the replacer and clears all buffers.
+     *
+     * @param in the UTF-8 encoded stream in which to replace substrings.
+     * @return this replacer, for chaining.
+     */
+    public ByteReplacer setSource(InputStream in) {
+        this.in = in;
+        inBuf.clear();
+        outBuf.clear();
+        outBuf.flip();
+        eof = false;
+        return this;
+    }
+
+    /**
+     * @return the compiled rules used by this replacer.
+     */
+    public Rules getRules() {
+        return rules;
+    }
+
+    /**
+     * Replaces the targets in the given bytes.
+     *
+     * @param bytes UTF-8 encoded input.
+     * @return the input with all targets replaced.
+     */
+    public byte[] transform(byte[] bytes) {
+        return rules.transform(bytes);
+    }
+
+    /**
+     * Replaces the targets in {@code in} and writes the result to {@code out}
+     * with the semantics of
+     * {@link TextTransformer#transform(java.nio.CharBuffer,
+     * java.nio.CharBuffer, boolean)}.
+     *
+     * @param in         the bytes to transform.
+     * @param out        where to write the transformed bytes.
+     * @param endOfInput true if there is no more input than the remaining
+     *                   bytes in {@code in}.
+     * @return {@link CoderResult#UNDERFLOW} if in has been processed as far
+     *         as possible or {@link CoderResult#OVERFLOW} if out is full.
+     */
+    public CoderResult transform(ByteBuffer in, ByteBuffer out,
+                                 boolean endOfInput) {
+        return rules.transform(in, out, endOfInput);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!outBuf.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return outBuf.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!outBuf.hasRemaining() && !fill()) {
+            return -1;
+        }
+        int length = Math.min(len, outBuf.remaining());
+        outBuf.get(b, off, length);
+        return length;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && (outBuf.hasRemaining() || fill())) {
+            int length = (int) Math.min(n - skipped, outBuf.remaining());
+            outBuf.position(outBuf.position() + length);
+            skipped += length;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return outBuf.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        // Not supported
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("Mark not supported");
+    }
+
+    /**
+     * Transforms input until there is some output or the source is depleted.
+     *
+     * @return true if there are bytes available in the out buffer.
+     * @throws IOException if the source could not be read.
+     */
+    private boolean fill() throws IOException {
+        outBuf.clear();
+        while (outBuf.position() == 0) {
+            if (!eof && inBuf.hasRemaining()) {
+                int read = in.read(inBuf.array(),
+                                   inBuf.arrayOffset() + inBuf.position(),
+                                   inBuf.remaining());
+                if (read == -1) {
+                    eof = true;
+                } else {
+                    inBuf.position(inBuf.position() + read);
+                }
+            }
+            inBuf.flip();
+            CoderResult result = rules.transform(inBuf, outBuf, eof);
+            inBuf.compact();
+            if (eof && result.isUnderflow() && inBuf.position() == 0) {
+                break;
+            }
+        }
+        outBuf.flip();
+        return outBuf.hasRemaining();
+    }
+
+    /**
+     * Immutable compiled rules for {@link ByteReplacer}, which can be shared
+     * between any number of replacers and threads.
+     */
+    public static final class Rules {
+        private static final int NONE = 0;
+
+        /* Transition from the root state on a byte, NONE if no target starts
+           with the byte */
+        private final int[] root = new int[256];
+        /* Sorted transitions for the non-root states. The transitions for
+           state s are at offsets[s] to offsets[s+1] */
+        private final int[] offsets;
+        private final byte[] labels;
+        private final int[] targets;
+        /* The replacement for the target ending in the state or null */
+        private final byte[][] replacements;
+        private final int maxTargetLength;
+        private final int maxReplacementLength;
+
+        /**
+         * Compiles the rules to a byte trie.
+         *
+         * @param rules what to replace in the form of target=>replacement
+         *              pairs.
+         * @throws IllegalArgumentException if the rules cannot be represented
+         *                                  as UTF-8.
+         */
+        public Rules(Map<String, String> rules) {
+            if (!isExpressible(rules)) {
+                throw new IllegalArgumentException(
+                        "The rules contain unpaired surrogate characters and"
+                        + " cannot be represented as UTF-8");
+            }
+            BuildNode rootNode = new BuildNode();
+            int maxTarget = 0;
+            int maxReplacement = 0;
+            for (Map.Entry<String, String> entry : rules.entrySet()) {
+                byte[] target = utf8(entry.getKey());
+                if (target.length == 0) {
+                    continue; // Empty targets are ignored, as in StringReplacer
+                }
+                byte[] replacement = utf8(entry.getValue());
+                BuildNode node = rootNode;
+                for (byte b : target) {
+                    BuildNode child = node.children.get(b & 0xFF);
+                    if (child == null) {
+                        child = new BuildNode();
+                        node.children.put(b & 0xFF, child);
+                    }
+                    node = child;
+                }
+                node.replacement = replacement;
+                maxTarget = Math.max(maxTarget, target.length);
+                maxReplacement = Math.max(maxReplacement, replacement.length);
+            }
+            maxTargetLength = maxTarget;
+            maxReplacementLength = maxReplacement;
+
+            // Breadth first numbering of the states, with the root as 0
+            List<BuildNode> nodes = new ArrayList<BuildNode>();
+            nodes.add(rootNode);
+            int transitionCount = 0;
+            for (int i = 0; i < nodes.size(); i++) {
+                BuildNode node = nodes.get(i);
+                node.id = i;
+                nodes.addAll(node.children.values());
+                if (i != 0) {
+                    transitionCount += node.children.size();
+                }
+            }
+            offsets = new int[nodes.size() + 1];
+            labels = new byte[transitionCount];
+            targets = new int[transitionCount];
+            replacements = new byte[nodes.size()][];
+            int transition = 0;
+            for (BuildNode node : nodes) {
+                replacements[node.id] = node.replacement;
+                offsets[node.id] = transition;
+                for (Map.Entry<Integer, BuildNode> child :
+                        node.children.entrySet()) {
+                    if (node.id == 0) {
+                        root[child.getKey()] = child.getValue().id;
+                    } else {
+                        labels[transition] = (byte) child.getKey().intValue();
+                        targets[transition++] = child.getValue().id;
+                    }
+                }
+            }
+            offsets[nodes.size()] = transition;
+        }
+
+        private static byte[] utf8(String s) {
+            try {
+                return s.getBytes("utf-8");
+            } catch (java.io.UnsupportedEncodingException e) {
+                throw new IllegalStateException("utf-8 not supported", e);
+            }
+        }
+
+        /**
+         * @param in the UTF-8 encoded stream in which to replace substrings.
+         * @return a new replacer sharing these rules.
+         */
+        public ByteReplacer newReplacer(InputStream in) {
+            return new ByteReplacer(in, this);
+        }
+
+        /**
+         * @return the number of bytes in the longest UTF-8 encoded target.
+         */
+        public int getMaxTargetLength() {
+            return maxTargetLength;
+        }
+
+        private int next(int state, byte b) {
+            int low = offsets[state];
+            int high = offsets[state + 1] - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int label = labels[mid] & 0xFF;
+                if (label < (b & 0xFF)) {
+                    low = mid + 1;
+                } else if (label > (b & 0xFF)) {
+                    high = mid - 1;
+                } else {
+                    return targets[mid];
+                }
+            }
+            return NONE;
+        }
+
+        private boolean isLeaf(int state) {
+            return offsets[state] == offsets[state + 1];
+        }
+
+        /**
+         * @see ByteReplacer#transform(byte[])
+         */
+        public byte[] transform(byte[] bytes) {
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            ByteBuffer out = ByteBuffer.allocate(Math.max(
+                    bytes.length, maxReplacementLength));
+            ByteArrayOutputStream result = null;
+            while (transform(in, out, true).isOverflow()) {
+                if (result == null) {
+                    result = new ByteArrayOutputStream(bytes.length * 2);
+                }
+                result.write(out.array(), 0, out.position());
+                out.clear();
+            }
+            if (result == null) {
+                byte[] direct = new byte[out.position()];
+                System.arraycopy(out.array(), 0, direct, 0, direct.length);
+                return direct;
+            }
+            result.write(out.array(), 0, out.position());
+            return result.toByteArray();
+        }
+
+        /**
+         * @see ByteReplacer#transform(ByteBuffer, ByteBuffer, boolean)
+         */
+        public CoderResult transform(ByteBuffer in, ByteBuffer out,
+                                     boolean endOfInput) {
+            final int limit = in.limit();
+            while (in.hasRemaining()) {
+                final int start = in.position();
+                // Copy the run of bytes that do not start any target
+                int pos = start;
+                if (in.hasArray()) {
+                    final byte[] bytes = in.array();
+                    final int offset = in.arrayOffset();
+                    while (pos < limit && root[bytes[offset + pos] & 0xFF] == NONE) {
+                        pos++;
+                    }
+                } else {
+                    while (pos < limit && root[in.get(pos) & 0xFF] == NONE) {
+                        pos++;
+                    }
+                }
+                if (pos > start && !copy(in, out, pos)) {
+                    return CoderResult.OVERFLOW;
+                }
+                if (pos == limit) {
+                    break;
+                }
+
+                // Find the longest target starting at pos
+                int state = root[in.get(pos) & 0xFF];
+                int match = replacements[state] == null ? NONE : state;
+                int matchEnd = pos + 1;
+                int scan = pos + 1;
+                while (!isLeaf(state)) {
+                    if (scan == limit) {
+                        if (!endOfInput) {
+                            // A longer target might continue in the next input
+                            return CoderResult.UNDERFLOW;
+                        }
+                        break;
+                    }
+                    state = next(state, in.get(scan++));
+                    if (state == NONE) {
+                        break;
+                    }
+                    if (replacements[state] != null) {
+                        match = state;
+                        matchEnd = scan;
+                    }
+                }
+                if (match == NONE) {
+                    if (!out.hasRemaining()) {
+                        return CoderResult.OVERFLOW;
+                    }
+                    out.put(in.get());
+                    continue;
+                }
+                if (out.remaining() < replacements[match].length) {
+                    return CoderResult.OVERFLOW;
+                }
+                out.put(replacements[match]);
+                in.position(matchEnd);
+            }
+            return CoderResult.UNDERFLOW;
+        }
+
+        private static boolean copy(ByteBuffer in, ByteBuffer out, int end) {
+            int length = Math.min(end - in.position(), out.remaining());
+            if (in.hasArray() && out.hasArray()) {
+                System.arraycopy(in.array(), in.arrayOffset() + in.position(),
+                                 out.array(), out.arrayOffset() + out.position(),
+                                 length);
+                in.position(in.position() + length);
+                out.position(out.position() + length);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    out.put(in.get());
+                }
+            }
+            return in.position() == end;
+        }
+    }
+
+    private static final class BuildNode {
+        private final TreeMap<Integer, BuildNode> children =
+                new TreeMap<Integer, BuildNode>();
+        private byte[] replacement = null;
+        private int id;
+    }
+}
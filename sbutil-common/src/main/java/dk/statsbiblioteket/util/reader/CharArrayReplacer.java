@@ -28,6 +28,8 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.CharBuffer;
+import java.nio.charset.CoderResult;
 import java.util.Map;
 import java.util.NoSuchElementException;
 
@@ -36,9 +38,10 @@ import java.util.NoSuchElementException;
  * The implementation maintains an array of all possible char values (65536)
  * mapped to their replacements, thereby making lookup of a single char O(1).
  * </p><p>
- * This implementation is semi-thread safe. All methods except
- * {@link #setSource(java.io.Reader)} and {@link #setSource(CircularCharBuffer)}
- * can be called safely from different threads.
+ * The transform-methods can be called safely from different threads. The
+ * stream-oriented methods are not synchronized, so each thread should use its
+ * own replacer. The rules are immutable and shared between replacers, see
+ * {@link ReplaceRules}.
  *
  * @see {@link CharReplacer}.
  */
@@ -46,14 +49,8 @@ import java.util.NoSuchElementException;
         state = QAInfo.State.IN_DEVELOPMENT,
         author = "te")
 public class CharArrayReplacer extends ReplaceReader {
-    private char[][] rules;
-
-    private ThreadLocal bufferPool = new ThreadLocal() {
-        @Override
-        protected synchronized Object initialValue() {
-            return new CircularCharBuffer(10, Integer.MAX_VALUE);
-        }
-    };
+    private final Rules compiled;
+    private final char[][] rules;
 
     /**
      * Used when the source is set to hold output chars that queues when the
@@ -75,22 +72,7 @@ public class CharArrayReplacer extends ReplaceReader {
      *                                  illegal for this {@link TextTransformer}.
      */
     public CharArrayReplacer(Reader in, Map<String, String> rules) {
-        super(in);
-
-        this.rules = new char[Character.MAX_VALUE][];
-        for (char c = 0; c < Character.MAX_VALUE; c++) {
-            this.rules[c] = new char[]{c};
-        }
-        for (Map.Entry<String, String> entry : rules.entrySet()) {
-            char[] target = entry.getKey().toCharArray();
-            char[] destination = entry.getValue().toCharArray();
-            if (target.length != 1) {
-                throw new IllegalArgumentException(String.format(
-                        "The rule '" + entry.getKey() + "' => " + entry.getValue()
-                        + "' was not single char to char array"));
-            }
-            this.rules[target[0]] = destination;
-        }
+        this(in, new Rules(rules));
     }
 
     /**
@@ -111,9 +93,10 @@ public class CharArrayReplacer extends ReplaceReader {
         this(new StringReader(""), rules);
     }
 
-    private CharArrayReplacer(char[][] rules) {
-        super(null);
-        this.rules = rules;
+    private CharArrayReplacer(Reader in, Rules compiled) {
+        super(in);
+        this.compiled = compiled;
+        this.rules = compiled.table;
     }
 
     /**
@@ -126,7 +109,14 @@ public class CharArrayReplacer extends ReplaceReader {
     @SuppressWarnings({"CloneDoesntCallSuperClone", "CloneDoesntDeclareCloneNotSupportedException"})
     @Override
     public Object clone() {
-        return new CharArrayReplacer(rules);
+        return compiled.newReplacer();
+    }
+
+    /**
+     * @return the immutable rules used by this replacer.
+     */
+    public ReplaceRules getRules() {
+        return compiled;
     }
 
     /* TextTransformer interface implementations */
@@ -139,22 +129,30 @@ public class CharArrayReplacer extends ReplaceReader {
     /**
      * Replaces the characters in the given array.
      * </p><p>
-     * This implementation uses {@link ThreadLocal} in order to allow for
-     * concurrent usage. The downside is degraded performance if it is called
-     * with a new thread every time. Fortunately this is not a very common
-     * scenario.
+     * The size of the output is calculated up front, so no shared buffers are
+     * used and concurrent calls are safe.
      *
      * @param chars the characters to replace.
      * @return the result of the replacing.
      */
     @Override
     public char[] transformToChars(char[] chars) {
-        CircularCharBuffer out = (CircularCharBuffer) bufferPool.get();
-        out.clear();
+        int length = 0;
         for (char c : chars) {
-            out.put(rules[c]);
+            length += rules[c].length;
         }
-        return out.takeAll();
+        char[] out = new char[length];
+        int pos = 0;
+        for (char c : chars) {
+            char[] replacement = rules[c];
+            if (replacement.length == 1) {
+                out[pos++] = replacement[0];
+            } else {
+                System.arraycopy(replacement, 0, out, pos, replacement.length);
+                pos += replacement.length;
+            }
+        }
+        return out;
     }
 
     @Override
@@ -173,6 +171,20 @@ public class CharArrayReplacer extends ReplaceReader {
         return out.toString();
     }
 
+    @Override
+    public CoderResult transform(CharBuffer in, CharBuffer out,
+                                 boolean endOfInput) {
+        while (in.hasRemaining()) {
+            char[] replacement = rules[in.get(in.position())];
+            if (out.remaining() < replacement.length) {
+                return CoderResult.OVERFLOW;
+            }
+            in.get();
+            out.put(replacement);
+        }
+        return CoderResult.UNDERFLOW;
+    }
+
     /* Stream oriented implementations */
 
     @Override
@@ -190,16 +202,14 @@ public class CharArrayReplacer extends ReplaceReader {
     }
 
     /**
-     * Reads the next processed char. Note that this is synchronized and that
-     * threads competing for access share the output stream with
-     * {@link #read(CircularCharBuffer, int)} and
-     * {@link #read(char[], int, int)}.
+     * Reads the next processed char. Note that this is not synchronized:
+     * Use a replacer per thread, see {@link ReplaceRules#newReplacer()}.
      *
      * @return the next char or -1 if there are no more chars available.
      * @throws java.io.IOException if an I/O error occured.
      */
     @Override
-    public synchronized int read() throws IOException {
+    public int read() throws IOException {
         fillOutBuffer(1);
         try {
             return outBuffer.take();
@@ -231,9 +241,9 @@ public class CharArrayReplacer extends ReplaceReader {
     }
 
     /**
-     * Fills transformed chars in the buffer. Note that this is synchronized and
-     * that threads competing for access share the output stream with
-     * {@link #read()} and {@link #read(char[], int, int)}.
+     * Fills transformed chars in the buffer. Note that this is not
+     * synchronized: Use a replacer per thread, see
+     * {@link ReplaceRules#newReplacer()}.
      *
      * @param cbuf   the buffer to assign shars to.
      * @param length the maximum number of chars to put in the buffer.
@@ -256,4 +266,35 @@ public class CharArrayReplacer extends ReplaceReader {
     public String toString() {
         return "CharArrayReplacer(...)";
     }
+
+    /**
+     * The compiled rules: A direct lookup table with the replacements for all
+     * possible char values.
+     */
+    static final class Rules extends ReplaceRules {
+        private final char[][] table;
+
+        Rules(Map<String, String> rules) {
+            super(rules.size());
+            table = new char[Character.MAX_VALUE + 1][];
+            for (int c = 0; c <= Character.MAX_VALUE; c++) {
+                table[c] = new char[]{(char) c};
+            }
+            for (Map.Entry<String, String> entry : rules.entrySet()) {
+                char[] target = entry.getKey().toCharArray();
+                char[] destination = entry.getValue().toCharArray();
+                if (target.length != 1) {
+                    throw new IllegalArgumentException(String.format(
+                            "The rule '" + entry.getKey() + "' => " + entry.getValue()
+                            + "' was not single char to char array"));
+                }
+                table[target[0]] = destination;
+            }
+        }
+
+        @Override
+        public ReplaceReader newReplacer() {
+            return new CharArrayReplacer(null, this);
+        }
+    }
 }
@@ -27,6 +27,8 @@ import dk.statsbiblioteket.util.qa.QAInfo;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.nio.charset.CoderResult;
 import java.util.Map;
 import java.util.NoSuchElementException;
 
@@ -37,7 +39,8 @@ import java.util.NoSuchElementException;
  * </p><p>
  * This implementation is semi-thread safe. All methods except
  * {@link #setSource(java.io.Reader)} and {@link #setSource(CircularCharBuffer)}
- * can be called safely from different threads.
+ * can be called safely from different threads. The rules are immutable and
+ * shared between clones, see {@link ReplaceRules}.
  *
  * @see {@link CharArrayReplacer}.
  */
@@ -45,7 +48,8 @@ import java.util.NoSuchElementException;
         state = QAInfo.State.IN_DEVELOPMENT,
         author = "te")
 public class CharReplacer extends ReplaceReader {
-    private char[] rules;
+    private final Rules compiled;
+    private final char[] rules;
 
     /**
      * Create a new CharReplacer based on a map with rules, consisting of
@@ -58,23 +62,7 @@ public class CharReplacer extends ReplaceReader {
      * @throws IllegalArgumentException if one or more of the reules are illegal for this {@link TextTransformer}
      */
     public CharReplacer(Reader in, Map<String, String> rules) {
-        super(in);
-
-        this.rules = new char[Character.MAX_VALUE];
-        for (char c = 0; c < Character.MAX_VALUE; c++) {
-            this.rules[c] = c;
-        }
-        for (Map.Entry<String, String> entry : rules.entrySet()) {
-            char[] target = entry.getKey().toCharArray();
-            char[] destination = entry.getValue().toCharArray();
-            if (target.length != 1 || destination.length != 1) {
-                throw new IllegalArgumentException(String.format(
-                        "The rule '" + entry.getKey() + "' => '"
-                        + entry.getValue() + "' was not single char to single char. The input had length "
-                        + entry.getKey().length()));
-            }
-            this.rules[target[0]] = destination[0];
-        }
+        this(in, new Rules(rules));
     }
 
     /**
@@ -96,9 +84,10 @@ public class CharReplacer extends ReplaceReader {
         this(new StringReader(""), rules);
     }
 
-    private CharReplacer(char[] rules) {
-        super(null);
-        this.rules = rules;
+    private CharReplacer(Reader in, Rules compiled) {
+        super(in);
+        this.compiled = compiled;
+        this.rules = compiled.table;
     }
 
     /**
@@ -111,7 +100,14 @@ public class CharReplacer extends ReplaceReader {
     @SuppressWarnings({"CloneDoesntCallSuperClone", "CloneDoesntDeclareCloneNotSupportedException"})
     @Override
     public Object clone() {
-        return new CharReplacer(rules);
+        return compiled.newReplacer();
+    }
+
+    /**
+     * @return the immutable rules used by this replacer.
+     */
+    public ReplaceRules getRules() {
+        return compiled;
     }
 
     /* TextTransformer interface implementations */
@@ -148,6 +144,28 @@ public class CharReplacer extends ReplaceReader {
         return new String(transformToChars(s.toCharArray()));
     }
 
+    @Override
+    public CoderResult transform(CharBuffer in, CharBuffer out,
+                                 boolean endOfInput) {
+        int length = Math.min(in.remaining(), out.remaining());
+        if (in.hasArray() && out.hasArray()) {
+            char[] inArray = in.array();
+            char[] outArray = out.array();
+            int inPos = in.arrayOffset() + in.position();
+            int outPos = out.arrayOffset() + out.position();
+            for (int i = 0; i < length; i++) {
+                outArray[outPos + i] = rules[inArray[inPos + i]];
+            }
+            in.position(in.position() + length);
+            out.position(out.position() + length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                out.put(rules[in.get()]);
+            }
+        }
+        return in.hasRemaining() ? CoderResult.OVERFLOW : CoderResult.UNDERFLOW;
+    }
+
     /* Stream oriented implementations */
 
     @Override
@@ -230,4 +248,35 @@ public class CharReplacer extends ReplaceReader {
     public String toString() {
         return "CharReplacer(...)";
     }
+
+    /**
+     * The compiled rules: A direct lookup table with all possible char values.
+     */
+    static final class Rules extends ReplaceRules {
+        private final char[] table;
+
+        Rules(Map<String, String> rules) {
+            super(rules.size());
+            table = new char[Character.MAX_VALUE + 1];
+            for (int c = 0; c <= Character.MAX_VALUE; c++) {
+                table[c] = (char) c;
+            }
+            for (Map.Entry<String, String> entry : rules.entrySet()) {
+                char[] target = entry.getKey().toCharArray();
+                char[] destination = entry.getValue().toCharArray();
+                if (target.length != 1 || destination.length != 1) {
+                    throw new IllegalArgumentException(String.format(
+                            "The rule '" + entry.getKey() + "' => '"
+                            + entry.getValue() + "' was not single char to single char. The input had length "
+                            + entry.getKey().length()));
+                }
+                table[target[0]] = destination[0];
+            }
+        }
+
+        @Override
+        public ReplaceReader newReplacer() {
+            return new CharReplacer(null, this);
+        }
+    }
 }
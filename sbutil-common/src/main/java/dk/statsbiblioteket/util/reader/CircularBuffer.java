@@ -0,0 +1,166 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util.reader;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+/**
+ * The operations shared by the circular buffers, regardless of element type
+ * and of where the elements are stored.
+ * </p><p>
+ * {@link OfChar} and {@link OfInt} add the element-specific operations, so
+ * that code can switch between heap-based buffers such as
+ * {@link CircularCharBuffer} and off-heap buffers such as
+ * {@link DirectCircularCharBuffer} without other changes.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public interface CircularBuffer {
+    /**
+     * @return the number of elements in the buffer.
+     */
+    int size();
+
+    /**
+     * @return true if there are no elements in the buffer.
+     */
+    boolean isEmpty();
+
+    /**
+     * Removes all elements from the buffer.
+     */
+    void clear();
+
+    /**
+     * @return the maximum number of elements the buffer can hold.
+     */
+    int getMaximumCapacity();
+
+    /**
+     * Clears the buffer. Off-heap implementations also release their memory
+     * and cannot be used afterwards.
+     */
+    void close();
+
+    /**
+     * A circular buffer of chars.
+     */
+    interface OfChar extends CircularBuffer, CharSequence {
+        /**
+         * Redeclared as CharSequence has a default isEmpty() from Java 15,
+         * which would otherwise conflict with {@link CircularBuffer#isEmpty()}.
+         *
+         * @return true if there are no chars in the buffer.
+         */
+        @Override
+        boolean isEmpty();
+
+        /**
+         * @param c the char to add.
+         * @throws ArrayIndexOutOfBoundsException if the buffer is full.
+         */
+        void put(char c);
+
+        /**
+         * @param chars  the chars to add.
+         * @param offset the start of the chars to add.
+         * @param length the number of chars to add.
+         * @throws ArrayIndexOutOfBoundsException if the buffer would exceed
+         *                                        the maximum size.
+         */
+        void put(char[] chars, int offset, int length);
+
+        /**
+         * @return the first char in the buffer, which is removed.
+         * @throws java.util.NoSuchElementException if the buffer is empty.
+         */
+        char take();
+
+        /**
+         * @return the first char in the buffer, which is removed, or -1 if
+         *         the buffer is empty.
+         */
+        int read();
+
+        /**
+         * Moves up to len chars from the buffer to cbuf.
+         *
+         * @param cbuf the destination.
+         * @param off  the start position in cbuf.
+         * @param len  the maximum number of chars to move.
+         * @return the number of moved chars or -1 if the buffer was empty.
+         */
+        int read(char[] cbuf, int off, int len);
+
+        /**
+         * @param ahead the number of chars to peek ahead.
+         * @return the char at the offset ahead.
+         * @throws ArrayIndexOutOfBoundsException if ahead is outside the
+         *                                        content.
+         */
+        char peek(int ahead);
+    }
+
+    /**
+     * A circular buffer of ints.
+     */
+    interface OfInt extends CircularBuffer {
+        /**
+         * @param value the value to add.
+         * @throws ArrayIndexOutOfBoundsException if the buffer is full.
+         */
+        void put(int value);
+
+        /**
+         * @param values the values to add.
+         * @throws ArrayIndexOutOfBoundsException if the buffer would exceed
+         *                                        the maximum size.
+         */
+        void put(int[] values);
+
+        /**
+         * @return the first value in the buffer, which is removed.
+         * @throws java.util.NoSuchElementException if the buffer is empty.
+         */
+        int take();
+
+        /**
+         * Moves up to len values from the buffer to buf.
+         *
+         * @param buf the destination.
+         * @param off the start position in buf.
+         * @param len the maximum number of values to move.
+         * @return the number of moved values or -1 if the buffer was empty.
+         */
+        int read(int[] buf, int off, int len);
+
+        /**
+         * @param ahead the number of values to peek ahead.
+         * @return the value at the offset ahead.
+         * @throws ArrayIndexOutOfBoundsException if ahead is outside the
+         *                                        content.
+         */
+        int peek(int ahead);
+    }
+}
@@ -47,7 +47,8 @@ import java.util.NoSuchElementException;
                   + "iterative usages as arrayCopy is much more efficient). "
                   + "The Reader-compatible and Query-compatible methods are "
                   + "largely untested")
-public class CircularCharBuffer implements CharSequence, Iterable<Character> {
+public class CircularCharBuffer
+        implements CircularBuffer.OfChar, Iterable<Character> {
     private static final int GROWTH_FACTOR = 2;
 
     /**
@@ -107,9 +108,28 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
      *                                        expanded, but has reached the maximum size.
      */
     public void put(char[] chars) {
-        // TODO: Consider optimizing this with arraycopy
-        for (char c : chars) {
-            put(c);
+        put(chars, 0, chars.length);
+    }
+
+    /**
+     * Puts the chars in the buffer, expanding it if necessary.
+     *
+     * @param chars  the chars to add.
+     * @param offset the start of the chars to add.
+     * @param length the number of chars to add.
+     * @throws ArrayIndexOutOfBoundsException if the buffer needs to be
+     *                                        expanded, but has reached the maximum size.
+     */
+    public void put(char[] chars, int offset, int length) {
+        while (array.length - 1 - size() < length) {
+            extendCapacity();
+        }
+        int firstPart = Math.min(length, array.length - next);
+        System.arraycopy(chars, offset, array, next, firstPart);
+        System.arraycopy(chars, offset + firstPart, array, 0, length - firstPart);
+        next += length;
+        if (next >= array.length) {
+            next -= array.length;
         }
     }
 
@@ -285,7 +305,8 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
             throw new ArrayIndexOutOfBoundsException(
                     "Requesting a peek(" + ahead + ") when the size is only " + size());
         }
-        return array[(first + ahead) % array.length];
+        int index = first + ahead;
+        return array[index < array.length ? index : index - array.length];
     }
 
     /**
@@ -324,7 +345,7 @@ public class CircularCharBuffer implements CharSequence, Iterable<Character> {
             System.arraycopy(array, first, newArray, 0, array.length - first);
             System.arraycopy(array, 0, newArray, array.length - first, next);
         } else {
-            System.arraycopy(array, 0, newArray, first, next - first);
+            System.arraycopy(array, first, newArray, 0, next - first);
         }
         int oldSize = size();
         array = newArray;
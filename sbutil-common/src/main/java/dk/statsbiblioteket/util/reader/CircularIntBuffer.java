@@ -42,7 +42,8 @@ import java.util.NoSuchElementException;
 @QAInfo(level = QAInfo.Level.NORMAL,
         state = QAInfo.State.IN_DEVELOPMENT,
         author = "te")
-public class CircularIntBuffer implements Iterable<Integer> {
+public class CircularIntBuffer
+        implements CircularBuffer.OfInt, Iterable<Integer> {
     private static final int GROWTH_FACTOR = 2;
 
     /**
@@ -270,7 +271,7 @@ public class CircularIntBuffer implements Iterable<Integer> {
             System.arraycopy(array, first, newArray, 0, array.length - first);
             System.arraycopy(array, 0, newArray, array.length - first, next);
         } else {
-            System.arraycopy(array, 0, newArray, first, next - first);
+            System.arraycopy(array, first, newArray, 0, next - first);
         }
         int oldSize = size();
         array = newArray;
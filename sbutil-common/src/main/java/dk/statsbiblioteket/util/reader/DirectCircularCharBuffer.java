@@ -0,0 +1,321 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util.reader;
+
+import dk.statsbiblioteket.util.DirectBuffers;
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.NoSuchElementException;
+
+/**
+ * A circular char buffer that stores its content outside of the heap, in a
+ * direct {@link ByteBuffer}. Large buffers do not add to garbage collection
+ * pressure, but access is slower than for the array-based
+ * {@link CircularCharBuffer} and {@link MaskedCharBuffer}.
+ * </p><p>
+ * As for MaskedCharBuffer, the capacity is always a power of two. As a direct
+ * buffer is limited to 2GB, the maximum capacity is {@link #MAX_CAPACITY}
+ * chars, regardless of the maxSize given in the constructor.
+ * </p><p>
+ * {@link #close()} frees the memory immediately, when the JVM allows it (see
+ * {@link DirectBuffers#release(ByteBuffer)}). The buffer must not be used
+ * after close.
+ * </p><p>
+ * The buffer is not thread-safe.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class DirectCircularCharBuffer implements CircularBuffer.OfChar {
+    /**
+     * The maximum number of chars in the buffer.
+     */
+    public static final int MAX_CAPACITY = 1 << 29;
+
+    private final int max;
+    private ByteBuffer memory;
+    private CharBuffer chars;
+    private int mask;
+    /* Absolute positions, see MaskedCharBuffer */
+    private int first = 0;
+    private int next = 0;
+
+    /**
+     * Creates a buffer with room for at least initialSize chars, which can
+     * grow to hold maxSize chars.
+     *
+     * @param initialSize the number of chars for the initial allocation. This
+     *                    is rounded up to the nearest power of two.
+     * @param maxSize     the maximum number of chars in the buffer. This is
+     *                    lowered to {@link #MAX_CAPACITY} if higher.
+     */
+    public DirectCircularCharBuffer(int initialSize, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException(
+                    "The maximum size must be at least 1, was " + maxSize);
+        }
+        this.max = Math.min(maxSize, MAX_CAPACITY);
+        allocate(powerOfTwo(Math.max(1, Math.min(initialSize, max))));
+    }
+
+    private static int powerOfTwo(int minimum) {
+        int power = Integer.highestOneBit(minimum);
+        return power == minimum ? power : power << 1;
+    }
+
+    private void allocate(int capacity) {
+        memory = DirectBuffers.allocate(capacity * 2);
+        chars = memory.asCharBuffer();
+        mask = capacity - 1;
+    }
+
+    public void put(char c) {
+        if (next - first == max) {
+            throw new ArrayIndexOutOfBoundsException(
+                    "The buffer is full with " + max + " chars");
+        }
+        if (next - first == chars.capacity()) {
+            ensureRoom(1);
+        }
+        chars.put(next++ & mask, c);
+    }
+
+    /**
+     * Puts the chars in the buffer, expanding it if necessary.
+     *
+     * @param chars the chars to add.
+     * @throws ArrayIndexOutOfBoundsException if the buffer would exceed the
+     *                                        maximum size.
+     */
+    public void put(char[] chars) {
+        put(chars, 0, chars.length);
+    }
+
+    public void put(char[] src, int offset, int length) {
+        ensureRoom(length);
+        int index = next & mask;
+        int firstPart = Math.min(length, chars.capacity() - index);
+        chars.position(index);
+        chars.put(src, offset, firstPart);
+        chars.position(0);
+        chars.put(src, offset + firstPart, length - firstPart);
+        next += length;
+    }
+
+    /**
+     * Puts the chars in the buffer, expanding it if necessary.
+     *
+     * @param s the chars to add.
+     * @throws ArrayIndexOutOfBoundsException if the buffer would exceed the
+     *                                        maximum size.
+     */
+    public void put(CharSequence s) {
+        int length = s.length();
+        ensureRoom(length);
+        for (int i = 0; i < length; i++) {
+            chars.put(next++ & mask, s.charAt(i));
+        }
+    }
+
+    public char take() {
+        if (first == next) {
+            throw new NoSuchElementException("take() called on empty buffer");
+        }
+        return chars.get(first++ & mask);
+    }
+
+    public int read() {
+        return first == next ? -1 : chars.get(first++ & mask);
+    }
+
+    public int read(char[] cbuf, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (first == next) {
+            return -1;
+        }
+        int moved = copy(cbuf, off, len);
+        first += moved;
+        return moved;
+    }
+
+    /**
+     * Copies chars from the start of the buffer without removing them.
+     *
+     * @param dest   the array to copy into.
+     * @param offset the start position in dest.
+     * @param length the maximum number of chars to copy.
+     * @return the number of copied chars.
+     */
+    public int copy(char[] dest, int offset, int length) {
+        int copied = Math.min(length, size());
+        int index = first & mask;
+        int firstPart = Math.min(copied, chars.capacity() - index);
+        chars.position(index);
+        chars.get(dest, offset, firstPart);
+        chars.position(0);
+        chars.get(dest, offset + firstPart, copied - firstPart);
+        return copied;
+    }
+
+    /**
+     * Removes the given number of chars from the start of the buffer.
+     *
+     * @param n the number of chars to remove.
+     * @throws IllegalArgumentException if n is negative or larger than size.
+     */
+    public void skip(int n) {
+        if (n < 0 || n > size()) {
+            throw new IllegalArgumentException(
+                    "Cannot skip " + n + " chars with size " + size());
+        }
+        first += n;
+    }
+
+    public char peek(int ahead) {
+        if (ahead < 0 || ahead >= next - first) {
+            throw new ArrayIndexOutOfBoundsException(
+                    "Requesting a peek(" + ahead + ") when the size is only "
+                    + size());
+        }
+        return chars.get((first + ahead) & mask);
+    }
+
+    @Override
+    public char charAt(int index) {
+        return peek(index);
+    }
+
+    @Override
+    public int length() {
+        return next - first;
+    }
+
+    public int size() {
+        return next - first;
+    }
+
+    public boolean isEmpty() {
+        return first == next;
+    }
+
+    /**
+     * @return the number of chars the buffer can hold without growing.
+     */
+    public int getCapacity() {
+        return chars.capacity();
+    }
+
+    public int getMaximumCapacity() {
+        return max;
+    }
+
+    /**
+     * Clears the content of the buffer. This does not de-allocate any memory.
+     */
+    public void clear() {
+        first = 0;
+        next = 0;
+    }
+
+    /**
+     * Clears the buffer and releases the off-heap memory. The buffer must not
+     * be used afterwards. Calling close more than once has no effect.
+     */
+    public void close() {
+        clear();
+        if (memory != null) {
+            ByteBuffer old = memory;
+            memory = null;
+            chars = null;
+            DirectBuffers.release(old);
+        }
+    }
+
+    /**
+     * @return the content of the buffer as a String. The buffer is cleared.
+     */
+    public String takeString() {
+        String result = toString();
+        clear();
+        return result;
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > size() || end < start) {
+            throw new ArrayIndexOutOfBoundsException(String.format(
+                    "subSequence(%d, %d) called with size %d",
+                    start, end, size()));
+        }
+        // The sub sequence is a copy, so keep it on the heap
+        MaskedCharBuffer child = new MaskedCharBuffer(end - start, max);
+        for (int i = start; i < end; i++) {
+            child.put(chars.get((first + i) & mask));
+        }
+        return child;
+    }
+
+    /**
+     * @return the content of the buffer without affecting the state.
+     */
+    @Override
+    public String toString() {
+        char[] content = new char[size()];
+        copy(content, 0, content.length);
+        return new String(content);
+    }
+
+    /**
+     * Ensures that there is room for the given number of extra chars,
+     * moving the content to a larger direct buffer if needed. The old buffer
+     * is released immediately.
+     */
+    private void ensureRoom(int extra) {
+        int size = size();
+        if (extra > max - size) {
+            throw new ArrayIndexOutOfBoundsException(String.format(
+                    "Adding %d chars to the %d chars in the buffer would "
+                    + "exceed the maximum of %d", extra, size, max));
+        }
+        if (size + extra <= chars.capacity()) {
+            return;
+        }
+        ByteBuffer oldMemory = memory;
+        CharBuffer old = chars;
+        int oldIndex = first & mask;
+        int firstPart = Math.min(size, old.capacity() - oldIndex);
+        allocate(powerOfTwo(size + extra));
+        old.limit(oldIndex + firstPart).position(oldIndex);
+        chars.put(old);
+        old.limit(size - firstPart).position(0);
+        chars.put(old);
+        chars.clear();
+        first = 0;
+        next = size;
+        DirectBuffers.release(oldMemory);
+    }
+}
@@ -0,0 +1,258 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util.reader;
+
+import dk.statsbiblioteket.util.DirectBuffers;
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.NoSuchElementException;
+
+/**
+ * A circular int buffer that stores its content outside of the heap, in a
+ * direct {@link ByteBuffer}. This is the off-heap counterpart to
+ * {@link CircularIntBuffer}, see {@link DirectCircularCharBuffer} for details.
+ * </p><p>
+ * The maximum capacity is {@link #MAX_CAPACITY} ints, regardless of the
+ * maxSize given in the constructor.
+ * </p><p>
+ * The buffer is not thread-safe.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class DirectCircularIntBuffer implements CircularBuffer.OfInt {
+    /**
+     * The maximum number of ints in the buffer.
+     */
+    public static final int MAX_CAPACITY = 1 << 28;
+
+    private final int max;
+    private ByteBuffer memory;
+    private IntBuffer ints;
+    private int mask;
+    /* Absolute positions, see MaskedCharBuffer */
+    private int first = 0;
+    private int next = 0;
+
+    /**
+     * Creates a buffer with room for at least initialSize ints, which can
+     * grow to hold maxSize ints.
+     *
+     * @param initialSize the number of ints for the initial allocation. This
+     *                    is rounded up to the nearest power of two.
+     * @param maxSize     the maximum number of ints in the buffer. This is
+     *                    lowered to {@link #MAX_CAPACITY} if higher.
+     */
+    public DirectCircularIntBuffer(int initialSize, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException(
+                    "The maximum size must be at least 1, was " + maxSize);
+        }
+        this.max = Math.min(maxSize, MAX_CAPACITY);
+        allocate(powerOfTwo(Math.max(1, Math.min(initialSize, max))));
+    }
+
+    private static int powerOfTwo(int minimum) {
+        int power = Integer.highestOneBit(minimum);
+        return power == minimum ? power : power << 1;
+    }
+
+    private void allocate(int capacity) {
+        memory = DirectBuffers.allocate(capacity * 4);
+        ints = memory.asIntBuffer();
+        mask = capacity - 1;
+    }
+
+    public void put(int value) {
+        if (next - first == max) {
+            throw new ArrayIndexOutOfBoundsException(
+                    "The buffer is full with " + max + " ints");
+        }
+        if (next - first == ints.capacity()) {
+            ensureRoom(1);
+        }
+        ints.put(next++ & mask, value);
+    }
+
+    public void put(int[] values) {
+        put(values, 0, values.length);
+    }
+
+    /**
+     * Puts the values in the buffer, expanding it if necessary.
+     *
+     * @param values the values to add.
+     * @param offset the start of the values to add.
+     * @param length the number of values to add.
+     * @throws ArrayIndexOutOfBoundsException if the buffer would exceed the
+     *                                        maximum size.
+     */
+    public void put(int[] values, int offset, int length) {
+        ensureRoom(length);
+        int index = next & mask;
+        int firstPart = Math.min(length, ints.capacity() - index);
+        ints.position(index);
+        ints.put(values, offset, firstPart);
+        ints.position(0);
+        ints.put(values, offset + firstPart, length - firstPart);
+        next += length;
+    }
+
+    public int take() {
+        if (first == next) {
+            throw new NoSuchElementException("take() called on empty buffer");
+        }
+        return ints.get(first++ & mask);
+    }
+
+    public int read(int[] buf, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (first == next) {
+            return -1;
+        }
+        int moved = copy(buf, off, len);
+        first += moved;
+        return moved;
+    }
+
+    /**
+     * Copies values from the start of the buffer without removing them.
+     *
+     * @param dest   the array to copy into.
+     * @param offset the start position in dest.
+     * @param length the maximum number of values to copy.
+     * @return the number of copied values.
+     */
+    public int copy(int[] dest, int offset, int length) {
+        int copied = Math.min(length, size());
+        int index = first & mask;
+        int firstPart = Math.min(copied, ints.capacity() - index);
+        ints.position(index);
+        ints.get(dest, offset, firstPart);
+        ints.position(0);
+        ints.get(dest, offset + firstPart, copied - firstPart);
+        return copied;
+    }
+
+    /**
+     * Constructs an int array with the content of the buffer and clears the
+     * buffer.
+     *
+     * @return the content of the buffer.
+     */
+    public int[] takeAll() {
+        int[] result = new int[size()];
+        copy(result, 0, result.length);
+        clear();
+        return result;
+    }
+
+    public int peek(int ahead) {
+        if (ahead < 0 || ahead >= next - first) {
+            throw new ArrayIndexOutOfBoundsException(
+                    "Requesting a peek(" + ahead + ") when the size is only "
+                    + size());
+        }
+        return ints.get((first + ahead) & mask);
+    }
+
+    public int size() {
+        return next - first;
+    }
+
+    public boolean isEmpty() {
+        return first == next;
+    }
+
+    /**
+     * @return the number of ints the buffer can hold without growing.
+     */
+    public int getCapacity() {
+        return ints.capacity();
+    }
+
+    public int getMaximumCapacity() {
+        return max;
+    }
+
+    /**
+     * Clears the content of the buffer. This does not de-allocate any memory.
+     */
+    public void clear() {
+        first = 0;
+        next = 0;
+    }
+
+    /**
+     * Clears the buffer and releases the off-heap memory. The buffer must not
+     * be used afterwards. Calling close more than once has no effect.
+     */
+    public void close() {
+        clear();
+        if (memory != null) {
+            ByteBuffer old = memory;
+            memory = null;
+            ints = null;
+            DirectBuffers.release(old);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DirectCircularIntBuffer(size=" + size() + ")";
+    }
+
+    /**
+     * Ensures that there is room for the given number of extra values,
+     * moving the content to a larger direct buffer if needed. The old buffer
+     * is released immediately.
+     */
+    private void ensureRoom(int extra) {
+        int size = size();
+        if (extra > max - size) {
+            throw new ArrayIndexOutOfBoundsException(String.format(
+                    "Adding %d ints to the %d ints in the buffer would "
+                    + "exceed the maximum of %d", extra, size, max));
+        }
+        if (size + extra <= ints.capacity()) {
+            return;
+        }
+        ByteBuffer oldMemory = memory;
+        IntBuffer old = ints;
+        int oldIndex = first & mask;
+        int firstPart = Math.min(size, old.capacity() - oldIndex);
+        allocate(powerOfTwo(size + extra));
+        old.limit(oldIndex + firstPart).position(oldIndex);
+        ints.put(old);
+        old.limit(size - firstPart).position(0);
+        ints.put(old);
+        ints.clear();
+        first = 0;
+        next = size;
+        DirectBuffers.release(oldMemory);
+    }
+}
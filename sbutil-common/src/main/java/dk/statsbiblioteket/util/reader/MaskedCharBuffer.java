@@ -0,0 +1,427 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util.reader;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.nio.CharBuffer;
+import java.util.NoSuchElementException;
+
+/**
+ * A circular char buffer where the capacity is always a power of two, so that
+ * positions are mapped to the internal array with a bit mask instead of
+ * modulo. This makes {@link #peek(int)} and {@link #charAt(int)} a mask and an
+ * array lookup.
+ * </p><p>
+ * Compared to {@link CircularCharBuffer}, there are no boxed Queue-methods.
+ * Bulk operations copy with at most two {@code System.arraycopy} calls,
+ * one for each side of the wrap-around point. The readable content can be
+ * accessed as a {@link CharBuffer} with {@link #asCharBuffer()}.
+ * </p><p>
+ * The buffer is not thread-safe.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class MaskedCharBuffer implements CircularBuffer.OfChar {
+    /**
+     * The largest possible capacity, as it must be a power of two.
+     */
+    public static final int MAX_CAPACITY = 1 << 30;
+
+    private final int max;
+    private char[] array;
+    private int mask;
+    /* Absolute positions. Only the lowest bits are used for indexing, so
+       overflow of the ints is harmless as long as size fits in an int */
+    private int first = 0;
+    private int next = 0;
+
+    /**
+     * Creates a buffer with room for at least initialSize chars, which can
+     * grow to hold maxSize chars.
+     *
+     * @param initialSize the number of chars for the initial allocation. This
+     *                    is rounded up to the nearest power of two.
+     * @param maxSize     the maximum number of chars in the buffer. This is
+     *                    capped at {@link #MAX_CAPACITY}.
+     */
+    public MaskedCharBuffer(int initialSize, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException(
+                    "The maximum size must be at least 1, was " + maxSize);
+        }
+        // The array length must be a power of two that can hold max chars
+        this.max = Math.min(maxSize, MAX_CAPACITY);
+        array = new char[powerOfTwo(Math.max(1, Math.min(initialSize, maxSize)))];
+        mask = array.length - 1;
+    }
+
+    private static int powerOfTwo(int minimum) {
+        if (minimum > MAX_CAPACITY) {
+            return MAX_CAPACITY;
+        }
+        int power = Integer.highestOneBit(minimum);
+        return power == minimum ? power : power << 1;
+    }
+
+    /**
+     * Puts the char in the buffer, expanding it if necessary.
+     *
+     * @param c the char to add.
+     * @throws ArrayIndexOutOfBoundsException if the buffer has reached the
+     *                                        maximum size.
+     */
+    public void put(char c) {
+        if (next - first == array.length) {
+            ensureRoom(1);
+        } else if (next - first == max) {
+            throw new ArrayIndexOutOfBoundsException(
+                    "The buffer is full with " + max + " chars");
+        }
+        array[next++ & mask] = c;
+    }
+
+    /**
+     * Puts the chars in the buffer, expanding it if necessary.
+     *
+     * @param chars the chars to add.
+     * @throws ArrayIndexOutOfBoundsException if the buffer would exceed the
+     *                                        maximum size.
+     */
+    public void put(char[] chars) {
+        put(chars, 0, chars.length);
+    }
+
+    /**
+     * Puts the chars in the buffer, expanding it if necessary.
+     *
+     * @param chars  the chars to add.
+     * @param offset the start of the chars to add.
+     * @param length the number of chars to add.
+     * @throws ArrayIndexOutOfBoundsException if the buffer would exceed the
+     *                                        maximum size.
+     */
+    public void put(char[] chars, int offset, int length) {
+        ensureRoom(length);
+        int index = next & mask;
+        int firstPart = Math.min(length, array.length - index);
+        System.arraycopy(chars, offset, array, index, firstPart);
+        System.arraycopy(chars, offset + firstPart, array, 0,
+                         length - firstPart);
+        next += length;
+    }
+
+    /**
+     * Puts the chars in the buffer, expanding it if necessary.
+     *
+     * @param s the chars to add.
+     * @throws ArrayIndexOutOfBoundsException if the buffer would exceed the
+     *                                        maximum size.
+     */
+    public void put(CharSequence s) {
+        int length = s.length();
+        ensureRoom(length);
+        if (s instanceof String) {
+            int index = next & mask;
+            int firstPart = Math.min(length, array.length - index);
+            ((String) s).getChars(0, firstPart, array, index);
+            ((String) s).getChars(firstPart, length, array, 0);
+            next += length;
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            array[next++ & mask] = s.charAt(i);
+        }
+    }
+
+    /**
+     * Retrieves and removes the first char in the buffer.
+     *
+     * @return the first char in the buffer.
+     * @throws NoSuchElementException if the buffer is empty.
+     */
+    public char take() {
+        if (first == next) {
+            throw new NoSuchElementException("take() called on empty buffer");
+        }
+        return array[first++ & mask];
+    }
+
+    /**
+     * {@link java.io.Reader}-compatible read.
+     *
+     * @return the char read or -1 if the buffer is empty.
+     */
+    public int read() {
+        return first == next ? -1 : array[first++ & mask];
+    }
+
+    /**
+     * An equivalent to {@link java.io.Reader#read(char[], int, int)}.
+     * Moves buffered chars to cbuf.
+     *
+     * @param cbuf the buffer to move into.
+     * @param off  the offset in the buffer to move into.
+     * @param len  the maximum number of chars to move.
+     * @return the number of moved chars or -1 if no chars were buffered.
+     */
+    public int read(char[] cbuf, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (first == next) {
+            return -1;
+        }
+        int moved = copy(cbuf, off, len);
+        first += moved;
+        return moved;
+    }
+
+    /**
+     * Moves as many buffered chars as possible to the target.
+     *
+     * @param target where to put the content of the buffer.
+     * @return the number of moved chars or -1 if the buffer was empty.
+     */
+    public int read(CharBuffer target) {
+        if (first == next) {
+            return -1;
+        }
+        int length = Math.min(size(), target.remaining());
+        int index = first & mask;
+        int firstPart = Math.min(length, array.length - index);
+        target.put(array, index, firstPart);
+        target.put(array, 0, length - firstPart);
+        first += length;
+        return length;
+    }
+
+    /**
+     * Copies chars from the start of the buffer without removing them.
+     *
+     * @param dest   the array to copy into.
+     * @param offset the start position in dest.
+     * @param length the maximum number of chars to copy.
+     * @return the number of copied chars.
+     */
+    public int copy(char[] dest, int offset, int length) {
+        int copied = Math.min(length, size());
+        int index = first & mask;
+        int firstPart = Math.min(copied, array.length - index);
+        System.arraycopy(array, index, dest, offset, firstPart);
+        System.arraycopy(array, 0, dest, offset + firstPart,
+                         copied - firstPart);
+        return copied;
+    }
+
+    /**
+     * Removes the given number of chars from the start of the buffer.
+     *
+     * @param n the number of chars to remove.
+     * @throws IllegalArgumentException if n is negative or larger than size.
+     */
+    public void skip(int n) {
+        if (n < 0 || n > size()) {
+            throw new IllegalArgumentException(
+                    "Cannot skip " + n + " chars with size " + size());
+        }
+        first += n;
+    }
+
+    /**
+     * Get the char {@code ahead} steps from the start of the buffer without
+     * removing it.
+     *
+     * @param ahead the number of chars to peek ahead.
+     * @return the char at the offset ahead.
+     * @throws ArrayIndexOutOfBoundsException if ahead is outside the content.
+     */
+    public char peek(int ahead) {
+        if (ahead < 0 || ahead >= next - first) {
+            throw new ArrayIndexOutOfBoundsException(
+                    "Requesting a peek(" + ahead + ") when the size is only "
+                    + size());
+        }
+        return array[(first + ahead) & mask];
+    }
+
+    @Override
+    public char charAt(int index) {
+        return peek(index);
+    }
+
+    @Override
+    public int length() {
+        return next - first;
+    }
+
+    /**
+     * @return the number of chars in the buffer.
+     */
+    public int size() {
+        return next - first;
+    }
+
+    public boolean isEmpty() {
+        return first == next;
+    }
+
+    /**
+     * @return the number of chars the buffer can hold without growing.
+     */
+    public int getCapacity() {
+        return array.length;
+    }
+
+    /**
+     * @return the maximum number of chars in the buffer.
+     */
+    public int getMaximumCapacity() {
+        return max;
+    }
+
+    /**
+     * Clears the content of the buffer. This does not de-allocate any memory.
+     */
+    public void clear() {
+        first = 0;
+        next = 0;
+    }
+
+    /**
+     * Wrapper for {@link #clear()}.
+     */
+    public void close() {
+        clear();
+    }
+
+    /**
+     * @param c         the char to locate.
+     * @param fromIndex the index to start from.
+     * @return the index of the first occurrence of c from fromIndex or -1.
+     */
+    public int indexOf(char c, int fromIndex) {
+        int size = size();
+        for (int i = Math.max(0, fromIndex); i < size; i++) {
+            if (array[(first + i) & mask] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a view of the content of the buffer as a CharBuffer backed by
+     * the internal array, with position 0 and limit {@link #size()}. If the
+     * content wraps around the end of the array, it is moved to be
+     * contiguous first.
+     * </p><p>
+     * The view is only valid until the buffer is modified. Changes to the
+     * chars in the view are visible in the buffer, but changes to the
+     * position of the view are not: Use {@link #skip(int)} to remove chars
+     * that have been processed from the view.
+     *
+     * @return a view of the content.
+     */
+    public CharBuffer asCharBuffer() {
+        int size = size();
+        int index = first & mask;
+        if (index + size > array.length) {
+            char[] linear = new char[array.length];
+            copy(linear, 0, size);
+            array = linear;
+            first = 0;
+            next = size;
+            index = 0;
+        }
+        return CharBuffer.wrap(array, index, size).slice();
+    }
+
+    /**
+     * Constructs a char array with the content of the buffer and clears the
+     * buffer.
+     *
+     * @return the content of the buffer.
+     */
+    public char[] takeAll() {
+        char[] result = new char[size()];
+        copy(result, 0, result.length);
+        clear();
+        return result;
+    }
+
+    /**
+     * @return the content of the buffer as a String. The buffer is cleared.
+     */
+    public String takeString() {
+        return new String(takeAll());
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > size() || end < start) {
+            throw new ArrayIndexOutOfBoundsException(String.format(
+                    "subSequence(%d, %d) called with size %d",
+                    start, end, size()));
+        }
+        MaskedCharBuffer child = new MaskedCharBuffer(end - start, max);
+        for (int i = start; i < end; i++) {
+            child.array[i - start] = array[(first + i) & mask];
+        }
+        child.next = end - start;
+        return child;
+    }
+
+    /**
+     * @return the content of the buffer without affecting the state.
+     */
+    @Override
+    public String toString() {
+        char[] content = new char[size()];
+        copy(content, 0, content.length);
+        return new String(content);
+    }
+
+    /**
+     * Ensures that there is room for the given number of extra chars,
+     * growing the array to a larger power of two if needed.
+     */
+    private void ensureRoom(int extra) {
+        int size = size();
+        if (extra > max - size) {
+            throw new ArrayIndexOutOfBoundsException(String.format(
+                    "Adding %d chars to the %d chars in the buffer would "
+                    + "exceed the maximum of %d", extra, size, max));
+        }
+        if (size + extra <= array.length) {
+            return;
+        }
+        char[] grown = new char[powerOfTwo(size + extra)];
+        copy(grown, 0, size);
+        array = grown;
+        mask = array.length - 1;
+        first = 0;
+        next = size;
+    }
+}
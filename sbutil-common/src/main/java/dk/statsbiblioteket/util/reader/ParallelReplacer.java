@@ -0,0 +1,290 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util.reader;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Replaces substrings in large inputs using multiple threads. The output is
+ * identical to the output from a {@link StringReplacer} with the same rules.
+ * </p><p>
+ * The input is read in batches which are split into chunks that are replaced
+ * in parallel. As a target can span a chunk boundary, the replacement of a
+ * chunk does not know where the replacement of the previous chunk ends. A
+ * chunk is therefore replaced speculatively from its start, recording the
+ * positions of the replacement steps in the first max target length chars.
+ * When the chunks are reassembled in order and the previous chunk ended at
+ * one of those positions, the speculative output is used from that position,
+ * as greedy replacement only depends on the chars from the current position.
+ * Otherwise the chunk is replaced again from the right position, which only
+ * happens when targets overlap heavily.
+ * </p><p>
+ * This class is thread-safe. Each call to a replace method uses its own
+ * thread pool.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class ParallelReplacer {
+    /**
+     * The default number of chars in a chunk.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private final StringReplacer.Rules rules;
+    private final int maxTargetLength;
+    private final int threads;
+    private final int chunkSize;
+
+    /**
+     * Creates a replacer using a thread for each available processor and
+     * {@link #DEFAULT_CHUNK_SIZE}.
+     *
+     * @param rules what to replace in the form of target=>replacement pairs.
+     */
+    public ParallelReplacer(Map<String, String> rules) {
+        this(rules, Runtime.getRuntime().availableProcessors(),
+             DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param rules     what to replace in the form of target=>replacement
+     *                  pairs.
+     * @param threads   the number of threads to use for replacement.
+     * @param chunkSize the number of chars in each chunk. This is raised to
+     *                  twice the length of the longest target if lower.
+     */
+    public ParallelReplacer(Map<String, String> rules, int threads,
+                            int chunkSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                    "The number of threads must be at least 1, was " + threads);
+        }
+        this.rules = new StringReplacer.Rules(rules);
+        maxTargetLength = this.rules.getMaxTargetLength();
+        this.threads = threads;
+        this.chunkSize = Math.max(Math.max(1, chunkSize), maxTargetLength * 2);
+    }
+
+    /**
+     * Replaces substrings in the source file and writes the result to the
+     * destination file.
+     *
+     * @param source      the file to replace in.
+     * @param destination where to write the result.
+     * @param charset     the charset for both source and destination.
+     * @throws IOException if the files could not be read or written.
+     */
+    public void replace(File source, File destination, String charset)
+            throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(source), charset);
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(destination), charset));
+            try {
+                replace(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param s the String to replace in.
+     * @return the String with all targets replaced.
+     */
+    public String replace(String s) {
+        StringWriter out = new StringWriter(s.length());
+        try {
+            replace(new StringReader(s), out);
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                    "IOException while replacing in a String", e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Replaces substrings in all content from in and writes the result to out.
+     * Neither in nor out are closed.
+     *
+     * @param in  the source to replace in.
+     * @param out where to write the result.
+     * @throws IOException if in could not be read or out could not be written.
+     */
+    public void replace(Reader in, Writer out) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            // The batch holds the chunks plus look ahead for the last chunk
+            char[] batch = new char[threads * chunkSize + maxTargetLength];
+            int length = 0;
+            boolean eof = false;
+            while (true) {
+                while (!eof && length < batch.length) {
+                    int read = in.read(batch, length, batch.length - length);
+                    if (read == -1) {
+                        eof = true;
+                    } else {
+                        length += read;
+                    }
+                }
+                // Steps before end can look ahead maxTargetLength-1 chars
+                int end = eof ? length :
+                          length - Math.max(0, maxTargetLength - 1);
+                int stop = replaceBatch(executor, batch, length, end, out);
+                System.arraycopy(batch, stop, batch, 0, length - stop);
+                length -= stop;
+                if (eof && length == 0) {
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Replaces the chars in batch from 0 to end in parallel chunks.
+     *
+     * @return the position where the replacement stopped (at least end).
+     */
+    private int replaceBatch(ExecutorService executor, final char[] batch,
+                             final int length, int end, Writer out)
+            throws IOException {
+        List<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+        for (int start = 0; start < end; start += chunkSize) {
+            final int chunkStart = start;
+            final int chunkEnd = Math.min(start + chunkSize, end);
+            futures.add(executor.submit(new Callable<Chunk>() {
+                @Override
+                public Chunk call() {
+                    return new Chunk(CharBuffer.wrap(batch, 0, length),
+                                     chunkStart, chunkEnd, true);
+                }
+            }));
+        }
+        int position = 0;
+        for (Future<Chunk> future : futures) {
+            Chunk chunk = get(future);
+            int outputStart = chunk.getOutputStart(position);
+            if (outputStart == -1) {
+                // The previous chunk ended at a position the speculative
+                // replacement skipped over
+                chunk = new Chunk(CharBuffer.wrap(batch, 0, length),
+                                  position, chunk.end, false);
+                outputStart = 0;
+            }
+            out.append(chunk.output, outputStart, chunk.output.length());
+            position = chunk.stop;
+        }
+        return Math.max(position, end);
+    }
+
+    private Chunk get(Future<Chunk> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(
+                    "Interrupted while waiting for replacement of a chunk");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(
+                    "Unexpected Exception during replacement", e.getCause());
+        }
+    }
+
+    /**
+     * The replacement of the chars from start to end.
+     */
+    private final class Chunk {
+        private final int start;
+        private final int end;
+        private final StringBuilder output;
+        private final int stop;
+        /* Step positions in the first maxTargetLength chars with the output
+           length at each position */
+        private final int[] syncPositions;
+        private final int[] syncOutputs;
+        private int syncCount = 0;
+
+        private Chunk(CharBuffer chars, int start, int end, boolean record) {
+            this.start = start;
+            this.end = end;
+            output = new StringBuilder(Math.max(0, end - start) * 11 / 10);
+            syncPositions = new int[record ? maxTargetLength : 0];
+            syncOutputs = new int[syncPositions.length];
+            int pos = start;
+            while (pos < end) {
+                if (syncCount < syncPositions.length
+                    && pos < start + maxTargetLength) {
+                    syncPositions[syncCount] = pos;
+                    syncOutputs[syncCount++] = output.length();
+                }
+                pos = rules.replaceStep(chars, pos, output);
+            }
+            stop = pos;
+        }
+
+        /**
+         * @return the start of the output for replacement from the given
+         *         position or -1 if the position is not a step position.
+         */
+        private int getOutputStart(int position) {
+            if (position == start) {
+                return 0;
+            }
+            for (int i = 0; i < syncCount; i++) {
+                if (syncPositions[i] == position) {
+                    return syncOutputs[i];
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util.reader;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.nio.charset.CoderResult;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Processes the stages from a {@link ReplacePipeline} in a single pass. Each
+ * stage transforms chars with
+ * {@link TextTransformer#transform(CharBuffer, CharBuffer, boolean)} from a
+ * buffer shared with the previous stage directly to a buffer shared with the
+ * next stage.
+ * </p><p>
+ * The buffers start at {@link #BUFFER_SIZE} and are grown if a stage needs
+ * more input or output to make progress, e.g. for a long tag in
+ * {@link dk.statsbiblioteket.util.xml.NamespaceRemover}.
+ * </p><p>
+ * The number of chars consumed and produced as well as the time spent is
+ * counted for each stage, see {@link #getStages()}.
+ * </p><p>
+ * The replacer is not thread-safe. Use {@link ReplacePipeline#newReplacer}
+ * to get a replacer for each thread.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class PipelineReplacer extends ReplaceReader {
+    /**
+     * The initial size of the buffers between the stages.
+     */
+    public static final int BUFFER_SIZE = 4096;
+
+    private final ReplacePipeline pipeline;
+    private final Stage[] stages;
+    /* buffers[i] is the input for stage i and the output from stage i-1.
+       All buffers are kept ready for writing */
+    private final CharBuffer[] buffers;
+    /* exhausted[i] is true if no more chars will be added to buffers[i] */
+    private final boolean[] exhausted;
+    private final char[] single = new char[1];
+
+    PipelineReplacer(Reader in, ReplacePipeline pipeline,
+                     TextTransformer[] transformers) {
+        super(in);
+        this.pipeline = pipeline;
+        stages = new Stage[transformers.length];
+        for (int i = 0; i < transformers.length; i++) {
+            stages[i] = new Stage(transformers[i]);
+        }
+        buffers = new CharBuffer[stages.length + 1];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = CharBuffer.allocate(BUFFER_SIZE);
+        }
+        exhausted = new boolean[buffers.length];
+    }
+
+    /**
+     * @return the stages in the order of processing, with counters.
+     */
+    public List<Stage> getStages() {
+        List<Stage> result = new ArrayList<Stage>(stages.length);
+        Collections.addAll(result, stages);
+        return Collections.unmodifiableList(result);
+    }
+
+    @Override
+    public PipelineReplacer setSource(Reader source) {
+        super.setSource(source);
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i].clear();
+            exhausted[i] = false;
+        }
+        for (Stage stage : stages) {
+            // Stages such as NamespaceRemover keep state between bulk calls
+            if (stage.transformer instanceof ReplaceReader) {
+                stage.transformer = (TextTransformer)
+                        ((ReplaceReader) stage.transformer).clone();
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public PipelineReplacer setSource(CircularCharBuffer charBuffer) {
+        return setSource(new CharSequenceReader(charBuffer));
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) == -1 ? -1 : single[0];
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        CharBuffer out = buffers[stages.length];
+        while (out.position() == 0 && !exhausted[stages.length]) {
+            pump();
+            out = buffers[stages.length];
+        }
+        if (out.position() == 0) {
+            return -1;
+        }
+        out.flip();
+        int length = Math.min(len, out.remaining());
+        out.get(cbuf, off, length);
+        out.compact();
+        return length;
+    }
+
+    @Override
+    public int read(CircularCharBuffer cbuf, int length) throws IOException {
+        char[] chars = new char[Math.min(length, BUFFER_SIZE)];
+        int total = 0;
+        while (total < length) {
+            int read = read(chars, 0, Math.min(chars.length, length - total));
+            if (read == -1) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                cbuf.put(chars[i]);
+            }
+            total += read;
+        }
+        return total == 0 && length > 0 ? -1 : total;
+    }
+
+    @Override
+    public boolean ready() throws IOException {
+        return buffers[stages.length].position() > 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        char[] chars = new char[(int) Math.min(n, BUFFER_SIZE)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(chars, 0, (int) Math.min(chars.length, n - skipped));
+            if (read == -1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    /**
+     * Reads from the source and runs all stages once.
+     *
+     * @throws IOException if the source could not be read.
+     */
+    private void pump() throws IOException {
+        CharBuffer source = buffers[0];
+        if (!exhausted[0] && source.hasRemaining()) {
+            int read = in == null ? -1 : in.read(
+                    source.array(), source.arrayOffset() + source.position(),
+                    source.remaining());
+            if (read == -1) {
+                exhausted[0] = true;
+            } else {
+                source.position(source.position() + read);
+            }
+        }
+        for (int i = 0; i < stages.length; i++) {
+            runStage(i);
+        }
+    }
+
+    private void runStage(int index) {
+        Stage stage = stages[index];
+        CharBuffer input = buffers[index];
+        CharBuffer output = buffers[index + 1];
+        input.flip();
+        int inBefore = input.remaining();
+        int outBefore = output.position();
+        long startTime = System.nanoTime();
+        CoderResult result = stage.transformer.transform(
+                input, output, exhausted[index]);
+        stage.nanoTime += System.nanoTime() - startTime;
+        stage.charsIn += inBefore - input.remaining();
+        stage.charsOut += output.position() - outBefore;
+        boolean inputEmpty = !input.hasRemaining();
+        input.compact();
+        if (result.isOverflow()) {
+            if (output.position() == outBefore) {
+                // The next piece of output does not fit
+                buffers[index + 1] = grow(output);
+            }
+            return;
+        }
+        if (exhausted[index]) {
+            exhausted[index + 1] = inputEmpty;
+        } else if (!input.hasRemaining()) {
+            // The stage needs more input than the buffer can hold
+            buffers[index] = grow(input);
+        }
+    }
+
+    private CharBuffer grow(CharBuffer buffer) {
+        CharBuffer grown = CharBuffer.allocate(buffer.capacity() * 2);
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    @Override
+    public String transform(String s) {
+        PipelineReplacer replacer = pipeline.newReplacer(new StringReader(s));
+        StringBuilder sb = new StringBuilder(s.length());
+        char[] chars = new char[BUFFER_SIZE];
+        int read;
+        try {
+            while ((read = replacer.read(chars, 0, chars.length)) != -1) {
+                sb.append(chars, 0, read);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                    "IOException while reading from a StringReader", e);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public char[] transformToChars(char c) {
+        return transform(String.valueOf(c)).toCharArray();
+    }
+
+    @Override
+    public char[] transformToChars(char[] chars) {
+        return transform(new String(chars)).toCharArray();
+    }
+
+    @Override
+    public char[] transformToCharsAllowInplace(char[] chars) {
+        return transformToChars(chars);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+        }
+    }
+
+    @SuppressWarnings({"CloneDoesntCallSuperClone", "CloneDoesntDeclareCloneNotSupportedException"})
+    @Override
+    public Object clone() {
+        return pipeline.newReplacer(null);
+    }
+
+    @Override
+    public String toString() {
+        return "PipelineReplacer(stages=" + getStages() + ")";
+    }
+
+    /**
+     * A stage in the pipeline with counters for throughput.
+     */
+    public static final class Stage {
+        private TextTransformer transformer;
+        private long charsIn = 0;
+        private long charsOut = 0;
+        private long nanoTime = 0;
+
+        private Stage(TextTransformer transformer) {
+            this.transformer = transformer;
+        }
+
+        /**
+         * @return the transformer for the stage.
+         */
+        public TextTransformer getTransformer() {
+            return transformer;
+        }
+
+        /**
+         * @return the number of chars consumed by the stage.
+         */
+        public long getCharsIn() {
+            return charsIn;
+        }
+
+        /**
+         * @return the number of chars produced by the stage.
+         */
+        public long getCharsOut() {
+            return charsOut;
+        }
+
+        /**
+         * @return the number of nanoseconds spent in the stage.
+         */
+        public long getNanoTime() {
+            return nanoTime;
+        }
+
+        /**
+         * @return the number of chars consumed per second or 0 if no time
+         *         has been spent.
+         */
+        public double getCharsPerSecond() {
+            return nanoTime == 0 ? 0 : charsIn * 1000000000.0 / nanoTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "Stage(%s, in=%d, out=%d, %d ms)",
+                    transformer.getClass().getSimpleName(), charsIn, charsOut,
+                    nanoTime / 1000000);
+        }
+    }
+}
@@ -24,6 +24,7 @@ package dk.statsbiblioteket.util.reader;
 
 import dk.statsbiblioteket.util.qa.QAInfo;
 
+import java.io.InputStream;
 import java.io.Reader;
 import java.io.StringReader;
 import java.util.HashMap;
@@ -39,14 +40,22 @@ import java.util.Map;
  * @see CharArrayReplacer
  * @see CharReplacer
  * @see StringReplacer
+ * @see AhoCorasickReplacer
+ * @see ByteReplacer
  * @see ReplaceReader
  */
 @QAInfo(level = QAInfo.Level.NORMAL,
         state = QAInfo.State.IN_DEVELOPMENT,
         author = "te")
 public class ReplaceFactory {
+    /**
+     * If there are at least this number of rules and the rules cannot be
+     * handled by a {@link CharReplacer} or a {@link CharArrayReplacer}, an
+     * {@link AhoCorasickReplacer} is used instead of a {@link StringReplacer}.
+     */
+    public static final int AHO_CORASICK_THRESHOLD = 500;
 
-    private ReplaceReader replacer;
+    private final ReplaceRules rules;
 
     /**
      * Creates a factory that generates a replacer for the given rules.
@@ -54,24 +63,25 @@ public class ReplaceFactory {
      * guaranteed to take effect: Create a new Factory instead.
      * </p><p>
      * After a factory for a given set of rules is created, getting a replacer
-     * for the rules is very cheap as internal mappings are shared between the
-     * replacer instances.
+     * for the rules is very cheap as the compiled rules are immutable and
+     * shared between the replacer instances. The factory is thread-safe.
      *
      * @param rules what to replace in the form of target=>replacement pairs.
      */
     public ReplaceFactory(Map<String, String> rules) {
-        replacer = getReplacer(rules);
+        this.rules = ReplaceRules.compile(rules);
     }
 
     /**
      * Creates a new replacer which uses the rules given in the constructor.
      * This is fast and with little memory-overhead. This is a recommended
-     * method for getting distinct replacers for the same rules.
+     * method for getting distinct replacers for the same rules, e.g. one
+     * for each thread in a worker pool.
      *
      * @return a replacer based on the rules given in the constructor.
      */
     public ReplaceReader getReplacer() {
-        return (ReplaceReader) replacer.clone();
+        return rules.newReplacer();
     }
 
     /**
@@ -83,9 +93,15 @@ public class ReplaceFactory {
      * @return a replacer based on the rules given in the constructor.
      */
     public ReplaceReader getReplacer(Reader in) {
-        ReplaceReader reader = getReplacer();
-        reader.setSource(in);
-        return reader;
+        return rules.newReplacer(in);
+    }
+
+    /**
+     * @return the immutable compiled rules shared by the replacers from this
+     *         factory.
+     */
+    public ReplaceRules getRules() {
+        return rules;
     }
 
     /**
@@ -97,28 +113,17 @@ public class ReplaceFactory {
      * <p/>
      * The factory will detect
      * the optimal strategy for character replacement based on {@code rules}
-     * and return a {@link CharArrayReplacer}, {@link CharReplacer}, or
-     * {@link StringReplacer} accordingly.
+     * and return a {@link CharArrayReplacer}, {@link CharReplacer},
+     * {@link StringReplacer} or {@link AhoCorasickReplacer} accordingly.
      *
      * @param in    the input character stream in which to replace substrings
      * @param rules what to replace in the form of target=>replacement pairs.
      * @return a replacer made from the rules.
+     * @see ReplaceRules#compile(java.util.Map)
      */
     public static ReplaceReader getReplacer(Reader in,
                                             Map<String, String> rules) {
-        boolean allTargetsSingleChars = true;
-        boolean allReplacementsSingleChars = true;
-        for (Map.Entry<String, String> entry : rules.entrySet()) {
-            allTargetsSingleChars &= entry.getKey().length() == 1;
-            allReplacementsSingleChars &= entry.getValue().length() == 1;
-        }
-        if (allTargetsSingleChars && allReplacementsSingleChars) {
-            return new CharReplacer(in, rules);
-        }
-        if (allTargetsSingleChars) {
-            return new CharArrayReplacer(in, rules);
-        }
-        return new StringReplacer(in, rules);
+        return ReplaceRules.compile(rules).newReplacer(in);
     }
 
     /**
@@ -131,8 +136,8 @@ public class ReplaceFactory {
      * <p/>
      * The factory will detect
      * the optimal strategy for character replacement based on {@code rules}
-     * and return a {@link CharArrayReplacer}, {@link CharReplacer}, or
-     * {@link StringReplacer} accordingly.
+     * and return a {@link CharArrayReplacer}, {@link CharReplacer},
+     * {@link StringReplacer} or {@link AhoCorasickReplacer} accordingly.
      *
      * @param rules what to replace in the form of target=>replacement pairs.
      * @return a replacer made from the rules.
@@ -141,6 +146,26 @@ public class ReplaceFactory {
         return getReplacer(new StringReader(""), rules);
     }
 
+    /**
+     * Creates a byte oriented replacer from the given rules, reading UTF-8
+     * encoded data from {@code in}. This avoids decoding and encoding when
+     * both input and output are UTF-8 and is the preferred replacer in that
+     * case, when {@link ByteReplacer#isExpressible(java.util.Map)} is true.
+     * <p/>
+     * Note that you can reuse the replacer with the same rules by calling
+     * {@link ByteReplacer#setSource(java.io.InputStream)}.
+     *
+     * @param in    the UTF-8 encoded stream in which to replace substrings.
+     * @param rules what to replace in the form of target=>replacement pairs.
+     * @return a byte replacer made from the rules.
+     * @throws IllegalArgumentException if the rules cannot be represented as
+     *                                  UTF-8.
+     */
+    public static ByteReplacer getByteReplacer(InputStream in,
+                                               Map<String, String> rules) {
+        return new ByteReplacer(in, rules);
+    }
+
     /**
      * Get a new {@code ReplaceReader} on {@code in} by dynamically building
      * a rule map where {@code rules[i]} maps to {@code rules[++i]}.
@@ -0,0 +1,173 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util.reader;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builder for a chain of replacement stages that are processed in a single
+ * pass by a {@link PipelineReplacer}. Instead of stacking ReplaceReaders, each
+ * with its own staging buffer, the stages share buffers: The output buffer of
+ * a stage is the input buffer of the next stage.
+ * </p><p>
+ * Consecutive rule maps where all targets are single chars are composed into
+ * a single map when added, so e.g. a char cleanup followed by a char to entity
+ * escaping becomes a single {@link CharArrayReplacer}. Other rule maps cannot
+ * be composed without changing the semantics and are kept as separate stages.
+ * </p><p>
+ * Example: {@code new ReplacePipeline().addTransformer(new
+ * NamespaceRemover(null)).addRules(entities).addRules(chars).newReplacer(in)}.
+ * </p><p>
+ * The pipeline is not thread-safe while stages are added, but
+ * {@link #newReplacer(Reader)} can be called from any number of threads once
+ * the pipeline is built.
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public class ReplacePipeline {
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * Adds a stage that replaces according to the given rules. If both these
+     * rules and the rules for the previous stage only have single char
+     * targets, the two are composed into one stage.
+     *
+     * @param rules what to replace in the form of target=>replacement pairs.
+     * @return this pipeline, for chaining.
+     */
+    public ReplacePipeline addRules(Map<String, String> rules) {
+        if (!entries.isEmpty()) {
+            Entry last = entries.get(entries.size() - 1);
+            if (last.rules != null && isCharBased(last.rules)
+                && isCharBased(rules)) {
+                entries.set(entries.size() - 1,
+                            new Entry(compose(last.rules, rules)));
+                return this;
+            }
+        }
+        entries.add(new Entry(new HashMap<String, String>(rules)));
+        return this;
+    }
+
+    /**
+     * Adds a stage that uses the given transformer. If the transformer is a
+     * {@link ReplaceReader}, each replacer from the pipeline gets its own clone.
+     * Other transformers are shared and must be stateless with regard to
+     * {@link TextTransformer#transform(java.nio.CharBuffer,
+     * java.nio.CharBuffer, boolean)}.
+     *
+     * @param transformer a transformer for the stage.
+     * @return this pipeline, for chaining.
+     */
+    public ReplacePipeline addTransformer(TextTransformer transformer) {
+        entries.add(new Entry(transformer));
+        return this;
+    }
+
+    /**
+     * @return the number of stages after composition.
+     */
+    public int getStageCount() {
+        return entries.size();
+    }
+
+    /**
+     * Creates a replacer that processes all stages. This is cheap as compiled
+     * rules are shared.
+     *
+     * @param in the character stream in which to replace substrings.
+     * @return a replacer for the pipeline.
+     */
+    public PipelineReplacer newReplacer(Reader in) {
+        TextTransformer[] transformers = new TextTransformer[entries.size()];
+        for (int i = 0; i < transformers.length; i++) {
+            transformers[i] = entries.get(i).newTransformer();
+        }
+        return new PipelineReplacer(in, this, transformers);
+    }
+
+    private static boolean isCharBased(Map<String, String> rules) {
+        for (String target : rules.keySet()) {
+            if (target.length() != 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Composes two maps with single char targets into one map that has the
+     * same effect as applying first and then second.
+     */
+    static Map<String, String> compose(Map<String, String> first,
+                                       Map<String, String> second) {
+        Map<String, String> composed = new HashMap<String, String>(second);
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : first.entrySet()) {
+            sb.setLength(0);
+            String replacement = entry.getValue();
+            for (int i = 0; i < replacement.length(); i++) {
+                String c = replacement.substring(i, i + 1);
+                String secondReplacement = second.get(c);
+                sb.append(secondReplacement == null ? c : secondReplacement);
+            }
+            composed.put(entry.getKey(), sb.toString());
+        }
+        return composed;
+    }
+
+    private static final class Entry {
+        private final Map<String, String> rules;
+        private final ReplaceRules compiled;
+        private final TextTransformer transformer;
+
+        private Entry(Map<String, String> rules) {
+            this.rules = rules;
+            compiled = ReplaceRules.compile(rules);
+            transformer = null;
+        }
+
+        private Entry(TextTransformer transformer) {
+            rules = null;
+            compiled = null;
+            this.transformer = transformer;
+        }
+
+        private TextTransformer newTransformer() {
+            if (compiled != null) {
+                return compiled.newReplacer();
+            }
+            if (transformer instanceof ReplaceReader) {
+                return (TextTransformer) ((ReplaceReader) transformer).clone();
+            }
+            return transformer;
+        }
+    }
+}
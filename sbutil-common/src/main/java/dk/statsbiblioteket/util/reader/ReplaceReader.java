@@ -28,6 +28,8 @@ import java.io.FilterReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.nio.charset.CoderResult;
 
 /**
  * Abstract class providing basic methods for making a TextTransformer that is
@@ -75,6 +77,54 @@ public abstract class ReplaceReader extends FilterReader implements TextTransfor
         return this;
     }
 
+    /**
+     * Generic implementation that waits for the full input before
+     * transforming it with {@link #transformToChars(char[])}. Sub classes
+     * should override this with an implementation that can work on partial
+     * input without allocating.
+     */
+    @Override
+    public CoderResult transform(CharBuffer in, CharBuffer out,
+                                 boolean endOfInput) {
+        if (!endOfInput) {
+            return CoderResult.UNDERFLOW;
+        }
+        char[] chars = new char[in.remaining()];
+        in.duplicate().get(chars);
+        char[] result = transformToChars(chars);
+        if (out.remaining() < result.length) {
+            return CoderResult.OVERFLOW;
+        }
+        in.position(in.limit());
+        out.put(result);
+        return CoderResult.UNDERFLOW;
+    }
+
+    /**
+     * Copies chars unchanged from the position of {@code in} up to
+     * {@code end} or until {@code out} is full.
+     *
+     * @param in  the chars to copy from.
+     * @param out the buffer to copy to.
+     * @param end the absolute position in {@code in} to copy up to, exclusive.
+     * @return true if all chars up to end were copied.
+     */
+    protected static boolean copy(CharBuffer in, CharBuffer out, int end) {
+        int length = Math.min(end - in.position(), out.remaining());
+        if (in.hasArray() && out.hasArray()) {
+            System.arraycopy(in.array(), in.arrayOffset() + in.position(),
+                             out.array(), out.arrayOffset() + out.position(),
+                             length);
+            in.position(in.position() + length);
+            out.position(out.position() + length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                out.put(in.get());
+            }
+        }
+        return in.position() == end;
+    }
+
     @Override
     public void close() throws IOException {
         super.close();
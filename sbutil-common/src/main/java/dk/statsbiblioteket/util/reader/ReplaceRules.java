@@ -0,0 +1,109 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util.reader;
+
+import dk.statsbiblioteket.util.qa.QAInfo;
+
+import java.io.Reader;
+import java.util.Map;
+
+/**
+ * An immutable, compiled set of replacement rules. The rules are compiled
+ * once and can be shared by any number of replacers in any number of threads
+ * without locking.
+ * </p><p>
+ * The replacers created by {@link #newReplacer()} are lightweight cursors
+ * holding only the state for the current source. A replacer must not be
+ * used concurrently by more than one thread, but creating a replacer per
+ * thread or per task is cheap.
+ *
+ * @see ReplaceFactory
+ */
+@QAInfo(level = QAInfo.Level.NORMAL,
+        state = QAInfo.State.IN_DEVELOPMENT,
+        author = "te")
+public abstract class ReplaceRules {
+    private final int ruleCount;
+
+    ReplaceRules(int ruleCount) {
+        this.ruleCount = ruleCount;
+    }
+
+    /**
+     * Compiles the given rules with the optimal strategy:
+     * {@link CharReplacer} if all targets and replacements are single chars,
+     * {@link CharArrayReplacer} if all targets are single chars and
+     * {@link StringReplacer} or {@link AhoCorasickReplacer} (depending on
+     * {@link ReplaceFactory#AHO_CORASICK_THRESHOLD}) for other rules.
+     *
+     * @param rules what to replace in the form of target=>replacement pairs.
+     * @return the compiled rules.
+     */
+    public static ReplaceRules compile(Map<String, String> rules) {
+        boolean allTargetsSingleChars = true;
+        boolean allReplacementsSingleChars = true;
+        for (Map.Entry<String, String> entry : rules.entrySet()) {
+            allTargetsSingleChars &= entry.getKey().length() == 1;
+            allReplacementsSingleChars &= entry.getValue().length() == 1;
+        }
+        if (allTargetsSingleChars && allReplacementsSingleChars) {
+            return new CharReplacer.Rules(rules);
+        }
+        if (allTargetsSingleChars) {
+            return new CharArrayReplacer.Rules(rules);
+        }
+        if (rules.size() >= ReplaceFactory.AHO_CORASICK_THRESHOLD) {
+            return new AhoCorasickReplacer.Rules(rules);
+        }
+        return new StringReplacer.Rules(rules);
+    }
+
+    /**
+     * Creates a new replacer using these rules. The replacer has no source and
+     * {@link ReplaceReader#setSource(java.io.Reader)} or
+     * {@link ReplaceReader#setSource(CircularCharBuffer)} must be called
+     * before reading.
+     * </p><p>
+     * This is cheap as the rules are shared and not copied.
+     *
+     * @return a new replacer based on these rules.
+     */
+    public abstract ReplaceReader newReplacer();
+
+    /**
+     * Creates a new replacer using these rules, reading from the given source.
+     *
+     * @param in the character stream in which to replace substrings.
+     * @return a new replacer based on these rules.
+     */
+    public ReplaceReader newReplacer(Reader in) {
+        return newReplacer().setSource(in);
+    }
+
+    /**
+     * @return the number of rules that these rules were compiled from.
+     */
+    public int getRuleCount() {
+        return ruleCount;
+    }
+}
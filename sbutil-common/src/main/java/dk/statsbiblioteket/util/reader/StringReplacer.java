@@ -28,6 +28,10 @@ import dk.statsbiblioteket.util.qa.QAInfo;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.nio.charset.CoderResult;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Map;
 
 /**
@@ -36,22 +40,24 @@ import java.util.Map;
  * number of replacements, as long as there is a non-trivial amount of diversity
  * among the replacements (e.g. "aaa1" => "foo", "aaa2" => "bar" etc.) will give
  * poor performance when the number of cases is in the hundreds or thousands.
+ * </p><p>
+ * The replacer is not thread-safe. The rule tree is immutable and shared
+ * between replacers, so use a replacer per thread, see {@link ReplaceRules}.
  */
 @QAInfo(level = QAInfo.Level.NORMAL,
         state = QAInfo.State.IN_DEVELOPMENT,
         author = "te")
 public class StringReplacer extends ReplaceReader {
+    private final Rules compiled;
+    private final Node tree;
+    private final int minBufferSize;
     private CircularCharBuffer readerBuffer;
     private CircularCharBuffer destinationBuffer;
     private CircularCharBuffer tempInBuffer = new CircularCharBuffer(10, Integer.MAX_VALUE);
     private CircularCharBuffer tempOutBuffer = new CircularCharBuffer(10, Integer.MAX_VALUE);
-    private Node tree = new Node();
-    private int minBufferSize = 10;
     private boolean eof = false;
     private long replacementsFromCurrentSource = 0;
 
-    private final String rulesSample;
-
     /**
      * Create a new replacer replacing substrings in the {@code in} stream
      * based on the rules defined by the {@code replacements} argument.
@@ -60,19 +66,7 @@ public class StringReplacer extends ReplaceReader {
      * @param replacements the Strings to replace, from target to destination.
      */
     public StringReplacer(Reader in, Map<String, String> replacements) {
-        super(in);
-        rulesSample = Strings.join(replacements.entrySet(), 10);
-        for (Map.Entry<String, String> replacement : replacements.entrySet()) {
-            minBufferSize = Math.max(minBufferSize, replacement.getKey().length());
-            tree.addRule(replacement.getKey(), replacement.getValue(), 0);
-        }
-        initBuffers(minBufferSize);
-    }
-
-    private void initBuffers(int minBufferSize) {
-        this.minBufferSize = minBufferSize;
-        readerBuffer = new CircularCharBuffer(minBufferSize, minBufferSize);
-        destinationBuffer = new CircularCharBuffer(minBufferSize, Integer.MAX_VALUE);
+        this(in, new Rules(replacements));
     }
 
     /**
@@ -88,11 +82,13 @@ public class StringReplacer extends ReplaceReader {
         this(new StringReader(""), replacements);
     }
 
-    private StringReplacer(int minBufferSize, Node ruleTree) {
-        super(null);
-        rulesSample = "";
-        tree = ruleTree;
-        initBuffers(minBufferSize);
+    private StringReplacer(Reader in, Rules compiled) {
+        super(in);
+        this.compiled = compiled;
+        tree = compiled.tree;
+        minBufferSize = compiled.minBufferSize;
+        readerBuffer = new CircularCharBuffer(minBufferSize, minBufferSize);
+        destinationBuffer = new CircularCharBuffer(minBufferSize, Integer.MAX_VALUE);
     }
 
     /**
@@ -106,11 +102,18 @@ public class StringReplacer extends ReplaceReader {
                        "CloneDoesntDeclareCloneNotSupportedException"})
     @Override
     public Object clone() {
-        return new StringReplacer(minBufferSize, tree);
+        return compiled.newReplacer();
+    }
+
+    /**
+     * @return the immutable rules used by this replacer.
+     */
+    public ReplaceRules getRules() {
+        return compiled;
     }
 
     @Override
-    public synchronized char[] transformToChars(char c) {
+    public char[] transformToChars(char c) {
         tempInBuffer.clear();
         tempInBuffer.put(c);
         return returnReplacement(tempInBuffer);
@@ -151,15 +154,54 @@ public class StringReplacer extends ReplaceReader {
         return transformToChars(chars);
     }
 
+    /**
+     * Replaces targets in the chars from {@code in}. As a target might
+     * continue beyond the remaining chars, processing stops with
+     * {@link CoderResult#UNDERFLOW} when there are fewer chars left than the
+     * length of the longest target and endOfInput is false.
+     * </p><p>
+     * This method does not use the state of the replacer and is thread-safe.
+     */
+    @Override
+    public CoderResult transform(CharBuffer in, CharBuffer out,
+                                 boolean endOfInput) {
+        while (in.hasRemaining()) {
+            if (tree.getChild(in.get(in.position())) == null) {
+                if (!out.hasRemaining()) {
+                    return CoderResult.OVERFLOW;
+                }
+                out.put(in.get());
+                continue;
+            }
+            if (!endOfInput && in.remaining() < compiled.maxTargetLength) {
+                return CoderResult.UNDERFLOW; // A longer target might match
+            }
+            Node replacement = tree.getReplacement(in, 0);
+            if (replacement == null) {
+                if (!out.hasRemaining()) {
+                    return CoderResult.OVERFLOW;
+                }
+                out.put(in.get());
+                continue;
+            }
+            if (out.remaining() < replacement.to.length) {
+                return CoderResult.OVERFLOW;
+            }
+            in.position(in.position() + replacement.from.length());
+            out.put(replacement.to);
+        }
+        return CoderResult.UNDERFLOW;
+    }
+
     /* Stream based */
     @Override
-    public synchronized int read(CircularCharBuffer cbuf, int length) throws IOException {
+    public int read(CircularCharBuffer cbuf, int length) throws IOException {
         ensureBuffers(length);
         return destinationBuffer.read(cbuf, length);
     }
 
     @Override
-    public synchronized int read() throws IOException {
+    public int read() throws IOException {
         ensureBuffers(1);
         if (destinationBuffer.size() > 0) {
             return destinationBuffer.take();
@@ -168,7 +210,7 @@ public class StringReplacer extends ReplaceReader {
     }
 
     @Override
-    public synchronized int read(char cbuf[], int off, int len) throws IOException {
+    public int read(char cbuf[], int off, int len) throws IOException {
         ensureBuffers(len); // Dangerous as we risk large buffer
         return destinationBuffer.read(cbuf, off, len);
     }
@@ -220,7 +262,7 @@ public class StringReplacer extends ReplaceReader {
     }
 
     @Override
-    public synchronized ReplaceReader setSource(Reader source) {
+    public ReplaceReader setSource(Reader source) {
         super.setSource(source);
         readerBuffer.clear();
         destinationBuffer.clear();
@@ -237,13 +279,37 @@ public class StringReplacer extends ReplaceReader {
         return replacementsFromCurrentSource;
     }
 
+    /**
+     * A node in the rule tree. While rules are added, children are kept in
+     * insertion order. After {@link #compact()} the children are either
+     * stored in a direct char-indexed array (the root and dense nodes) or as
+     * sorted chars with binary search (sparse nodes).
+     */
     private static class Node {
+        /**
+         * Nodes with at least this number of children are candidates for a
+         * direct char-indexed array.
+         */
+        private static final int DENSE_MIN_CHILDREN = 8;
+        /**
+         * A direct array is used if it has at most this number of slots per
+         * child.
+         */
+        private static final int DENSE_MAX_SLOTS_PER_CHILD = 4;
+        private static final Node[] NO_CHILDREN = new Node[0];
+
         public char c;
         public String from = null;
         public char[] to = null;
-        private Node[] children = new Node[0];
+        private Node[] children = NO_CHILDREN;
         private boolean root = false;
 
+        /** Sorted chars for the children in sparse mode, null before compact. */
+        private char[] childChars = null;
+        /** The children indexed by char - denseBase in dense mode. */
+        private Node[] dense = null;
+        private char denseBase = 0;
+
         /**
          * Constructor for the super-Node.
          */
@@ -255,19 +321,19 @@ public class StringReplacer extends ReplaceReader {
             this.c = c;
         }
 
-        public Node getReplacement(CircularCharBuffer buffer) {
+        public Node getReplacement(CharSequence buffer) {
             return getReplacement(buffer, 0);
         }
 
-        public Node getReplacement(CircularCharBuffer buffer, int level) {
-            if (buffer.size() <= level) {
+        public Node getReplacement(CharSequence buffer, int level) {
+            if (buffer.length() <= level) {
                 return null;
             }
             if (root) {
                 level--;
             }
-            if (buffer.size() > level + 1) {
-                char next = buffer.peek(level + 1);
+            if (buffer.length() > level + 1) {
+                char next = buffer.charAt(level + 1);
                 Node child = getChild(next);
                 if (child != null) {
                     Node subReplacement = child.getReplacement(buffer, level + 1);
@@ -276,7 +342,7 @@ public class StringReplacer extends ReplaceReader {
                     }
                 }
             }
-            return root || to == null || buffer.peek(level) != c ? null : this;
+            return root || to == null || buffer.charAt(level) != c ? null : this;
         }
 
         public void addRule(String from, String to, int level) {
@@ -311,6 +377,26 @@ public class StringReplacer extends ReplaceReader {
         }
 
         private Node getChild(char c) {
+            if (dense != null) {
+                int index = c - denseBase;
+                return index >= 0 && index < dense.length ? dense[index] : null;
+            }
+            if (childChars != null) {
+                int low = 0;
+                int high = childChars.length - 1;
+                while (low <= high) {
+                    int mid = (low + high) >>> 1;
+                    char midChar = childChars[mid];
+                    if (midChar < c) {
+                        low = mid + 1;
+                    } else if (midChar > c) {
+                        high = mid - 1;
+                    } else {
+                        return children[mid];
+                    }
+                }
+                return null;
+            }
             for (Node child : children) {
                 if (child.c == c) {
                     return child;
@@ -318,10 +404,106 @@ public class StringReplacer extends ReplaceReader {
             }
             return null;
         }
+
+        /**
+         * Switches this node and all nodes below it to the lookup structure
+         * best suited for the number and spread of their children. Must be
+         * called when all rules has been added.
+         */
+        public void compact() {
+            if (children.length == 0) {
+                return;
+            }
+            Arrays.sort(children, new Comparator<Node>() {
+                @Override
+                public int compare(Node o1, Node o2) {
+                    return o1.c - o2.c;
+                }
+            });
+            for (Node child : children) {
+                child.compact();
+            }
+            char min = children[0].c;
+            int span = children[children.length - 1].c - min + 1;
+            if (root || (children.length >= DENSE_MIN_CHILDREN
+                         && span <= children.length * DENSE_MAX_SLOTS_PER_CHILD)) {
+                denseBase = min;
+                dense = new Node[span];
+                for (Node child : children) {
+                    dense[child.c - min] = child;
+                }
+                return;
+            }
+            childChars = new char[children.length];
+            for (int i = 0; i < children.length; i++) {
+                childChars[i] = children[i].c;
+            }
+        }
     }
 
     @Override
     public String toString() {
-        return "StringReplacer(rules=" + rulesSample + ")";
+        return "StringReplacer(rules=" + compiled.rulesSample + ")";
+    }
+
+    /**
+     * The compiled rules: The root of the rule tree, which is not modified
+     * after construction.
+     */
+    static final class Rules extends ReplaceRules {
+        private final Node tree = new Node();
+        private final int minBufferSize;
+        private final int maxTargetLength;
+        private final String rulesSample;
+
+        Rules(Map<String, String> replacements) {
+            super(replacements.size());
+            rulesSample = Strings.join(replacements.entrySet(), 10);
+            int maxLength = 0;
+            for (Map.Entry<String, String> replacement : replacements.entrySet()) {
+                maxLength = Math.max(maxLength, replacement.getKey().length());
+                tree.addRule(replacement.getKey(), replacement.getValue(), 0);
+            }
+            tree.compact();
+            maxTargetLength = maxLength;
+            minBufferSize = Math.max(10, maxLength);
+        }
+
+        @Override
+        public ReplaceReader newReplacer() {
+            return new StringReplacer(null, this);
+        }
+
+        int getMaxTargetLength() {
+            return maxTargetLength;
+        }
+
+        /**
+         * Performs a single replacement step at the given position: If a
+         * target starts at the position, the replacement for the longest
+         * target is appended, else the char at the position is appended.
+         * </p><p>
+         * As the step only depends on the chars from the position, greedy
+         * replacement of any region can be resumed at any step position.
+         *
+         * @param chars the chars to replace in. Matching can look ahead up to
+         *              the limit. The position is changed by this method.
+         * @param pos   the absolute position in chars.
+         * @param out   the replacement or the char is appended to this.
+         * @return the absolute position of the next step.
+         */
+        int replaceStep(CharBuffer chars, int pos, StringBuilder out) {
+            char c = chars.get(pos);
+            if (tree.getChild(c) != null) {
+                chars.position(pos);
+                Node replacement = tree.getReplacement(chars, 0);
+                if (replacement != null) {
+                    out.append(replacement.to);
+                    return pos + replacement.from.length();
+                }
+            }
+            out.append(c);
+            return pos + 1;
+        }
     }
 }
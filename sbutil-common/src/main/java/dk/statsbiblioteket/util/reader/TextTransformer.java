@@ -23,6 +23,8 @@ import dk.statsbiblioteket.util.qa.QAInfo;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.charset.CoderResult;
 
 /**
  * Defines a text-oriented transformer (chars and Strings) with the main focus
@@ -74,6 +76,35 @@ public interface TextTransformer {
      */
     public char[] transformToCharsAllowInplace(char[] chars);
 
+    /**
+     * Transforms the chars from {@code in} and writes the result to
+     * {@code out}, without allocating intermediate buffers. The contract
+     * mirrors {@link java.nio.charset.CharsetDecoder#decode(
+     * java.nio.ByteBuffer, CharBuffer, boolean)}: Chars are consumed from the
+     * position of in and written from the position of out, and both
+     * positions are advanced accordingly.
+     * </p><p>
+     * If the transformation of some chars depends on chars that have not yet
+     * been delivered, those chars are left in {@code in} and
+     * {@link CoderResult#UNDERFLOW} is returned. The caller should then
+     * compact {@code in}, add more chars and call again. The input buffer
+     * should have room for at least twice the length of the longest target.
+     * When there is no more input, {@code endOfInput} must be true.
+     * </p><p>
+     * If {@code out} cannot hold the next piece of output,
+     * {@link CoderResult#OVERFLOW} is returned. The caller should then drain
+     * {@code out} and call again.
+     *
+     * @param in         the chars to transform.
+     * @param out        where to write the transformed chars.
+     * @param endOfInput true if there is no more input than the remaining
+     *                   chars in {@code in}.
+     * @return {@link CoderResult#UNDERFLOW} if in has been processed as far
+     *         as possible or {@link CoderResult#OVERFLOW} if out is full.
+     */
+    public CoderResult transform(CharBuffer in, CharBuffer out,
+                                 boolean endOfInput);
+
 
     /* Stream-oriented */
 
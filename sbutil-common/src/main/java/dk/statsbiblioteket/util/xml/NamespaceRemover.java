@@ -28,6 +28,7 @@ import dk.statsbiblioteket.util.reader.ReplaceReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.nio.CharBuffer;
+import java.nio.charset.CoderResult;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -42,6 +43,10 @@ import java.util.regex.Pattern;
  * If "<![[CDATA.*]]>" is encountered, it is copied verbatim.
  * if "<!--.*-->" is encountered, it is copied verbatim.
  * </p><p>
+ * Text between tags is located by scanning the internal char array for the
+ * next '<' and copied in bulk. Only tags, comments and CDATA-sections are
+ * processed further.
+ * </p><p>
  * This reader reads ahead, so the parent Reader is not guaranteed to be
  * positioned at any deterministic position during processing.
  * </p><p>
@@ -55,9 +60,20 @@ public class NamespaceRemover extends ReplaceReader {
 
     private enum Mode {PLAIN, CDATA, COMMENT}
 
-    private Mode mode = Mode.PLAIN;
-    private CircularCharBuffer inBuf = new CircularCharBuffer(100, Integer.MAX_VALUE);
-    private CircularCharBuffer outBuf = new CircularCharBuffer(100, Integer.MAX_VALUE);
+    /**
+     * The initial size of the buffers used when reading.
+     */
+    static final int BUFFER_SIZE = 8192;
+
+    /* Used by the Reader-methods */
+    private final Scanner readScanner = new Scanner();
+    /* Input from the source in read mode */
+    private CharBuffer inChars = emptyBuffer(BUFFER_SIZE);
+    /* Processed chars in read mode */
+    private CharBuffer outChars = emptyBuffer(BUFFER_SIZE);
+    private boolean eof = false;
+    /* Used by transform(CharBuffer, CharBuffer, boolean) */
+    private final Scanner bulkScanner = new Scanner();
 
     private final Matcher declarationMatcher = Pattern.compile("xmlns(\\:.+)? *\\= *\".*\"").matcher("");
 
@@ -81,6 +97,189 @@ public class NamespaceRemover extends ReplaceReader {
         return transform((CharSequence) s);
     }
 
+    /**
+     * Removes namespaces from the chars in {@code in}, with the same semantics
+     * as the Reader-methods: CDATA-sections and comments are copied verbatim
+     * and the state for these persists between calls until endOfInput has
+     * been reached. The state is separate from the state used when reading.
+     * </p><p>
+     * A tag is only processed when the terminating '>' is in {@code in} and
+     * it is written to {@code out} in one go, so both buffers must be able to
+     * hold the longest tag.
+     */
+    @Override
+    public CoderResult transform(CharBuffer in, CharBuffer out,
+                                 boolean endOfInput) {
+        CoderResult result = bulkScanner.transform(in, out, endOfInput);
+        if (result.isUnderflow() && endOfInput && !in.hasRemaining()) {
+            bulkScanner.mode = Mode.PLAIN;
+        }
+        return result;
+    }
+
+    /**
+     * The state machine for bulk processing. The state is the current mode,
+     * which is relevant when a CDATA-section or comment spans more than one
+     * call to transform.
+     */
+    private final class Scanner {
+        private Mode mode = Mode.PLAIN;
+        private final CircularCharBuffer tagBuf =
+                new CircularCharBuffer(100, Integer.MAX_VALUE);
+
+        private CoderResult transform(CharBuffer in, CharBuffer out,
+                                      boolean endOfInput) {
+            while (in.hasRemaining()) {
+                switch (mode) {
+                    case PLAIN: {
+                        if (!copy(in, out, indexOf(in, '<'))) {
+                            return CoderResult.OVERFLOW;
+                        }
+                        if (!in.hasRemaining()) {
+                            return CoderResult.UNDERFLOW;
+                        }
+                        int cdata = startsWith(in, CDATA_START);
+                        int comment = startsWith(in, COMMENT_START);
+                        if (!endOfInput && (cdata == UNDECIDED
+                                            || comment == UNDECIDED)) {
+                            return CoderResult.UNDERFLOW;
+                        }
+                        if (cdata == MATCH || comment == MATCH) {
+                            String start = cdata == MATCH ?
+                                           CDATA_START : COMMENT_START;
+                            if (out.remaining() < start.length()) {
+                                return CoderResult.OVERFLOW;
+                            }
+                            out.put(start);
+                            in.position(in.position() + start.length());
+                            mode = cdata == MATCH ? Mode.CDATA : Mode.COMMENT;
+                            continue;
+                        }
+                        int end = in.remaining() < 2
+                                  || in.get(in.position() + 1) == '!' ? -1 :
+                                  indexOf(in, '>');
+                        if (end == in.limit() && !endOfInput) {
+                            return CoderResult.UNDERFLOW;
+                        }
+                        if (end == -1 || end == in.limit()) { // Not a tag
+                            if (!out.hasRemaining()) {
+                                return CoderResult.OVERFLOW;
+                            }
+                            out.put(in.get());
+                            continue;
+                        }
+                        if (!hasNamespace(in, end)) {
+                            if (out.remaining() < end + 1 - in.position()) {
+                                return CoderResult.OVERFLOW;
+                            }
+                            copy(in, out, end + 1);
+                            break;
+                        }
+                        tagBuf.clear();
+                        removeNamespace(
+                                in.subSequence(0, end + 1 - in.position()),
+                                tagBuf);
+                        if (out.remaining() < tagBuf.size()) {
+                            return CoderResult.OVERFLOW;
+                        }
+                        tagBuf.read(out);
+                        in.position(end + 1);
+                        break;
+                    }
+                    case CDATA:
+                    case COMMENT: {
+                        String end = mode == Mode.CDATA ?
+                                     CDATA_END : COMMENT_END;
+                        if (!copy(in, out, indexOf(in, end.charAt(0)))) {
+                            return CoderResult.OVERFLOW;
+                        }
+                        if (!in.hasRemaining()) {
+                            return CoderResult.UNDERFLOW;
+                        }
+                        int match = startsWith(in, end);
+                        if (match == UNDECIDED && !endOfInput) {
+                            return CoderResult.UNDERFLOW;
+                        }
+                        int length = match == MATCH ? end.length() : 1;
+                        if (out.remaining() < length) {
+                            return CoderResult.OVERFLOW;
+                        }
+                        copy(in, out, in.position() + length);
+                        if (match == MATCH) {
+                            mode = Mode.PLAIN;
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IllegalStateException(String.format("Mode %s is unknown", mode));
+                }
+            }
+            return CoderResult.UNDERFLOW;
+        }
+    }
+
+    private static final int MATCH = 1;
+    private static final int MISMATCH = 0;
+    private static final int UNDECIDED = -1;
+
+    /**
+     * @return MATCH if the remaining chars in in starts with match, MISMATCH
+     *         if it does not and UNDECIDED if there are too few chars in in.
+     */
+    private static int startsWith(CharBuffer in, String match) {
+        int pos = in.position();
+        for (int i = 0; i < match.length(); i++) {
+            if (pos + i == in.limit()) {
+                return UNDECIDED;
+            }
+            if (in.get(pos + i) != match.charAt(i)) {
+                return MISMATCH;
+            }
+        }
+        return MATCH;
+    }
+
+    /**
+     * @return true if the chars from the position of in up to end contains a
+     *         prefix or a namespace declaration, false if they can be copied
+     *         verbatim.
+     */
+    private static boolean hasNamespace(CharBuffer in, int end) {
+        for (int i = in.position(); i < end; i++) {
+            char c = in.get(i);
+            if (c == ':' || (c == 'x' && i + 5 <= end
+                             && in.get(i + 1) == 'm' && in.get(i + 2) == 'l'
+                             && in.get(i + 3) == 'n' && in.get(i + 4) == 's')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the absolute index of the first occurrence of c in the
+     *         remaining chars in in or the limit of in if it does not occur.
+     */
+    private static int indexOf(CharBuffer in, char c) {
+        int limit = in.limit();
+        if (in.hasArray()) {
+            char[] chars = in.array();
+            int offset = in.arrayOffset();
+            for (int i = in.position(); i < limit; i++) {
+                if (chars[offset + i] == c) {
+                    return i;
+                }
+            }
+            return limit;
+        }
+        for (int i = in.position(); i < limit; i++) {
+            if (in.get(i) == c) {
+                return i;
+            }
+        }
+        return limit;
+    }
+
     @Override
     public char[] transformToChars(char c) {
         return new char[]{c};
@@ -100,43 +299,64 @@ public class NamespaceRemover extends ReplaceReader {
 
     @Override
     public NamespaceRemover setSource(Reader in) {
-        mode = Mode.PLAIN;
-        inBuf.clear();
-        outBuf.clear();
+        resetBuffers();
         this.in = in;
         return this;
     }
 
     @Override
     public NamespaceRemover setSource(CircularCharBuffer in) {
-        mode = Mode.PLAIN;
-        inBuf.clear();
-        outBuf.clear();
+        resetBuffers();
         this.in = new CharSequenceReader(in);
         return this;
     }
 
+    private void resetBuffers() {
+        readScanner.mode = Mode.PLAIN;
+        inChars.clear().flip();
+        outChars.clear().flip();
+        eof = false;
+    }
+
     @Override
     public int read() throws IOException {
         ensureLength(1);
-        return outBuf.read();
+        return outChars.hasRemaining() ? outChars.get() : -1;
     }
 
     @Override
     public int read(char cbuf[], int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
         ensureLength(len);
-        return outBuf.read(cbuf, off, len);
+        if (!outChars.hasRemaining()) {
+            return -1;
+        }
+        int length = Math.min(len, outChars.remaining());
+        outChars.get(cbuf, off, length);
+        return length;
     }
 
     @Override
     public int read(CircularCharBuffer cbuf, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
         ensureLength(len);
-        return outBuf.read(cbuf, len);
+        if (!outChars.hasRemaining()) {
+            return -1;
+        }
+        int length = Math.min(len, outChars.remaining());
+        cbuf.put(outChars.array(), outChars.arrayOffset()
+                                   + outChars.position(), length);
+        outChars.position(outChars.position() + length);
+        return length;
     }
 
     @Override
     public boolean ready() throws IOException {
-        return !outBuf.isEmpty() || in.ready();
+        return outChars.hasRemaining() || in.ready();
     }
 
     @Override
@@ -146,8 +366,13 @@ public class NamespaceRemover extends ReplaceReader {
 
     @Override
     public int read(CharBuffer target) throws IOException {
-        ensureLength(100); // No lengthy reflection on this number
-        return outBuf.read(target);
+        ensureLength(target.remaining());
+        if (!outChars.hasRemaining()) {
+            return target.hasRemaining() ? -1 : 0;
+        }
+        int length = Math.min(target.remaining(), outChars.remaining());
+        copy(outChars, target, outChars.position() + length);
+        return length;
     }
 
     @Override
@@ -155,22 +380,24 @@ public class NamespaceRemover extends ReplaceReader {
         throw new UnsupportedOperationException("No marking in NamespaceRemover");
     }
 
-    // Quite ineffective...
     @Override
     public long skip(long n) throws IOException {
         long counter = 0;
-        for (int i = 0; i < n; i++) {
-            if (read() == -1) {
+        while (counter < n) {
+            ensureLength((int) Math.min(n - counter, Integer.MAX_VALUE));
+            if (!outChars.hasRemaining()) {
                 break;
             }
-            counter++;
+            int length = (int) Math.min(n - counter, outChars.remaining());
+            outChars.position(outChars.position() + length);
+            counter += length;
         }
         return counter;
     }
 
     @Override
     public void reset() throws IOException {
-        outBuf.clear();
+        outChars.clear().flip();
         in.reset();
     }
 
@@ -179,7 +406,7 @@ public class NamespaceRemover extends ReplaceReader {
         if (in != null) {
             in.close();
         }
-        outBuf.clear();
+        outChars.clear().flip();
     }
 
     @SuppressWarnings({"CloneDoesntCallSuperClone", "CloneDoesntDeclareCloneNotSupportedException"})
@@ -192,92 +419,72 @@ public class NamespaceRemover extends ReplaceReader {
     private static final String CDATA_END = "]]>";
     private static final String COMMENT_START = "<!--";
     private static final String COMMENT_END = "-->";
-    private static final String TAG_START = "<";
-    private static final String TAG_END = ">";
-    private static final int LONGEST = CDATA_START.length();
 
     /**
      * Attempts to ensure that there is at least length characters in the out
-     * buffer. This might involve reading far ahead in the in buffer.
+     * buffer, limited by the capacity of the buffer. Text between tags is
+     * copied in bulk by the {@link Scanner}. The buffers grow if a single tag
+     * does not fit.
      *
      * @param length the number of characters that should ideally be in the
      *               out buffer after processing.
      * @throws IOException if an I/O error occured in the parent Reader.
      */
     private void ensureLength(int length) throws IOException {
-        while (outBuf.size() < length) {
-            ensureInLength(LONGEST);
-            if (inBuf.isEmpty()) {
+        while (outChars.remaining() < length
+               && outChars.remaining() < outChars.capacity()) {
+            if (eof && !inChars.hasRemaining()) {
                 return;
             }
-            switch (mode) {
-                case PLAIN: {
-                    // CDATA
-                    if (inStartsWith(CDATA_START)) {
-                        mode = Mode.CDATA;
-                        for (int i = 0; i < CDATA_START.length(); i++) {
-                            outBuf.put((char) inBuf.read());
-                        }
-                        continue;
-                    }
-                    // Comment
-                    if (inStartsWith(COMMENT_START)) {
-                        mode = Mode.COMMENT;
-                        for (int i = 0; i < COMMENT_START.length(); i++) {
-                            outBuf.put((char) inBuf.read());
-                        }
-                        continue;
-                    }
-                    // Tag
-                    if (inStartsWith(TAG_START)) {
-                        handleTag();
-                        continue;
-                    }
-                    // skip one char ahead
-                    outBuf.put((char) inBuf.read());
-                    break;
-                }
-                case CDATA: { // Finish CDATA: Look for "]]>"
-                    if (inStartsWith(CDATA_END)) {
-                        mode = Mode.PLAIN;
-                        for (int i = 0; i < CDATA_END.length(); i++) {
-                            outBuf.put((char) inBuf.read());
-                        }
-                        continue;
-                    }
-                    outBuf.put((char) inBuf.read());
-                    break;
+            outChars.compact();
+            CoderResult result = readScanner.transform(inChars, outChars, eof);
+            outChars.flip();
+            if (result.isOverflow()) {
+                if (outChars.hasRemaining()) {
+                    return; // Deliver what we have before processing more
                 }
-                case COMMENT: { // Finish Comment: Look for "-->"
-                    if (inStartsWith(COMMENT_END)) {
-                        mode = Mode.PLAIN;
-                        for (int i = 0; i < COMMENT_END.length(); i++) {
-                            outBuf.put((char) inBuf.read());
-                        }
-                        continue;
-                    }
-                    outBuf.put((char) inBuf.read());
-                    break;
-                }
-                default:
-                    throw new IllegalStateException(String.format("Mode %s is unknown", mode));
+                outChars = grow(outChars); // The next tag is too large
+            } else if (!eof) {
+                fill();
             }
         }
     }
 
-    // Guarantees that at least one character is copied from inBuf to outBuf
-    private void handleTag() throws IOException {
-        ensureInLength(2);
-        if (inBuf.length() < 2 || inBuf.charAt(1) == '!' || !ensureEnd(TAG_END)) {
-            outBuf.put((char) inBuf.read()); // No tag-end found
-            return;
+    /**
+     * Reads as many chars as possible from the source into the in buffer with
+     * a single read, growing the buffer if it is full.
+     */
+    private void fill() throws IOException {
+        if (inChars.remaining() == inChars.capacity()) {
+            inChars = grow(inChars); // No tag-end in the full buffer
         }
-        // We now have <baz:foo xmlns="..." xmlns:bar="..." zoo="...">
-        //          or </baz:foo>
-        // Extract the tag
-        char[] cbuf = new char[inBuf.indexOf(TAG_END) + TAG_END.length()];
-        inBuf.read(cbuf, 0, cbuf.length);
-        removeNamespace(new String(cbuf), outBuf);
+        inChars.compact();
+        int read = in.read(inChars.array(), inChars.arrayOffset()
+                                            + inChars.position(),
+                           inChars.remaining());
+        if (read == -1) {
+            eof = true;
+        } else {
+            inChars.position(inChars.position() + read);
+        }
+        inChars.flip();
+    }
+
+    private static CharBuffer emptyBuffer(int capacity) {
+        CharBuffer buffer = CharBuffer.allocate(capacity);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return a buffer in read mode with twice the capacity and the remaining
+     *         content of buffer.
+     */
+    private static CharBuffer grow(CharBuffer buffer) {
+        CharBuffer grown = CharBuffer.allocate(buffer.capacity() * 2);
+        grown.put(buffer);
+        grown.flip();
+        return grown;
     }
 
     protected void removeNamespace(CharSequence tag, CircularCharBuffer out) {
@@ -295,69 +502,9 @@ public class NamespaceRemover extends ReplaceReader {
     }
 
 
-    /**
-     * Tries to fill the end buffer until it contains endStr. The method reads
-     * through
-     *
-     * @param endStr the String that in should contain.
-     * @return true if in contains endStr after an attempt has been made.
-     * @throws java.io.IOException if an I/O error occured in parent.
-     */
-    private boolean ensureEnd(String endStr) throws IOException {
-        int pos = 0;
-        do {
-            if (inBuf.indexOf(endStr, pos) != -1) {
-                return true;
-            }
-            pos = inBuf.size();
-        } while (ensureInLength(inBuf.size() * 2 + endStr.length()) != -1);
-        return false;
-    }
-
-    /**
-     * Looks in the in buffer and returns true if the in buffer starts with the
-     * given match.
-     *
-     * @param match the String to search for.
-     * @return true if the in buffer starts with the given match.
-     */
-    private boolean inStartsWith(String match) {
-        if (inBuf.size() < match.length()) {
-            return false;
-        }
-        for (int i = 0; i < match.length(); i++) {
-            if (match.charAt(i) != inBuf.charAt(i)) {
-                return false;
-            }
-        }
-        return true;
-    }
-
-    /**
-     * Attempts to ensure that there is at least length characters in the in
-     * buffer.
-     *
-     * @param length the number of characters that should ideally be in the
-     *               in buffer after processing.
-     * @return the number of chars read or -1 if parent has reached EOF.
-     * @throws IOException if an I/O error occured in the parent Reader.
-     */
-    private int ensureInLength(int length) throws IOException {
-        int count = 0;
-        while (inBuf.size() < length) {
-            int next = in.read();
-            if (next == -1) {
-                return count == 0 ? -1 : count;
-            }
-            inBuf.put((char) next);
-            count++;
-        }
-        return count;
-    }
-
     @Override
     public String toString() {
-        return "NamespaceRemover(mode=" + mode + ", ..., ..., inBuf=" + inBuf
+        return "NamespaceRemover(mode=" + readScanner.mode + ", ..., ..., inChars=" + inChars
                + ", declarationMatcher=" + declarationMatcher + ", ..., prefixMatcher=" + prefixMatcher + ")";
     }
 }
@@ -27,7 +27,13 @@ import junit.framework.TestCase;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
 
 /**
  * Created by IntelliJ IDEA.
@@ -132,4 +138,64 @@ public class ChecksumsTest extends TestCase {
         byte[] bb = Checksums.sha1(new File(testFile1));
         assertTrue(Arrays.equals(b, bb));
     }
+
+    public void testDigests() throws Exception {
+        Random random = new Random(87);
+        // Sizes around the chunk size exercise both the serial and the parallel path
+        for (int size : new int[]{0, 1, 1000, Checksums.CHUNK_SIZE, Checksums.CHUNK_SIZE * 2 + 17}) {
+            File file = File.createTempFile("checksums", ".bin");
+            try {
+                byte[] content = new byte[size];
+                random.nextBytes(content);
+                FileOutputStream out = new FileOutputStream(file);
+                out.write(content);
+                out.close();
+
+                Map<String, byte[]> digests = Checksums.digests(file, "MD5", Checksums.CRC32, "SHA-1");
+                assertEquals("The algorithms should be in the given order",
+                             Arrays.asList("MD5", Checksums.CRC32, "SHA-1"),
+                             new ArrayList<String>(digests.keySet()));
+                assertTrue("Size " + size + ": MD5 should match",
+                           Arrays.equals(Checksums.md5(file), digests.get("MD5")));
+                assertTrue("Size " + size + ": SHA-1 should match",
+                           Arrays.equals(Checksums.sha1(file), digests.get("SHA-1")));
+                CRC32 crc = new CRC32();
+                crc.update(content);
+                assertEquals("Size " + size + ": CRC32 should match",
+                             Long.toHexString(crc.getValue()),
+                             Long.toHexString(new BigInteger(1, digests.get(Checksums.CRC32)).longValue()));
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    public void testManifest() throws Exception {
+        File folder = new File(tmpDir, "manifest");
+        if (folder.exists()) {
+            Files.delete(folder);
+        }
+        new File(folder, "sub/deeper").mkdirs();
+        Files.saveString("a", new File(folder, "a.txt"));
+        Files.saveString("b", new File(folder, "sub/b.txt"));
+        Files.saveString("c", new File(folder, "sub/deeper/c.txt"));
+        try {
+            Map<String, Map<String, byte[]>> manifest = Checksums.manifest(folder, 2, "MD5", "SHA-1");
+            assertEquals("All files should be in the manifest in sorted order",
+                         Arrays.asList("a.txt", "sub/b.txt", "sub/deeper/c.txt"),
+                         new ArrayList<String>(manifest.keySet()));
+            assertTrue("The MD5 for c.txt should be right",
+                       Arrays.equals(Checksums.md5("c"), manifest.get("sub/deeper/c.txt").get("MD5")));
+            assertTrue("The SHA-1 for a.txt should be right",
+                       Arrays.equals(Checksums.sha1("a"), manifest.get("a.txt").get("SHA-1")));
+            try {
+                Checksums.manifest(folder, 2, "NoSuchDigest");
+                fail("An unknown algorithm should fail");
+            } catch (NoSuchAlgorithmException e) {
+                // Expected
+            }
+        } finally {
+            Files.delete(folder);
+        }
+    }
 }
@@ -0,0 +1,332 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloader Tester. Uses an embedded HTTP server that supports range
+ * requests and can drop connections.
+ */
+@SuppressWarnings({"DuplicateStringLiteralInspection"})
+public class DownloaderTest extends TestCase {
+    private static final String ETAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Sat, 18 Oct 2014 10:00:00 GMT";
+
+    private HttpServer server;
+    private byte[] content;
+    private String etag = ETAG;
+    private boolean ranges = true;
+    private boolean head = true;
+    /* Send Content-Length, else the responses are chunked */
+    private boolean lengths = true;
+    /* Drop the connection after this many bytes for the next failures requests */
+    private final AtomicInteger failures = new AtomicInteger(0);
+    private int failAfter = Integer.MAX_VALUE;
+    private final List<String> requestedRanges = Collections.synchronizedList(new ArrayList<String>());
+    private File folder;
+    private URL url;
+
+    public DownloaderTest(String name) {
+        super(name);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        content = new byte[3 * 1024 * 1024 + 17];
+        new Random(87).nextBytes(content);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/data", new RangeHandler());
+        server.start();
+        url = new URL("http://localhost:" + server.getAddress().getPort() + "/data/resource.bin");
+        folder = new File(System.getProperty("java.io.tmpdir"), "downloadertest");
+        if (folder.exists()) {
+            Files.delete(folder);
+        }
+        assertTrue(folder.mkdirs());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        server.stop(0);
+        if (folder.exists()) {
+            Files.delete(folder);
+        }
+    }
+
+    public static Test suite() {
+        return new TestSuite(DownloaderTest.class);
+    }
+
+    public void testDownload() throws Exception {
+        File target = new Downloader(url, folder).setDigest("MD5", md5(content)).download();
+        assertEquals("The target should be named after the url", "resource.bin", target.getName());
+        assertTrue("The content should be downloaded", Arrays.equals(content, load(target)));
+        assertFalse("The part file should be removed", new File(target.getPath() + Downloader.PART_SUFFIX).exists());
+        try {
+            new Downloader(url, target).download();
+            fail("Downloading to an existing file without overwrite should fail");
+        } catch (FileAlreadyExistsException e) {
+            // Expected
+        }
+        new Downloader(url, target).setOverwrite(true).download();
+    }
+
+    public void testResume() throws Exception {
+        File target = new File(folder, "resumed.bin");
+        failures.set(1);
+        failAfter = 1024 * 1024;
+        try {
+            new Downloader(url, target).setRetries(0).download();
+            fail("The download should fail when the connection is dropped without retries");
+        } catch (IOException e) {
+            // Expected
+        }
+        File part = new File(target.getPath() + Downloader.PART_SUFFIX);
+        assertTrue("The part file should be kept", part.exists());
+        assertTrue("The state file should be kept",
+                   new File(target.getPath() + Downloader.STATE_SUFFIX).exists());
+
+        requestedRanges.clear();
+        new Downloader(url, target).setDigest("MD5", md5(content)).download();
+        assertTrue("The resumed content should be correct", Arrays.equals(content, load(target)));
+        assertEquals("There should be a single range request", 1, requestedRanges.size());
+        assertTrue("The download should resume after the received bytes, but requested "
+                   + requestedRanges.get(0), !requestedRanges.get(0).startsWith("bytes=0-"));
+    }
+
+    public void testRetries() throws Exception {
+        failures.set(20);
+        failAfter = 300 * 1024;
+        File target = new Downloader(url, folder).setRetries(20).setDigest("SHA-1", sha1(content)).download();
+        assertTrue("The content should survive dropped connections",
+                   Arrays.equals(content, load(target)));
+    }
+
+    public void testConcurrentRanges() throws Exception {
+        File target = new Downloader(url, folder).setConnections(3).setDigest("MD5", md5(content)).download();
+        assertTrue("The ranged content should be correct", Arrays.equals(content, load(target)));
+        assertEquals("There should be a request for each range", 3, requestedRanges.size());
+    }
+
+    public void testConcurrentResume() throws Exception {
+        failures.set(3);
+        failAfter = 100 * 1024;
+        File target = new File(folder, "concurrent.bin");
+        try {
+            new Downloader(url, target).setConnections(3).setRetries(0).download();
+            fail("The download should fail when the connections are dropped without retries");
+        } catch (IOException e) {
+            // Expected
+        }
+        new Downloader(url, target).setConnections(3).setDigest("MD5", md5(content)).download();
+        assertTrue("The resumed ranges should be correct", Arrays.equals(content, load(target)));
+    }
+
+    public void testChangedResource() throws Exception {
+        File target = new File(folder, "changed.bin");
+        failures.set(1);
+        failAfter = 1024 * 1024;
+        try {
+            new Downloader(url, target).setRetries(0).download();
+            fail("The download should fail when the connection is dropped without retries");
+        } catch (IOException e) {
+            // Expected
+        }
+        content[0]++;
+        content[content.length - 1]++;
+        etag = "\"v2\"";
+        requestedRanges.clear();
+        new Downloader(url, target).download();
+        assertTrue("The changed resource should be downloaded from the start",
+                   Arrays.equals(content, load(target)));
+        assertEquals("There should be no range requests", 0, requestedRanges.size());
+    }
+
+    public void testNoRanges() throws Exception {
+        ranges = false;
+        failures.set(2);
+        failAfter = 1024;
+        File target = new Downloader(url, folder).setRetries(2).setConnections(4).download();
+        assertTrue("Downloading without ranges should start over",
+                   Arrays.equals(content, load(target)));
+        assertEquals("There should be no range requests", 0, requestedRanges.size());
+    }
+
+    public void testHeadRejected() throws Exception {
+        head = false;
+        failures.set(1);
+        failAfter = 1024;
+        File target = new Downloader(url, folder).setConnections(3).setRetries(1)
+                .setDigest("MD5", md5(content)).download();
+        assertTrue("The content should be downloaded with a plain GET", Arrays.equals(content, load(target)));
+        assertEquals("There should be no range requests", 0, requestedRanges.size());
+    }
+
+    public void testUnknownLengthRetry() throws Exception {
+        lengths = false;
+        failures.set(1);
+        failAfter = 1024 * 1024;
+        File target = new Downloader(url, folder).setRetries(1).setDigest("MD5", md5(content)).download();
+        assertTrue("The retry should start over", Arrays.equals(content, load(target)));
+        assertEquals("There should be no range requests without a known length", 0, requestedRanges.size());
+    }
+
+    public void testWeakETagResume() throws Exception {
+        etag = "W/\"v1\"";
+        File target = new File(folder, "weak.bin");
+        failures.set(1);
+        failAfter = 1024 * 1024;
+        try {
+            new Downloader(url, target).setRetries(0).download();
+            fail("The download should fail when the connection is dropped without retries");
+        } catch (IOException e) {
+            // Expected
+        }
+        requestedRanges.clear();
+        new Downloader(url, target).setDigest("MD5", md5(content)).download();
+        assertTrue("The resumed content should be correct", Arrays.equals(content, load(target)));
+        assertEquals("The resume should use Last-Modified for If-Range", 1, requestedRanges.size());
+    }
+
+    public void testDigestMismatch() throws Exception {
+        File target = new File(folder, "mismatch.bin");
+        try {
+            new Downloader(url, target).setDigest("MD5", new byte[16]).download();
+            fail("A wrong digest should fail the download");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertFalse("The target should not exist", target.exists());
+        assertFalse("The part file should be removed", new File(target.getPath() + Downloader.PART_SUFFIX).exists());
+    }
+
+    public void testFileURL() throws Exception {
+        File source = new File(folder, "source.bin");
+        Files.saveString("Hello world", source);
+        File target = Files.download(source.toURI().toURL(), new File(folder, "copy.bin"), false,
+                                     "MD5", md5("Hello world".getBytes("utf-8")));
+        assertEquals("Hello world", Files.loadString(target));
+    }
+
+    private byte[] load(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+        Streams.pipe(new FileInputStream(file), out);
+        return out.toByteArray();
+    }
+
+    private byte[] md5(byte[] bytes) throws Exception {
+        return MessageDigest.getInstance("MD5").digest(bytes);
+    }
+
+    private byte[] sha1(byte[] bytes) throws Exception {
+        return MessageDigest.getInstance("SHA-1").digest(bytes);
+    }
+
+    /**
+     * Serves the content with support for HEAD, Range and If-Range.
+     */
+    private class RangeHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            boolean dropped = false;
+            try {
+                byte[] data = content;
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+                if (ranges) {
+                    exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+                }
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    if (!head) {
+                        exchange.sendResponseHeaders(405, -1);
+                        return;
+                    }
+                    if (lengths) {
+                        exchange.getResponseHeaders().set("Content-Length", Integer.toString(data.length));
+                    }
+                    exchange.sendResponseHeaders(200, -1);
+                    return;
+                }
+                int start = 0;
+                int end = data.length;
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+                int code = 200;
+                // Weak ETags never match If-Range
+                boolean unchanged = ifRange == null || ifRange.equals(LAST_MODIFIED)
+                                    || (ifRange.equals(etag) && !etag.startsWith("W/"));
+                if (ranges && range != null && unchanged) {
+                    requestedRanges.add(range);
+                    String[] tokens = range.substring("bytes=".length()).split("-");
+                    start = Integer.parseInt(tokens[0]);
+                    if (tokens.length > 1 && !"".equals(tokens[1])) {
+                        end = Integer.parseInt(tokens[1]) + 1;
+                    }
+                    exchange.getResponseHeaders().set(
+                            "Content-Range", "bytes " + start + "-" + (end - 1) + "/" + data.length);
+                    code = 206;
+                }
+                exchange.sendResponseHeaders(code, lengths ? end - start : 0);
+                int length = end - start;
+                if (failures.getAndDecrement() > 0) {
+                    length = Math.min(length, failAfter);
+                }
+                OutputStream out = exchange.getResponseBody();
+                out.write(data, start, length);
+                out.flush();
+                if (!lengths && length < end - start) {
+                    // Closing would end the chunked response cleanly. Let the server abort the connection
+                    dropped = true;
+                    throw new IOException("Dropping the connection after " + length + " bytes");
+                }
+            } finally {
+                if (!dropped) {
+                    exchange.close();
+                }
+            }
+        }
+    }
+}
@@ -30,6 +30,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URL;
 import java.util.Arrays;
+import java.util.Random;
 
 @SuppressWarnings({"DuplicateStringLiteralInspection"})
 @QAInfo(state = QAInfo.State.QA_NEEDED,
@@ -249,6 +250,51 @@ public class FilesTest extends TestCase {
                    subFile1.exists());
     }
 
+    public void testParallelCopy() throws Exception {
+        File source = new File(tmpDir, "parallelSource");
+        Random random = new Random(87);
+        for (int i = 0; i < 20; i++) {
+            File folder = new File(source, "folder" + (i % 4) + (i % 2 == 0 ? "" : "/deeper"));
+            folder.mkdirs();
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(100000);
+            for (int j = 0; j < length; j++) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            Files.saveString(sb.toString(), new File(folder, "file" + i));
+        }
+        File destination = new File(tmpDir, "parallelDestination");
+        Files.copy(source, destination, false, 4);
+        assertEqualTrees(source, destination);
+
+        // As the destination exists, the source should be copied into it
+        Files.copy(source, destination, false, 4);
+        assertEqualTrees(source, new File(destination, source.getName()));
+        try {
+            Files.copy(source, destination, false, 4);
+            fail("Copying to existing files with overwrite=false should fail");
+        } catch (FileAlreadyExistsException e) {
+            // Expected
+        }
+        Files.copy(source, destination, true, 4);
+    }
+
+    private void assertEqualTrees(File expected, File actual) throws Exception {
+        String[] children = expected.list();
+        Arrays.sort(children);
+        for (String child : children) {
+            File e = new File(expected, child);
+            File a = new File(actual, child);
+            if (e.isDirectory()) {
+                assertTrue("The folder '" + a + "' should exist", a.isDirectory());
+                assertEqualTrees(e, a);
+            } else {
+                assertEquals("The content of '" + a + "' should be as the source",
+                             Files.loadString(e), Files.loadString(a));
+            }
+        }
+    }
+
     public void testCopyFileOverwrite() throws Exception {
         try {
             Files.copy(subFile1, subFile2, false);
@@ -0,0 +1,128 @@
+package dk.statsbiblioteket.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+@SuppressWarnings({"DuplicateStringLiteralInspection"})
+public class LineIndexTest extends TestCase {
+    private File file;
+
+    public LineIndexTest(String name) {
+        super(name);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("lineindex", ".txt");
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        file.delete();
+        LineIndex.getIndexFile(file).delete();
+    }
+
+    public static Test suite() {
+        return new TestSuite(LineIndexTest.class);
+    }
+
+    public void testSeekToLine() throws Exception {
+        append(0, 100, true);
+        for (int interval : new int[]{1, 3, 10, 1000}) {
+            LineIndex.getIndexFile(file).delete();
+            LineReader reader = new LineReader(file, "r");
+            reader.setLineIndex(new LineIndex(file, interval));
+            for (int line : new int[]{0, 1, 2, 3, 9, 10, 11, 57, 99}) {
+                reader.seekToLine(line);
+                assertEquals("Line " + line + " with interval " + interval
+                             + " should be reached",
+                             "Line " + line, reader.readLine());
+            }
+            reader.seekToLine(100);
+            assertTrue("The line after the last line should be EOF",
+                       reader.eof());
+            try {
+                reader.seekToLine(101);
+                fail("Seeking past the last line should fail");
+            } catch (EOFException e) {
+                // Expected
+            }
+            reader.close();
+        }
+    }
+
+    public void testPersistence() throws Exception {
+        append(0, 50, true);
+        LineIndex index = new LineIndex(file, 7);
+        assertTrue("The first update should change the index", index.update());
+        assertTrue("The index should be stored",
+                   LineIndex.getIndexFile(file).exists());
+        assertEquals(50, index.getLineCount());
+
+        LineIndex loaded = new LineIndex(file, 7);
+        assertFalse("The loaded index should be up to date", loaded.update());
+        assertEquals(50, loaded.getLineCount());
+        assertEquals(index.getCheckpointOffset(49),
+                     loaded.getCheckpointOffset(49));
+    }
+
+    public void testIncremental() throws Exception {
+        append(0, 10, false); // The last line is not complete
+        LineReader reader = new LineReader(file, "r");
+        reader.setLineIndex(new LineIndex(file, 4));
+        reader.seekToLine(9);
+        assertEquals("Line 9", reader.readLine());
+        reader.close();
+
+        // Completes line 9 and adds more lines
+        OutputStream out = new FileOutputStream(file, true);
+        out.write("0\n".getBytes("utf-8"));
+        out.close();
+        append(10, 20, true);
+
+        reader = new LineReader(file, "rm");
+        reader.setLineIndex(new LineIndex(file, 4));
+        reader.seekToLine(9);
+        assertEquals("Line 90", reader.readLine());
+        reader.seekToLine(19);
+        assertEquals("Line 19", reader.readLine());
+        reader.close();
+    }
+
+    public void testShrink() throws Exception {
+        append(0, 20, true);
+        new LineIndex(file, 3).update();
+        file.delete();
+        append(100, 105, true);
+        LineReader reader = new LineReader(file, "r");
+        reader.setLineIndex(new LineIndex(file, 3));
+        reader.seekToLine(4);
+        assertEquals("The index should be rebuilt for a smaller file",
+                     "Line 104", reader.readLine());
+        reader.close();
+    }
+
+    private void append(int from, int to, boolean terminateLast)
+            throws IOException {
+        OutputStream out = new FileOutputStream(file, true);
+        try {
+            for (int i = from; i < to; i++) {
+                out.write(("Line " + i).getBytes("utf-8"));
+                if (i < to - 1 || terminateLast) {
+                    out.write('\n');
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
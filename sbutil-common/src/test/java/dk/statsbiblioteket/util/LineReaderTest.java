@@ -206,6 +206,195 @@ public class LineReaderTest extends TestCase {
         assertTrue("EOL should be reached after " + LINES + " lines", lr.eof());
     }
 
+    public void testMappedVsBuffered() throws Exception {
+        for (int segmentSize : new int[]{16, 1024, LineReader.DEFAULT_SEGMENT_SIZE}) {
+            LineReader buffered = new LineReader(logfile, "r");
+            LineReader mapped = new LineReader(logfile, "rm");
+            mapped.setSegmentSize(segmentSize);
+            for (int i = 0; i < LINES; i++) {
+                assertEquals("Line " + i + " should match with segment size "
+                             + segmentSize,
+                             buffered.readLine(), mapped.readLine());
+            }
+            assertTrue("EOF should be reached", mapped.eof());
+
+            Random random = new Random(87);
+            byte[] expected = new byte[100];
+            byte[] actual = new byte[100];
+            for (int i = 0; i < 1000; i++) {
+                long pos = random.nextInt((int) buffered.length() - 100);
+                buffered.seek(pos);
+                mapped.seek(pos);
+                assertEquals("readLong at " + pos + " should match",
+                             buffered.readLong(), mapped.readLong());
+                assertEquals("readInt at " + (pos + 8) + " should match",
+                             buffered.readInt(), mapped.readInt());
+                assertEquals("readShort at " + (pos + 12) + " should match",
+                             buffered.readShort(), mapped.readShort());
+                buffered.readFully(expected, 0, 50);
+                mapped.readFully(actual, 0, 50);
+                assertTrue("readFully at " + (pos + 14) + " should match",
+                           Arrays.equals(expected, actual));
+                assertEquals("Positions should match",
+                             buffered.getPosition(), mapped.getPosition());
+            }
+            mapped.seek(mapped.length() - 2);
+            assertEquals("Partial read at EOF should work",
+                         2, mapped.read(actual));
+            try {
+                mapped.readByte();
+                fail("Reading past EOF should fail");
+            } catch (EOFException e) {
+                // Expected
+            }
+            buffered.close();
+            mapped.close();
+        }
+    }
+
+    public void testMappedWritePermission() throws Exception {
+        LineReader lr = new LineReader(logfile, "rm");
+        try {
+            lr.write(1);
+            fail("Writing in mode rm should fail");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        lr.close();
+    }
+
+    public void testMappedViewAfterClose() throws Exception {
+        LineReader lr = new LineReader(logfile, "rm");
+        ByteBuffer line = lr.readLineBytes();
+        byte[] expected = new byte[line.remaining()];
+        line.duplicate().get(expected);
+        lr.close();
+        // The segments are not unmapped, so a stale view must not crash
+        byte[] actual = new byte[line.remaining()];
+        line.get(actual);
+        assertTrue("The stale view should still hold the line", Arrays.equals(expected, actual));
+    }
+
+    /**
+     * Creates a sparse file larger than 2GB and reads values around the 2GB
+     * boundary, which requires more than one mapped segment.
+     */
+    public void testMappedLargeFile() throws Exception {
+        File temp = createTempFile();
+        long boundary = 1L << 31;
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try {
+            raf.setLength(boundary + 1024);
+            raf.seek(boundary - 4);
+            raf.writeLong(-87654321987L);
+            raf.writeBytes("\nlast line\n");
+        } finally {
+            raf.close();
+        }
+        try {
+            LineReader lr = new LineReader(temp, "rm");
+            lr.seek(boundary - 4);
+            assertEquals("A long spanning 2GB should be readable",
+                         -87654321987L, lr.readLong());
+            lr.seek(boundary + 4);
+            assertEquals("", lr.readLine());
+            assertEquals("last line", lr.readLine());
+            lr.setSegmentSize(1 << 20);
+            lr.seek(boundary - 4);
+            assertEquals("A long spanning segments should be readable",
+                         -87654321987L, lr.readLong());
+            lr.close();
+        } finally {
+            temp.delete();
+        }
+    }
+
+    public void testMappedBinarySearch() throws Exception {
+        File testFile = File.createTempFile("binarySearch", ".tmp");
+        testFile.deleteOnExit();
+        Files.saveString("a\naabb\nab\nc\nd\nde\nzz\nzzz", testFile);
+        LineReader reader = new LineReader(testFile, "rm");
+        reader.setSegmentSize(4);
+        assertPos(reader, 0, "a");
+        assertPos(reader, 7, "ab");
+        assertPos(reader, 2, "aabb");
+        assertPos(reader, 10, "c");
+        assertPos(reader, 20, "zzz");
+        reader.close();
+    }
+
+    public void testLineAPIs() throws Exception {
+        List<String> expected = new ArrayList<String>();
+        LineReader plain = new LineReader(logfile, "r");
+        while (!plain.eof()) {
+            expected.add(plain.readLine());
+        }
+        plain.close();
+        assertEquals("The number of lines should be as expected",
+                     LINES, expected.size());
+        for (String mode : new String[]{"r", "rm"}) {
+            for (int size : new int[]{16, 128, 8192}) {
+                LineReader chars = new LineReader(logfile, mode);
+                LineReader bytes = new LineReader(logfile, mode);
+                LineReader strings = new LineReader(logfile, mode);
+                if ("r".equals(mode)) {
+                    chars.setBufferSize(size);
+                    bytes.setBufferSize(size);
+                    strings.setBufferSize(size);
+                } else {
+                    chars.setSegmentSize(size);
+                    bytes.setSegmentSize(size);
+                    strings.setSegmentSize(size);
+                }
+                for (String line : expected) {
+                    String message = "Lines with mode " + mode + " and size "
+                                     + size + " should match";
+                    assertEquals(message, line, strings.readLine());
+                    assertEquals(message, line,
+                                 chars.readLineChars().toString());
+                    ByteBuffer lineBytes = bytes.readLineBytes();
+                    byte[] raw = new byte[lineBytes.remaining()];
+                    lineBytes.get(raw);
+                    assertEquals(message, line, new String(raw, "utf-8"));
+                }
+                assertNull("readLineChars should return null at EOF",
+                           chars.readLineChars());
+                assertNull("readLineBytes should return null at EOF",
+                           bytes.readLineBytes());
+                assertEquals("readLine should return the empty String at EOF",
+                             "", strings.readLine());
+                chars.close();
+                bytes.close();
+                strings.close();
+            }
+        }
+    }
+
+    public void testCRLF() throws Exception {
+        File temp = createTempFile();
+        Files.saveString("a\r\nbb\n\r\nc\rd\r\nlast\r", temp);
+        for (String mode : new String[]{"r", "rm"}) {
+            for (int size : new int[]{2, 4, 8192}) {
+                LineReader lr = new LineReader(temp, mode);
+                if ("r".equals(mode)) {
+                    lr.setBufferSize(size);
+                } else {
+                    lr.setSegmentSize(size);
+                }
+                String message = "Mode " + mode + " with size " + size;
+                assertEquals(message, "a", lr.readLine());
+                assertEquals(message, "bb", lr.readLineChars().toString());
+                assertEquals(message, "", lr.readLine());
+                assertEquals("A lone CR is not a line break. " + message,
+                             "c\rd", lr.readLine());
+                assertEquals("A CR at EOF should be kept. " + message,
+                             "last\r", lr.readLine());
+                assertTrue(message, lr.eof());
+                lr.close();
+            }
+        }
+    }
+
     public void dumpSpeeds() throws Exception {
         dumpSequentialLR();
         dumpSequentialRA();
@@ -744,6 +933,117 @@ public class LineReaderTest extends TestCase {
                      temp, new byte[]{1, 2, 3, 4});
     }
 
+    public void testWriteBehindVsRandomAccess() throws Exception {
+        for (String mode : new String[]{"rw", "rws"}) {
+            File temp = createTempFile();
+            File reference = createTempFile();
+            LineReader lr = new LineReader(temp, mode);
+            lr.setBufferSize(64);
+            RandomAccessFile raf = new RandomAccessFile(reference, "rw");
+            Random random = new Random(87);
+            byte[] bytes = new byte[200];
+            for (int i = 0; i < 2000; i++) {
+                long pos = random.nextInt((int) raf.length() + 1);
+                lr.seek(pos);
+                raf.seek(pos);
+                switch (random.nextInt(3)) {
+                    case 0: {
+                        // Adjacent writes
+                        for (int j = 0; j < 10; j++) {
+                            int b = random.nextInt(256);
+                            lr.write(b);
+                            raf.write(b);
+                        }
+                        break;
+                    }
+                    case 1: {
+                        random.nextBytes(bytes);
+                        int length = random.nextInt(bytes.length);
+                        lr.write(bytes, 0, length);
+                        raf.write(bytes, 0, length);
+                        break;
+                    }
+                    default: {
+                        // Reads should see changes not written to the file
+                        int length = (int) Math.min(
+                                random.nextInt(bytes.length), raf.length() - pos);
+                        byte[] expected = new byte[length];
+                        raf.readFully(expected);
+                        checkContent("Mode " + mode + ", read " + i + " at "
+                                     + pos, expected, lr);
+                    }
+                }
+                assertEquals("Mode " + mode + ", the length after operation "
+                             + i + " should match", raf.length(), lr.length());
+            }
+            lr.close();
+            raf.close();
+            checkContent("Mode " + mode + ", the file should match",
+                         temp, readAll(reference));
+            assertEquals("Mode " + mode + ", the file length should match",
+                         reference.length(), temp.length());
+        }
+    }
+
+    private byte[] readAll(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        byte[] bytes = new byte[(int) raf.length()];
+        raf.readFully(bytes);
+        raf.close();
+        return bytes;
+    }
+
+    public void testWriteBehindCoalescing() throws Exception {
+        long[] calls = new long[2];
+        String[] modes = new String[]{"rw", "rws"};
+        for (int m = 0; m < modes.length; m++) {
+            File temp = createTempFile();
+            LineReader lr = new LineReader(temp, modes[m]);
+            lr.setBufferSize(64);
+            for (int i = 0; i < 1000; i++) {
+                lr.writeInt(i);
+            }
+            lr.flush();
+            assertEquals("Mode " + modes[m] + ": the file should be complete"
+                         + " after flush", 4000, temp.length());
+            calls[m] = lr.getWriteCalls();
+            lr.seek(0);
+            for (int i = 0; i < 1000; i++) {
+                assertEquals("Mode " + modes[m] + ": int " + i
+                             + " should be as written", i, lr.readInt());
+            }
+            lr.close();
+        }
+        assertEquals("Mode rws should write each change", 1000, calls[1]);
+        assertTrue("Mode rw should write fewer times than the " + calls[1]
+                   + " writes in mode rws, but wrote " + calls[0] + " times",
+                   calls[0] <= 4000 / 64 + 1);
+    }
+
+    public void testWriteBehindFailureIsSticky() throws Exception {
+        File temp = createTempFile();
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        FileChannel channel = raf.getChannel();
+        raf.close(); // The background write will fail
+        LineReader.WriteBehind writeBehind =
+                new LineReader.WriteBehind(channel, 1024);
+        writeBehind.add(0, new byte[]{1, 2, 3}, 3);
+        for (int i = 0; i < 2; i++) {
+            try {
+                writeBehind.await();
+                fail("Await " + i + " should report the failed write");
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+        try {
+            writeBehind.add(3, new byte[]{4}, 1);
+            fail("Adding after a failed write should fail");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
     private void checkContent(String message, File temp, byte[] expected)
             throws IOException {
         LineReader lread = new LineReader(temp, "r");
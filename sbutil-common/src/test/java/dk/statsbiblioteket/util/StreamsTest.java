@@ -24,8 +24,19 @@ package dk.statsbiblioteket.util;
 
 import junit.framework.TestCase;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.Pipe;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 import java.util.Random;
 
 /**
@@ -56,6 +67,101 @@ public class StreamsTest extends TestCase {
         }
     }
 
+    public void testPipeFiles() throws Exception {
+        byte[] inbytes = getByteArray(300000);
+        File source = File.createTempFile("streams_source", ".bin");
+        File destination = File.createTempFile("streams_destination", ".bin");
+        try {
+            FileOutputStream sourceOut = new FileOutputStream(source);
+            sourceOut.write(inbytes);
+            sourceOut.close();
+            FileInputStream in = new FileInputStream(source);
+            assertEquals(10, in.skip(10));
+            Streams.pipe(in, new FileOutputStream(destination));
+            byte[] expected = new byte[inbytes.length - 10];
+            System.arraycopy(inbytes, 10, expected, 0, expected.length);
+            assertTrue("Transfer between files should copy from the stream position",
+                       Arrays.equals(expected, read(destination)));
+        } finally {
+            source.delete();
+            destination.delete();
+        }
+    }
+
+    public void testPipeChannels() throws Exception {
+        byte[] inbytes = getByteArray(300000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Streams.pipe(Channels.newChannel(new ByteArrayInputStream(inbytes)), Channels.newChannel(out), 1000);
+        assertTrue("Piping through a direct buffer should work", Arrays.equals(inbytes, out.toByteArray()));
+
+        File destination = File.createTempFile("streams_destination", ".bin");
+        try {
+            Streams.pipe(Channels.newChannel(new ByteArrayInputStream(inbytes)),
+                         new FileOutputStream(destination).getChannel(), 1000);
+            assertTrue("Transfer to a file should work", Arrays.equals(inbytes, read(destination)));
+
+            out = new ByteArrayOutputStream();
+            Streams.pipe(new FileInputStream(destination).getChannel(), Channels.newChannel(out));
+            assertTrue("Transfer from a file should work", Arrays.equals(inbytes, out.toByteArray()));
+        } finally {
+            destination.delete();
+        }
+    }
+
+    public void testPipeFileToStalledChannel() throws Exception {
+        byte[] inbytes = getByteArray(300000);
+        File source = File.createTempFile("streams_source", ".bin");
+        try {
+            FileOutputStream sourceOut = new FileOutputStream(source);
+            sourceOut.write(inbytes);
+            sourceOut.close();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            // Accepts nothing on the first writes, which makes transferTo return 0
+            WritableByteChannel stalling = new WritableByteChannel() {
+                private final WritableByteChannel inner = Channels.newChannel(out);
+                private int stalls = 3;
+
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    return stalls-- > 0 ? 0 : inner.write(src);
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return inner.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    inner.close();
+                }
+            };
+            Streams.pipe(new FileInputStream(source).getChannel(), stalling);
+            assertTrue("Transfer to a stalling channel should copy everything",
+                       Arrays.equals(inbytes, out.toByteArray()));
+        } finally {
+            source.delete();
+        }
+    }
+
+    public void testPipeNonBlocking() throws Exception {
+        Pipe pipe = Pipe.open();
+        pipe.sink().configureBlocking(false);
+        try {
+            Streams.pipe(Channels.newChannel(new ByteArrayInputStream(new byte[10])), pipe.sink());
+            fail("Piping to a non-blocking channel should fail");
+        } catch (IllegalBlockingModeException e) {
+            // Expected
+        }
+        pipe.source().close();
+    }
+
+    private byte[] read(File file) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Streams.pipe(new BufferedInputStream(new FileInputStream(file)), out);
+        return out.toByteArray();
+    }
+
     public void testGetResource() throws Exception {
         String myCode = Streams.getUTF8Resource("log4j.xml");
         assertTrue("Something should be loaded", myCode.length() > 0);
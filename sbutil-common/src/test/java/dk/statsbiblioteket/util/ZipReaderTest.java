@@ -0,0 +1,203 @@
+/* $Id$
+ * $Revision$
+ * $Date$
+ * $Author$
+ *
+ * The SB Util Library.
+ * Copyright (C) 2005-2007  The State and University Library of Denmark
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package dk.statsbiblioteket.util;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+@SuppressWarnings({"DuplicateStringLiteralInspection"})
+public class ZipReaderTest extends TestCase {
+    private File zipFile;
+    private Map<String, byte[]> content;
+
+    public ZipReaderTest(String name) {
+        super(name);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        zipFile = File.createTempFile("zipreader", ".zip");
+        content = new LinkedHashMap<String, byte[]>();
+        Random random = new Random(87);
+        content.put("empty.txt", new byte[0]);
+        content.put("folder/small.txt", "Small content".getBytes("utf-8"));
+        content.put("folder/æøå.txt", "Unicode name".getBytes("utf-8"));
+        for (int i = 0; i < 50; i++) {
+            byte[] bytes = new byte[random.nextInt(100000)];
+            for (int j = 0; j < bytes.length; j++) {
+                bytes[j] = (byte) ('a' + random.nextInt(random.nextBoolean() ? 2 : 26));
+            }
+            content.put("random/" + i + ".bin", bytes);
+        }
+
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(zipFile));
+        zip.setComment("An archive comment moves the end record");
+        int count = 0;
+        for (Map.Entry<String, byte[]> entry : content.entrySet()) {
+            ZipEntry zipEntry = new ZipEntry(entry.getKey());
+            if (count++ % 3 == 0) {
+                CRC32 crc = new CRC32();
+                crc.update(entry.getValue());
+                zipEntry.setMethod(ZipEntry.STORED);
+                zipEntry.setSize(entry.getValue().length);
+                zipEntry.setCrc(crc.getValue());
+            }
+            zip.putNextEntry(zipEntry);
+            zip.write(entry.getValue());
+            zip.closeEntry();
+        }
+        zip.close();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        zipFile.delete();
+    }
+
+    public static Test suite() {
+        return new TestSuite(ZipReaderTest.class);
+    }
+
+    public void testLookup() throws Exception {
+        ZipReader reader = new ZipReader(zipFile);
+        assertEquals("The names should be in archive order",
+                     new ArrayList<String>(content.keySet()), reader.getNames());
+        for (Map.Entry<String, byte[]> entry : content.entrySet()) {
+            assertEquals("The size of '" + entry.getKey() + "' should be right",
+                         entry.getValue().length, reader.getSize(entry.getKey()));
+            assertTrue("The buffer for '" + entry.getKey() + "' should match",
+                       Arrays.equals(entry.getValue(), toArray(reader.getBuffer(entry.getKey()))));
+            assertTrue("The stream for '" + entry.getKey() + "' should match",
+                       Arrays.equals(entry.getValue(), toArray(reader.getEntry(entry.getKey()))));
+        }
+        assertNull("A missing entry should give null", reader.getBuffer("missing"));
+        assertNull("A missing entry should give null", reader.getEntry("missing"));
+        assertEquals(-1, reader.getSize("missing"));
+        try {
+            reader.getBuffer("folder/small.txt").put((byte) 0);
+            fail("The buffers should be read-only");
+        } catch (ReadOnlyBufferException e) {
+            // Expected
+        }
+        reader.close();
+    }
+
+    public void testCache() throws Exception {
+        ZipReader reader = new ZipReader(zipFile, 10, 50000);
+        for (int run = 0; run < 3; run++) {
+            for (Map.Entry<String, byte[]> entry : content.entrySet()) {
+                assertTrue("Run " + run + ": the buffer for '" + entry.getKey() + "' should match",
+                           Arrays.equals(entry.getValue(), toArray(reader.getBuffer(entry.getKey()))));
+                assertTrue("Run " + run + ": the stream for '" + entry.getKey() + "' should match",
+                           Arrays.equals(entry.getValue(), toArray(reader.getEntry(entry.getKey()))));
+            }
+        }
+        reader.close();
+    }
+
+    public void testConcurrent() throws Exception {
+        final ZipReader reader = new ZipReader(zipFile, 5, 20000);
+        final List<String> names = new ArrayList<String>(content.keySet());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (int t = 0; t < 8; t++) {
+            final Random random = new Random(t);
+            futures.add(executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    for (int i = 0; i < 200; i++) {
+                        String name = names.get(random.nextInt(names.size()));
+                        byte[] actual = random.nextBoolean() ?
+                                        toArray(reader.getBuffer(name)) : toArray(reader.getEntry(name));
+                        assertTrue("Concurrent lookup of '" + name + "' should match",
+                                   Arrays.equals(content.get(name), actual));
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Object> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        reader.close();
+    }
+
+    public void testZip64() throws Exception {
+        File large = File.createTempFile("zipreader64", ".zip");
+        try {
+            ZipWriter writer = new ZipWriter(new FileOutputStream(large));
+            int count = 70000;
+            for (int i = 0; i < count; i++) {
+                byte[] bytes = Integer.toString(i).getBytes("utf-8");
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                writer.write("entry" + i, 0, ZipEntry.STORED, crc.getValue(), bytes.length, bytes.length,
+                             new ByteArrayInputStream(bytes));
+            }
+            writer.close();
+            ZipReader reader = new ZipReader(large);
+            assertEquals("All entries should be indexed", count, reader.size());
+            assertEquals("69999", new String(toArray(reader.getBuffer("entry69999")), "utf-8"));
+            reader.close();
+        } finally {
+            large.delete();
+        }
+    }
+
+    private byte[] toArray(ByteBuffer buffer) {
+        byte[] result = new byte[buffer.remaining()];
+        buffer.duplicate().get(result);
+        return result;
+    }
+
+    private byte[] toArray(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Streams.pipe(in, out);
+        return out.toByteArray();
+    }
+}
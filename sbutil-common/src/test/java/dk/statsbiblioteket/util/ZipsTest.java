@@ -26,10 +26,29 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringWriter;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
@@ -197,6 +216,146 @@ public class ZipsTest {
 //        sw.append(", exec: ").append(Boolean.toString(file.canExecute()));
         return sw.toString();
     }
+    @Test
+    public void testParallelZipUnzip() throws Exception {
+        File source = new File(tmpDir, "parallel_source");
+        File zipFile = new File(tmpDir, "parallel.zip");
+        File destination = new File(tmpDir, "parallel_destination");
+        try {
+            createRandomFiles(source);
+            Zips.zip(source.toString(), zipFile.toString(), true, 4);
+
+            // The archive must be readable by the standard implementation
+            ZipFile zip = new ZipFile(zipFile);
+            for (String name : listFiles(source, "")) {
+                ZipEntry entry = zip.getEntry(source.getName() + "/" + name);
+                assertNotNull("The entry for '" + name + "' should exist", entry);
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                Streams.pipe(zip.getInputStream(entry), content);
+                assertEquals("The content of '" + name + "' should be intact",
+                             Files.loadString(new File(source, name)), content.toString("utf-8"));
+            }
+            zip.close();
+
+            Zips.unzip(zipFile.toString(), destination.toString(), false, 4);
+            File unpacked = new File(destination, source.getName());
+            assertEquals("The unpacked files should match the source",
+                         listFiles(source, ""), listFiles(unpacked, ""));
+            for (String name : listFiles(source, "")) {
+                assertEquals("The unpacked '" + name + "' should match the source",
+                             Files.loadString(new File(source, name)), Files.loadString(new File(unpacked, name)));
+            }
+            try {
+                Zips.unzip(zipFile.toString(), destination.toString(), false, 2);
+                fail("Unzipping to existing files without overwrite should fail");
+            } catch (FileAlreadyExistsException e) {
+                // Expected
+            }
+            Zips.unzip(zipFile.toString(), destination.toString(), true, 2);
+        } finally {
+            Files.delete(source);
+            Files.delete(destination);
+            zipFile.delete();
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSerial() throws Exception {
+        File source = new File(tmpDir, "parallel_source");
+        File serial = new File(tmpDir, "serial.zip");
+        File parallel = new File(tmpDir, "parallel.zip");
+        try {
+            createRandomFiles(source);
+            Zips.zip(source.toString(), serial.toString(), true);
+            Zips.zip(source.toString(), parallel.toString(), true, 3);
+            assertEquals("The parallel archive should have the same entries as the serial archive",
+                         listEntries(serial), listEntries(parallel));
+        } finally {
+            Files.delete(source);
+            serial.delete();
+            parallel.delete();
+        }
+    }
+
+    @Test
+    public void testParallelZipFailure() throws Exception {
+        File zipFile = new File(tmpDir, "failed.zip");
+        try {
+            Zips.zip(new File(tmpDir, "nonexisting").toString(), zipFile.toString(), true, 2);
+            fail("Zipping a non-existing file should fail");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertFalse("The partial archive should be deleted", zipFile.exists());
+    }
+
+    @Test
+    public void testZip64EntryCount() throws Exception {
+        // More than 65535 entries requires the Zip64 end records
+        File zipFile = new File(tmpDir, "zip64.zip");
+        try {
+            ZipWriter writer = new ZipWriter(new FileOutputStream(zipFile));
+            int count = 70000;
+            for (int i = 0; i < count; i++) {
+                writer.write("entry" + i, System.currentTimeMillis(), ZipEntry.STORED, 0, 0, 0,
+                             new ByteArrayInputStream(new byte[0]));
+            }
+            writer.close();
+            ZipFile zip = new ZipFile(zipFile);
+            assertEquals("All entries should be listed", count, zip.size());
+            assertNotNull("The last entry should exist", zip.getEntry("entry" + (count - 1)));
+            zip.close();
+        } finally {
+            zipFile.delete();
+        }
+    }
+
+    private void createRandomFiles(File folder) throws Exception {
+        if (folder.exists()) {
+            Files.delete(folder);
+        }
+        Random random = new Random(87);
+        // The last file is larger than the limit for compression in memory
+        int[] sizes = new int[]{0, 1, 100, 5000, 70000, 300000, Zips.MAX_MEMORY_ENTRY + 1000};
+        for (int i = 0; i < sizes.length; i++) {
+            File sub = new File(folder, i % 2 == 0 ? "even" : "odd/deeper");
+            sub.mkdirs();
+            OutputStream out = new FileOutputStream(new File(sub, "file" + i + ".txt"));
+            for (int j = 0; j < sizes[i]; j++) {
+                out.write('a' + random.nextInt(random.nextBoolean() ? 2 : 26));
+            }
+            out.close();
+        }
+    }
+
+    private List<String> listFiles(File folder, String prefix) {
+        List<String> names = new ArrayList<String>();
+        String[] children = folder.list();
+        Arrays.sort(children);
+        for (String child : children) {
+            File file = new File(folder, child);
+            if (file.isDirectory()) {
+                names.addAll(listFiles(file, prefix + child + "/"));
+            } else {
+                names.add(prefix + child);
+            }
+        }
+        return names;
+    }
+
+    private List<String> listEntries(File zipFile) throws Exception {
+        List<String> names = new ArrayList<String>();
+        ZipFile zip = new ZipFile(zipFile);
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            names.add(entry.getName() + " " + entry.getSize() + " " + entry.getCrc());
+        }
+        zip.close();
+        Collections.sort(names);
+        return names;
+    }
+
     @Test
     public void testUnzipDir() throws Exception {
         // FIXME: Implement me
@@ -244,6 +403,130 @@ public class ZipsTest {
             // Expected
         }
     }
+    @Test
+    public void testPooledGzip() throws Exception {
+        Random random = new Random(87);
+        for (int size : new int[]{0, 1, 100, 1000, 65535, 65536, 65537, 300000}) {
+            byte[] data = randomText(random, size);
+            for (int level : new int[]{Deflater.DEFAULT_COMPRESSION, 0, 1, 9}) {
+                ByteBuffer gzipped = Zips.gzip(ByteBuffer.wrap(data), level);
+                byte[] compressed = new byte[gzipped.remaining()];
+                gzipped.get(compressed);
+                assertTrue("Size " + size + ", level " + level + ": GZIPInputStream should read the gzip data",
+                           Arrays.equals(data, streamGunzip(compressed)));
+                assertTrue("Size " + size + ", level " + level + ": gunzip should reverse gzip",
+                           Arrays.equals(data, toArray(Zips.gunzip(ByteBuffer.wrap(compressed)))));
+            }
+
+            // Direct buffers and size hints
+            ByteBuffer direct = ByteBuffer.allocateDirect(size);
+            direct.put(data).flip();
+            byte[] compressed = toArray(Zips.gzip(direct));
+            assertFalse("gzip should consume the input", direct.hasRemaining());
+            ByteBuffer directCompressed = ByteBuffer.allocateDirect(compressed.length);
+            directCompressed.put(compressed).flip();
+            assertTrue("Size " + size + ": gunzip of a direct buffer should work",
+                       Arrays.equals(data, toArray(Zips.gunzip(directCompressed, size))));
+            assertFalse("gunzip should consume the input", directCompressed.hasRemaining());
+            assertTrue("Size " + size + ": gunzip with a too small hint should work",
+                       Arrays.equals(data, toArray(Zips.gunzip(ByteBuffer.wrap(compressed), 1))));
+            assertTrue("Size " + size + ": gunzip of GZIPOutputStream data should work",
+                       Arrays.equals(data, toArray(Zips.gunzip(ByteBuffer.wrap(streamGzip(data))))));
+        }
+    }
+
+    @Test
+    public void testGunzipMembersAndErrors() throws Exception {
+        byte[] first = Zips.gzipBuffer("foo".getBytes("utf-8"));
+        byte[] second = Zips.gzipBuffer("bar".getBytes("utf-8"));
+        byte[] both = new byte[first.length + second.length];
+        System.arraycopy(first, 0, both, 0, first.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        assertEquals("Concatenated members should be uncompressed as one",
+                     "foobar", new String(Zips.gunzipBuffer(both), "utf-8"));
+
+        byte[] corrupt = first.clone();
+        corrupt[corrupt.length - 8]++;
+        try {
+            Zips.gunzip(ByteBuffer.wrap(corrupt));
+            fail("A wrong CRC should be detected");
+        } catch (ZipException e) {
+            // Expected
+        }
+        try {
+            Zips.gunzip(ByteBuffer.wrap(first, 0, first.length - 3));
+            fail("Truncated data should be detected");
+        } catch (EOFException e) {
+            // Expected
+        }
+        try {
+            Zips.gunzip(ByteBuffer.wrap("Not gzip at all".getBytes("utf-8")));
+            fail("Data that is not gzip should be detected");
+        } catch (ZipException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Compares the pooled gzip to the streams for payloads from 1KB to 10MB.
+     * The number of runs is low to keep the unit tests fast: Raise it for
+     * real measurements.
+     */
+    @Test
+    public void testPooledGzipPerformance() throws Exception {
+        final int RUNS = 2;
+        Random random = new Random(87);
+        for (int size : new int[]{1024, 10 * 1024, 100 * 1024, 1024 * 1024, 10 * 1024 * 1024}) {
+            byte[] data = randomText(random, size);
+            int iterations = Math.max(1, 256 * 1024 / size);
+            long streamTime = Long.MAX_VALUE;
+            long pooledTime = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    streamGunzip(streamGzip(data));
+                }
+                streamTime = Math.min(streamTime, System.nanoTime() - start);
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    Zips.gunzip(Zips.gzip(ByteBuffer.wrap(data)), size);
+                }
+                pooledTime = Math.min(pooledTime, System.nanoTime() - start);
+            }
+            System.out.println(String.format(
+                    "gzip+gunzip of %d bytes: Streams %.3f ms, pooled %.3f ms per round trip",
+                    size, streamTime / 1000000.0 / iterations, pooledTime / 1000000.0 / iterations));
+        }
+    }
+
+    private byte[] randomText(Random random, int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ('a' + random.nextInt(random.nextBoolean() ? 3 : 26));
+        }
+        return data;
+    }
+
+    private byte[] streamGzip(byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(data);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private byte[] streamGunzip(byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Streams.pipe(new GZIPInputStream(new ByteArrayInputStream(data)), out);
+        return out.toByteArray();
+    }
+
+    private byte[] toArray(ByteBuffer buffer) {
+        byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+
     @Test
     public void testGetZipEntry() throws Exception {
         String nameSpaceFile = "xml/namespace_input.xml";
@@ -259,4 +542,28 @@ public class ZipsTest {
 
         zipFile.delete();
     }
+
+    @Test
+    public void testGetZipEntryWithoutCentralDirectory() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        zip.putNextEntry(new ZipEntry("first"));
+        zip.write("foo".getBytes("utf-8"));
+        zip.closeEntry();
+        zip.putNextEntry(new ZipEntry("second"));
+        zip.write("bar".getBytes("utf-8"));
+        zip.closeEntry();
+        zip.flush(); // Not finished, so there is no central directory
+        File zipFile = new File(tmpDir, "unfinished.zip");
+        try {
+            OutputStream out = new FileOutputStream(zipFile);
+            out.write(bytes.toByteArray());
+            out.close();
+            assertEquals("The entry should be found by scanning",
+                         "bar", new String(Zips.getZipEntry(zipFile, "second"), "utf-8"));
+            assertNull(Zips.getZipEntry(zipFile, "third"));
+        } finally {
+            zipFile.delete();
+        }
+    }
 }
\ No newline at end of file
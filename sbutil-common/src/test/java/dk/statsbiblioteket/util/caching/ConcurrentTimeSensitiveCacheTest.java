@@ -0,0 +1,226 @@
+package dk.statsbiblioteket.util.caching;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ConcurrentTimeSensitiveCache Tester. The single threaded scenarios are the
+ * same as for TimeSensitiveCache.
+ */
+@SuppressWarnings({"DuplicateStringLiteralInspection"})
+public class ConcurrentTimeSensitiveCacheTest extends TestCase {
+    private long timeout;
+
+    public ConcurrentTimeSensitiveCacheTest(String name) {
+        super(name);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        timeout = 100;
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public static Test suite() {
+        return new TestSuite(ConcurrentTimeSensitiveCacheTest.class);
+    }
+
+    public void testAccessOrderTrueSizeFixed() {
+        Map<String, String> cache = new ConcurrentTimeSensitiveCache<String, String>(timeout, true, 3);
+        cache.put("test1", "test1value");
+        cache.put("test2", "test2value");
+        cache.put("test3", "test3value");
+        cache.put("test4", "test4value");
+        assertNull("The test1 value should have been removed from the cache", cache.get("test1"));
+        assertEquals("The cache should still have 3 elements", 3, cache.size());
+
+        sleep(timeout + 2);
+        assertEquals("The cache should have timed out and cleared", 0, cache.size());
+
+        cache.put("test1", "test1value");
+        cache.put("test2", "test2value");
+        cache.put("test3", "test3value");
+        sleep(timeout / 2);
+        assertEquals("The test2 value should still be test2value", "test2value", cache.get("test2"));
+        sleep(timeout / 2 + 2);
+        assertEquals("The cache should have timed out, but test2 should still remain", 1, cache.size());
+    }
+
+    public void testLeastRecentlyUsedEviction() {
+        Map<String, String> cache = new ConcurrentTimeSensitiveCache<String, String>(10000, true, 3);
+        cache.put("test1", "test1value");
+        cache.put("test2", "test2value");
+        cache.put("test3", "test3value");
+        cache.get("test1");
+        cache.put("test4", "test4value");
+        assertNotNull("The accessed test1 should remain", cache.get("test1"));
+        assertNull("The least recently used test2 should be evicted", cache.get("test2"));
+
+        Map<String, String> insertion = new ConcurrentTimeSensitiveCache<String, String>(10000, false, 3);
+        insertion.put("test1", "test1value");
+        insertion.put("test2", "test2value");
+        insertion.put("test3", "test3value");
+        insertion.get("test1");
+        insertion.put("test4", "test4value");
+        assertNull("Without accessOrder test1 should be evicted", insertion.get("test1"));
+    }
+
+    public void testAccessOrderFalseSizeFluid() {
+        Map<String, String> cache = new ConcurrentTimeSensitiveCache<String, String>(timeout, false);
+        cache.put("test1", "test1value");
+        cache.put("test2", "test2value");
+        cache.put("test3", "test3value");
+        cache.put("test4", "test4value");
+        assertNotNull("The test1 value should NOT have been removed from the cache", cache.get("test1"));
+        assertEquals("The cache should still have 4 elements", 4, cache.size());
+
+        sleep(timeout + 2);
+        assertEquals("The cache should have timed out and cleared", 0, cache.size());
+
+        cache.put("test1", "test1value");
+        cache.put("test2", "test2value");
+        cache.put("test3", "test3value");
+        sleep(timeout / 2);
+        assertEquals("The test2 value should still be test2value", "test2value", cache.get("test2"));
+        cache.put("test4", "test4value");
+        sleep(timeout / 2);
+        assertEquals("The test4 value should still be test4value", "test4value", cache.get("test4"));
+        assertEquals("The cache should have timed out, except for the extra element", 1, cache.size());
+    }
+
+    public void testMapSpecificMethods() {
+        Map<String, String> cache = new ConcurrentTimeSensitiveCache<String, String>(timeout, false, 3);
+        cache.put("test1", "test1value");
+        cache.put("test2", "test2value");
+        cache.put("test3", "test3value");
+        assertNull("There should be no previous value", cache.put("test4", "test4value"));
+        assertEquals("The previous value should be returned", "test4value", cache.put("test4", "other"));
+
+        assertEquals("The keyset should have the size 3", 3, cache.keySet().size());
+        assertEquals("The valueset should have the size 3", 3, cache.values().size());
+        assertEquals("The entryset should have the size 3", 3, cache.entrySet().size());
+        assertTrue("The cache should still contain the test2value", cache.containsValue("test2value"));
+        assertEquals("test2value", cache.remove("test2"));
+        assertFalse("test2 should be removed", cache.containsKey("test2"));
+        cache.clear();
+        assertTrue("The cache should be empty after clear", cache.isEmpty());
+    }
+
+    public void testReinsert() {
+        Map<String, String> cache = new ConcurrentTimeSensitiveCache<String, String>(200, false);
+        cache.put("foo", "foo");
+        cache.put("bar", "bar");
+        for (int i = 0; i < 2; i++) {
+            cache.put("foo", "foo"); // Reinserting should update the timestamp
+            sleep(100);
+        }
+        assertEquals("foo", cache.get("foo"));
+        assertNull(cache.get("bar"));
+    }
+
+    public void testConcurrentAccess() throws Exception {
+        final int capacity = 500;
+        final Map<Integer, Integer> cache = new ConcurrentTimeSensitiveCache<Integer, Integer>(10000, true, capacity);
+        final AtomicInteger errors = new AtomicInteger(0);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 16; t++) {
+            final int seed = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 50000; i++) {
+                        Integer key = random.nextInt(2000);
+                        if (random.nextInt(4) == 0) {
+                            cache.put(key, key * 2);
+                        } else {
+                            Integer value = cache.get(key);
+                            if (value != null && value != key * 2) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("All values should match their keys", 0, errors.get());
+        assertEquals("The cache should be filled to its fixed size", capacity, cache.size());
+        assertEquals("The key set should match the size", capacity, cache.keySet().size());
+    }
+
+    public void testExpiryByTimerWheel() {
+        ConcurrentTimeSensitiveCache<Integer, Integer> cache =
+                new ConcurrentTimeSensitiveCache<Integer, Integer>(500, false);
+        for (int i = 0; i < 10000; i++) {
+            cache.put(i, i);
+        }
+        sleep(250);
+        for (int i = 10000; i < 20000; i++) {
+            cache.put(i, i);
+        }
+        assertEquals("All elements should be present", 20000, cache.size());
+        sleep(350);
+        assertEquals("Only the first batch should have expired", 10000, cache.size());
+        assertNull("An element from the first batch should be gone", cache.get(0));
+        assertEquals("An element from the second batch should remain", Integer.valueOf(10000), cache.get(10000));
+    }
+
+    public void testRefreshedSurvivesExpiry() {
+        ConcurrentTimeSensitiveCache<String, String> cache =
+                new ConcurrentTimeSensitiveCache<String, String>(300, true);
+        cache.put("refreshed", "value");
+        cache.put("stale", "value");
+        for (int i = 0; i < 5; i++) {
+            sleep(100);
+            assertNotNull("The refreshed element should stay", cache.get("refreshed"));
+        }
+        assertEquals("Only the refreshed element should remain", 1, cache.size());
+    }
+
+    public void testBackgroundExpiry() {
+        ConcurrentTimeSensitiveCache<Integer, Integer> cache =
+                new ConcurrentTimeSensitiveCache<Integer, Integer>(100, false);
+        cache.setBackgroundExpiry(true);
+        assertTrue(cache.isBackgroundExpiry());
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i);
+        }
+        assertEquals(1000, cache.getStoredSize());
+        sleep(300);
+        assertEquals("The background thread should have removed the elements without any calls",
+                     0, cache.getStoredSize());
+        cache.setBackgroundExpiry(false);
+        assertFalse(cache.isBackgroundExpiry());
+        cache.put(1, 1);
+        sleep(300);
+        assertEquals("Without the background thread the element should stay until the next call",
+                     1, cache.getStoredSize());
+        assertNull(cache.get(1));
+    }
+
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            // Ignore
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package dk.statsbiblioteket.util.caching;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@SuppressWarnings({"DuplicateStringLiteralInspection"})
+public class LoadingCacheTest extends TestCase {
+    public LoadingCacheTest(String name) {
+        super(name);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public static Test suite() {
+        return new TestSuite(LoadingCacheTest.class);
+    }
+
+    public void testCoalescing() throws Exception {
+        final AtomicInteger loads = new AtomicInteger(0);
+        final LoadingCache<String, String> cache = new LoadingCache<String, String>(
+                new LoadingCache.Loader<String, String>() {
+                    @Override
+                    public String load(String key) throws Exception {
+                        loads.incrementAndGet();
+                        Thread.sleep(200);
+                        return key + "value";
+                    }
+                }, 10000);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 20; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        results.add(cache.get("foo"));
+                    } catch (Exception e) {
+                        results.add(e.toString());
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("Concurrent misses should result in a single load", 1, loads.get());
+        assertEquals(1, cache.getLoaderCalls());
+        assertEquals("All requests should get a result", 20, results.size());
+        for (String result : results) {
+            assertEquals("foovalue", result);
+        }
+    }
+
+    public void testFailure() throws Exception {
+        final AtomicInteger calls = new AtomicInteger(0);
+        LoadingCache<String, String> cache = new LoadingCache<String, String>(
+                new LoadingCache.Loader<String, String>() {
+                    @Override
+                    public String load(String key) throws Exception {
+                        if (calls.incrementAndGet() == 1) {
+                            throw new IOException("Backend down");
+                        }
+                        return key + "value";
+                    }
+                }, 10000);
+        try {
+            cache.get("foo");
+            fail("The failure of the loader should be propagated");
+        } catch (ExecutionException e) {
+            assertTrue("The cause should be the loader exception", e.getCause() instanceof IOException);
+        }
+        assertEquals("The failure should not be cached", "foovalue", cache.get("foo"));
+        assertEquals("foovalue", cache.get("foo"));
+        assertEquals(2, calls.get());
+    }
+
+    public void testExpiry() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        LoadingCache<String, String> cache = new LoadingCache<String, String>(loader, 100);
+        assertEquals("foo1", cache.get("foo"));
+        assertEquals("The value should be cached", "foo1", cache.get("foo"));
+        assertNull(cache.getIfPresent("bar"));
+        Thread.sleep(150);
+        assertNull("The value should have expired", cache.getIfPresent("foo"));
+        assertEquals("The value should be reloaded", "foo2", cache.get("foo"));
+    }
+
+    public void testRefreshAhead() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            CountingLoader loader = new CountingLoader();
+            LoadingCache<String, String> cache = new LoadingCache<String, String>(loader, 10000).
+                    setRefreshAhead(100, executor);
+            assertEquals("foo1", cache.get("foo"));
+            Thread.sleep(150);
+            assertEquals("The old value should be returned during refresh", "foo1", cache.get("foo"));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!"foo2".equals(cache.getIfPresent("foo")) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals("The value should be refreshed in the background", "foo2", cache.getIfPresent("foo"));
+            assertEquals(2, cache.getLoaderCalls());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testGetAll() throws Exception {
+        final List<Collection<String>> bulkCalls = new ArrayList<Collection<String>>();
+        LoadingCache<String, String> cache = new LoadingCache<String, String>(
+                new LoadingCache.BulkLoader<String, String>() {
+                    @Override
+                    public Map<String, String> loadAll(Collection<String> keys) throws Exception {
+                        bulkCalls.add(new ArrayList<String>(keys));
+                        Map<String, String> result = new HashMap<String, String>();
+                        for (String key : keys) {
+                            if (!"missing".equals(key)) {
+                                result.put(key, key + "value");
+                            }
+                        }
+                        return result;
+                    }
+
+                    @Override
+                    public String load(String key) throws Exception {
+                        return key + "single";
+                    }
+                }, 10000);
+        cache.put("a", "cached");
+        Map<String, String> result = cache.getAll(Arrays.asList("c", "a", "missing", "b", "c"));
+        assertEquals("The misses should be batched in one call", 1, bulkCalls.size());
+        assertEquals(Arrays.asList("c", "missing", "b"), bulkCalls.get(0));
+        assertEquals("Values should be in key order without missing keys",
+                     Arrays.asList("c", "a", "b"), new ArrayList<String>(result.keySet()));
+        assertEquals("cached", result.get("a"));
+        assertEquals("bvalue", result.get("b"));
+        assertEquals("The bulk loaded values should be cached", "cvalue", cache.getIfPresent("c"));
+    }
+
+    public void testGetAllWaitsForLoadsInProgress() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final List<Collection<String>> bulkCalls = Collections.synchronizedList(new ArrayList<Collection<String>>());
+        final LoadingCache<String, String> cache = new LoadingCache<String, String>(
+                new LoadingCache.BulkLoader<String, String>() {
+                    @Override
+                    public Map<String, String> loadAll(Collection<String> keys) throws Exception {
+                        bulkCalls.add(new ArrayList<String>(keys));
+                        Map<String, String> result = new HashMap<String, String>();
+                        for (String key : keys) {
+                            result.put(key, key + "bulk");
+                        }
+                        return result;
+                    }
+
+                    @Override
+                    public String load(String key) throws Exception {
+                        loading.countDown();
+                        Thread.sleep(300);
+                        return key + "single";
+                    }
+                }, 10000);
+        Thread slow = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cache.get("slow");
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        slow.start();
+        loading.await();
+        Map<String, String> result = cache.getAll(Arrays.asList("slow", "x", "y"));
+        slow.join();
+        assertEquals("The key in progress should not be bulk loaded",
+                     Collections.singletonList(Arrays.asList("x", "y")), bulkCalls);
+        assertEquals("The key in progress should be waited for", "slowsingle", result.get("slow"));
+        assertEquals("xbulk", result.get("x"));
+        assertEquals(2, cache.getLoaderCalls());
+    }
+
+    private static class CountingLoader implements LoadingCache.Loader<String, String> {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public String load(String key) throws Exception {
+            return key + count.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package dk.statsbiblioteket.util.caching;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@SuppressWarnings({"DuplicateStringLiteralInspection"})
+public class OffHeapCacheTest extends TestCase {
+    public OffHeapCacheTest(String name) {
+        super(name);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public static Test suite() {
+        return new TestSuite(OffHeapCacheTest.class);
+    }
+
+    public void testPutGet() {
+        OffHeapCache<String> cache = new OffHeapCache<String>(100 * 1024, 64, 1024);
+        Random random = new Random(87);
+        Map<String, byte[]> expected = new HashMap<String, byte[]>();
+        for (int length : new int[]{0, 1, 63, 64, 65, 1000, 1024, 5000}) {
+            byte[] value = new byte[length];
+            random.nextBytes(value);
+            assertTrue("A value of " + length + " bytes should be stored", cache.put("key" + length, value));
+            expected.put("key" + length, value);
+        }
+        for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+            assertTrue("The value for " + entry.getKey() + " should be unchanged",
+                       Arrays.equals(entry.getValue(), cache.get(entry.getKey())));
+        }
+        assertNull(cache.get("missing"));
+        assertEquals(expected.size(), cache.size());
+        assertEquals(0 + 1 + 63 + 64 + 65 + 1000 + 1024 + 5000, cache.getBytes());
+        assertEquals("The slabs should be allocated as needed", 8 * 1024, cache.getAllocatedBytes());
+        assertEquals(8, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    public void testByteBuffer() {
+        OffHeapCache<String> cache = new OffHeapCache<String>(1024, 16, 1024);
+        ByteBuffer buffer = ByteBuffer.wrap("xxHello worldxx".getBytes());
+        buffer.position(2);
+        buffer.limit(13);
+        cache.put("foo", buffer);
+        assertEquals("The position should not change", 2, buffer.position());
+        assertEquals("Hello world", new String(cache.get("foo")));
+    }
+
+    public void testEvictionByBytes() {
+        OffHeapCache<Integer> cache = new OffHeapCache<Integer>(10 * 1024, 1024, 4096);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(cache.put(i, new byte[3000]));
+        }
+        assertEquals("Nothing should be evicted yet", 0, cache.getEvictions());
+        assertNotNull("Accessing 0 should make 1 the least recently used", cache.get(0));
+        cache.put(3, new byte[3000]);
+        assertEquals("A single value should be evicted", 1, cache.getEvictions());
+        assertFalse("The least recently used value should be evicted", cache.containsKey(1));
+        assertTrue(cache.containsKey(0));
+        cache.put(4, new byte[9000]);
+        assertEquals("Enough values should be evicted for a large value", 1, cache.size());
+        assertTrue(cache.getBytes() <= cache.getMaxBytes());
+        assertEquals("The allocation should not exceed the maximum", 10 * 1024, cache.getAllocatedBytes());
+    }
+
+    public void testReplaceAndRemove() {
+        OffHeapCache<String> cache = new OffHeapCache<String>(4096, 1024, 4096);
+        cache.put("foo", new byte[4000]);
+        cache.put("foo", "bar".getBytes());
+        assertEquals("The old blocks should be freed", 3, cache.getBytes());
+        assertEquals("bar", new String(cache.get("foo")));
+        cache.put("zoo", new byte[3000]);
+        assertEquals("Replacing should not cause evictions", 0, cache.getEvictions());
+        assertTrue(cache.remove("foo"));
+        assertFalse(cache.remove("foo"));
+        assertFalse("A value larger than the cache should be rejected", cache.put("zoo", new byte[5000]));
+        assertFalse("The old value should be removed", cache.containsKey("zoo"));
+        cache.put("a", new byte[10]);
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+        cache.close();
+        assertEquals(0, cache.getAllocatedBytes());
+        try {
+            cache.get("a");
+            fail("A closed cache should not be usable");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    public void testConcurrent() throws Exception {
+        final OffHeapCache<Integer> cache = new OffHeapCache<Integer>(64 * 1024, 128, 8192);
+        final AtomicInteger errors = new AtomicInteger(0);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final int seed = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 20000; i++) {
+                        int key = random.nextInt(500);
+                        byte[] value = cache.get(key);
+                        if (value == null) {
+                            cache.put(key, valueFor(key));
+                        } else if (!Arrays.equals(valueFor(key), value)) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("All values should match their keys", 0, errors.get());
+        assertTrue("There should be evictions", cache.getEvictions() > 0);
+        assertEquals(8 * 20000, cache.getHits() + cache.getMisses());
+        cache.close();
+    }
+
+    private static byte[] valueFor(int key) {
+        byte[] value = new byte[key];
+        Arrays.fill(value, (byte) key);
+        return value;
+    }
+}
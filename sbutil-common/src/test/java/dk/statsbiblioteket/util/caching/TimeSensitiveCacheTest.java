@@ -176,6 +176,44 @@ public class TimeSensitiveCacheTest extends TestCase {
 
     }
 
+    public void testSnapshots() {
+        TimeSensitiveCache<String, String> cache = new TimeSensitiveCache<String, String>(timeout, false, 3);
+        cache.put("test1", "test1value");
+        cache.put("test2", "test2value");
+        Set<String> keys = cache.keySet();
+        cache.put("test3", "test3value");
+        cache.remove("test1");
+        assertEquals("The keyset should not change with the cache", 2, keys.size());
+        assertTrue("The keyset should still contain test1", keys.contains("test1"));
+        keys.clear();
+        assertEquals("Changing the keyset should not change the cache", 2, cache.size());
+    }
+
+    public void testSnapshotsWithBackgroundExpiry() {
+        TimeSensitiveCache<Integer, Integer> cache = new TimeSensitiveCache<Integer, Integer>(20, false);
+        cache.setBackgroundExpiry(true);
+        try {
+            long stop = System.currentTimeMillis() + 500;
+            int i = 0;
+            while (System.currentTimeMillis() < stop) {
+                cache.put(i, i);
+                i++;
+                // Iterating must not collide with the expiry in the background thread
+                for (Integer key : cache.keySet()) {
+                    assertNotNull(key);
+                }
+                for (Integer value : cache.values()) {
+                    assertNotNull(value);
+                }
+                for (Map.Entry<Integer, Integer> entry : cache.entrySet()) {
+                    assertEquals(entry.getKey(), entry.getValue());
+                }
+            }
+        } finally {
+            cache.setBackgroundExpiry(false);
+        }
+    }
+
     public void testReinsert() {
         TimeSensitiveCache<String, String> usersOnCase = new TimeSensitiveCache<String, String>(2 * 1000, false);
 
@@ -195,6 +233,28 @@ public class TimeSensitiveCacheTest extends TestCase {
 
 
 
+    public void testBackgroundExpiry() {
+        TimeSensitiveCache<String, String> cache = new TimeSensitiveCache<String, String>(timeout, true, 3);
+        cache.setBackgroundExpiry(true);
+        assertTrue(cache.isBackgroundExpiry());
+        cache.put("test1", "test1value");
+        cache.put("test2", "test2value");
+        cache.put("test3", "test3value");
+        cache.put("test4", "test4value");
+        assertNull("The test1 value should have been removed from the cache", cache.get("test1"));
+        assertEquals("The cache should still have 3 elements", 3, cache.size());
+
+        sleep(timeout / 2);
+        assertEquals("The test2 value should still be test2value", "test2value", cache.get("test2"));
+        sleep(timeout / 2 + 2);
+        assertNull("The too old test3 value should not be returned", cache.get("test3"));
+        assertEquals("test2 should still remain", 1, cache.size());
+        sleep(timeout + 2);
+        assertEquals("The cache should have timed out and cleared", 0, cache.size());
+        cache.setBackgroundExpiry(false);
+        assertFalse(cache.isBackgroundExpiry());
+    }
+
     private void sleep(long millis) {
         synchronized (this) {
             try {
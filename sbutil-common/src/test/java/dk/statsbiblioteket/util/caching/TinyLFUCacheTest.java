@@ -0,0 +1,216 @@
+package dk.statsbiblioteket.util.caching;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * TinyLFUCache Tester. The trace tests replay synthetic access traces against
+ * TinyLFUCache and LRUCache and report the hit rates.
+ */
+@SuppressWarnings({"DuplicateStringLiteralInspection"})
+public class TinyLFUCacheTest extends TestCase {
+    private static Log log = LogFactory.getLog(TinyLFUCacheTest.class);
+
+    public TinyLFUCacheTest(String name) {
+        super(name);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public static Test suite() {
+        return new TestSuite(TinyLFUCacheTest.class);
+    }
+
+    public void testSketch() {
+        FrequencySketch sketch = new FrequencySketch(100);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("foo");
+        }
+        sketch.increment("bar");
+        assertEquals("foo should be counted 5 times", 5, sketch.frequency("foo"));
+        assertEquals("bar should be counted once", 1, sketch.frequency("bar"));
+        assertEquals("zoo should not be counted", 0, sketch.frequency("zoo"));
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("foo");
+        }
+        assertEquals("The counters should saturate at 15", 15, sketch.frequency("foo"));
+        for (int i = 0; i < 1000; i++) {
+            sketch.increment(i);
+        }
+        assertTrue("The counters should be halved when the sample is full",
+                   sketch.frequency("foo") < 15);
+    }
+
+    public void testMapContract() {
+        TinyLFUCache<String, String> cache = new TinyLFUCache<String, String>(3, true);
+        assertNull(cache.put("test1", "test1value"));
+        assertEquals("test1value", cache.put("test1", "other"));
+        assertEquals("other", cache.get("test1"));
+        cache.put("test2", "test2value");
+        cache.put("test3", "test3value");
+        assertEquals(3, cache.size());
+        assertTrue(cache.containsKey("test2"));
+        assertTrue(cache.containsValue("test3value"));
+        assertEquals("test2value", cache.remove("test2"));
+        assertEquals(2, cache.size());
+        cache.clear();
+        assertTrue(cache.isEmpty());
+        assertNull(cache.get("test1"));
+    }
+
+    public void testNullKey() {
+        TinyLFUCache<String, String> cache = new TinyLFUCache<String, String>(3, true);
+        assertNull(cache.put(null, "nullvalue"));
+        assertTrue("The null key should be contained", cache.containsKey(null));
+        assertEquals("nullvalue", cache.get(null));
+        assertEquals("nullvalue", cache.put(null, "other"));
+        assertEquals("other", cache.remove(null));
+        assertFalse("The null key should be removed", cache.containsKey(null));
+    }
+
+    public void testBounded() {
+        TinyLFUCache<Integer, Integer> cache = new TinyLFUCache<Integer, Integer>(100, true);
+        Random random = new Random(87);
+        for (int i = 0; i < 10000; i++) {
+            int key = random.nextInt(1000);
+            if (cache.get(key) == null) {
+                cache.put(key, key);
+            }
+            assertTrue("The size should never exceed the capacity", cache.size() <= 100);
+        }
+        for (Map.Entry<Integer, Integer> entry : cache.entrySet()) {
+            assertEquals("The entries should be consistent", entry.getKey(), entry.getValue());
+        }
+    }
+
+    public void testEntrySetRemove() {
+        TinyLFUCache<Integer, Integer> cache = new TinyLFUCache<Integer, Integer>(10, true);
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, i);
+            cache.get(i);
+        }
+        Iterator<Map.Entry<Integer, Integer>> iterator = cache.entrySet().iterator();
+        int count = 0;
+        while (iterator.hasNext()) {
+            if (iterator.next().getKey() % 2 == 0) {
+                iterator.remove();
+            }
+            count++;
+        }
+        assertEquals("All entries should be iterated", 10, count);
+        assertEquals("The even keys should be removed", 5, cache.size());
+        assertFalse(cache.containsKey(2));
+        assertTrue(cache.containsKey(3));
+    }
+
+    public void testScanResistance() {
+        TinyLFUCache<Integer, Integer> cache = new TinyLFUCache<Integer, Integer>(100, true);
+        for (int round = 0; round < 10; round++) {
+            for (int key = 0; key < 50; key++) {
+                access(cache, key);
+            }
+        }
+        // The sketch ages after 10 * capacity increments, so the scan is
+        // kept shorter than that
+        for (int key = 1000; key < 1300; key++) {
+            access(cache, key);
+        }
+        int hot = 0;
+        for (int key = 0; key < 50; key++) {
+            if (cache.containsKey(key)) {
+                hot++;
+            }
+        }
+        assertEquals("The hot keys should survive a scan", 50, hot);
+    }
+
+    public void testHitRateTraces() {
+        final int CACHE_SIZE = 1000;
+        final int ACCESSES = 300000;
+        int[] zipf = zipfTrace(new Random(87), 50000, 0.9, ACCESSES);
+        int[] scan = scanTrace(new Random(88), 5000, CACHE_SIZE * 5, 20000, ACCESSES);
+
+        for (Object[] trace : new Object[][]{{"Zipfian", zipf}, {"Scan-heavy", scan}}) {
+            int[] keys = (int[]) trace[1];
+            double lru = hitRate(new LRUCache<Integer, Integer>(CACHE_SIZE, true), keys);
+            double tiny = hitRate(new TinyLFUCache<Integer, Integer>(CACHE_SIZE, true), keys);
+            String report = String.format("%s trace with %d accesses and cache size %d: LRU hit rate %.3f, "
+                                          + "TinyLFU hit rate %.3f", trace[0], keys.length, CACHE_SIZE, lru, tiny);
+            log.info(report);
+            System.out.println(report);
+            assertTrue(report + ". TinyLFU should not be worse than LRU", tiny >= lru);
+        }
+    }
+
+    private void access(Map<Integer, Integer> cache, int key) {
+        if (cache.get(key) == null) {
+            cache.put(key, key);
+        }
+    }
+
+    private double hitRate(Map<Integer, Integer> cache, int[] keys) {
+        int hits = 0;
+        for (int key : keys) {
+            if (cache.get(key) == null) {
+                cache.put(key, key);
+            } else {
+                hits++;
+            }
+        }
+        return (double) hits / keys.length;
+    }
+
+    /**
+     * @return keys from 0 to items-1 with a Zipfian distribution.
+     */
+    static int[] zipfTrace(Random random, int items, double skew, int length) {
+        double[] cumulative = new double[items];
+        double sum = 0;
+        for (int i = 0; i < items; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            cumulative[i] = sum;
+        }
+        int[] trace = new int[length];
+        for (int i = 0; i < length; i++) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            trace[i] = index < 0 ? Math.min(items - 1, -index - 1) : index;
+        }
+        return trace;
+    }
+
+    /**
+     * @return a Zipfian trace over a hot set, interrupted every interval
+     *         accesses by a scan of scanLength keys that are never repeated.
+     */
+    static int[] scanTrace(Random random, int hotItems, int scanLength, int interval, int length) {
+        int[] hot = zipfTrace(random, hotItems, 0.8, length);
+        int[] trace = new int[length];
+        int next = hotItems;
+        int h = 0;
+        for (int i = 0; i < length; ) {
+            for (int j = 0; j < interval && i < length; j++) {
+                trace[i++] = hot[h++];
+            }
+            for (int j = 0; j < scanLength && i < length; j++) {
+                trace[i++] = next++;
+            }
+        }
+        return trace;
+    }
+}
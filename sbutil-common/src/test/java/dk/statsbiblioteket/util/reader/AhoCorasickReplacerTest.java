@@ -0,0 +1,179 @@
+package dk.statsbiblioteket.util.reader;
+
+import dk.statsbiblioteket.util.Strings;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * AhoCorasickReplacer Tester.
+ */
+@SuppressWarnings({"DuplicateStringLiteralInspection"})
+public class AhoCorasickReplacerTest extends TestCase {
+    public AhoCorasickReplacerTest(String name) {
+        super(name);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public static Test suite() {
+        return new TestSuite(AhoCorasickReplacerTest.class);
+    }
+
+    public void testSimpleReplacement() throws IOException {
+        Map<String, String> map = new HashMap<String, String>(10);
+        map.put("a", "foo");
+        map.put("b", "bar");
+        assertEquals("Simple replacement should work",
+                     "mfoonyfooffool bar", getReplaced(map, "manyafal b"));
+    }
+
+    public void testPriority() throws IOException {
+        Map<String, String> map = new HashMap<String, String>(10);
+        map.put("a", "foo");
+        map.put("aa", "bar");
+        assertEquals("Priority should work for foo and bar",
+                     "barfoo", getReplaced(map, "aaa"));
+        map.put("aaa", "zoo");
+        assertEquals("Zoo-priority should work",
+                     "zoo", getReplaced(map, "aaa"));
+    }
+
+    public void testMisc() throws IOException {
+        Map<String, String> map = new HashMap<String, String>(10);
+        map.put("a", "foo");
+        map.put("aa", "bar");
+        map.put("aaa", "zoo");
+        assertEquals("None-test should work",
+                     "ffreege", getReplaced(map, "ffreege"));
+
+        map.put("baa", "zap");
+        assertEquals("Mix-test should work",
+                     "barzapfoo", getReplaced(map, "aabaaa"));
+
+        assertEquals("no-input-test should work",
+                     "", getReplaced(map, ""));
+
+        map.clear();
+        assertEquals("No-rules-test should work",
+                     "klamm", getReplaced(map, "klamm"));
+    }
+
+    public void testLeftmostBeforeLonger() throws IOException {
+        Map<String, String> map = new HashMap<String, String>(10);
+        map.put("abcd", "1");
+        map.put("bc", "2");
+        map.put("cdef", "3");
+        assertEquals("The earliest starting target should win",
+                     "1ef", getReplaced(map, "abcdef"));
+        assertEquals("A suffix match should be used when the longer fails",
+                     "a2x", getReplaced(map, "abcx"));
+        assertEquals("An earlier target should block a later overlapping one",
+                     "x2def", getReplaced(map, "xbcdef"));
+
+        map.clear();
+        map.put("abx", "1");
+        map.put("bcd", "2");
+        assertEquals("Failure links should be followed",
+                     "a2", getReplaced(map, "abcd"));
+    }
+
+    public void testComplex() throws Exception {
+        Map<String, String> rules = new HashMap<String, String>(10);
+        rules.put(StringReplacerTest.JAVASCRIPT, "");
+        assertEquals("Complex replacement should work",
+                     "foo", getReplaced(rules, StringReplacerTest.JAVASCRIPT
+                                               + "foo"));
+    }
+
+    public void testLongInput() throws Exception {
+        Map<String, String> map = new HashMap<String, String>(10);
+        map.put("ab", "X");
+        StringWriter in = new StringWriter();
+        StringWriter expected = new StringWriter();
+        for (int i = 0; i < 10000; i++) {
+            in.append("zab");
+            expected.append("zX");
+        }
+        assertEquals("Input spanning several windows should work",
+                     expected.toString(), getReplaced(map, in.toString()));
+    }
+
+    public void testSetSource() throws Exception {
+        AhoCorasickReplacer rep = new AhoCorasickReplacer(
+                new StringReader("foo"), new HashMap<String, String>());
+        assertEquals("foo", Strings.flushLocal(rep));
+
+        rep.setSource(new StringReader("bar"));
+        assertEquals("bar", Strings.flushLocal(rep));
+
+        rep.setSource(new StringReader(""));
+        assertEquals("", Strings.flushLocal(rep));
+    }
+
+    public void testCircularSource() throws Exception {
+        Map<String, String> map = new HashMap<String, String>(10);
+        map.put("oo", "0");
+        AhoCorasickReplacer rep = new AhoCorasickReplacer(map);
+        CircularCharBuffer source = new CircularCharBuffer(10, 100);
+        source.put("foo bar boo");
+        rep.setSource(source);
+        CircularCharBuffer actual = new CircularCharBuffer(10, 100);
+        rep.read(actual, Integer.MAX_VALUE);
+        assertEquals("f0 bar b0", actual.toString());
+    }
+
+    public void testMonkeyAgainstStringReplacer() throws Exception {
+        Random random = new Random(87);
+        for (int ruleCount : new int[]{1, 10, 100, 1000}) {
+            for (int maxLength : new int[]{1, 3, 5, 10}) {
+                Map<String, String> rules =
+                        ReplacePerformanceTest.getRangeReplacements(
+                                ruleCount, 1, maxLength, 0, 5);
+                AhoCorasickReplacer ac = new AhoCorasickReplacer(rules);
+                StringReplacer sr = new StringReplacer(rules);
+                for (int i = 0; i < 20; i++) {
+                    String input = ReplacePerformanceTest.randomWord(
+                            random, 0, 1000);
+                    String expected = sr.transform(input);
+                    assertEquals("transform with " + ruleCount + " rules of max"
+                                 + " length " + maxLength + " should match",
+                                 expected, ac.transform(input));
+                    ac.setSource(new StringReader(input));
+                    assertEquals("Stream with " + ruleCount + " rules of max"
+                                 + " length " + maxLength + " should match",
+                                 expected, Strings.flushLocal(ac));
+                }
+            }
+        }
+    }
+
+    private String getReplaced(Map<String, String> map, String source)
+            throws IOException {
+        AhoCorasickReplacer replacer =
+                new AhoCorasickReplacer(new StringReader(source), map);
+        StringWriter sw = new StringWriter(100);
+        int c;
+        while ((c = replacer.read()) != -1) {
+            sw.append((char) c);
+        }
+        assertEquals("transform should match the stream result for '"
+                     + source + "'", sw.toString(), replacer.transform(source));
+        return sw.toString();
+    }
+}
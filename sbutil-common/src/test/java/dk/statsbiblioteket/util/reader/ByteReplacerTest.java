@@ -0,0 +1,165 @@
+package dk.statsbiblioteket.util.reader;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * ByteReplacer Tester.
+ */
+@SuppressWarnings({"DuplicateStringLiteralInspection"})
+public class ByteReplacerTest extends TestCase {
+    public ByteReplacerTest(String name) {
+        super(name);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public static Test suite() {
+        return new TestSuite(ByteReplacerTest.class);
+    }
+
+    public void testSimpleReplacement() throws IOException {
+        Map<String, String> map = new HashMap<String, String>(10);
+        map.put("a", "foo");
+        map.put("b", "bar");
+        assertEquals("Simple replacement should work",
+                     "mfoonyfooffool bar", getReplaced(map, "manyafal b"));
+    }
+
+    public void testPriority() throws IOException {
+        Map<String, String> map = new HashMap<String, String>(10);
+        map.put("a", "foo");
+        map.put("aa", "bar");
+        assertEquals("Priority should work for foo and bar",
+                     "barfoo", getReplaced(map, "aaa"));
+        map.put("aaa", "zoo");
+        assertEquals("Zoo-priority should work",
+                     "zoo", getReplaced(map, "aaa"));
+        map.put("", "empty");
+        assertEquals("Empty targets should be ignored",
+                     "zoo", getReplaced(map, "aaa"));
+    }
+
+    public void testMultiByte() throws IOException {
+        Map<String, String> map = new HashMap<String, String>(10);
+        map.put("æ", "ae");
+        map.put("ø", "oe");
+        map.put("aa", "å");
+        map.put("𝄞", "clef");
+        assertEquals("Multi byte targets and replacements should work",
+                     "aeble oe åb clefå",
+                     getReplaced(map, "æble ø aab 𝄞aa"));
+        assertEquals("Chars sharing leading bytes with targets should pass",
+                     "çé", getReplaced(map, "çé"));
+    }
+
+    public void testExpressible() {
+        Map<String, String> map = new HashMap<String, String>(10);
+        map.put("a", "𝄞");
+        assertTrue("Surrogate pairs should be expressible",
+                   ByteReplacer.isExpressible(map));
+        map.put("b", "\ud834");
+        assertFalse("Unpaired surrogates should not be expressible",
+                    ByteReplacer.isExpressible(map));
+        try {
+            ReplaceFactory.getByteReplacer(null, map);
+            fail("Creating a replacer from inexpressible rules should fail");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testSetSource() throws Exception {
+        Map<String, String> map = new HashMap<String, String>(10);
+        map.put("o", "0");
+        ByteReplacer replacer = ReplaceFactory.getByteReplacer(
+                new ByteArrayInputStream(utf8("foo")), map);
+        assertEquals("f00", flush(replacer));
+        replacer.setSource(new ByteArrayInputStream(utf8("boo")));
+        assertEquals("b00", flush(replacer));
+        replacer.setSource(new ByteArrayInputStream(new byte[0]));
+        assertEquals("", flush(replacer));
+    }
+
+    public void testSkip() throws Exception {
+        Map<String, String> map = new HashMap<String, String>(10);
+        map.put("a", "xyz");
+        ByteReplacer replacer = new ByteReplacer(
+                new ByteArrayInputStream(utf8("aba")), map);
+        assertEquals("Skip should count replaced bytes", 4, replacer.skip(4));
+        assertEquals("xyz", flush(replacer));
+    }
+
+    public void testMonkeyAgainstStringReplacer() throws Exception {
+        Random random = new Random(87);
+        for (int ruleCount : new int[]{1, 10, 100, 1000}) {
+            for (int maxLength : new int[]{1, 3, 5, 10}) {
+                Map<String, String> rules = new HashMap<String, String>(
+                        ReplacePerformanceTest.getRangeReplacements(
+                                ruleCount, 1, maxLength, 0, 5));
+                rules.put("æø", "å");
+                ByteReplacer br = new ByteReplacer(null, rules);
+                StringReplacer sr = new StringReplacer(rules);
+                for (int i = 0; i < 20; i++) {
+                    String input = ReplacePerformanceTest.randomWord(
+                            random, 0, 20000) + "æø";
+                    String expected = sr.transform(input);
+                    assertEquals("transform with " + ruleCount + " rules of max"
+                                 + " length " + maxLength + " should match",
+                                 expected,
+                                 new String(br.transform(utf8(input)), "utf-8"));
+                    br.setSource(new ByteArrayInputStream(utf8(input)));
+                    assertEquals("Stream with " + ruleCount + " rules of max"
+                                 + " length " + maxLength + " should match",
+                                 expected, flush(br));
+                }
+            }
+        }
+    }
+
+    private String getReplaced(Map<String, String> map, String source)
+            throws IOException {
+        ByteReplacer replacer = new ByteReplacer(
+                new ByteArrayInputStream(utf8(source)), map);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = replacer.read()) != -1) {
+            out.write(b);
+        }
+        assertEquals("transform should match the stream result for '"
+                     + source + "'", out.toString("utf-8"),
+                     new String(replacer.transform(utf8(source)), "utf-8"));
+        return out.toString("utf-8");
+    }
+
+    private String flush(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[100];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("utf-8");
+    }
+
+    private static byte[] utf8(String s) throws IOException {
+        return s.getBytes("utf-8");
+    }
+}
@@ -57,6 +57,17 @@ public class CircularCharBufferTest extends TestCase {
         }
     }
 
+    public void testExtendWithOffset() {
+        CircularCharBuffer b = new CircularCharBuffer(10, 100);
+        b.put("abcd".toCharArray());
+        b.take();
+        b.take();
+        // The content does not start at index 0 when the buffer grows
+        b.put("efghijklm".toCharArray());
+        assertEquals("The content should survive growth",
+                     "cdefghijklm", b.toString());
+    }
+
     public void testWrap() {
         CircularCharBuffer b = new CircularCharBuffer(2, 3);
         b.put('a');
@@ -0,0 +1,50 @@
+package dk.statsbiblioteket.util.reader;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+
+@SuppressWarnings({"DuplicateStringLiteralInspection"})
+public class CircularIntBufferTest extends TestCase {
+    public CircularIntBufferTest(String name) {
+        super(name);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public static Test suite() {
+        return new TestSuite(CircularIntBufferTest.class);
+    }
+
+    public void testExtendWithOffset() {
+        CircularIntBuffer b = new CircularIntBuffer(10, 100);
+        b.put(new int[]{1, 2, 3, 4});
+        b.take();
+        b.take();
+        // The content does not start at index 0 when the buffer grows
+        b.put(new int[]{5, 6, 7, 8, 9, 10, 11, 12, 13});
+        assertTrue("The content should survive growth", Arrays.equals(
+                new int[]{3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13}, b.takeAll()));
+    }
+
+    public void testExtendWrapped() {
+        CircularIntBuffer b = new CircularIntBuffer(4, 100);
+        b.put(new int[]{1, 2, 3});
+        b.take();
+        b.take();
+        // The content wraps around the end of the array when the buffer grows
+        b.put(new int[]{4, 5, 6, 7});
+        assertTrue("The wrapped content should survive growth", Arrays.equals(
+                new int[]{3, 4, 5, 6, 7}, b.takeAll()));
+    }
+}
@@ -0,0 +1,121 @@
+package dk.statsbiblioteket.util.reader;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+@SuppressWarnings({"DuplicateStringLiteralInspection"})
+public class DirectCircularCharBufferTest extends TestCase {
+    public DirectCircularCharBufferTest(String name) {
+        super(name);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public static Test suite() {
+        return new TestSuite(DirectCircularCharBufferTest.class);
+    }
+
+    public void testWrapAndGrow() {
+        DirectCircularCharBuffer b = new DirectCircularCharBuffer(4, 100);
+        b.put("abc");
+        assertEquals('a', b.take());
+        assertEquals('b', b.take());
+        b.put("def");
+        assertEquals("The content should wrap", "cdef", b.toString());
+        assertEquals(4, b.getCapacity());
+        b.put('g');
+        assertEquals("Growth should preserve wrapped content",
+                     "cdefg", b.toString());
+        assertEquals(8, b.getCapacity());
+        assertEquals('e', b.peek(2));
+        char[] chars = new char[10];
+        assertEquals(5, b.read(chars, 1, 10));
+        assertEquals("cdefg", new String(chars, 1, 5));
+        assertEquals(-1, b.read());
+        try {
+            b.take();
+            fail("take() on an empty buffer should fail");
+        } catch (NoSuchElementException e) {
+            // Expected
+        }
+        b.close();
+    }
+
+    public void testMax() {
+        DirectCircularCharBuffer b = new DirectCircularCharBuffer(2, 3);
+        b.put("abc");
+        try {
+            b.put('d');
+            fail("Adding four chars should overflow the buffer");
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // Expected
+        }
+        assertEquals("abc", b.takeString());
+        assertEquals("The maximum should be capped",
+                     DirectCircularCharBuffer.MAX_CAPACITY,
+                     new DirectCircularCharBuffer(
+                             1, Integer.MAX_VALUE).getMaximumCapacity());
+    }
+
+    public void testClose() {
+        DirectCircularCharBuffer b = new DirectCircularCharBuffer(1024, 1024);
+        b.put("foo");
+        b.close();
+        assertTrue("The buffer should be empty after close", b.isEmpty());
+        b.close(); // Repeated close should be harmless
+    }
+
+    public void testMonkeyAgainstCircular() {
+        Random random = new Random(87);
+        CircularBuffer.OfChar direct = new DirectCircularCharBuffer(1, 1000);
+        CircularBuffer.OfChar circular = new CircularCharBuffer(1, 1000);
+        char[] chars = new char[50];
+        for (int i = 0; i < 10000; i++) {
+            switch (random.nextInt(4)) {
+                case 0: {
+                    char c = (char) ('a' + random.nextInt(26));
+                    if (circular.size() < 1000) {
+                        direct.put(c);
+                        circular.put(c);
+                    }
+                    break;
+                }
+                case 1: {
+                    String s = ReplacePerformanceTest.randomWord(
+                            random, 0, 20);
+                    if (circular.size() + s.length() <= 1000) {
+                        direct.put(s.toCharArray(), 0, s.length());
+                        circular.put(s.toCharArray(), 0, s.length());
+                    }
+                    break;
+                }
+                case 2: {
+                    int len = random.nextInt(chars.length);
+                    assertEquals(circular.read(chars, 0, len),
+                                 direct.read(chars, 0, len));
+                    break;
+                }
+                default: {
+                    if (!circular.isEmpty()) {
+                        int ahead = random.nextInt(circular.size());
+                        assertEquals(circular.peek(ahead), direct.peek(ahead));
+                    }
+                }
+            }
+            assertEquals(circular.toString(), direct.toString());
+        }
+        direct.close();
+    }
+}
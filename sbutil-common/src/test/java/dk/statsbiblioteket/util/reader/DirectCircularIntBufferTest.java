@@ -0,0 +1,105 @@
+package dk.statsbiblioteket.util.reader;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+@SuppressWarnings({"DuplicateStringLiteralInspection"})
+public class DirectCircularIntBufferTest extends TestCase {
+    public DirectCircularIntBufferTest(String name) {
+        super(name);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public static Test suite() {
+        return new TestSuite(DirectCircularIntBufferTest.class);
+    }
+
+    public void testWrapAndGrow() {
+        DirectCircularIntBuffer b = new DirectCircularIntBuffer(4, 100);
+        b.put(new int[]{1, 2, 3});
+        assertEquals(1, b.take());
+        assertEquals(2, b.take());
+        b.put(new int[]{4, 5, 6});
+        assertEquals(4, b.getCapacity());
+        b.put(7);
+        assertEquals(8, b.getCapacity());
+        assertEquals(5, b.peek(2));
+        assertTrue("Growth should preserve wrapped content", Arrays.equals(
+                new int[]{3, 4, 5, 6, 7}, b.takeAll()));
+        try {
+            b.take();
+            fail("take() on an empty buffer should fail");
+        } catch (NoSuchElementException e) {
+            // Expected
+        }
+        b.close();
+        b.close();
+    }
+
+    public void testMax() {
+        DirectCircularIntBuffer b = new DirectCircularIntBuffer(1, 2);
+        b.put(1);
+        b.put(2);
+        try {
+            b.put(3);
+            fail("Adding three values should overflow the buffer");
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // Expected
+        }
+        b.close();
+    }
+
+    public void testMonkeyAgainstCircular() {
+        Random random = new Random(88);
+        CircularBuffer.OfInt direct = new DirectCircularIntBuffer(1, 1000);
+        CircularBuffer.OfInt circular = new CircularIntBuffer(1, 1000);
+        int[] directValues = new int[50];
+        int[] circularValues = new int[50];
+        for (int i = 0; i < 10000; i++) {
+            switch (random.nextInt(3)) {
+                case 0: {
+                    int[] values = new int[random.nextInt(20)];
+                    for (int j = 0; j < values.length; j++) {
+                        values[j] = random.nextInt();
+                    }
+                    if (circular.size() + values.length <= 1000) {
+                        direct.put(values);
+                        circular.put(values);
+                    }
+                    break;
+                }
+                case 1: {
+                    int len = random.nextInt(directValues.length);
+                    int moved = circular.read(circularValues, 0, len);
+                    assertEquals(moved, direct.read(directValues, 0, len));
+                    for (int j = 0; j < moved; j++) {
+                        assertEquals(circularValues[j], directValues[j]);
+                    }
+                    break;
+                }
+                default: {
+                    if (!circular.isEmpty()) {
+                        int ahead = random.nextInt(circular.size());
+                        assertEquals(circular.peek(ahead), direct.peek(ahead));
+                    }
+                }
+            }
+            assertEquals(circular.size(), direct.size());
+        }
+        direct.close();
+    }
+}
@@ -0,0 +1,141 @@
+package dk.statsbiblioteket.util.reader;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.nio.CharBuffer;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+@SuppressWarnings({"DuplicateStringLiteralInspection"})
+public class MaskedCharBufferTest extends TestCase {
+    public MaskedCharBufferTest(String name) {
+        super(name);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public static Test suite() {
+        return new TestSuite(MaskedCharBufferTest.class);
+    }
+
+    public void testPowerOfTwo() {
+        assertEquals(4, new MaskedCharBuffer(3, 100).getCapacity());
+        assertEquals(4, new MaskedCharBuffer(4, 100).getCapacity());
+        assertEquals(1, new MaskedCharBuffer(0, 100).getCapacity());
+        MaskedCharBuffer b = new MaskedCharBuffer(2, 100);
+        b.put("abcde");
+        assertEquals("Growth should be to a power of two",
+                     8, b.getCapacity());
+    }
+
+    public void testMax() {
+        MaskedCharBuffer b = new MaskedCharBuffer(2, 3);
+        b.put('a');
+        b.put("bc");
+        try {
+            b.put('d');
+            fail("Adding four chars should overflow the buffer");
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // Expected
+        }
+        try {
+            b.put(new char[]{'d', 'e'});
+            fail("Adding five chars should overflow the buffer");
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // Expected
+        }
+        assertEquals("abc", b.toString());
+        assertEquals("The maximum should be capped at the largest power of two",
+                     MaskedCharBuffer.MAX_CAPACITY,
+                     new MaskedCharBuffer(2, Integer.MAX_VALUE).getMaximumCapacity());
+    }
+
+    public void testWrap() {
+        MaskedCharBuffer b = new MaskedCharBuffer(4, 4);
+        b.put("abc");
+        assertEquals('a', b.take());
+        assertEquals('b', b.take());
+        b.put("def");
+        assertEquals("The content should wrap", "cdef", b.toString());
+        assertEquals('e', b.peek(2));
+        assertEquals(4, b.getCapacity());
+        char[] chars = new char[10];
+        assertEquals(4, b.read(chars, 1, 10));
+        assertEquals("cdef", new String(chars, 1, 4));
+        assertEquals(-1, b.read(chars, 0, 10));
+        try {
+            b.take();
+            fail("take() on an empty buffer should fail");
+        } catch (NoSuchElementException e) {
+            // Expected
+        }
+    }
+
+    public void testCharBufferView() {
+        MaskedCharBuffer b = new MaskedCharBuffer(4, 100);
+        b.put("xyab");
+        b.skip(2);
+        b.put("cd");
+        CharBuffer view = b.asCharBuffer();
+        assertEquals("The view should contain the wrapped content",
+                     "abcd", view.toString());
+        assertTrue("The view should be array-backed", view.hasArray());
+        b.skip(1);
+        assertEquals("bcd", b.asCharBuffer().toString());
+
+        CharBuffer target = CharBuffer.allocate(2);
+        assertEquals(2, b.read(target));
+        assertEquals("d", b.toString());
+    }
+
+    public void testMonkeyAgainstCircular() {
+        Random random = new Random(87);
+        MaskedCharBuffer masked = new MaskedCharBuffer(1, 1000);
+        CircularCharBuffer circular = new CircularCharBuffer(1, 1000);
+        char[] chars = new char[50];
+        for (int i = 0; i < 10000; i++) {
+            switch (random.nextInt(4)) {
+                case 0: {
+                    char c = (char) ('a' + random.nextInt(26));
+                    if (circular.size() < 1000) {
+                        masked.put(c);
+                        circular.put(c);
+                    }
+                    break;
+                }
+                case 1: {
+                    String s = ReplacePerformanceTest.randomWord(
+                            random, 0, 20);
+                    if (circular.size() + s.length() <= 1000) {
+                        masked.put(s.toCharArray(), 0, s.length());
+                        circular.put(s.toCharArray());
+                    }
+                    break;
+                }
+                case 2: {
+                    int len = random.nextInt(chars.length);
+                    assertEquals(circular.read(chars, 0, len),
+                                 masked.read(chars, 0, len));
+                    break;
+                }
+                default: {
+                    if (!circular.isEmpty()) {
+                        int ahead = random.nextInt(circular.size());
+                        assertEquals(circular.peek(ahead), masked.peek(ahead));
+                    }
+                }
+            }
+            assertEquals(circular.toString(), masked.toString());
+        }
+    }
+}
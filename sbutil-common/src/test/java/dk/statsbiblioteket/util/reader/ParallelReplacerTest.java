@@ -0,0 +1,116 @@
+package dk.statsbiblioteket.util.reader;
+
+import dk.statsbiblioteket.util.Files;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * ParallelReplacer Tester. The output must be identical to StringReplacer.
+ */
+@SuppressWarnings({"DuplicateStringLiteralInspection"})
+public class ParallelReplacerTest extends TestCase {
+    public ParallelReplacerTest(String name) {
+        super(name);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public static Test suite() {
+        return new TestSuite(ParallelReplacerTest.class);
+    }
+
+    public void testSimple() throws Exception {
+        Map<String, String> rules = new HashMap<String, String>();
+        rules.put("foo", "bar");
+        rules.put("o", "0");
+        assertEquals("Simple replacement should work",
+                     "bar f0 zbar", new ParallelReplacer(rules, 2, 3).
+                replace("foo fo zfoo"));
+        assertEquals("Empty input should work",
+                     "", new ParallelReplacer(rules, 2, 3).replace(""));
+        assertEquals("No rules should work", "foo", new ParallelReplacer(
+                new HashMap<String, String>(), 2, 3).replace("foo"));
+    }
+
+    public void testOverlapping() throws Exception {
+        // Overlapping targets force the speculative replacement of chunks
+        // to be out of sync with the previous chunk
+        Map<String, String> rules = new HashMap<String, String>();
+        rules.put("aaa", "X");
+        rules.put("aab", "Y");
+        rules.put("ab", "Z");
+        Random random = new Random(87);
+        for (int i = 0; i < 100; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(500);
+            for (int j = 0; j < length; j++) {
+                sb.append(random.nextInt(5) == 0 ? 'b' : 'a');
+            }
+            assertEquals(sb.toString(), new StringReplacer(rules).transform(
+                    sb.toString()), new ParallelReplacer(
+                    rules, 1 + random.nextInt(4),
+                    1 + random.nextInt(20)).replace(sb.toString()));
+        }
+    }
+
+    public void testMonkeyAgainstStringReplacer() throws Exception {
+        Random random = new Random(88);
+        for (int ruleCount : new int[]{1, 10, 100, 1000}) {
+            for (int maxLength : new int[]{1, 3, 5, 10}) {
+                Map<String, String> rules =
+                        ReplacePerformanceTest.getRangeReplacements(
+                                ruleCount, 1, maxLength, 0, 5);
+                StringReplacer sr = new StringReplacer(rules);
+                for (int chunkSize : new int[]{1, 7, 100, 10000}) {
+                    ParallelReplacer pr = new ParallelReplacer(
+                            rules, 3, chunkSize);
+                    String input = ReplacePerformanceTest.randomWord(
+                            random, 0, 5000);
+                    assertEquals("Replacement with " + ruleCount + " rules of"
+                                 + " max length " + maxLength + " and chunk"
+                                 + " size " + chunkSize + " should match",
+                                 sr.transform(input), pr.replace(input));
+                }
+            }
+        }
+    }
+
+    public void testFile() throws Exception {
+        Map<String, String> rules =
+                ReplacePerformanceTest.getRangeReplacements(100, 1, 5, 0, 5);
+        rules.put("æø", "å");
+        StringBuilder sb = new StringBuilder();
+        Random random = new Random(89);
+        while (sb.length() < 200000) {
+            sb.append(ReplacePerformanceTest.randomWord(random, 0, 50));
+            sb.append("æø ");
+        }
+        File source = File.createTempFile("parallel_source", ".txt");
+        File destination = File.createTempFile("parallel_destination", ".txt");
+        try {
+            Files.saveString(sb.toString(), source);
+            new ParallelReplacer(rules, 4, 1000).replace(
+                    source, destination, "utf-8");
+            assertEquals("The file output should match StringReplacer",
+                         new StringReplacer(rules).transform(sb.toString()),
+                         Files.loadString(destination));
+        } finally {
+            source.delete();
+            destination.delete();
+        }
+    }
+}
@@ -19,13 +19,19 @@
  */
 package dk.statsbiblioteket.util.reader;
 
+import dk.statsbiblioteket.util.Strings;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 public class ReplaceFactoryTest extends TestCase {
     public ReplaceFactoryTest(String name) {
@@ -80,6 +86,83 @@ public class ReplaceFactoryTest extends TestCase {
                    ReplaceFactory.getReplacer(rules) instanceof StringReplacer);
     }
 
+    public void testAhoCorasickThreshold() throws Exception {
+        Map<String, String> rules = ReplacePerformanceTest.getRangeReplacements(
+                ReplaceFactory.AHO_CORASICK_THRESHOLD * 2, 1, 5, 0, 5);
+        assertTrue("Many 1-5=>0-5 rules should yield an AhoCorasickReplacer",
+                   ReplaceFactory.getReplacer(rules) instanceof
+                           AhoCorasickReplacer);
+        assertTrue("Many 1-5=>0-5 rules should yield an AhoCorasickReplacer "
+                   + "with get", new ReplaceFactory(rules).getReplacer()
+                           instanceof AhoCorasickReplacer);
+
+        rules = ReplacePerformanceTest.getRangeReplacements(
+                ReplaceFactory.AHO_CORASICK_THRESHOLD * 2, 1, 1, 1, 1);
+        assertTrue("Many 1=>1 rules should still yield a CharReplacer",
+                   ReplaceFactory.getReplacer(rules) instanceof CharReplacer);
+    }
+
+    public void testSharedRules() throws Exception {
+        Map<String, String> rules =
+                ReplacePerformanceTest.getRangeReplacements(300, 1, 5, 0, 5);
+        ReplaceFactory factory = new ReplaceFactory(rules);
+        assertSame("Replacers from the same factory should share rules",
+                   factory.getRules(),
+                   ((StringReplacer) factory.getReplacer()).getRules());
+        assertSame("Clones should share rules", factory.getRules(),
+                   ((StringReplacer) factory.getReplacer().clone()).getRules());
+        assertEquals("The rule count should be available",
+                     rules.size(), factory.getRules().getRuleCount());
+    }
+
+    public void testConcurrentReplacers() throws Exception {
+        final int THREADS = 8;
+        final int RUNS = 50;
+        for (final Map<String, String> rules : Arrays.asList(
+                ReplacePerformanceTest.getRangeReplacements(300, 1, 1, 1, 1),
+                ReplacePerformanceTest.getRangeReplacements(300, 1, 1, 0, 5),
+                ReplacePerformanceTest.getRangeReplacements(300, 1, 5, 0, 5),
+                ReplacePerformanceTest.getRangeReplacements(
+                        ReplaceFactory.AHO_CORASICK_THRESHOLD, 1, 5, 0, 5))) {
+            final ReplaceFactory factory = new ReplaceFactory(rules);
+            final List<Throwable> failures =
+                    Collections.synchronizedList(new ArrayList<Throwable>());
+            List<Thread> threads = new ArrayList<Thread>(THREADS);
+            for (int t = 0; t < THREADS; t++) {
+                final Random random = new Random(t);
+                threads.add(new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < RUNS; i++) {
+                                String input = ReplacePerformanceTest.randomWord(
+                                        random, 0, 500);
+                                String expected = BaselineReplacerTest.
+                                        getReplacedBaseline(rules, input);
+                                ReplaceReader replacer = factory.getReplacer(
+                                        new StringReader(input));
+                                assertEquals("Stream replacement should work",
+                                             expected, Strings.flush(replacer));
+                                assertEquals("Transform should work", expected,
+                                             factory.getReplacer().transform(input));
+                            }
+                        } catch (Throwable e) {
+                            failures.add(e);
+                        }
+                    }
+                });
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertTrue("There should be no failures for " + factory.getReplacer()
+                       + " but got " + failures, failures.isEmpty());
+        }
+    }
+
     public void testComplexFactory() throws Exception {
         Map<String, String> rules = new HashMap<String, String>(10);
         rules.put(StringReplacerTest.JAVASCRIPT, "");
@@ -11,9 +11,15 @@ import junit.framework.TestSuite;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.util.*;
 
 /**
@@ -73,6 +79,81 @@ public class ReplacePerformanceTest extends TestCase {
         }
     }
 
+    /*
+     * Large normalisation tables, where the number of children at the root
+     * of the rule tree is high.
+     */
+    public void testLargeRuleSets() throws Exception {
+        int GETS = 100000;
+        int RUNS = 2;
+        int REPLACEMENT_TO_MAXLENGTH = 5;
+
+        int[] REPLACEMENT_COUNTS = {1000, 3000};
+        int[] REPLACEMENT_FROM_MAXLENGTHS = {5, 10};
+        for (int rCount : REPLACEMENT_COUNTS) {
+            for (int rMaxLength : REPLACEMENT_FROM_MAXLENGTHS) {
+                log.info("Replacement count: " + rCount
+                         + ", replacement-from max length: " + rMaxLength);
+                System.gc();
+                Map<String, String> replacements = getRangeReplacements(
+                        rCount, rMaxLength, REPLACEMENT_TO_MAXLENGTH);
+                for (int i = 0; i < RUNS; i++) {
+                    genericSpeedTest(GETS, replacements);
+                }
+            }
+        }
+    }
+
+    /*
+     * Compares decoding UTF-8, replacing chars and encoding to UTF-8 with
+     * replacing directly on the bytes.
+     */
+    public void testUTF8ByteVsChar() throws Exception {
+        int RUNS = 3;
+        Map<String, String> rules = new HashMap<String, String>();
+        rules.put("&", "&amp;");
+        rules.put("<", "&lt;");
+        rules.put(">", "&gt;");
+        rules.put("\u00e6", "ae");
+        Random random = new Random(87);
+        StringWriter sw = new StringWriter();
+        for (int i = 0; i < 200000; i++) {
+            sw.append(randomWord(random, 0, 10)).append(
+                    i % 7 == 0 ? " & " : i % 11 == 0 ? "\u00e6" : " ");
+        }
+        byte[] input = sw.toString().getBytes("utf-8");
+        byte[] buffer = new byte[8192];
+        for (int run = 0; run < RUNS; run++) {
+            Profiler profiler = new Profiler();
+            Reader charReplacer = ReplaceFactory.getReplacer(
+                    new InputStreamReader(
+                            new ByteArrayInputStream(input), "utf-8"),
+                    rules);
+            Writer writer = new OutputStreamWriter(
+                    new ByteArrayOutputStream(input.length * 2),
+                    "utf-8");
+            char[] chars = new char[8192];
+            int len;
+            while ((len = charReplacer.read(chars)) != -1) {
+                writer.write(chars, 0, len);
+            }
+            writer.flush();
+            log.info("Replaced " + input.length / 1024 + " KB through chars"
+                     + " in " + profiler.getSpendTime());
+
+            profiler.reset();
+            InputStream byteReplacer = ReplaceFactory.getByteReplacer(
+                    new ByteArrayInputStream(input), rules);
+            ByteArrayOutputStream out =
+                    new ByteArrayOutputStream(input.length * 2);
+            while ((len = byteReplacer.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+            }
+            log.info("Replaced " + input.length / 1024 + " KB through bytes"
+                     + " in " + profiler.getSpendTime());
+        }
+    }
+
     public void testCreation() throws Exception {
         int REPLACEMENTS = 100; // 10000;
         int RUNS = 1; //2;
@@ -154,6 +235,20 @@ public class ReplacePerformanceTest extends TestCase {
                  " replacements from a pool of " + replacements.size()
                  + " from StringReplacer");
 
+        source = getRandomReader(replacements,
+                                 Math.max(2, replacements.size() / 4),
+                                 0.01, reads);
+        AhoCorasickReplacer acReplacer =
+                new AhoCorasickReplacer(source, replacements);
+
+        profiler.reset();
+        emptyReader(acReplacer);
+        log.info(reads + " reads in "
+                 + profiler.getSpendTime() + " with "
+                 + acReplacer.getReplacementCount() +
+                 " replacements from a pool of " + replacements.size()
+                 + " from AhoCorasickReplacer");
+
         source = getRandomReader(replacements,
                                  Math.max(2, replacements.size() / 4),
                                  0.01, reads);
@@ -0,0 +1,163 @@
+package dk.statsbiblioteket.util.reader;
+
+import dk.statsbiblioteket.util.Strings;
+import dk.statsbiblioteket.util.xml.NamespaceRemover;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * ReplacePipeline and PipelineReplacer Tester.
+ */
+@SuppressWarnings({"DuplicateStringLiteralInspection"})
+public class ReplacePipelineTest extends TestCase {
+    public ReplacePipelineTest(String name) {
+        super(name);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public static Test suite() {
+        return new TestSuite(ReplacePipelineTest.class);
+    }
+
+    public void testComposition() throws Exception {
+        Map<String, String> first = new HashMap<String, String>();
+        first.put("a", "b");
+        first.put("c", "ab");
+        Map<String, String> second = new HashMap<String, String>();
+        second.put("b", "x");
+        second.put("a", "yy");
+        ReplacePipeline pipeline =
+                new ReplacePipeline().addRules(first).addRules(second);
+        assertEquals("The char based rules should be composed",
+                     1, pipeline.getStageCount());
+        String input = "abcdcba";
+        String expected = new CharArrayReplacer(second).transform(
+                new CharArrayReplacer(first).transform(input));
+        assertEquals("The composed rules should work as applied in sequence",
+                     expected, Strings.flushLocal(
+                pipeline.newReplacer(new StringReader(input))));
+    }
+
+    public void testNoCompositionOfStrings() throws Exception {
+        Map<String, String> first = new HashMap<String, String>();
+        first.put("a", "b");
+        Map<String, String> second = new HashMap<String, String>();
+        second.put("bb", "x");
+        ReplacePipeline pipeline =
+                new ReplacePipeline().addRules(first).addRules(second);
+        assertEquals("Rules with multi char targets should not be composed",
+                     2, pipeline.getStageCount());
+        assertEquals("xcx", pipeline.newReplacer(null).transform("abcba"));
+    }
+
+    public void testEqualsStacked() throws Exception {
+        Map<String, String> strings =
+                ReplacePerformanceTest.getRangeReplacements(100, 1, 5, 0, 5);
+        Map<String, String> chars =
+                ReplacePerformanceTest.getRangeReplacements(20, 1, 1, 1, 1);
+        ReplacePipeline pipeline = new ReplacePipeline().
+                addTransformer(new NamespaceRemover(null)).
+                addRules(strings).
+                addRules(chars);
+        Random random = new Random(87);
+        for (int i = 0; i < 20; i++) {
+            String input = randomXML(random, 10000);
+            Reader stacked = ReplaceFactory.getReplacer(
+                    ReplaceFactory.getReplacer(
+                            new NamespaceRemover(new StringReader(input)),
+                            strings), chars);
+            assertEquals("The pipeline should match stacked readers",
+                         Strings.flushLocal(stacked),
+                         Strings.flushLocal(pipeline.newReplacer(
+                                 new StringReader(input))));
+        }
+    }
+
+    public void testCounters() throws Exception {
+        Map<String, String> rules = new HashMap<String, String>();
+        rules.put("ab", "x");
+        Map<String, String> chars = new HashMap<String, String>();
+        chars.put("x", "yz");
+        PipelineReplacer replacer = new ReplacePipeline().
+                addRules(rules).addRules(chars).
+                newReplacer(new StringReader("abcab"));
+        assertEquals("yzcyz", Strings.flushLocal(replacer));
+        List<PipelineReplacer.Stage> stages = replacer.getStages();
+        assertEquals("There should be 2 stages", 2, stages.size());
+        assertEquals("Stage 1 in", 5, stages.get(0).getCharsIn());
+        assertEquals("Stage 1 out", 3, stages.get(0).getCharsOut());
+        assertEquals("Stage 2 in", 3, stages.get(1).getCharsIn());
+        assertEquals("Stage 2 out", 5, stages.get(1).getCharsOut());
+    }
+
+    public void testGrowth() throws Exception {
+        StringBuilder sb = new StringBuilder("<foo:bar ");
+        for (int i = 0; i < PipelineReplacer.BUFFER_SIZE; i++) {
+            sb.append("a");
+        }
+        sb.append("=\"b\">content</foo:bar>");
+        String input = sb.toString();
+        Map<String, String> rules = new HashMap<String, String>();
+        rules.put("content", "c");
+        ReplacePipeline pipeline = new ReplacePipeline().
+                addTransformer(new NamespaceRemover(null)).
+                addTransformer(new BaselineReplacer(new StringReader(""), rules));
+        String expected = BaselineReplacerTest.getReplacedBaseline(
+                rules, Strings.flushLocal(
+                new NamespaceRemover(new StringReader(input))));
+        assertEquals("A tag longer than the buffers should be processed",
+                     expected, Strings.flushLocal(
+                pipeline.newReplacer(new StringReader(input))));
+    }
+
+    public void testEmpty() throws Exception {
+        assertEquals("A pipeline without stages should copy",
+                     "foo", Strings.flushLocal(new ReplacePipeline().
+                newReplacer(new StringReader("foo"))));
+        PipelineReplacer replacer = new ReplacePipeline().
+                addTransformer(new NamespaceRemover(null)).
+                newReplacer(new StringReader(""));
+        assertEquals("Empty input should work", "",
+                     Strings.flushLocal(replacer));
+        replacer.setSource(new StringReader("<a:b/>"));
+        assertEquals("Reuse should work", "<b/>",
+                     Strings.flushLocal(replacer));
+    }
+
+    private String randomXML(Random random, int maxLength) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < maxLength) {
+            switch (random.nextInt(5)) {
+                case 0:
+                    sb.append("<ns:tag xmlns:ns=\"http://example.com\">");
+                    break;
+                case 1:
+                    sb.append("</ns:tag>");
+                    break;
+                case 2:
+                    sb.append("<!-- <ns:c> -->");
+                    break;
+                default:
+                    sb.append(ReplacePerformanceTest.randomWord(random, 0, 50));
+            }
+        }
+        return sb.toString();
+    }
+}
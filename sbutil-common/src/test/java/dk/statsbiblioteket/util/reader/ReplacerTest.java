@@ -28,6 +28,8 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.CharBuffer;
+import java.nio.charset.CoderResult;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
@@ -69,6 +71,14 @@ public class ReplacerTest {
                 ReplacePerformanceTest.getRangeReplacements(300, 1, 5, 0, 5);
         testMonkey(new StringReplacer(rules), rules);
     }
+
+    @Test
+    // "foo" => "bar" with a compiled automaton
+    public void testMonkeyCharsToCharsAhoCorasick() throws IOException {
+        Map<String, String> rules =
+                ReplacePerformanceTest.getRangeReplacements(300, 1, 5, 0, 5);
+        testMonkey(new AhoCorasickReplacer(rules), rules);
+    }
     @Test
     public void testSetSourceString() throws Exception {
         StringReplacer rep = new StringReplacer(
@@ -232,12 +242,65 @@ public class ReplacerTest {
         for (int i = 0; i < RUNS; i++) {
             String input = ReplacePerformanceTest.randomWord(
                     random, 0, MAX_CHARS);
+            String expected =
+                    BaselineReplacerTest.getReplacedBaseline(rules, input);
             assertEquals("Replacement for '" + input + " should work",
-                         BaselineReplacerTest.getReplacedBaseline(rules, input),
-                         transformer.transform(input));
+                         expected, transformer.transform(input));
+            assertEquals("Bulk replacement for '" + input + " should work",
+                         expected, transformBulk(transformer, input, 10, 6));
         }
         log.info("Finished " + 100 + " runs with " + rules.size()
                  + " rules and max chars " + MAX_CHARS + " for " + transformer
                  + " in " + (System.currentTimeMillis() - startTime) + " ms");
     }
+
+    /**
+     * Transforms the input with
+     * {@link TextTransformer#transform(CharBuffer, CharBuffer, boolean)},
+     * using buffers of the given sizes to force repeated underflows and
+     * overflows.
+     */
+    public static String transformBulk(TextTransformer transformer,
+                                       String input, int inSize, int outSize) {
+        CharBuffer in = CharBuffer.allocate(inSize);
+        CharBuffer out = CharBuffer.allocate(outSize);
+        StringBuilder result = new StringBuilder(input.length());
+        int pos = 0;
+        while (true) {
+            int length = Math.min(in.remaining(), input.length() - pos);
+            in.put(input, pos, pos + length);
+            pos += length;
+            in.flip();
+            boolean endOfInput = pos == input.length();
+            CoderResult coderResult = transformer.transform(in, out, endOfInput);
+            out.flip();
+            result.append(out);
+            out.clear();
+            in.compact();
+            if (coderResult.isUnderflow() && endOfInput && in.position() == 0) {
+                return result.toString();
+            }
+        }
+    }
+
+    @Test
+    public void testBulkEdges() {
+        Map<String, String> rules = new HashMap<String, String>();
+        rules.put("abcd", "1");
+        rules.put("bc", "2");
+        rules.put("c", "333");
+        for (TextTransformer transformer : new TextTransformer[]{
+                new StringReplacer(rules), new AhoCorasickReplacer(rules)}) {
+            for (String input : new String[]{
+                    "", "a", "abc", "abcd", "abcx", "xxabcdc", "cccc"}) {
+                String expected = transformer.transform(input);
+                for (int size : new int[]{8, 9, 100}) {
+                    assertEquals("Bulk replacement for '" + input + "' with "
+                                 + transformer + " and size " + size,
+                                 expected,
+                                 transformBulk(transformer, input, size, 3));
+                }
+            }
+        }
+    }
 }
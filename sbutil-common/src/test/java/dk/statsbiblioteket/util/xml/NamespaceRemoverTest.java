@@ -22,9 +22,14 @@ package dk.statsbiblioteket.util.xml;
 import dk.statsbiblioteket.util.Files;
 import dk.statsbiblioteket.util.Strings;
 import dk.statsbiblioteket.util.reader.CircularCharBuffer;
+import dk.statsbiblioteket.util.reader.ReplacerTest;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.XMLReaderFactory;
 
 import java.io.*;
 
@@ -85,6 +90,32 @@ public class NamespaceRemoverTest extends TestCase {
         assertEquals("Namespaces should be removed", expected, actual);
     }
 
+    public void testCleanFileBulk() throws Exception {
+        String input = Files.loadString(new File(
+                XSLTTest.getURL("data/xml/namespace_input.xml").getFile()));
+        String expected = Files.loadString(new File(
+                XSLTTest.getURL("data/xml/namespace_removed.xml").getFile()));
+        NamespaceRemover remover = new NamespaceRemover(null);
+        assertEquals("Namespaces should be removed with large buffers",
+                     expected, ReplacerTest.transformBulk(
+                remover, input, input.length(), input.length() * 2));
+        assertEquals("Namespaces should be removed with small buffers",
+                     expected, ReplacerTest.transformBulk(
+                remover, input, 100, 60));
+    }
+
+    public void testBulkCommentsAndCDATA() throws Exception {
+        String input = "<a:b><!-- <c:d> --><![CDATA[<e:f>]]><g:h/>< i:j";
+        String expected = Strings.flush(
+                new NamespaceRemover(new StringReader(input)));
+        for (int size : new int[]{10, 20, 100}) {
+            assertEquals("Bulk transform with input buffer size " + size
+                         + " should match the Reader",
+                         expected, ReplacerTest.transformBulk(
+                    new NamespaceRemover(null), input, size, 10));
+        }
+    }
+
     public void testSpecificProblem() throws Exception {
         Reader in = new InputStreamReader(new FileInputStream(new File(
                 XSLTTest.getURL("data/xml/specific_problem.xml").getFile())));
@@ -108,4 +139,139 @@ public class NamespaceRemoverTest extends TestCase {
         assertEquals("<baroo/>", Strings.flushLocal(
                 ns.setSource(new StringReader(orig2))));
     }
+
+    public void testLargeTagAndComment() throws Exception {
+        StringBuilder attribute = new StringBuilder();
+        for (int i = 0; i < NamespaceRemover.BUFFER_SIZE * 3; i++) {
+            attribute.append((char) ('a' + i % 26));
+        }
+        String input = "<a:b c=\"" + attribute
+                       + "\">text</a:b><!-- " + attribute + " <a:b> -->"
+                       + "< " + attribute;
+        String expected = "<b c=\"" + attribute + "\">text</b><!-- "
+                          + attribute + " <a:b> -->< " + attribute;
+        assertEquals("Tags and comments larger than the buffers should work",
+                     expected, Strings.flush(
+                new NamespaceRemover(new StringReader(input))));
+
+        Reader remover = new NamespaceRemover(new StringReader(input));
+        StringBuilder single = new StringBuilder();
+        int c;
+        while ((c = remover.read()) != -1) {
+            single.append((char) c);
+        }
+        assertEquals("Single char reads should give the same result",
+                     expected, single.toString());
+    }
+
+    public void testSkip() throws Exception {
+        Reader remover = new NamespaceRemover(
+                new StringReader("<a:b>12345</a:b>"));
+        assertEquals(4, remover.skip(4));
+        assertEquals("2345</b>", Strings.flush(remover));
+    }
+
+    /**
+     * The size of the corpus for {@link #testSpeedAgainstParsing()}. Raise to
+     * 1GB or more for stable measurements.
+     */
+    private static final long SPEED_CORPUS_SIZE = 10 * 1024 * 1024;
+
+    /**
+     * Compares the throughput of NamespaceRemover with ParsingNamespaceRemover
+     * on a generated corpus that is streamed, so that the size is not limited
+     * by the heap. The SAX filter produces events and not text, so the
+     * measurements includes parsing for both.
+     */
+    public void testSpeedAgainstParsing() throws Exception {
+        for (int run = 0; run < 2; run++) {
+            long startTime = System.nanoTime();
+            char[] buffer = new char[8192];
+            Reader remover = new NamespaceRemover(
+                    new CorpusReader(SPEED_CORPUS_SIZE));
+            long chars = 0;
+            int read;
+            while ((read = remover.read(buffer, 0, buffer.length)) != -1) {
+                chars += read;
+            }
+            long removerTime = System.nanoTime() - startTime;
+            assertTrue("Some output should be produced", chars > 0);
+
+            startTime = System.nanoTime();
+            Reader cleaned = new NamespaceRemover(
+                    new CorpusReader(SPEED_CORPUS_SIZE));
+            XMLReader parser = XMLReaderFactory.createXMLReader();
+            parser.setContentHandler(new DefaultHandler());
+            parser.parse(new InputSource(cleaned));
+            long removerParseTime = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            @SuppressWarnings({"deprecation"})
+            XMLReader filter = new ParsingNamespaceRemover(
+                    XMLReaderFactory.createXMLReader());
+            filter.setContentHandler(new DefaultHandler());
+            filter.parse(new InputSource(new CorpusReader(SPEED_CORPUS_SIZE)));
+            long parsingTime = System.nanoTime() - startTime;
+
+            System.out.println(String.format(
+                    "Run %d with %dMB: NamespaceRemover %dms (%dMB/s), "
+                    + "NamespaceRemover+SAX %dms, ParsingNamespaceRemover "
+                    + "%dms", run + 1, SPEED_CORPUS_SIZE / 1048576,
+                    removerTime / 1000000,
+                    SPEED_CORPUS_SIZE * 1000 / Math.max(1, removerTime),
+                    removerParseTime / 1000000, parsingTime / 1000000));
+        }
+    }
+
+    /**
+     * Generates a well-formed XML document of roughly the given size with
+     * namespaced records.
+     */
+    private static class CorpusReader extends Reader {
+        private static final String HEADER =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<c:corpus xmlns:c=\"http://example.com/corpus\" "
+                + "xmlns:dc=\"http://purl.org/dc/elements/1.1/\">\n";
+        private static final String RECORD =
+                "  <c:record id=\"r\" xmlns=\"http://example.com/default\">\n"
+                + "    <dc:title>Some title with &amp; an entity</dc:title>\n"
+                + "    <dc:description>A longer text without any markup, "
+                + "which is typical for the content of records in exports. "
+                + "It should be copied in bulk.</dc:description>\n"
+                + "    <!-- A comment with <c:tag> -->\n"
+                + "    <c:data><![CDATA[<c:not-a-tag>]]></c:data>\n"
+                + "  </c:record>\n";
+        private static final String FOOTER = "</c:corpus>\n";
+
+        private final long records;
+        private long record = -1; // -1 is the header
+        private String current = HEADER;
+        private int pos = 0;
+
+        private CorpusReader(long size) {
+            records = Math.max(1, size / RECORD.length());
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (current == null) {
+                return -1;
+            }
+            int length = Math.min(len, current.length() - pos);
+            current.getChars(pos, pos + length, cbuf, off);
+            pos += length;
+            if (pos == current.length()) {
+                record++;
+                pos = 0;
+                current = record < records ? RECORD :
+                          record == records ? FOOTER : null;
+            }
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            current = null;
+        }
+    }
 }